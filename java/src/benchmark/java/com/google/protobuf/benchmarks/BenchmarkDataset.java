@@ -0,0 +1,96 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf.benchmarks;
+
+import benchmarks.GoogleSize;
+import benchmarks.GoogleSpeed;
+import com.google.protobuf.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The sample messages in the {@code benchmarks} directory, each paired with
+ * the generated type used to parse it.  The same data is parsed both with
+ * the {@code optimize_for = SPEED} and the {@code optimize_for = CODE_SIZE}
+ * version of its schema.
+ */
+public enum BenchmarkDataset {
+  SIZE_MESSAGE1(GoogleSize.SizeMessage1.getDefaultInstance(),
+                "google_message1.dat"),
+  SPEED_MESSAGE1(GoogleSpeed.SpeedMessage1.getDefaultInstance(),
+                 "google_message1.dat"),
+  SIZE_MESSAGE2(GoogleSize.SizeMessage2.getDefaultInstance(),
+                "google_message2.dat"),
+  SPEED_MESSAGE2(GoogleSpeed.SpeedMessage2.getDefaultInstance(),
+                 "google_message2.dat");
+
+  private final Message defaultInstance;
+  private final String resourceName;
+
+  private BenchmarkDataset(final Message defaultInstance,
+                           final String resourceName) {
+    this.defaultInstance = defaultInstance;
+    this.resourceName = resourceName;
+  }
+
+  /** Get the default instance of the type this data is parsed as. */
+  public Message getDefaultInstance() {
+    return defaultInstance;
+  }
+
+  /** Read the serialized sample message from the classpath. */
+  public byte[] readData() throws IOException {
+    final InputStream input =
+      BenchmarkDataset.class.getResourceAsStream("/" + resourceName);
+    if (input == null) {
+      throw new IOException("Benchmark data not found on the classpath: " +
+                            resourceName);
+    }
+    try {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int n;
+      while ((n = input.read(buffer)) != -1) {
+        output.write(buffer, 0, n);
+      }
+      return output.toByteArray();
+    } finally {
+      input.close();
+    }
+  }
+
+  /** Parse the sample message. */
+  public Message parseData() throws IOException {
+    return defaultInstance.newBuilderForType().mergeFrom(readData()).build();
+  }
+}
@@ -0,0 +1,104 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package com.google.protobuf.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses each sample message with its {@code optimize_for = CODE_SIZE} type,
+ * which has no parsing code of its own and goes through the table-driven
+ * message schema and the generated reflection accessors, next to its
+ * {@code optimize_for = SPEED} type as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class CodeSizeParseBenchmark {
+  @Param({"MESSAGE1", "MESSAGE2"})
+  public String message;
+
+  private Message sizeDefaultMessage;
+  private Message speedDefaultMessage;
+  private Message sizeSampleMessage;
+  private ByteString inputString;
+
+  @Setup
+  public void setUp() throws IOException {
+    final BenchmarkDataset size = BenchmarkDataset.valueOf("SIZE_" + message);
+    final BenchmarkDataset speed =
+      BenchmarkDataset.valueOf("SPEED_" + message);
+    sizeDefaultMessage = size.getDefaultInstance();
+    speedDefaultMessage = speed.getDefaultInstance();
+    inputString = ByteString.copyFrom(size.readData());
+    sizeSampleMessage =
+      sizeDefaultMessage.newBuilderForType().mergeFrom(inputString).build();
+  }
+
+  @Benchmark
+  public Message parseCodeSize() throws IOException {
+    return sizeDefaultMessage.newBuilderForType().mergeFrom(inputString)
+      .build();
+  }
+
+  @Benchmark
+  public Message parseSpeed() throws IOException {
+    return speedDefaultMessage.newBuilderForType().mergeFrom(inputString)
+      .build();
+  }
+
+  /**
+   * Copies the parsed message field by field through the reflection
+   * interface, which is all the table-driven parser adds on top of decoding.
+   */
+  @Benchmark
+  public Message copyCodeSizeThroughReflection() {
+    return sizeDefaultMessage.newBuilderForType().mergeFrom(sizeSampleMessage)
+      .build();
+  }
+}
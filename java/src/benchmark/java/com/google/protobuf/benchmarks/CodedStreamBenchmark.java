@@ -0,0 +1,237 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.IntList;
+import com.google.protobuf.LongList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes runs of {@link #COUNT} raw values with
+ * {@link CodedInputStream} and {@link CodedOutputStream}.  Scores are per
+ * value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class CodedStreamBenchmark {
+  private static final int COUNT = 1024;
+
+  /**
+   * How many significant bits the values have, which decides how long their
+   * varint encodings are.  64-bit values get twice as many.
+   */
+  @Param({"7", "14", "28", "32"})
+  public int valueBits;
+
+  private final IntList ints = new IntList();
+  private final LongList longs = new LongList();
+
+  private byte[] varint32Data;
+  private byte[] varint64Data;
+  private byte[] fixed32Data;
+  private byte[] fixed64Data;
+  private byte[] packedVarint32Data;
+  private byte[] packedFixed64Data;
+  private byte[] outputBuffer;
+
+  private final IntList intResult = new IntList();
+  private final LongList longResult = new LongList();
+
+  @Setup
+  public void setUp() throws IOException {
+    final Random random = new Random(1);
+    final int intMask = (int) ((1L << valueBits) - 1);
+    final long longMask = valueBits * 2 >= 64 ? -1L : (1L << valueBits * 2) - 1;
+    for (int i = 0; i < COUNT; i++) {
+      ints.addInt(random.nextInt() & intMask);
+      longs.addLong(random.nextLong() & longMask);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    output.writeUInt32sNoTag(ints);
+    output.flush();
+    varint32Data = bytes.toByteArray();
+
+    bytes.reset();
+    output.writeInt64sNoTag(longs);
+    output.flush();
+    varint64Data = bytes.toByteArray();
+
+    bytes.reset();
+    output.writeFixed32sNoTag(ints);
+    output.flush();
+    fixed32Data = bytes.toByteArray();
+
+    bytes.reset();
+    output.writeFixed64sNoTag(longs);
+    output.flush();
+    fixed64Data = bytes.toByteArray();
+
+    bytes.reset();
+    output.writeBytesNoTag(ByteString.copyFrom(varint32Data));
+    output.flush();
+    packedVarint32Data = bytes.toByteArray();
+
+    bytes.reset();
+    output.writeBytesNoTag(ByteString.copyFrom(fixed64Data));
+    output.flush();
+    packedFixed64Data = bytes.toByteArray();
+
+    outputBuffer = new byte[COUNT * 10];
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public int readRawVarint32() throws IOException {
+    final CodedInputStream input = CodedInputStream.newInstance(varint32Data);
+    int sum = 0;
+    for (int i = 0; i < COUNT; i++) {
+      sum += input.readRawVarint32();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long readRawVarint64() throws IOException {
+    final CodedInputStream input = CodedInputStream.newInstance(varint64Data);
+    long sum = 0;
+    for (int i = 0; i < COUNT; i++) {
+      sum += input.readRawVarint64();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public int readRawLittleEndian32() throws IOException {
+    final CodedInputStream input = CodedInputStream.newInstance(fixed32Data);
+    int sum = 0;
+    for (int i = 0; i < COUNT; i++) {
+      sum += input.readRawLittleEndian32();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long readRawLittleEndian64() throws IOException {
+    final CodedInputStream input = CodedInputStream.newInstance(fixed64Data);
+    long sum = 0;
+    for (int i = 0; i < COUNT; i++) {
+      sum += input.readRawLittleEndian64();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public IntList readPackedVarint32s() throws IOException {
+    intResult.clear();
+    CodedInputStream.newInstance(packedVarint32Data)
+      .readPackedVarint32s(intResult);
+    return intResult;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public LongList readPackedFixed64s() throws IOException {
+    longResult.clear();
+    CodedInputStream.newInstance(packedFixed64Data)
+      .readPackedFixed64s(longResult);
+    return longResult;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public byte[] writeRawVarint32() throws IOException {
+    final CodedOutputStream output =
+      CodedOutputStream.newInstance(outputBuffer);
+    for (int i = 0; i < COUNT; i++) {
+      output.writeRawVarint32(ints.getInt(i));
+    }
+    return outputBuffer;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public byte[] writeRawVarint64() throws IOException {
+    final CodedOutputStream output =
+      CodedOutputStream.newInstance(outputBuffer);
+    for (int i = 0; i < COUNT; i++) {
+      output.writeRawVarint64(longs.getLong(i));
+    }
+    return outputBuffer;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public byte[] writeRawLittleEndian64() throws IOException {
+    final CodedOutputStream output =
+      CodedOutputStream.newInstance(outputBuffer);
+    for (int i = 0; i < COUNT; i++) {
+      output.writeRawLittleEndian64(longs.getLong(i));
+    }
+    return outputBuffer;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public byte[] writeUInt32sNoTag() throws IOException {
+    CodedOutputStream.newInstance(outputBuffer).writeUInt32sNoTag(ints);
+    return outputBuffer;
+  }
+}
@@ -0,0 +1,112 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.DynamicMessageCompiler;
+import com.google.protobuf.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses and serializes the sample messages as {@link DynamicMessage}s, and
+ * as messages compiled by {@link DynamicMessageCompiler}.  Only the
+ * descriptor of the generated type is used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class DynamicMessageBenchmark {
+  @Param
+  public BenchmarkDataset dataset;
+
+  private Descriptor descriptor;
+  private ByteString inputString;
+  private DynamicMessage sampleMessage;
+  private Message compiledPrototype;
+  private Message compiledSampleMessage;
+
+  @Setup
+  public void setUp() throws IOException {
+    descriptor = dataset.getDefaultInstance().getDescriptorForType();
+    inputString = ByteString.copyFrom(dataset.readData());
+    sampleMessage = DynamicMessage.parseFrom(descriptor, inputString);
+    compiledPrototype = new DynamicMessageCompiler().compile(descriptor);
+    compiledSampleMessage =
+      compiledPrototype.newBuilderForType().mergeFrom(inputString).build();
+  }
+
+  @Benchmark
+  public DynamicMessage parse() throws IOException {
+    return DynamicMessage.parseFrom(descriptor, inputString);
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return sampleMessage.toByteArray();
+  }
+
+  @Benchmark
+  public int getSerializedSize() {
+    // A new message, since the size of the sample message is memoized.
+    return DynamicMessage.newBuilder(sampleMessage).build()
+      .getSerializedSize();
+  }
+
+  @Benchmark
+  public Message parseCompiled() throws IOException {
+    return compiledPrototype.newBuilderForType().mergeFrom(inputString)
+      .build();
+  }
+
+  @Benchmark
+  public byte[] serializeCompiled() {
+    return compiledSampleMessage.toByteArray();
+  }
+}
@@ -0,0 +1,140 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes and parses the sample messages in every way the old
+ * {@code ProtoBench} tool did.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MessageBenchmark {
+  @Param
+  public BenchmarkDataset dataset;
+
+  private Message defaultMessage;
+  private Message sampleMessage;
+  private byte[] inputData;
+  private ByteString inputString;
+  private ByteArrayInputStream inputStream;
+  private CodedOutputStream reusedOutput;
+
+  @Setup
+  public void setUp() throws IOException {
+    defaultMessage = dataset.getDefaultInstance();
+    inputData = dataset.readData();
+    inputString = ByteString.copyFrom(inputData);
+    inputStream = new ByteArrayInputStream(inputData);
+    sampleMessage =
+      defaultMessage.newBuilderForType().mergeFrom(inputString).build();
+    reusedOutput = CodedOutputStream.newInstance(new NullOutputStream());
+  }
+
+  @Benchmark
+  public ByteString serializeToByteString() {
+    return sampleMessage.toByteString();
+  }
+
+  @Benchmark
+  public byte[] serializeToByteArray() {
+    return sampleMessage.toByteArray();
+  }
+
+  @Benchmark
+  public ByteArrayOutputStream serializeToMemoryStream() throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    sampleMessage.writeTo(output);
+    return output;
+  }
+
+  @Benchmark
+  public void serializeToReusedCodedOutputStream() throws IOException {
+    sampleMessage.writeTo(reusedOutput);
+    reusedOutput.flush();  // force the write to the OutputStream
+  }
+
+  @Benchmark
+  public Message deserializeFromByteString() throws IOException {
+    return defaultMessage.newBuilderForType().mergeFrom(inputString).build();
+  }
+
+  @Benchmark
+  public Message deserializeFromByteArray() throws IOException {
+    return defaultMessage.newBuilderForType()
+      .mergeFrom(CodedInputStream.newInstance(inputData)).build();
+  }
+
+  @Benchmark
+  public Message deserializeFromMemoryStream() throws IOException {
+    inputStream.reset();
+    return defaultMessage.newBuilderForType()
+      .mergeFrom(CodedInputStream.newInstance(inputStream)).build();
+  }
+
+  /**
+   * Discards everything written to it.  Stands in for /dev/null, which does
+   * not exist everywhere.
+   */
+  private static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(final int b) {}
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {}
+  }
+}
@@ -167,11 +167,55 @@ public abstract class AbstractMessage extends AbstractMessageLite
   public int hashCode() {
     int hash = 41;
     hash = (19 * hash) + getDescriptorForType().hashCode();
-    hash = (53 * hash) + getAllFields().hashCode();
+    final Map<FieldDescriptor, Object> fields = getAllFields();
+    hash = hashFields(hash, fields, false);
+    hash = hashFields(hash, fields, true);
     hash = (29 * hash) + getUnknownFields().hashCode();
     return hash;
   }
 
+  /**
+   * Mixes the given fields into {@code hash}, field by field and in the map's
+   * iteration order.  Generated messages with their own {@code hashCode()}
+   * call this to hash their extensions, so that their hash codes agree with
+   * those of equal messages which use the implementation above.
+   */
+  protected static int hashFields(int hash,
+                                  final Map<FieldDescriptor, Object> fields) {
+    for (final Map.Entry<FieldDescriptor, Object> entry : fields.entrySet()) {
+      hash = hashField(hash, entry.getKey(), entry.getValue());
+    }
+    return hash;
+  }
+
+  /** Like above, but only hashes the extensions or the non-extensions. */
+  private static int hashFields(int hash,
+                                final Map<FieldDescriptor, Object> fields,
+                                final boolean extensions) {
+    for (final Map.Entry<FieldDescriptor, Object> entry : fields.entrySet()) {
+      final FieldDescriptor field = entry.getKey();
+      if (field.isExtension() == extensions) {
+        hash = hashField(hash, field, entry.getValue());
+      }
+    }
+    return hash;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int hashField(int hash, final FieldDescriptor field,
+                               final Object value) {
+    hash = (37 * hash) + field.getNumber();
+    if (field.getType() != FieldDescriptor.Type.ENUM) {
+      hash = (53 * hash) + value.hashCode();
+    } else if (field.isRepeated()) {
+      hash = (53 * hash) +
+          Internal.hashEnumList((List<? extends Internal.EnumLite>) value);
+    } else {
+      hash = (53 * hash) + Internal.hashEnum((Internal.EnumLite) value);
+    }
+    return hash;
+  }
+
   // =================================================================
 
   /**
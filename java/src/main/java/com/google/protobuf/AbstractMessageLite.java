@@ -103,6 +103,14 @@ public abstract class AbstractMessageLite implements MessageLite {
     @Override
     public abstract BuilderType clone();
 
+    /**
+     * The default implementation just calls {@link #clear()}, which is
+     * enough for builders that don't hand their storage over on build().
+     */
+    public BuilderType clearForReuse() {
+      return (BuilderType) clear();
+    }
+
     public BuilderType mergeFrom(final CodedInputStream input)
                                  throws IOException {
       return mergeFrom(input, ExtensionRegistryLite.getEmptyRegistry());
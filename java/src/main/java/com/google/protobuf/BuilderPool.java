@@ -0,0 +1,100 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.util.ArrayList;
+
+/**
+ * A bounded pool of builders for one message type, for applications that
+ * parse many messages and only need each of them for a short time.  A
+ * builder taken from the pool is empty; the caller parses into it with one
+ * of the {@code mergeFrom()} methods, reads the fields through the builder's
+ * accessors, and gives it back.  Since the builder is never built, parsing
+ * a message this way allocates no message or builder of its own, and
+ * repeated fields keep the capacity of their lists from one message to the
+ * next.  See {@link MessageLite.Builder#clearForReuse()}.
+ *
+ * <p>Built messages are immutable and may be shared freely, so they are not
+ * pooled; their builders are.  A builder returned by {@link #borrow()}
+ * belongs to the caller until it is passed to {@link #release}.  After that
+ * neither the builder nor anything obtained from its accessors other than
+ * built messages and their contents may be used, since the pool will hand
+ * the builder to the next caller.  Builders from elsewhere may be released
+ * into the pool too, under the same contract.
+ *
+ * <p>The pool itself is thread-safe; the builders it holds are not.
+ */
+public final class BuilderPool<BuilderType extends MessageLite.Builder> {
+  private final MessageLite prototype;
+  private final int maxSize;
+  private final ArrayList<BuilderType> builders;
+
+  /**
+   * Constructs a pool which keeps up to {@code maxSize} builders of the
+   * same type as {@code prototype}, usually the type's default instance.
+   */
+  public BuilderPool(final MessageLite prototype, final int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize must not be negative.");
+    }
+    this.prototype = prototype;
+    this.maxSize = maxSize;
+    this.builders = new ArrayList<BuilderType>(maxSize);
+  }
+
+  /**
+   * Takes an empty builder from the pool, or creates one if the pool is
+   * empty.
+   */
+  @SuppressWarnings("unchecked")
+  public BuilderType borrow() {
+    synchronized (builders) {
+      if (!builders.isEmpty()) {
+        return builders.remove(builders.size() - 1);
+      }
+    }
+    return (BuilderType) prototype.newBuilderForType();
+  }
+
+  /**
+   * Clears {@code builder} with {@link MessageLite.Builder#clearForReuse()}
+   * and gives it to the pool, which drops it if it is full.  The caller must
+   * not use the builder afterwards.
+   */
+  public void release(final BuilderType builder) {
+    builder.clearForReuse();
+    synchronized (builders) {
+      if (builders.size() < maxSize) {
+        builders.add(builder);
+      }
+    }
+  }
+}
@@ -31,47 +31,50 @@
 package com.google.protobuf;
 
 import java.io.InputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * Immutable array of bytes.
+ * Immutable sequence of bytes.
+ *
+ * <p>A {@code ByteString} may be backed by a single array or, when built by
+ * {@link #concat(ByteString)} or {@link #copyFrom(List)}, by a balanced tree
+ * of smaller strings, so that concatenation and {@link #substring(int, int)}
+ * never copy more than a small constant number of bytes.  Callers should not
+ * depend on the representation; {@link #asReadOnlyByteBufferList()} exposes
+ * the underlying chunks for code which wants to avoid flattening.
  *
  * @author crazybob@google.com Bob Lee
  * @author kenton@google.com Kenton Varda
  */
-public final class ByteString {
-  private final byte[] bytes;
-
-  private ByteString(final byte[] bytes) {
-    this.bytes = bytes;
-  }
+public abstract class ByteString {
+  // Only package-private subclasses are allowed:  LiteralByteString (a whole
+  // array), BoundedByteString (part of an array) and RopeByteString (the
+  // concatenation of two ByteStrings).
+  ByteString() {}
 
   /**
    * Gets the byte at the given index.
    *
    * @throws ArrayIndexOutOfBoundsException {@code index} is < 0 or >= size
    */
-  public byte byteAt(final int index) {
-    return bytes[index];
-  }
+  public abstract byte byteAt(int index);
 
   /**
    * Gets the number of bytes.
    */
-  public int size() {
-    return bytes.length;
-  }
+  public abstract int size();
 
   /**
    * Returns {@code true} if the size is {@code 0}, {@code false} otherwise.
    */
   public boolean isEmpty() {
-    return bytes.length == 0;
+    return size() == 0;
   }
 
   // =================================================================
@@ -80,7 +83,7 @@ public final class ByteString {
   /**
    * Empty ByteString.
    */
-  public static final ByteString EMPTY = new ByteString(new byte[0]);
+  public static final ByteString EMPTY = new LiteralByteString(new byte[0]);
 
   /**
    * Copies the given bytes into a {@code ByteString}.
@@ -89,7 +92,7 @@ public final class ByteString {
                                     final int size) {
     final byte[] copy = new byte[size];
     System.arraycopy(bytes, offset, copy, 0, size);
-    return new ByteString(copy);
+    return new LiteralByteString(copy);
   }
 
   /**
@@ -99,6 +102,19 @@ public final class ByteString {
     return copyFrom(bytes, 0, bytes.length);
   }
 
+  /**
+   * Returns a {@code ByteString} which shares the given slice of
+   * {@code bytes} rather than copying it.  The caller must guarantee that
+   * the slice will never be modified.
+   */
+  static ByteString wrap(final byte[] bytes, final int offset,
+                         final int size) {
+    if (offset == 0 && size == bytes.length) {
+      return new LiteralByteString(bytes);
+    }
+    return new BoundedByteString(bytes, offset, size);
+  }
+
   /**
    * Copies {@code size} bytes from a {@code java.nio.ByteBuffer} into
    * a {@code ByteString}.
@@ -106,7 +122,7 @@ public final class ByteString {
   public static ByteString copyFrom(final ByteBuffer bytes, final int size) {
     final byte[] copy = new byte[size];
     bytes.get(copy);
-    return new ByteString(copy);
+    return new LiteralByteString(copy);
   }
 
   /**
@@ -123,7 +139,7 @@ public final class ByteString {
    */
   public static ByteString copyFrom(final String text, final String charsetName)
       throws UnsupportedEncodingException {
-    return new ByteString(text.getBytes(charsetName));
+    return new LiteralByteString(text.getBytes(charsetName));
   }
 
   /**
@@ -132,7 +148,7 @@ public final class ByteString {
    */
   public static ByteString copyFromUtf8(final String text) {
     try {
-      return new ByteString(text.getBytes("UTF-8"));
+      return new LiteralByteString(text.getBytes("UTF-8"));
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException("UTF-8 not supported?", e);
     }
@@ -140,32 +156,106 @@ public final class ByteString {
 
   /**
    * Concatenates all byte strings in the list and returns the result.
+   * The bytes themselves are not copied; the result is a balanced tree
+   * referring to the elements of the list.
    *
    * <p>The returned {@code ByteString} is not necessarily a unique object.
    * If the list is empty, the returned object is the singleton empty
    * {@code ByteString}.  If the list has only one element, that
    * {@code ByteString} will be returned without copying.
    */
-  public static ByteString copyFrom(List<ByteString> list) {
+  public static ByteString copyFrom(final List<ByteString> list) {
     if (list.size() == 0) {
       return EMPTY;
-    } else if (list.size() == 1) {
-      return list.get(0);
     }
+    return balancedConcat(list, 0, list.size());
+  }
 
-    int size = 0;
-    for (ByteString str : list) {
-      size += str.size();
+  // Concatenating pairwise from the middle keeps the depth of the result
+  // logarithmic in the number of pieces.
+  private static ByteString balancedConcat(final List<ByteString> list,
+                                           final int start, final int length) {
+    if (length == 1) {
+      return list.get(start);
     }
-    byte[] bytes = new byte[size];
-    int pos = 0;
-    for (ByteString str : list) {
-      System.arraycopy(str.bytes, 0, bytes, pos, str.size());
-      pos += str.size();
+    final int halfLength = length >>> 1;
+    final ByteString left = balancedConcat(list, start, halfLength);
+    final ByteString right =
+        balancedConcat(list, start + halfLength, length - halfLength);
+    return left.concat(right);
+  }
+
+  // =================================================================
+  // ByteString -> ByteString
+
+  /**
+   * Returns the concatenation of this {@code ByteString} and {@code other}.
+   * Large inputs are not copied; instead the result refers to both, so
+   * building up a long string by repeated concatenation takes time linear
+   * in the number of pieces rather than in the total number of bytes.
+   *
+   * @throws IllegalArgumentException the result would be longer than
+   *         {@code Integer.MAX_VALUE} bytes
+   */
+  public ByteString concat(final ByteString other) {
+    if (size() > Integer.MAX_VALUE - other.size()) {
+      throw new IllegalArgumentException("ByteString would be too long: " +
+          size() + "+" + other.size());
     }
-    return new ByteString(bytes);
+    return RopeByteString.concatenate(this, other);
+  }
+
+  /**
+   * Returns the bytes from {@code beginIndex} to the end of this
+   * {@code ByteString}.  The bytes are shared, not copied.
+   *
+   * @throws IndexOutOfBoundsException {@code beginIndex} is < 0 or > size
+   */
+  public ByteString substring(final int beginIndex) {
+    return substring(beginIndex, size());
   }
 
+  /**
+   * Returns the bytes from {@code beginIndex} (inclusive) to
+   * {@code endIndex} (exclusive).  The bytes are shared, not copied.
+   *
+   * @throws IndexOutOfBoundsException {@code beginIndex} is < 0,
+   *         {@code endIndex} is > size, or {@code beginIndex} is >
+   *         {@code endIndex}
+   */
+  public ByteString substring(final int beginIndex, final int endIndex) {
+    if (beginIndex < 0 || endIndex > size() || beginIndex > endIndex) {
+      throw new IndexOutOfBoundsException(
+        "Substring out of bounds: " + beginIndex + ", " + endIndex +
+        " (size " + size() + ")");
+    }
+    if (beginIndex == endIndex) {
+      return EMPTY;
+    }
+    if (beginIndex == 0 && endIndex == size()) {
+      return this;
+    }
+    return substringInternal(beginIndex, endIndex);
+  }
+
+  /**
+   * Like {@link #substring(int, int)}, but the range has already been
+   * checked and is neither empty nor the whole string.
+   */
+  abstract ByteString substringInternal(int beginIndex, int endIndex);
+
+  /**
+   * Returns the depth of the tree of concatenations representing this
+   * string; 0 for a string backed by a single array.
+   */
+  abstract int getTreeDepth();
+
+  /**
+   * Returns whether this string is shallow enough for its length that
+   * concatenating it need not rebuild it.  See {@link RopeByteString}.
+   */
+  abstract boolean isBalanced();
+
   // =================================================================
   // ByteString -> byte[]
 
@@ -176,7 +266,7 @@ public final class ByteString {
    * @param offset in the target buffer
    */
   public void copyTo(final byte[] target, final int offset) {
-    System.arraycopy(bytes, 0, target, offset, bytes.length);
+    copyTo(target, 0, offset, size());
   }
 
   /**
@@ -190,35 +280,82 @@ public final class ByteString {
   public void copyTo(final byte[] target, final int sourceOffset,
                      final int targetOffset,
       final int size) {
-    System.arraycopy(bytes, sourceOffset, target, targetOffset, size);
+    if (sourceOffset < 0 || size < 0 || sourceOffset > size() - size) {
+      throw new IndexOutOfBoundsException(
+        "Source range out of bounds: " + sourceOffset + ", " + size);
+    }
+    if (targetOffset < 0 || targetOffset > target.length - size) {
+      throw new IndexOutOfBoundsException(
+        "Target range out of bounds: " + targetOffset + ", " + size);
+    }
+    if (size > 0) {
+      copyToInternal(target, sourceOffset, targetOffset, size);
+    }
   }
 
+  /**
+   * Like {@link #copyTo(byte[], int, int, int)}, but the ranges have already
+   * been checked.
+   */
+  abstract void copyToInternal(byte[] target, int sourceOffset,
+                               int targetOffset, int size);
+
   /**
    * Copies bytes to a {@code byte[]}.
    */
   public byte[] toByteArray() {
-    final int size = bytes.length;
+    final int size = size();
     final byte[] copy = new byte[size];
-    System.arraycopy(bytes, 0, copy, 0, size);
+    if (size > 0) {
+      copyToInternal(copy, 0, 0, size);
+    }
     return copy;
   }
 
   /**
-   * Constructs a new read-only {@code java.nio.ByteBuffer} with the
-   * same backing byte array.
+   * Writes the bytes to an {@code OutputStream} without first copying them
+   * to a new array.
+   */
+  public abstract void writeTo(OutputStream out) throws IOException;
+
+  /**
+   * Writes the bytes to a {@link CodedOutputStream} without first copying
+   * them to a new array.
+   */
+  abstract void writeTo(CodedOutputStream output) throws IOException;
+
+  /**
+   * Constructs a new read-only {@code java.nio.ByteBuffer} whose contents
+   * are the bytes of this string.  If the string is backed by a single
+   * array, the buffer shares it; otherwise the bytes are first copied into
+   * one array.  Use {@link #asReadOnlyByteBufferList()} to avoid the copy.
    */
-  public ByteBuffer asReadOnlyByteBuffer() {
-    final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-    return byteBuffer.asReadOnlyBuffer();
+  public abstract ByteBuffer asReadOnlyByteBuffer();
+
+  /**
+   * Constructs a list of read-only {@code java.nio.ByteBuffer}s which share
+   * the backing arrays of this string and, read in order, contain its
+   * bytes.  This is the way to visit the bytes chunk by chunk without
+   * copying them.  The list is empty if the string is.
+   */
+  public List<ByteBuffer> asReadOnlyByteBufferList() {
+    final List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+    if (size() > 0) {
+      addChunksTo(result);
+    }
+    return Collections.unmodifiableList(result);
   }
 
+  /** Appends a read-only buffer for each non-empty chunk to {@code list}. */
+  abstract void addChunksTo(List<ByteBuffer> list);
+
   /**
    * Constructs a new {@code String} by decoding the bytes using the
    * specified charset.
    */
   public String toString(final String charsetName)
       throws UnsupportedEncodingException {
-    return new String(bytes, charsetName);
+    return new String(toByteArray(), charsetName);
   }
 
   /**
@@ -226,7 +363,7 @@ public final class ByteString {
    */
   public String toStringUtf8() {
     try {
-      return new String(bytes, "UTF-8");
+      return toString("UTF-8");
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException("UTF-8 not supported?", e);
     }
@@ -236,46 +373,17 @@ public final class ByteString {
   // equals() and hashCode()
 
   @Override
-  public boolean equals(final Object o) {
-    if (o == this) {
-      return true;
-    }
-
-    if (!(o instanceof ByteString)) {
-      return false;
-    }
-
-    final ByteString other = (ByteString) o;
-    final int size = bytes.length;
-    if (size != other.bytes.length) {
-      return false;
-    }
-
-    final byte[] thisBytes = bytes;
-    final byte[] otherBytes = other.bytes;
-    for (int i = 0; i < size; i++) {
-      if (thisBytes[i] != otherBytes[i]) {
-        return false;
-      }
-    }
-
-    return true;
-  }
+  public abstract boolean equals(Object o);
 
   private volatile int hash = 0;
 
   @Override
-  public int hashCode() {
+  public final int hashCode() {
     int h = hash;
 
     if (h == 0) {
-      final byte[] thisBytes = bytes;
-      final int size = bytes.length;
-
-      h = size;
-      for (int i = 0; i < size; i++) {
-        h = h * 31 + thisBytes[i];
-      }
+      final int size = size();
+      h = partialHash(size, 0, size);
       if (h == 0) {
         h = 1;
       }
@@ -286,35 +394,49 @@ public final class ByteString {
     return h;
   }
 
+  /**
+   * Returns the hash code if it has already been computed, or 0 if not.
+   * Lets {@link #equals(Object)} reject most unequal strings cheaply.
+   */
+  final int peekCachedHashCode() {
+    return hash;
+  }
+
+  /**
+   * Continues computing the hash code from {@code h} over the given range
+   * of bytes, which has already been checked.  The hash code of the whole
+   * string is {@code partialHash(size(), 0, size())}, or 1 if that is 0.
+   */
+  abstract int partialHash(int h, int offset, int length);
+
   // =================================================================
   // Input stream
 
   /**
    * Creates an {@code InputStream} which can be used to read the bytes.
    */
-  public InputStream newInput() {
-    return new ByteArrayInputStream(bytes);
-  }
+  public abstract InputStream newInput();
 
   /**
    * Creates a {@link CodedInputStream} which can be used to read the bytes.
    * Using this is more efficient than creating a {@link CodedInputStream}
    * wrapping the result of {@link #newInput()}.
    */
-  public CodedInputStream newCodedInput() {
-    // We trust CodedInputStream not to modify the bytes, or to give anyone
-    // else access to them.
-    return CodedInputStream.newInstance(bytes);
-  }
-
+  public abstract CodedInputStream newCodedInput();
   // =================================================================
   // Output stream
 
   /**
-   * Creates a new {@link Output} with the given initial capacity.
+   * Creates a new {@link Output} with the given initial capacity.  The
+   * capacity is only the size of the first chunk; the output grows without
+   * bound as bytes are written.
    */
   public static Output newOutput(final int initialCapacity) {
-    return new Output(new ByteArrayOutputStream(initialCapacity));
+    if (initialCapacity < 1) {
+      throw new IllegalArgumentException(
+        "Initial capacity must be positive: " + initialCapacity);
+    }
+    return new Output(initialCapacity);
   }
 
   /**
@@ -327,24 +449,169 @@ public final class ByteString {
   /**
    * Outputs to a {@code ByteString} instance. Call {@link #toByteString()} to
    * create the {@code ByteString} instance.
+   *
+   * <p>Bytes are written into a series of chunks, each at least half as large
+   * as everything written before it (up to {@link #MAX_CHUNK_SIZE}), so no
+   * byte is copied more than once while the output grows, and
+   * {@link #toByteString()} returns a concatenation of the chunks instead of
+   * copying them into one array.  An {@code Output} can be {@link #reset()}
+   * and reused; it then keeps its current chunk rather than starting over
+   * with a small one.
+   *
+   * <p>Like {@code java.io.ByteArrayOutputStream}, this class is thread-safe.
    */
-  public static final class Output extends FilterOutputStream {
-    private final ByteArrayOutputStream bout;
+  public static final class Output extends OutputStream {
+    /**
+     * Chunks are not made any larger than this, unless a single write needs
+     * it, so that large outputs do not require huge contiguous arrays.
+     */
+    static final int MAX_CHUNK_SIZE = 1 << 20;
+
+    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+
+    private final int initialCapacity;
+    // Chunks which are full, or which have been handed out by toByteString()
+    // and so must not be written to again.
+    private final ArrayList<ByteString> flushedBuffers =
+        new ArrayList<ByteString>();
+    private int flushedBuffersTotalBytes;
+    private byte[] buffer;
+    private int bufferPos;
+
+    private Output(final int initialCapacity) {
+      this.initialCapacity = initialCapacity;
+      buffer = new byte[initialCapacity];
+    }
+
+    @Override
+    public synchronized void write(final int b) {
+      if (bufferPos == buffer.length) {
+        flushFullBuffer(1);
+      }
+      buffer[bufferPos++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, int offset, int length) {
+      if (offset < 0 || length < 0 || offset > b.length - length) {
+        throw new IndexOutOfBoundsException();
+      }
+      final int space = buffer.length - bufferPos;
+      if (length <= space) {
+        System.arraycopy(b, offset, buffer, bufferPos, length);
+        bufferPos += length;
+      } else {
+        // Fill the current chunk, then put the rest in a new one big enough
+        // to hold it.
+        System.arraycopy(b, offset, buffer, bufferPos, space);
+        offset += space;
+        length -= space;
+        bufferPos = buffer.length;
+        flushFullBuffer(length);
+        System.arraycopy(b, offset, buffer, 0, length);
+        bufferPos = length;
+      }
+    }
+
+    /**
+     * Creates a {@code ByteString} instance from this {@code Output}.  The
+     * result shares the chunks written so far rather than copying them;
+     * writing more to this {@code Output} afterwards does not affect it.
+     */
+    public synchronized ByteString toByteString() {
+      flushLastBuffer();
+      return ByteString.copyFrom(flushedBuffers);
+    }
+
+    /**
+     * Writes the complete contents of this {@code Output} to the specified
+     * {@code OutputStream}.  Full chunks are written without copying them;
+     * only the partially-filled last chunk is copied.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+      final ByteString[] chunks;
+      final byte[] lastBuffer;
+      synchronized (this) {
+        // Full chunks are never modified, but the current one is reused
+        // after reset(), so take a copy of what it holds now.  The writes to
+        // out happen outside the lock, since they may block.
+        chunks = flushedBuffers.toArray(new ByteString[flushedBuffers.size()]);
+        lastBuffer = new byte[bufferPos];
+        System.arraycopy(buffer, 0, lastBuffer, 0, bufferPos);
+      }
+      for (final ByteString chunk : chunks) {
+        chunk.writeTo(out);
+      }
+      out.write(lastBuffer);
+    }
 
     /**
-     * Constructs a new output with the given initial capacity.
+     * Returns the number of bytes written.
      */
-    private Output(final ByteArrayOutputStream bout) {
-      super(bout);
-      this.bout = bout;
+    public synchronized int size() {
+      return flushedBuffersTotalBytes + bufferPos;
     }
 
     /**
-     * Creates a {@code ByteString} instance from this {@code Output}.
+     * Discards everything written so far, so that this {@code Output} can
+     * be reused.  {@code ByteString}s already returned by
+     * {@link #toByteString()} are not affected.
      */
-    public ByteString toByteString() {
-      final byte[] byteArray = bout.toByteArray();
-      return new ByteString(byteArray);
+    public synchronized void reset() {
+      flushedBuffers.clear();
+      flushedBuffersTotalBytes = 0;
+      bufferPos = 0;
+      if (buffer.length == 0) {
+        // The last chunk was handed out by toByteString().
+        buffer = new byte[initialCapacity];
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("<ByteString.Output@%s size=%d>",
+          Integer.toHexString(System.identityHashCode(this)), size());
+    }
+
+    /**
+     * Retires the current (full) chunk and starts a new one which can hold
+     * at least {@code minSize} bytes.
+     */
+    private void flushFullBuffer(final int minSize) {
+      if (bufferPos > 0) {
+        flushedBuffers.add(new LiteralByteString(buffer));
+        flushedBuffersTotalBytes += buffer.length;
+      }
+      final int newSize = Math.max(initialCapacity,
+          Math.min(MAX_CHUNK_SIZE, flushedBuffersTotalBytes >>> 1));
+      buffer = new byte[Math.max(minSize, newSize)];
+      bufferPos = 0;
+    }
+
+    /**
+     * Retires the partially-filled current chunk, so that everything
+     * written is in {@code flushedBuffers}.  A chunk which is at least half
+     * full is shared as it is, and writing continues in a new chunk; a
+     * mostly empty one is trimmed by copying, so that the result does not
+     * pin much unused memory, and its buffer is kept.
+     */
+    private void flushLastBuffer() {
+      if (bufferPos == 0) {
+        return;
+      }
+      if (bufferPos == buffer.length) {
+        flushedBuffers.add(new LiteralByteString(buffer));
+        buffer = EMPTY_BYTE_ARRAY;
+      } else if (bufferPos >= buffer.length >>> 1) {
+        flushedBuffers.add(new BoundedByteString(buffer, 0, bufferPos));
+        buffer = EMPTY_BYTE_ARRAY;
+      } else {
+        final byte[] copy = new byte[bufferPos];
+        System.arraycopy(buffer, 0, copy, 0, bufferPos);
+        flushedBuffers.add(new LiteralByteString(copy));
+      }
+      flushedBuffersTotalBytes += bufferPos;
+      bufferPos = 0;
     }
   }
 
@@ -381,7 +648,7 @@ public final class ByteString {
       // We can be confident that the CodedOutputStream will not modify the
       // underlying bytes anymore because it already wrote all of them.  So,
       // no need to make a copy.
-      return new ByteString(buffer);
+      return new LiteralByteString(buffer);
     }
 
     public CodedOutputStream getCodedOutput() {
@@ -0,0 +1,549 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Java class files for {@link DynamicMessageCompiler}.  This covers
+ * just the parts of the format that the compiler needs:  the constant pool,
+ * fields, and methods with code.  Classes are written in the Java 5 format
+ * (version 49.0), which the JVM verifies by type inference, so no stack map
+ * frames have to be computed here.
+ */
+final class ClassFileWriter {
+  // Access flags.
+  static final int ACC_PUBLIC    = 0x0001;
+  static final int ACC_PRIVATE   = 0x0002;
+  static final int ACC_PROTECTED = 0x0004;
+  static final int ACC_FINAL     = 0x0010;
+  static final int ACC_SUPER     = 0x0020;
+
+  // Opcodes.  Only the ones the compiler uses are listed.
+  static final int ACONST_NULL   = 0x01;
+  static final int ICONST_0      = 0x03;
+  static final int ICONST_1      = 0x04;
+  static final int LCONST_0      = 0x09;
+  static final int FCONST_0      = 0x0b;
+  static final int DCONST_0      = 0x0e;
+  static final int BIPUSH        = 0x10;
+  static final int SIPUSH        = 0x11;
+  static final int LDC           = 0x12;
+  static final int LDC_W         = 0x13;
+  static final int LDC2_W        = 0x14;
+  static final int ILOAD         = 0x15;
+  static final int ALOAD         = 0x19;
+  static final int ISTORE        = 0x36;
+  static final int ASTORE        = 0x3a;
+  static final int DUP           = 0x59;
+  static final int IADD          = 0x60;
+  static final int IAND          = 0x7e;
+  static final int IOR           = 0x80;
+  static final int IFEQ          = 0x99;
+  static final int IFNE          = 0x9a;
+  static final int GOTO          = 0xa7;
+  static final int TABLESWITCH   = 0xaa;
+  static final int LOOKUPSWITCH  = 0xab;
+  static final int IRETURN       = 0xac;
+  static final int ARETURN       = 0xb0;
+  static final int RETURN        = 0xb1;
+  static final int GETFIELD      = 0xb4;
+  static final int PUTFIELD      = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC  = 0xb8;
+  static final int NEW           = 0xbb;
+  static final int ATHROW        = 0xbf;
+  static final int CHECKCAST     = 0xc0;
+  static final int IFNULL        = 0xc6;
+  static final int IFNONNULL     = 0xc7;
+
+  // Constant pool tags.
+  private static final int CONSTANT_UTF8         = 1;
+  private static final int CONSTANT_INTEGER      = 3;
+  private static final int CONSTANT_FLOAT        = 4;
+  private static final int CONSTANT_LONG         = 5;
+  private static final int CONSTANT_DOUBLE       = 6;
+  private static final int CONSTANT_CLASS        = 7;
+  private static final int CONSTANT_FIELDREF     = 9;
+  private static final int CONSTANT_METHODREF    = 10;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+  private final DataOutputStream pool = new DataOutputStream(poolBytes);
+  private final Map<String, Integer> poolIndices =
+    new HashMap<String, Integer>();
+  private int poolCount = 1;
+
+  private final int access;
+  private final int thisClass;
+  private final int superClass;
+  private final List<byte[]> fields = new ArrayList<byte[]>();
+  private final List<byte[]> methods = new ArrayList<byte[]>();
+
+  /**
+   * Starts a class.  Names are internal names, like
+   * {@code "java/lang/Object"}.
+   */
+  ClassFileWriter(final int access, final String name,
+                  final String superName) {
+    this.access = access | ACC_SUPER;
+    thisClass = classConstant(name);
+    superClass = classConstant(superName);
+  }
+
+  /** Adds a field. */
+  void addField(final int fieldAccess, final String name,
+                final String descriptor) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(fieldAccess);
+      out.writeShort(utf8Constant(name));
+      out.writeShort(utf8Constant(descriptor));
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new RuntimeException(
+        "Writing to a ByteArrayOutputStream threw an IOException " +
+        "(should never happen).", e);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  /**
+   * Starts a method.  Its code must be written to the returned {@link Code}
+   * and then {@link Code#finish()} called.
+   */
+  Code addMethod(final int methodAccess, final String name,
+                 final String descriptor, final int maxStack,
+                 final int maxLocals) {
+    return new Code(methodAccess, name, descriptor, maxStack, maxLocals);
+  }
+
+  /** Returns the class file. */
+  byte[] toByteArray() {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      if (poolCount > 0xffff) {
+        throw new IllegalArgumentException(
+          "Too many constants for one class file.");
+      }
+      out.writeShort(poolCount);
+      pool.flush();
+      poolBytes.writeTo(out);
+      out.writeShort(access);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(fields.size());
+      for (final byte[] field : fields) {
+        out.write(field);
+      }
+      out.writeShort(methods.size());
+      for (final byte[] method : methods) {
+        out.write(method);
+      }
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new RuntimeException(
+        "Writing to a ByteArrayOutputStream threw an IOException " +
+        "(should never happen).", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  // =================================================================
+  // Constant pool
+
+  /**
+   * Returns the index of the constant with the given key, adding it with
+   * {@code tag} and {@code body} if it is not in the pool yet.
+   */
+  private int constant(final String key, final int tag, final int slots,
+                       final byte[] body) {
+    final Integer existing = poolIndices.get(key);
+    if (existing != null) {
+      return existing;
+    }
+    final int index = poolCount;
+    try {
+      pool.writeByte(tag);
+      pool.write(body);
+    } catch (IOException e) {
+      throw new RuntimeException(
+        "Writing to a ByteArrayOutputStream threw an IOException " +
+        "(should never happen).", e);
+    }
+    poolCount += slots;
+    poolIndices.put(key, index);
+    return index;
+  }
+
+  private static byte[] u2u2(final int first, final int second) {
+    return new byte[] {
+      (byte) (first >> 8), (byte) first, (byte) (second >> 8), (byte) second
+    };
+  }
+
+  private static byte[] u8(final long value) {
+    final byte[] result = new byte[8];
+    for (int i = 0; i < 8; i++) {
+      result[i] = (byte) (value >> (56 - 8 * i));
+    }
+    return result;
+  }
+
+  private int utf8Constant(final String value) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      new DataOutputStream(bytes).writeUTF(value);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Constant too long: " + value);
+    }
+    return constant("U" + value, CONSTANT_UTF8, 1, bytes.toByteArray());
+  }
+
+  private int classConstant(final String name) {
+    final int nameIndex = utf8Constant(name);
+    return constant("C" + name, CONSTANT_CLASS, 1,
+                    new byte[] { (byte) (nameIndex >> 8), (byte) nameIndex });
+  }
+
+  private int nameAndTypeConstant(final String name,
+                                  final String descriptor) {
+    final int nameIndex = utf8Constant(name);
+    final int descriptorIndex = utf8Constant(descriptor);
+    return constant("N" + name + " " + descriptor, CONSTANT_NAME_AND_TYPE, 1,
+                    u2u2(nameIndex, descriptorIndex));
+  }
+
+  private int memberConstant(final int tag, final String owner,
+                             final String name, final String descriptor) {
+    final int classIndex = classConstant(owner);
+    final int nameAndTypeIndex = nameAndTypeConstant(name, descriptor);
+    return constant(tag + owner + "." + name + descriptor, tag, 1,
+                    u2u2(classIndex, nameAndTypeIndex));
+  }
+
+  private int intConstant(final int value) {
+    return constant("I" + value, CONSTANT_INTEGER, 1,
+                    u2u2(value >>> 16, value));
+  }
+
+  private int floatConstant(final float value) {
+    final int bits = Float.floatToIntBits(value);
+    return constant("F" + bits, CONSTANT_FLOAT, 1, u2u2(bits >>> 16, bits));
+  }
+
+  private int longConstant(final long value) {
+    return constant("J" + value, CONSTANT_LONG, 2, u8(value));
+  }
+
+  private int doubleConstant(final double value) {
+    final long bits = Double.doubleToLongBits(value);
+    return constant("D" + bits, CONSTANT_DOUBLE, 2, u8(bits));
+  }
+
+  // =================================================================
+  // Code
+
+  /**
+   * A position in a method's code.  Branches may refer to it before it is
+   * placed.
+   */
+  static final class Label {
+    private int position = -1;
+    // For each reference made before the label was placed:  the position of
+    // the instruction, the position of its offset, and the offset's width.
+    private final List<int[]> references = new ArrayList<int[]>();
+  }
+
+  /** The code of one method. */
+  final class Code {
+    private final int methodAccess;
+    private final String name;
+    private final String descriptor;
+    private final int maxStack;
+    private final int maxLocals;
+    private final List<Label> labels = new ArrayList<Label>();
+    private byte[] code = new byte[256];
+    private int length = 0;
+
+    private Code(final int methodAccess, final String name,
+                 final String descriptor, final int maxStack,
+                 final int maxLocals) {
+      this.methodAccess = methodAccess;
+      this.name = name;
+      this.descriptor = descriptor;
+      this.maxStack = maxStack;
+      this.maxLocals = maxLocals;
+    }
+
+    private void u1(final int value) {
+      if (length == code.length) {
+        final byte[] newCode = new byte[code.length * 2];
+        System.arraycopy(code, 0, newCode, 0, length);
+        code = newCode;
+      }
+      code[length++] = (byte) value;
+    }
+
+    private void u2(final int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    private void u4(final int value) {
+      u2(value >> 16);
+      u2(value);
+    }
+
+    /** Writes an instruction without operands. */
+    void op(final int opcode) {
+      u1(opcode);
+    }
+
+    /** Writes an instruction taking a local variable index. */
+    void local(final int opcode, final int index) {
+      if (index > 0xff) {
+        throw new IllegalArgumentException("Local variable index too large.");
+      }
+      u1(opcode);
+      u1(index);
+    }
+
+    /** Pushes an int constant. */
+    void pushInt(final int value) {
+      if (value >= -1 && value <= 5) {
+        u1(ICONST_0 + value);
+      } else if (value == (byte) value) {
+        u1(BIPUSH);
+        u1(value);
+      } else if (value == (short) value) {
+        u1(SIPUSH);
+        u2(value);
+      } else {
+        ldc(intConstant(value));
+      }
+    }
+
+    /** Pushes a long constant. */
+    void pushLong(final long value) {
+      u1(LDC2_W);
+      u2(longConstant(value));
+    }
+
+    /** Pushes a float constant. */
+    void pushFloat(final float value) {
+      ldc(floatConstant(value));
+    }
+
+    /** Pushes a double constant. */
+    void pushDouble(final double value) {
+      u1(LDC2_W);
+      u2(doubleConstant(value));
+    }
+
+    private void ldc(final int index) {
+      if (index <= 0xff) {
+        u1(LDC);
+        u1(index);
+      } else {
+        u1(LDC_W);
+        u2(index);
+      }
+    }
+
+    /** Writes a {@code getfield} or {@code putfield}. */
+    void field(final int opcode, final String owner, final String fieldName,
+               final String fieldDescriptor) {
+      u1(opcode);
+      u2(memberConstant(CONSTANT_FIELDREF, owner, fieldName,
+                        fieldDescriptor));
+    }
+
+    /**
+     * Writes an {@code invokevirtual}, {@code invokespecial}, or
+     * {@code invokestatic}.
+     */
+    void invoke(final int opcode, final String owner, final String methodName,
+                final String methodDescriptor) {
+      u1(opcode);
+      u2(memberConstant(CONSTANT_METHODREF, owner, methodName,
+                        methodDescriptor));
+    }
+
+    /** Writes a {@code new} or {@code checkcast}. */
+    void type(final int opcode, final String typeName) {
+      u1(opcode);
+      u2(classConstant(typeName));
+    }
+
+    /** Returns a new label, to be placed with {@link #mark}. */
+    Label newLabel() {
+      final Label label = new Label();
+      labels.add(label);
+      return label;
+    }
+
+    /** Places {@code label} at the current position. */
+    void mark(final Label label) {
+      if (label.position != -1) {
+        throw new IllegalStateException("Label placed twice.");
+      }
+      label.position = length;
+      for (final int[] reference : label.references) {
+        patch(reference[0], reference[1], reference[2], length);
+      }
+      label.references.clear();
+    }
+
+    /** Writes a branch instruction. */
+    void jump(final int opcode, final Label target) {
+      final int position = length;
+      u1(opcode);
+      offset(position, target, 2);
+    }
+
+    /**
+     * Writes a {@code tableswitch} on the keys {@code low} to
+     * {@code low + targets.length - 1}.
+     */
+    void tableSwitch(final int low, final Label defaultTarget,
+                     final Label[] targets) {
+      final int position = length;
+      u1(TABLESWITCH);
+      align();
+      offset(position, defaultTarget, 4);
+      u4(low);
+      u4(low + targets.length - 1);
+      for (final Label target : targets) {
+        offset(position, target, 4);
+      }
+    }
+
+    /** Writes a {@code lookupswitch}.  {@code keys} must be sorted. */
+    void lookupSwitch(final Label defaultTarget, final int[] keys,
+                      final Label[] targets) {
+      final int position = length;
+      u1(LOOKUPSWITCH);
+      align();
+      offset(position, defaultTarget, 4);
+      u4(keys.length);
+      for (int i = 0; i < keys.length; i++) {
+        u4(keys[i]);
+        offset(position, targets[i], 4);
+      }
+    }
+
+    private void align() {
+      while (length % 4 != 0) {
+        u1(0);
+      }
+    }
+
+    private void offset(final int position, final Label target,
+                        final int width) {
+      final int offsetPosition = length;
+      if (width == 2) {
+        u2(0);
+      } else {
+        u4(0);
+      }
+      if (target.position == -1) {
+        target.references.add(new int[] { position, offsetPosition, width });
+      } else {
+        patch(position, offsetPosition, width, target.position);
+      }
+    }
+
+    private void patch(final int position, final int offsetPosition,
+                       final int width, final int target) {
+      final int offset = target - position;
+      if (width == 2) {
+        if (offset != (short) offset) {
+          throw new IllegalArgumentException(
+            "Method " + name + " is too large.");
+        }
+        code[offsetPosition] = (byte) (offset >> 8);
+        code[offsetPosition + 1] = (byte) offset;
+      } else {
+        for (int i = 0; i < 4; i++) {
+          code[offsetPosition + i] = (byte) (offset >> (24 - 8 * i));
+        }
+      }
+    }
+
+    /** Adds the method to the class. */
+    void finish() {
+      for (final Label label : labels) {
+        if (label.position == -1) {
+          throw new IllegalStateException("Label never placed.");
+        }
+      }
+      if (length > 0xffff) {
+        throw new IllegalArgumentException(
+          "Method " + name + " is too large.");
+      }
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      try {
+        out.writeShort(methodAccess);
+        out.writeShort(utf8Constant(name));
+        out.writeShort(utf8Constant(descriptor));
+        out.writeShort(1);
+        out.writeShort(utf8Constant("Code"));
+        out.writeInt(12 + length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(0);
+        out.writeShort(0);
+      } catch (IOException e) {
+        throw new RuntimeException(
+          "Writing to a ByteArrayOutputStream threw an IOException " +
+          "(should never happen).", e);
+      }
+      methods.add(bytes.toByteArray());
+    }
+  }
+}
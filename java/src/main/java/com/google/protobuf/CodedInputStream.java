@@ -32,6 +32,9 @@ package com.google.protobuf;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -70,6 +73,65 @@ public final class CodedInputStream {
     return new CodedInputStream(buf, off, len);
   }
 
+  /**
+   * Create a new CodedInputStream wrapping the remaining bytes of the given
+   * ByteBuffer, i.e. those between its position and its limit.  The
+   * ByteBuffer's own position is not changed.
+   *
+   * <p>If the ByteBuffer is backed by an accessible array, the array is read
+   * in place, exactly as with {@link #newInstance(byte[],int,int)}.
+   * Otherwise (e.g. for direct buffers) the bytes are transferred in small
+   * chunks with bulk {@code get()}s, so that the input is never staged in a
+   * heap array of its full size.  As with byte arrays, no size limit is
+   * enforced (see {@link #setSizeLimit(int)}), since the input is already
+   * in memory.
+   */
+  public static CodedInputStream newInstance(final ByteBuffer buf) {
+    if (buf.hasArray()) {
+      return newInstance(buf.array(), buf.arrayOffset() + buf.position(),
+                         buf.remaining());
+    } else {
+      final CodedInputStream result =
+        new CodedInputStream(new ByteBufferInputStream(buf.duplicate()));
+      result.sizeLimit = Integer.MAX_VALUE;
+      return result;
+    }
+  }
+
+  /**
+   * Create a new CodedInputStream reading a file through memory mapping,
+   * from the channel's current position up to the file's current size.
+   * The channel's own position is not changed.
+   *
+   * <p>The file is mapped one window of up to 16MB at a time.  Each window
+   * is copied with a single bulk {@code get()} into an array of the
+   * window's size, which is decoded exactly like a byte array, so reading
+   * the file involves no system calls other than the mapping.  The file may
+   * be larger than 2GB; {@link #getPosition()} gives the position in it.
+   * As for a {@link ByteBuffer}, no size limit is enforced by default (see
+   * {@link #setSizeLimit(int)}).
+   *
+   * <p>Mapped windows are released when they are garbage collected, not
+   * when this stream is done with them.
+   */
+  public static CodedInputStream newInstance(final FileChannel channel)
+      throws IOException {
+    return newInstance(channel, MAPPED_WINDOW_SIZE);
+  }
+
+  /** Like {@link #newInstance(FileChannel)}, with the given window size. */
+  static CodedInputStream newInstance(final FileChannel channel,
+                                      final int windowSize)
+      throws IOException {
+    final long start = channel.position();
+    final long end = channel.size();
+    final CodedInputStream result = new CodedInputStream(
+        new FileChannelInputStream(channel, start, end, windowSize),
+        (int) Math.max(1, Math.min(windowSize, end - start)));
+    result.sizeLimit = Integer.MAX_VALUE;
+    return result;
+  }
+
   // -----------------------------------------------------------------
 
   /**
@@ -140,6 +202,61 @@ public final class CodedInputStream {
     }
   }
 
+  /**
+   * Reads a single field, given its tag value, and writes it to
+   * {@code output} with its tag.  Varints are written back in their shortest
+   * form; everything else is copied as it was read.  Length-delimited values
+   * are copied straight from this stream's buffer, without being read into
+   * a {@code ByteString} first.
+   *
+   * @return {@code false} if the tag is an endgroup tag, in which case
+   *         nothing is skipped or written.  Otherwise, returns {@code true}.
+   */
+  public boolean skipField(final int tag, final CodedOutputStream output)
+                           throws IOException {
+    switch (WireFormat.getTagWireType(tag)) {
+      case WireFormat.WIRETYPE_VARINT: {
+        final long value = readRawVarint64();
+        output.writeRawVarint32(tag);
+        output.writeRawVarint64(value);
+        return true;
+      }
+      case WireFormat.WIRETYPE_FIXED64: {
+        final long value = readRawLittleEndian64();
+        output.writeRawVarint32(tag);
+        output.writeRawLittleEndian64(value);
+        return true;
+      }
+      case WireFormat.WIRETYPE_LENGTH_DELIMITED: {
+        final int size = readRawVarint32();
+        output.writeRawVarint32(tag);
+        output.writeRawVarint32(size);
+        copyRawBytes(size, output);
+        return true;
+      }
+      case WireFormat.WIRETYPE_START_GROUP: {
+        output.writeRawVarint32(tag);
+        skipMessage(output);
+        final int endTag =
+          WireFormat.makeTag(WireFormat.getTagFieldNumber(tag),
+                             WireFormat.WIRETYPE_END_GROUP);
+        checkLastTagWas(endTag);
+        output.writeRawVarint32(endTag);
+        return true;
+      }
+      case WireFormat.WIRETYPE_END_GROUP:
+        return false;
+      case WireFormat.WIRETYPE_FIXED32: {
+        final int value = readRawLittleEndian32();
+        output.writeRawVarint32(tag);
+        output.writeRawLittleEndian32(value);
+        return true;
+      }
+      default:
+        throw InvalidProtocolBufferException.invalidWireType();
+    }
+  }
+
   /**
    * Reads and discards an entire message.  This will read either until EOF
    * or until an endgroup tag, whichever comes first.
@@ -153,6 +270,19 @@ public final class CodedInputStream {
     }
   }
 
+  /**
+   * Reads an entire message like {@link #skipMessage()}, writing its fields
+   * to {@code output}.  The endgroup tag, if any, is not written.
+   */
+  public void skipMessage(final CodedOutputStream output) throws IOException {
+    while (true) {
+      final int tag = readTag();
+      if (tag == 0 || !skipField(tag, output)) {
+        return;
+      }
+    }
+  }
+
   // -----------------------------------------------------------------
 
   /** Read a {@code double} field value from the stream. */
@@ -200,13 +330,19 @@ public final class CodedInputStream {
     final int size = readRawVarint32();
     if (size <= (bufferSize - bufferPos) && size > 0) {
       // Fast path:  We already have the bytes in a contiguous buffer, so
-      //   just copy directly from it.
-      final String result = new String(buffer, bufferPos, size, "UTF-8");
+      //   just decode directly from it.
+      String result = decodeUtf8(buffer, bufferPos, size);
+      if (result == null) {
+        // Malformed input.  Let the JDK substitute replacement characters.
+        result = new String(buffer, bufferPos, size, "UTF-8");
+      }
       bufferPos += size;
       return result;
+    } else if (size == 0) {
+      return "";
     } else {
-      // Slow path:  Build a byte array first then copy it.
-      return new String(readRawBytes(size), "UTF-8");
+      // Slow path:  The string spans more than one buffer.
+      return readUtf8Spanning(size);
     }
   }
 
@@ -260,15 +396,23 @@ public final class CodedInputStream {
     popLimit(oldLimit);
   }
 
-  /** Read a {@code bytes} field value from the stream. */
+  /**
+   * Read a {@code bytes} field value from the stream.  If aliasing is enabled
+   * (see {@link #enableAliasing(boolean)}) and the input is a byte array, the
+   * result shares the input array rather than copying from it.
+   */
   public ByteString readBytes() throws IOException {
     final int size = readRawVarint32();
     if (size <= (bufferSize - bufferPos) && size > 0) {
       // Fast path:  We already have the bytes in a contiguous buffer, so
-      //   just copy directly from it.
-      final ByteString result = ByteString.copyFrom(buffer, bufferPos, size);
+      //   just copy directly from it (or point at it, if we can).
+      final ByteString result = enableAliasing && input == null ?
+        ByteString.wrap(buffer, bufferPos, size) :
+        ByteString.copyFrom(buffer, bufferPos, size);
       bufferPos += size;
       return result;
+    } else if (size == 0) {
+      return ByteString.EMPTY;
     } else {
       // Slow path:  Build a byte array first then copy it.
       return ByteString.copyFrom(readRawBytes(size));
@@ -315,6 +459,51 @@ public final class CodedInputStream {
    * upper bits.
    */
   public int readRawVarint32() throws IOException {
+    int pos = bufferPos;
+    if (bufferSize - pos < MAX_VARINT_SIZE) {
+      // The varint may run past the end of the buffer.
+      return readRawVarint32SlowPath();
+    }
+
+    // The whole varint is in the buffer, so we can decode it without
+    // checking for the end of the buffer after each byte.
+    final byte[] buffer = this.buffer;
+    int tmp = buffer[pos++];
+    if (tmp >= 0) {
+      bufferPos = pos;
+      return tmp;
+    }
+    int result = tmp & 0x7f;
+    if ((tmp = buffer[pos++]) >= 0) {
+      result |= tmp << 7;
+    } else {
+      result |= (tmp & 0x7f) << 7;
+      if ((tmp = buffer[pos++]) >= 0) {
+        result |= tmp << 14;
+      } else {
+        result |= (tmp & 0x7f) << 14;
+        if ((tmp = buffer[pos++]) >= 0) {
+          result |= tmp << 21;
+        } else {
+          result |= (tmp & 0x7f) << 21;
+          result |= (tmp = buffer[pos++]) << 28;
+          if (tmp < 0) {
+            // Discard upper 32 bits.
+            int discarded = 0;
+            while (buffer[pos++] < 0) {
+              if (++discarded == 5) {
+                throw InvalidProtocolBufferException.malformedVarint();
+              }
+            }
+          }
+        }
+      }
+    }
+    bufferPos = pos;
+    return result;
+  }
+
+  private int readRawVarint32SlowPath() throws IOException {
     byte tmp = readRawByte();
     if (tmp >= 0) {
       return tmp;
@@ -401,6 +590,26 @@ public final class CodedInputStream {
 
   /** Read a raw Varint from the stream. */
   public long readRawVarint64() throws IOException {
+    int pos = bufferPos;
+    if (bufferSize - pos < MAX_VARINT_SIZE) {
+      // The varint may run past the end of the buffer.
+      return readRawVarint64SlowPath();
+    }
+
+    final byte[] buffer = this.buffer;
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = buffer[pos++];
+      result |= (long)(b & 0x7F) << shift;
+      if (b >= 0) {
+        bufferPos = pos;
+        return result;
+      }
+    }
+    throw InvalidProtocolBufferException.malformedVarint();
+  }
+
+  private long readRawVarint64SlowPath() throws IOException {
     int shift = 0;
     long result = 0;
     while (shift < 64) {
@@ -416,6 +625,12 @@ public final class CodedInputStream {
 
   /** Read a 32-bit little-endian integer from the stream. */
   public int readRawLittleEndian32() throws IOException {
+    final int pos = bufferPos;
+    if (bufferSize - pos >= LITTLE_ENDIAN_32_SIZE) {
+      bufferPos = pos + LITTLE_ENDIAN_32_SIZE;
+      return decodeLittleEndian32(buffer, pos);
+    }
+
     final byte b1 = readRawByte();
     final byte b2 = readRawByte();
     final byte b3 = readRawByte();
@@ -428,6 +643,12 @@ public final class CodedInputStream {
 
   /** Read a 64-bit little-endian integer from the stream. */
   public long readRawLittleEndian64() throws IOException {
+    final int pos = bufferPos;
+    if (bufferSize - pos >= LITTLE_ENDIAN_64_SIZE) {
+      bufferPos = pos + LITTLE_ENDIAN_64_SIZE;
+      return decodeLittleEndian64(buffer, pos);
+    }
+
     final byte b1 = readRawByte();
     final byte b2 = readRawByte();
     final byte b3 = readRawByte();
@@ -446,6 +667,492 @@ public final class CodedInputStream {
            (((long)b8 & 0xff) << 56);
   }
 
+  private static int decodeLittleEndian32(final byte[] buffer, final int pos) {
+    return (((int)buffer[pos    ] & 0xff)      ) |
+           (((int)buffer[pos + 1] & 0xff) <<  8) |
+           (((int)buffer[pos + 2] & 0xff) << 16) |
+           (((int)buffer[pos + 3] & 0xff) << 24);
+  }
+
+  private static long decodeLittleEndian64(final byte[] buffer,
+                                           final int pos) {
+    return (((long)buffer[pos    ] & 0xff)      ) |
+           (((long)buffer[pos + 1] & 0xff) <<  8) |
+           (((long)buffer[pos + 2] & 0xff) << 16) |
+           (((long)buffer[pos + 3] & 0xff) << 24) |
+           (((long)buffer[pos + 4] & 0xff) << 32) |
+           (((long)buffer[pos + 5] & 0xff) << 40) |
+           (((long)buffer[pos + 6] & 0xff) << 48) |
+           (((long)buffer[pos + 7] & 0xff) << 56);
+  }
+
+  // -----------------------------------------------------------------
+  // Packed repeated fields
+  //
+  // Each of these reads the length prefix of a packed repeated field and
+  // then the whole run of values, appending them to a list.  Fixed-width
+  // values are decoded in a tight loop from the buffer straight into the
+  // list's array, as many at a time as the buffer holds; only a value which
+  // straddles the end of the buffer is read byte by byte.  Varints have to
+  // be decoded one at a time, but without boxing and, away from the end of
+  // the buffer, without bounds checks on each byte.
+
+  /** Read a packed run of {@code fixed32} or {@code sfixed32} values. */
+  public void readPackedFixed32s(final IntList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      // The buffer never extends past the limit.
+      final int count = (bufferSize - bufferPos) / LITTLE_ENDIAN_32_SIZE;
+      if (count == 0) {
+        list.addInt(readRawLittleEndian32());
+        continue;
+      }
+      final int[] values = list.appendUninitialized(count);
+      final byte[] buffer = this.buffer;
+      final int end = list.size();
+      int pos = bufferPos;
+      for (int i = end - count; i < end; i++) {
+        values[i] = decodeLittleEndian32(buffer, pos);
+        pos += LITTLE_ENDIAN_32_SIZE;
+      }
+      bufferPos = pos;
+    }
+    popLimit(oldLimit);
+  }
+
+  /** Read a packed run of {@code fixed64} or {@code sfixed64} values. */
+  public void readPackedFixed64s(final LongList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      final int count = (bufferSize - bufferPos) / LITTLE_ENDIAN_64_SIZE;
+      if (count == 0) {
+        list.addLong(readRawLittleEndian64());
+        continue;
+      }
+      final long[] values = list.appendUninitialized(count);
+      final byte[] buffer = this.buffer;
+      final int end = list.size();
+      int pos = bufferPos;
+      for (int i = end - count; i < end; i++) {
+        values[i] = decodeLittleEndian64(buffer, pos);
+        pos += LITTLE_ENDIAN_64_SIZE;
+      }
+      bufferPos = pos;
+    }
+    popLimit(oldLimit);
+  }
+
+  /** Read a packed run of {@code float} values. */
+  public void readPackedFloats(final FloatList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      final int count = (bufferSize - bufferPos) / LITTLE_ENDIAN_32_SIZE;
+      if (count == 0) {
+        list.addFloat(readFloat());
+        continue;
+      }
+      final float[] values = list.appendUninitialized(count);
+      final byte[] buffer = this.buffer;
+      final int end = list.size();
+      int pos = bufferPos;
+      for (int i = end - count; i < end; i++) {
+        values[i] = Float.intBitsToFloat(decodeLittleEndian32(buffer, pos));
+        pos += LITTLE_ENDIAN_32_SIZE;
+      }
+      bufferPos = pos;
+    }
+    popLimit(oldLimit);
+  }
+
+  /** Read a packed run of {@code double} values. */
+  public void readPackedDoubles(final DoubleList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      final int count = (bufferSize - bufferPos) / LITTLE_ENDIAN_64_SIZE;
+      if (count == 0) {
+        list.addDouble(readDouble());
+        continue;
+      }
+      final double[] values = list.appendUninitialized(count);
+      final byte[] buffer = this.buffer;
+      final int end = list.size();
+      int pos = bufferPos;
+      for (int i = end - count; i < end; i++) {
+        values[i] =
+            Double.longBitsToDouble(decodeLittleEndian64(buffer, pos));
+        pos += LITTLE_ENDIAN_64_SIZE;
+      }
+      bufferPos = pos;
+    }
+    popLimit(oldLimit);
+  }
+
+  /** Read a packed run of {@code int32} or {@code uint32} values. */
+  public void readPackedVarint32s(final IntList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      list.addInt(readRawVarint32());
+    }
+    popLimit(oldLimit);
+  }
+
+  /** Read a packed run of {@code int64} or {@code uint64} values. */
+  public void readPackedVarint64s(final LongList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      list.addLong(readRawVarint64());
+    }
+    popLimit(oldLimit);
+  }
+
+  /** Read a packed run of {@code sint32} values. */
+  public void readPackedSInt32s(final IntList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      list.addInt(decodeZigZag32(readRawVarint32()));
+    }
+    popLimit(oldLimit);
+  }
+
+  /** Read a packed run of {@code sint64} values. */
+  public void readPackedSInt64s(final LongList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      list.addLong(decodeZigZag64(readRawVarint64()));
+    }
+    popLimit(oldLimit);
+  }
+
+  /** Read a packed run of {@code bool} values. */
+  public void readPackedBools(final BooleanList list) throws IOException {
+    final int oldLimit = pushLimit(readRawVarint32());
+    while (getBytesUntilLimit() > 0) {
+      list.addBoolean(readBool());
+    }
+    popLimit(oldLimit);
+  }
+
+  // -----------------------------------------------------------------
+  // UTF-8 decoding
+  //
+  // The JDK's decoder looks up the charset by name and goes through a
+  // CharsetDecoder on every call, which is expensive for the short strings
+  // that dominate typical messages.  We decode well-formed UTF-8 ourselves,
+  // into a char array which is reused across calls.  As soon as a malformed
+  // sequence is seen we hand the rest of the string to the JDK, so that
+  // replacement characters are substituted exactly as they always have been.
+
+  /**
+   * Decode {@code size} bytes of UTF-8 starting at {@code offset}.
+   *
+   * @return the decoded string, or {@code null} if the bytes are not
+   *         well-formed UTF-8.
+   */
+  private String decodeUtf8(final byte[] bytes, int offset, final int size) {
+    final char[] chars = getCharBuffer(size);
+    final int limit = offset + size;
+    int n = 0;
+
+    // Fast path for the common all-ASCII prefix.
+    while (offset < limit && bytes[offset] >= 0) {
+      chars[n++] = (char) bytes[offset++];
+    }
+
+    while (offset < limit) {
+      final byte b1 = bytes[offset];
+      final int length = utf8SequenceLength(b1);
+      if (length == 0 || limit - offset < length) {
+        return null;
+      }
+      switch (length) {
+        case 1:
+          chars[n++] = (char) b1;
+          break;
+        case 2:
+          if (isNotTrailingByte(bytes[offset + 1])) {
+            return null;
+          }
+          chars[n++] = decodeUtf8Two(b1, bytes[offset + 1]);
+          break;
+        case 3:
+          if (isMalformedUtf8Three(b1, bytes[offset + 1], bytes[offset + 2])) {
+            return null;
+          }
+          chars[n++] = decodeUtf8Three(b1, bytes[offset + 1],
+                                       bytes[offset + 2]);
+          break;
+        default:
+          final int codePoint = decodeUtf8Four(
+            b1, bytes[offset + 1], bytes[offset + 2], bytes[offset + 3]);
+          if (codePoint < 0) {
+            return null;
+          }
+          chars[n++] = highSurrogate(codePoint);
+          chars[n++] = lowSurrogate(codePoint);
+          break;
+      }
+      offset += length;
+    }
+
+    return new String(chars, 0, n);
+  }
+
+  /**
+   * Decode a string which is not entirely contained in the current buffer,
+   * refilling the buffer as necessary.  Sequences which straddle a refill
+   * are reassembled one byte at a time.
+   */
+  private String readUtf8Spanning(final int size) throws IOException {
+    if (size < 0) {
+      throw InvalidProtocolBufferException.negativeSize();
+    }
+
+    if (totalBytesRetired + bufferPos + size > currentLimit) {
+      // Read to the end of the stream anyway.
+      skipRawBytes(currentLimit - totalBytesRetired - bufferPos);
+      // Then fail.
+      throw InvalidProtocolBufferException.truncatedMessage();
+    }
+
+    // The size comes from the input, so, as in readRawBytes(), we avoid
+    // allocating space for all of it before it has actually been read.
+    char[] chars = getCharBuffer(Math.min(size, BUFFER_SIZE));
+    int n = 0;
+    int remaining = size;
+
+    while (remaining > 0) {
+      if (bufferPos == bufferSize) {
+        refillBuffer(true);
+      }
+
+      // A UTF-8 sequence never decodes to more chars than it has bytes, so
+      // this is enough room for everything in the current buffer, plus one
+      // extra for a surrogate pair which starts at the end of it.
+      final int available = Math.min(remaining, bufferSize - bufferPos);
+      if (chars.length < n + available + 1) {
+        chars = growCharBuffer(n, n + available + 1, size);
+      }
+
+      // Decode all the complete sequences in the buffer.
+      final int start = bufferPos;
+      final int limit = bufferPos + available;
+      while (bufferPos < limit) {
+        final byte b1 = buffer[bufferPos];
+        if (b1 >= 0) {
+          chars[n++] = (char) b1;
+          bufferPos++;
+          continue;
+        }
+        final int length = utf8SequenceLength(b1);
+        if (length == 0) {
+          return finishUtf8Malformed(chars, n,
+                                     remaining - (bufferPos - start));
+        } else if (limit - bufferPos < length) {
+          break;
+        }
+        if (length == 2) {
+          final byte b2 = buffer[bufferPos + 1];
+          if (isNotTrailingByte(b2)) {
+            return finishUtf8Malformed(chars, n,
+                                       remaining - (bufferPos - start));
+          }
+          chars[n++] = decodeUtf8Two(b1, b2);
+        } else if (length == 3) {
+          final byte b2 = buffer[bufferPos + 1];
+          final byte b3 = buffer[bufferPos + 2];
+          if (isMalformedUtf8Three(b1, b2, b3)) {
+            return finishUtf8Malformed(chars, n,
+                                       remaining - (bufferPos - start));
+          }
+          chars[n++] = decodeUtf8Three(b1, b2, b3);
+        } else {
+          final int codePoint = decodeUtf8Four(
+            b1, buffer[bufferPos + 1], buffer[bufferPos + 2],
+            buffer[bufferPos + 3]);
+          if (codePoint < 0) {
+            return finishUtf8Malformed(chars, n,
+                                       remaining - (bufferPos - start));
+          }
+          chars[n++] = highSurrogate(codePoint);
+          chars[n++] = lowSurrogate(codePoint);
+        }
+        bufferPos += length;
+      }
+      remaining -= bufferPos - start;
+
+      if (bufferPos < limit) {
+        // The next sequence straddles the end of the buffer (or is cut off
+        // by the end of the string).  Read it one byte at a time.
+        final int length = utf8SequenceLength(buffer[bufferPos]);
+        if (remaining < length) {
+          return finishUtf8Malformed(chars, n, remaining);
+        }
+        final byte b1 = readRawByte();
+        final byte b2 = readRawByte();
+        final byte b3 = length > 2 ? readRawByte() : 0;
+        final byte b4 = length > 3 ? readRawByte() : 0;
+        remaining -= length;
+
+        final int codePoint;
+        if (length == 2) {
+          codePoint = isNotTrailingByte(b2) ? -1 : decodeUtf8Two(b1, b2);
+        } else if (length == 3) {
+          codePoint = isMalformedUtf8Three(b1, b2, b3) ? -1 :
+                      decodeUtf8Three(b1, b2, b3);
+        } else {
+          codePoint = decodeUtf8Four(b1, b2, b3, b4);
+        }
+
+        if (codePoint < 0) {
+          final byte[] consumed = new byte[length];
+          consumed[0] = b1;
+          consumed[1] = b2;
+          if (length > 2) consumed[2] = b3;
+          if (length > 3) consumed[3] = b4;
+          return finishUtf8Malformed(chars, n, consumed, remaining);
+        } else if (length < 4) {
+          chars[n++] = (char) codePoint;
+        } else {
+          chars[n++] = highSurrogate(codePoint);
+          chars[n++] = lowSurrogate(codePoint);
+        }
+      }
+    }
+
+    return new String(chars, 0, n);
+  }
+
+  /**
+   * Called by {@link #readUtf8Spanning} when it finds a malformed sequence.
+   * The first {@code n} chars were decoded from well-formed input, which the
+   * JDK would have decoded identically, so we let the JDK decode the
+   * remaining {@code remaining} bytes of the string.
+   */
+  private String finishUtf8Malformed(final char[] chars, final int n,
+                                     final int remaining) throws IOException {
+    return finishUtf8Malformed(chars, n, null, remaining);
+  }
+
+  /**
+   * Like {@link #finishUtf8Malformed(char[],int,int)}, but the bytes in
+   * {@code consumed} have already been read and must be decoded before the
+   * rest of the string.
+   */
+  private String finishUtf8Malformed(final char[] chars, final int n,
+                                     final byte[] consumed,
+                                     final int remaining) throws IOException {
+    final String prefix = new String(chars, 0, n);
+    byte[] rest = readRawBytes(remaining);
+    if (consumed != null) {
+      final byte[] joined = new byte[consumed.length + rest.length];
+      System.arraycopy(consumed, 0, joined, 0, consumed.length);
+      System.arraycopy(rest, 0, joined, consumed.length, rest.length);
+      rest = joined;
+    }
+    return prefix + new String(rest, "UTF-8");
+  }
+
+  /** Returns a reusable char array with room for at least {@code size}. */
+  private char[] getCharBuffer(final int size) {
+    if (charBuffer == null || charBuffer.length < size) {
+      charBuffer = new char[Math.max(size, MIN_CHAR_BUFFER_SIZE)];
+    }
+    return charBuffer;
+  }
+
+  /**
+   * Replaces the reusable char array with one of at least {@code minSize}
+   * chars, keeping the first {@code n}.  The new array is made bigger than
+   * necessary to avoid repeated copying, but never bigger than
+   * {@code maxSize}.
+   */
+  private char[] growCharBuffer(final int n, final int minSize,
+                                final int maxSize) {
+    final char[] newBuffer = new char[
+      Math.max(minSize, Math.min(charBuffer.length * 2, maxSize))];
+    System.arraycopy(charBuffer, 0, newBuffer, 0, n);
+    charBuffer = newBuffer;
+    return newBuffer;
+  }
+
+  /**
+   * Returns the length of the UTF-8 sequence introduced by {@code b}, or zero
+   * if {@code b} cannot start a well-formed sequence.
+   */
+  private static int utf8SequenceLength(final byte b) {
+    if (b >= 0) {
+      return 1;
+    } else if (b < (byte) 0xC2) {
+      // Trailing byte, or an overlong encoding of an ASCII character.
+      return 0;
+    } else if (b < (byte) 0xE0) {
+      return 2;
+    } else if (b < (byte) 0xF0) {
+      return 3;
+    } else if (b <= (byte) 0xF4) {
+      return 4;
+    } else {
+      // Would encode a code point greater than U+10FFFF.
+      return 0;
+    }
+  }
+
+  /** Returns true if {@code b} is not of the form {@code 10xxxxxx}. */
+  private static boolean isNotTrailingByte(final byte b) {
+    return b > (byte) 0xBF;
+  }
+
+  private static char decodeUtf8Two(final byte b1, final byte b2) {
+    return (char) (((b1 & 0x1F) << 6) | (b2 & 0x3F));
+  }
+
+  /**
+   * Returns true if the given three-byte sequence is not well-formed,
+   * including overlong encodings and encoded surrogates.
+   */
+  private static boolean isMalformedUtf8Three(final byte b1, final byte b2,
+                                              final byte b3) {
+    return isNotTrailingByte(b2) ||
+           (b1 == (byte) 0xE0 && b2 < (byte) 0xA0) ||
+           (b1 == (byte) 0xED && b2 >= (byte) 0xA0) ||
+           isNotTrailingByte(b3);
+  }
+
+  private static char decodeUtf8Three(final byte b1, final byte b2,
+                                      final byte b3) {
+    return (char) (((b1 & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+  }
+
+  /**
+   * Decodes a four-byte sequence, returning -1 if it is not well-formed.
+   */
+  private static int decodeUtf8Four(final byte b1, final byte b2,
+                                    final byte b3, final byte b4) {
+    if (isNotTrailingByte(b2) || isNotTrailingByte(b3) ||
+        isNotTrailingByte(b4)) {
+      return -1;
+    }
+    final int codePoint = ((b1 & 0x07) << 18) | ((b2 & 0x3F) << 12) |
+                          ((b3 & 0x3F) << 6) | (b4 & 0x3F);
+    if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT ||
+        codePoint > Character.MAX_CODE_POINT) {
+      return -1;
+    }
+    return codePoint;
+  }
+
+  private static char highSurrogate(final int codePoint) {
+    return (char) ((codePoint >>> 10) +
+      (Character.MIN_HIGH_SURROGATE -
+       (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10)));
+  }
+
+  private static char lowSurrogate(final int codePoint) {
+    return (char) ((codePoint & 0x3FF) + Character.MIN_LOW_SURROGATE);
+  }
+
+  // -----------------------------------------------------------------
+
   /**
    * Decode a ZigZag-encoded 32-bit value.  ZigZag encodes signed integers
    * into values that can be efficiently encoded with varint.  (Otherwise,
@@ -483,16 +1190,38 @@ public final class CodedInputStream {
   private final InputStream input;
   private int lastTag;
 
+  /** See enableAliasing(). */
+  private boolean enableAliasing = false;
+
+  /** See enableRawUnknownFields(). */
+  private boolean enableRawUnknownFields = false;
+
+  /** Reused by {@link #readString()} to hold decoded characters. */
+  private char[] charBuffer;
+
   /**
-   * The total number of bytes read before the current buffer.  The total
-   * bytes read up to the current position can be computed as
-   * {@code totalBytesRetired + bufferPos}.  This value may be negative if
-   * reading started in the middle of the current buffer (e.g. if the
-   * constructor that takes a byte array and an offset was used).
+   * The total number of bytes read before the current buffer, counted from
+   * {@code positionBase}.  The position in the input can be computed as
+   * {@code positionBase + totalBytesRetired + bufferPos}.  This value may be
+   * negative if reading started in the middle of the current buffer (e.g. if
+   * the constructor that takes a byte array and an offset was used).
    */
   private int totalBytesRetired;
 
-  /** The absolute position of the end of the current message. */
+  /**
+   * The position in the input from which totalBytesRetired and currentLimit
+   * are counted.  It is moved up whenever no limit is set, so that those
+   * stay within an int however much input is read.
+   */
+  private long positionBase;
+
+  /** The position in the input when resetSizeCounter() was last called. */
+  private long sizeCounterStart;
+
+  /**
+   * The position of the end of the current message, counted from
+   * {@code positionBase}.
+   */
   private int currentLimit = Integer.MAX_VALUE;
 
   /** See setRecursionLimit() */
@@ -505,6 +1234,11 @@ public final class CodedInputStream {
   private static final int DEFAULT_RECURSION_LIMIT = 64;
   private static final int DEFAULT_SIZE_LIMIT = 64 << 20;  // 64MB
   private static final int BUFFER_SIZE = 4096;
+  private static final int MAPPED_WINDOW_SIZE = 16 << 20;  // 16MB
+  private static final int MIN_CHAR_BUFFER_SIZE = 64;
+  private static final int MAX_VARINT_SIZE = 10;
+  private static final int LITTLE_ENDIAN_32_SIZE = 4;
+  private static final int LITTLE_ENDIAN_64_SIZE = 8;
 
   private CodedInputStream(final byte[] buffer, final int off, final int len) {
     this.buffer = buffer;
@@ -515,13 +1249,52 @@ public final class CodedInputStream {
   }
 
   private CodedInputStream(final InputStream input) {
-    buffer = new byte[BUFFER_SIZE];
+    this(input, BUFFER_SIZE);
+  }
+
+  private CodedInputStream(final InputStream input, final int capacity) {
+    buffer = new byte[capacity];
     bufferSize = 0;
     bufferPos = 0;
     totalBytesRetired = 0;
     this.input = input;
   }
 
+  /**
+   * Enables or disables aliasing.  When aliasing is enabled and the input is
+   * a byte array (including the array of a {@link ByteString} or of a
+   * {@code ByteBuffer}), {@link #readBytes()} returns {@code ByteString}s
+   * which point into the input rather than copies of it.  This avoids
+   * copying large {@code bytes} fields, but the caller must guarantee that
+   * the input array is never modified for as long as any of the results are
+   * in use.  Note also that a small result keeps the whole input array
+   * reachable.  Aliasing has no effect when reading from an
+   * {@code InputStream}, since the buffer is reused.  It is disabled by
+   * default.
+   */
+  public void enableAliasing(final boolean enabled) {
+    enableAliasing = enabled;
+  }
+
+  /**
+   * Enables or disables keeping unknown fields in their encoded form.  When
+   * enabled, {@link UnknownFieldSet.Builder#mergeFieldFrom} copies each
+   * unknown field's bytes as it skips over them instead of decoding the
+   * field, and the resulting {@link UnknownFieldSet} writes them back out as
+   * they are.  They are only decoded if the set's fields are looked at
+   * individually.  This suits programs which pass through messages of a
+   * newer type than they were compiled against, most of which is unknown to
+   * them.  It is disabled by default.
+   */
+  public void enableRawUnknownFields(final boolean enabled) {
+    enableRawUnknownFields = enabled;
+  }
+
+  /** Returns whether {@link #enableRawUnknownFields} is on. */
+  boolean isRawUnknownFieldsEnabled() {
+    return enableRawUnknownFields;
+  }
+
   /**
    * Set the maximum message recursion depth.  In order to prevent malicious
    * messages from causing stack overflows, {@code CodedInputStream} limits
@@ -546,12 +1319,13 @@ public final class CodedInputStream {
    * The default limit is 64MB.  You should set this limit as small
    * as you can without harming your app's functionality.  Note that
    * size limits only apply when reading from an {@code InputStream}, not
-   * when constructed around a raw byte array (nor with
-   * {@link ByteString#newCodedInput}).
+   * when constructed around a raw byte array or a {@code ByteBuffer} (nor
+   * with {@link ByteString#newCodedInput}).
    * <p>
    * If you want to read several messages from a single CodedInputStream, you
    * could call {@link #resetSizeCounter()} after each one to avoid hitting the
-   * size limit.
+   * size limit.  A limit of {@code Integer.MAX_VALUE} disables the check, so
+   * that input of any size can be read.
    *
    * @return the old limit.
    */
@@ -569,7 +1343,7 @@ public final class CodedInputStream {
    * Resets the current size counter to zero (see {@link #setSizeLimit(int)}).
    */
   public void resetSizeCounter() {
-    totalBytesRetired = -bufferPos;
+    sizeCounterStart = getPosition();
   }
 
   /**
@@ -592,7 +1366,7 @@ public final class CodedInputStream {
     }
     byteLimit += totalBytesRetired + bufferPos;
     final int oldLimit = currentLimit;
-    if (byteLimit > oldLimit) {
+    if (byteLimit > oldLimit || byteLimit < 0) {
       throw InvalidProtocolBufferException.truncatedMessage();
     }
     currentLimit = byteLimit;
@@ -651,7 +1425,32 @@ public final class CodedInputStream {
    * {@link #resetSizeCounter()} resets this value to zero.
    */
   public int getTotalBytesRead() {
-      return totalBytesRetired + bufferPos;
+    return (int) (getPosition() - sizeCounterStart);
+  }
+
+  /**
+   * The total bytes read up to the current position, counting from where
+   * the stream started, as a {@code long}.  Unlike
+   * {@link #getTotalBytesRead()}, this is not affected by
+   * {@link #resetSizeCounter()}, so it can track the position in input
+   * larger than 2GB, such as a file read with
+   * {@link #newInstance(FileChannel)}.
+   */
+  public long getPosition() {
+    return positionBase + totalBytesRetired + bufferPos;
+  }
+
+  /**
+   * Counts the current buffer as read.  If no limit is set, then nothing is
+   * counted from positionBase any more, so it is moved up to the end of the
+   * buffer.
+   */
+  private void retireBuffer() {
+    totalBytesRetired += bufferSize;
+    if (currentLimit == Integer.MAX_VALUE) {
+      positionBase += totalBytesRetired;
+      totalBytesRetired = 0;
+    }
   }
 
   /**
@@ -676,14 +1475,23 @@ public final class CodedInputStream {
       }
     }
 
-    totalBytesRetired += bufferSize;
+    retireBuffer();
+
+    // Don't read ahead past the size limit, only one byte beyond it at most,
+    // so that only input which is actually needed can exceed it.
+    int readSize = buffer.length;
+    if (sizeLimit != Integer.MAX_VALUE) {
+      final long bytesLeft =
+        sizeLimit - (positionBase + totalBytesRetired - sizeCounterStart);
+      readSize = (int) Math.max(1, Math.min(readSize, bytesLeft));
+    }
 
     bufferPos = 0;
-    bufferSize = (input == null) ? -1 : input.read(buffer);
+    bufferSize = (input == null) ? -1 : input.read(buffer, 0, readSize);
     if (bufferSize == 0 || bufferSize < -1) {
       throw new IllegalStateException(
-          "InputStream#read(byte[]) returned invalid result: " + bufferSize +
-          "\nThe InputStream implementation is buggy.");
+          "InputStream#read(byte[], int, int) returned invalid result: " +
+          bufferSize + "\nThe InputStream implementation is buggy.");
     }
     if (bufferSize == -1) {
       bufferSize = 0;
@@ -694,9 +1502,9 @@ public final class CodedInputStream {
       }
     } else {
       recomputeBufferSizeAfterLimit();
-      final int totalBytesRead =
-        totalBytesRetired + bufferSize + bufferSizeAfterLimit;
-      if (totalBytesRead > sizeLimit || totalBytesRead < 0) {
+      final long totalBytesRead = positionBase + totalBytesRetired +
+        bufferSize + bufferSizeAfterLimit - sizeCounterStart;
+      if (sizeLimit != Integer.MAX_VALUE && totalBytesRead > sizeLimit) {
         throw InvalidProtocolBufferException.sizeLimitExceeded();
       }
       return true;
@@ -781,7 +1589,7 @@ public final class CodedInputStream {
       final int originalBufferSize = bufferSize;
 
       // Mark the current buffer consumed.
-      totalBytesRetired += bufferSize;
+      retireBuffer();
       bufferPos = 0;
       bufferSize = 0;
 
@@ -823,6 +1631,39 @@ public final class CodedInputStream {
     }
   }
 
+  /**
+   * Reads {@code size} bytes and writes them to {@code output}, a buffer at
+   * a time, so that no more than a buffer's worth is held at once.
+   *
+   * @throws InvalidProtocolBufferException The end of the stream or the current
+   *                                        limit was reached.
+   */
+  private void copyRawBytes(final int size, final CodedOutputStream output)
+                            throws IOException {
+    if (size < 0) {
+      throw InvalidProtocolBufferException.negativeSize();
+    }
+
+    if (totalBytesRetired + bufferPos + size > currentLimit) {
+      // Read to the end of the stream anyway.
+      skipRawBytes(currentLimit - totalBytesRetired - bufferPos);
+      // Then fail.
+      throw InvalidProtocolBufferException.truncatedMessage();
+    }
+
+    int sizeLeft = size;
+    while (true) {
+      final int n = Math.min(sizeLeft, bufferSize - bufferPos);
+      output.writeRawBytes(buffer, bufferPos, n);
+      bufferPos += n;
+      sizeLeft -= n;
+      if (sizeLeft == 0) {
+        return;
+      }
+      refillBuffer(true);
+    }
+  }
+
   /**
    * Reads and discards {@code size} bytes.
    *
@@ -847,7 +1688,7 @@ public final class CodedInputStream {
     } else {
       // Skipping more bytes than are in the buffer.  First skip what we have.
       int pos = bufferSize - bufferPos;
-      totalBytesRetired += pos;
+      retireBuffer();
       bufferPos = 0;
       bufferSize = 0;
 
@@ -862,4 +1703,124 @@ public final class CodedInputStream {
       }
     }
   }
+
+  /**
+   * Presents a ByteBuffer which is not backed by an accessible array as an
+   * InputStream, so that it can be read through the same buffering code as
+   * any other input.  Reads are bulk transfers and skips just move the
+   * position, so no bytes are copied that are not actually consumed.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(final ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int off, final int len) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      final int n = Math.min(len, buffer.remaining());
+      buffer.get(bytes, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) {
+      final int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  /**
+   * Presents part of a file as an InputStream by mapping it one window at a
+   * time.  Like ByteBufferInputStream, reads are bulk transfers from the
+   * mapped window, and skips just move the position.
+   */
+  private static final class FileChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private final int windowSize;
+    private long windowStart;
+    private ByteBuffer window;
+
+    FileChannelInputStream(final FileChannel channel, final long start,
+                           final long end, final int windowSize) {
+      this.channel = channel;
+      this.end = end;
+      this.windowSize = windowSize;
+      this.windowStart = start;
+      this.window = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Makes sure the window has bytes remaining, mapping the next one if
+     * needed.  Returns false at the end of the file.
+     */
+    private boolean ensureWindow() throws IOException {
+      if (window.hasRemaining()) {
+        return true;
+      }
+      windowStart += window.capacity();
+      if (windowStart >= end) {
+        return false;
+      }
+      final MappedByteBuffer mapped = channel.map(
+          FileChannel.MapMode.READ_ONLY, windowStart,
+          Math.min(windowSize, end - windowStart));
+      window = mapped;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return ensureWindow() ? window.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int off, final int len)
+        throws IOException {
+      if (!ensureWindow()) {
+        return -1;
+      }
+      final int n = Math.min(len, window.remaining());
+      window.get(bytes, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      if (n <= 0) {
+        return 0;
+      }
+      final long position = windowStart + window.position();
+      final long skipped = Math.min(n, end - position);
+      if (skipped < window.remaining()) {
+        window.position(window.position() + (int) skipped);
+      } else {
+        // Start the next window at the new position.
+        windowStart = position + skipped;
+        window = ByteBuffer.allocate(0);
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return window.remaining();
+    }
+  }
 }
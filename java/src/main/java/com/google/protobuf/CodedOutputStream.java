@@ -32,7 +32,9 @@ package com.google.protobuf;
 
 import java.io.OutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Encodes and writes protocol message fields.
@@ -55,6 +57,12 @@ public final class CodedOutputStream {
 
   private final OutputStream output;
 
+  /**
+   * If writing directly into the array backing a {@code ByteBuffer}, that
+   * buffer, so that {@link #flush()} can update its position.
+   */
+  private final ByteBuffer byteBuffer;
+
   /**
    * The buffer size used in {@link #newInstance(OutputStream)}.
    */
@@ -75,6 +83,7 @@ public final class CodedOutputStream {
   private CodedOutputStream(final byte[] buffer, final int offset,
                             final int length) {
     output = null;
+    byteBuffer = null;
     this.buffer = buffer;
     position = offset;
     limit = offset + length;
@@ -82,11 +91,20 @@ public final class CodedOutputStream {
 
   private CodedOutputStream(final OutputStream output, final byte[] buffer) {
     this.output = output;
+    byteBuffer = null;
     this.buffer = buffer;
     position = 0;
     limit = buffer.length;
   }
 
+  private CodedOutputStream(final ByteBuffer byteBuffer) {
+    output = null;
+    this.byteBuffer = byteBuffer;
+    buffer = byteBuffer.array();
+    position = byteBuffer.arrayOffset() + byteBuffer.position();
+    limit = position + byteBuffer.remaining();
+  }
+
   /**
    * Create a new {@code CodedOutputStream} wrapping the given
    * {@code OutputStream}.
@@ -128,6 +146,55 @@ public final class CodedOutputStream {
     return new CodedOutputStream(flatArray, offset, length);
   }
 
+  /**
+   * Create a new {@code CodedOutputStream} that writes into the given
+   * {@code ByteBuffer}, starting at its position.  If more bytes are written
+   * than fit before the buffer's limit, {@link OutOfSpaceException} will be
+   * thrown.  The buffer's position is advanced past the bytes written each
+   * time {@link #flush()} is called, so you must call {@code flush()} when
+   * done writing.
+   *
+   * <p>If the buffer is backed by an accessible array, bytes are written
+   * directly into that array, exactly as with
+   * {@link #newInstance(byte[],int,int)}.  Otherwise (e.g. for direct
+   * buffers) bytes are encoded in small chunks which are transferred with
+   * bulk {@code put()}s; in that case {@code OutOfSpaceException} may not be
+   * thrown until the chunk which does not fit is transferred.
+   */
+  public static CodedOutputStream newInstance(final ByteBuffer byteBuffer) {
+    if (byteBuffer.hasArray()) {
+      return new CodedOutputStream(byteBuffer);
+    } else {
+      return new CodedOutputStream(
+        new ByteBufferOutputStream(byteBuffer),
+        new byte[Math.max(1,
+          computePreferredBufferSize(byteBuffer.remaining()))]);
+    }
+  }
+
+  /**
+   * Create a new {@code CodedOutputStream} wrapping the given
+   * {@code WritableByteChannel} with a given buffer size.  Whenever the
+   * buffer fills up, and on {@link #flush()}, its contents are written to
+   * the channel.  Partial writes are retried until everything has been
+   * written.
+   *
+   * @throws IllegalArgumentException {@code channel} is a
+   *         {@code SelectableChannel} in non-blocking mode.  Such a channel
+   *         may accept no bytes at all, and there would be nothing to do but
+   *         spin until it does.
+   */
+  public static CodedOutputStream newInstance(
+      final WritableByteChannel channel, final int bufferSize) {
+    if (channel instanceof SelectableChannel &&
+        !((SelectableChannel) channel).isBlocking()) {
+      throw new IllegalArgumentException(
+        "CodedOutputStream cannot write to a non-blocking channel.");
+    }
+    return new CodedOutputStream(new ChannelOutputStream(channel),
+                                 new byte[bufferSize]);
+  }
+
   // -----------------------------------------------------------------
 
   /** Write a {@code double} field, including tag, to the stream. */
@@ -205,9 +272,10 @@ public final class CodedOutputStream {
     // The cache can be null if serializing without getting the size first, or
     // if there are multiple threads.
     if (bytes == null) {
-      bytes = ByteString.copyFromUtf8(value);
+      writeString(fieldNumber, value);
+    } else {
+      writeBytes(fieldNumber, bytes);
     }
-    writeBytes(fieldNumber, bytes);
   }
 
   /** Write a {@code group} field, including tag, to the stream. */
@@ -365,12 +433,16 @@ public final class CodedOutputStream {
 
   /** Write a {@code string} field to the stream. */
   public void writeStringNoTag(final String value) throws IOException {
-    // Unfortunately there does not appear to be any way to tell Java to encode
-    // UTF-8 directly into our buffer, so we have to let it create its own byte
-    // array and then copy.
-    final byte[] bytes = value.getBytes("UTF-8");
-    writeRawVarint32(bytes.length);
-    writeRawBytes(bytes);
+    // String.getBytes() would allocate a temporary array which we would then
+    // have to copy into our buffer.  Instead, we measure the encoded length
+    // first and then encode directly into the buffer.
+    final int length = computeUtf8Length(value);
+    writeRawVarint32(length);
+    if (limit - position >= length) {
+      position = encodeUtf8(value, buffer, position);
+    } else {
+      writeUtf8Chunked(value);
+    }
   }
 
   /** Write a {@code group} field to the stream. */
@@ -398,9 +470,8 @@ public final class CodedOutputStream {
 
   /** Write a {@code bytes} field to the stream. */
   public void writeBytesNoTag(final ByteString value) throws IOException {
-    final byte[] bytes = value.toByteArray();
-    writeRawVarint32(bytes.length);
-    writeRawBytes(bytes);
+    writeRawVarint32(value.size());
+    writeRawBytes(value);
   }
 
   /** Write a {@code uint32} field to the stream. */
@@ -436,6 +507,159 @@ public final class CodedOutputStream {
     writeRawVarint64(encodeZigZag64(value));
   }
 
+  // -----------------------------------------------------------------
+  // Packed repeated fields
+  //
+  // Each of these writes the values of a packed repeated field, without the
+  // tag or the length prefix, which the caller has already written.  They
+  // are equivalent to calling the corresponding NoTag method for each
+  // value, but read the list's array directly; fixed-width values are
+  // copied into the buffer in a tight loop, as many at a time as fit.
+
+  /** Write the values of a packed {@code fixed32} or {@code sfixed32} field. */
+  public void writeFixed32sNoTag(final IntList values) throws IOException {
+    final int[] array = values.getBackingArray();
+    final int size = values.size();
+    int i = 0;
+    while (i < size) {
+      final int count =
+          Math.min(size - i, (limit - position) / LITTLE_ENDIAN_32_SIZE);
+      if (count == 0) {
+        // Flushes the buffer.
+        writeRawLittleEndian32(array[i++]);
+        continue;
+      }
+      final byte[] buffer = this.buffer;
+      int pos = position;
+      for (final int end = i + count; i < end; i++) {
+        encodeLittleEndian32(array[i], buffer, pos);
+        pos += LITTLE_ENDIAN_32_SIZE;
+      }
+      position = pos;
+    }
+  }
+
+  /** Write the values of a packed {@code fixed64} or {@code sfixed64} field. */
+  public void writeFixed64sNoTag(final LongList values) throws IOException {
+    final long[] array = values.getBackingArray();
+    final int size = values.size();
+    int i = 0;
+    while (i < size) {
+      final int count =
+          Math.min(size - i, (limit - position) / LITTLE_ENDIAN_64_SIZE);
+      if (count == 0) {
+        writeRawLittleEndian64(array[i++]);
+        continue;
+      }
+      final byte[] buffer = this.buffer;
+      int pos = position;
+      for (final int end = i + count; i < end; i++) {
+        encodeLittleEndian64(array[i], buffer, pos);
+        pos += LITTLE_ENDIAN_64_SIZE;
+      }
+      position = pos;
+    }
+  }
+
+  /** Write the values of a packed {@code float} field. */
+  public void writeFloatsNoTag(final FloatList values) throws IOException {
+    final float[] array = values.getBackingArray();
+    final int size = values.size();
+    int i = 0;
+    while (i < size) {
+      final int count =
+          Math.min(size - i, (limit - position) / LITTLE_ENDIAN_32_SIZE);
+      if (count == 0) {
+        writeFloatNoTag(array[i++]);
+        continue;
+      }
+      final byte[] buffer = this.buffer;
+      int pos = position;
+      for (final int end = i + count; i < end; i++) {
+        encodeLittleEndian32(Float.floatToRawIntBits(array[i]), buffer, pos);
+        pos += LITTLE_ENDIAN_32_SIZE;
+      }
+      position = pos;
+    }
+  }
+
+  /** Write the values of a packed {@code double} field. */
+  public void writeDoublesNoTag(final DoubleList values) throws IOException {
+    final double[] array = values.getBackingArray();
+    final int size = values.size();
+    int i = 0;
+    while (i < size) {
+      final int count =
+          Math.min(size - i, (limit - position) / LITTLE_ENDIAN_64_SIZE);
+      if (count == 0) {
+        writeDoubleNoTag(array[i++]);
+        continue;
+      }
+      final byte[] buffer = this.buffer;
+      int pos = position;
+      for (final int end = i + count; i < end; i++) {
+        encodeLittleEndian64(Double.doubleToRawLongBits(array[i]),
+                             buffer, pos);
+        pos += LITTLE_ENDIAN_64_SIZE;
+      }
+      position = pos;
+    }
+  }
+
+  /** Write the values of a packed {@code int32} field. */
+  public void writeInt32sNoTag(final IntList values) throws IOException {
+    final int[] array = values.getBackingArray();
+    final int size = values.size();
+    for (int i = 0; i < size; i++) {
+      writeInt32NoTag(array[i]);
+    }
+  }
+
+  /** Write the values of a packed {@code uint32} field. */
+  public void writeUInt32sNoTag(final IntList values) throws IOException {
+    final int[] array = values.getBackingArray();
+    final int size = values.size();
+    for (int i = 0; i < size; i++) {
+      writeRawVarint32(array[i]);
+    }
+  }
+
+  /** Write the values of a packed {@code sint32} field. */
+  public void writeSInt32sNoTag(final IntList values) throws IOException {
+    final int[] array = values.getBackingArray();
+    final int size = values.size();
+    for (int i = 0; i < size; i++) {
+      writeRawVarint32(encodeZigZag32(array[i]));
+    }
+  }
+
+  /** Write the values of a packed {@code int64} or {@code uint64} field. */
+  public void writeInt64sNoTag(final LongList values) throws IOException {
+    final long[] array = values.getBackingArray();
+    final int size = values.size();
+    for (int i = 0; i < size; i++) {
+      writeRawVarint64(array[i]);
+    }
+  }
+
+  /** Write the values of a packed {@code sint64} field. */
+  public void writeSInt64sNoTag(final LongList values) throws IOException {
+    final long[] array = values.getBackingArray();
+    final int size = values.size();
+    for (int i = 0; i < size; i++) {
+      writeRawVarint64(encodeZigZag64(array[i]));
+    }
+  }
+
+  /** Write the values of a packed {@code bool} field. */
+  public void writeBoolsNoTag(final BooleanList values) throws IOException {
+    final boolean[] array = values.getBackingArray();
+    final int size = values.size();
+    for (int i = 0; i < size; i++) {
+      writeRawByte(array[i] ? 1 : 0);
+    }
+  }
+
   // =================================================================
 
   /**
@@ -707,13 +931,8 @@ public final class CodedOutputStream {
    * {@code string} field.
    */
   public static int computeStringSizeNoTag(final String value) {
-    try {
-      final byte[] bytes = value.getBytes("UTF-8");
-      return computeRawVarint32Size(bytes.length) +
-             bytes.length;
-    } catch (UnsupportedEncodingException e) {
-      throw new RuntimeException("UTF-8 not supported.", e);
-    }
+    final int length = computeUtf8Length(value);
+    return computeRawVarint32Size(length) + length;
   }
 
   /**
@@ -828,12 +1047,15 @@ public final class CodedOutputStream {
   public void flush() throws IOException {
     if (output != null) {
       refreshBuffer();
+    } else if (byteBuffer != null) {
+      byteBuffer.position(position - byteBuffer.arrayOffset());
     }
   }
 
   /**
-   * If writing to a flat array, return the space left in the array.
-   * Otherwise, throws {@code UnsupportedOperationException}.
+   * If writing to a flat array (or to the array backing a {@code ByteBuffer}),
+   * return the space left in the array.  Otherwise, throws
+   * {@code UnsupportedOperationException}.
    */
   public int spaceLeft() {
     if (output == null) {
@@ -873,6 +1095,68 @@ public final class CodedOutputStream {
     }
   }
 
+  /**
+   * Presents a {@code ByteBuffer} which is not backed by an accessible array
+   * as an {@code OutputStream}, so that it can be written through the normal
+   * buffering code.  Each write is a single bulk {@code put()}.
+   */
+  private static final class ByteBufferOutputStream extends OutputStream {
+    private final ByteBuffer byteBuffer;
+
+    ByteBufferOutputStream(final ByteBuffer byteBuffer) {
+      this.byteBuffer = byteBuffer;
+    }
+
+    @Override
+    public void write(final int value) throws IOException {
+      if (!byteBuffer.hasRemaining()) {
+        throw new OutOfSpaceException();
+      }
+      byteBuffer.put((byte) value);
+    }
+
+    @Override
+    public void write(final byte[] value, final int offset, final int length)
+                      throws IOException {
+      if (byteBuffer.remaining() < length) {
+        throw new OutOfSpaceException();
+      }
+      byteBuffer.put(value, offset, length);
+    }
+  }
+
+  /**
+   * Presents a blocking {@code WritableByteChannel} as an
+   * {@code OutputStream}.
+   */
+  private static final class ChannelOutputStream extends OutputStream {
+    private final WritableByteChannel channel;
+
+    ChannelOutputStream(final WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(final int value) throws IOException {
+      write(new byte[] { (byte) value }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] value, final int offset, final int length)
+                      throws IOException {
+      final ByteBuffer source = ByteBuffer.wrap(value, offset, length);
+      while (source.hasRemaining()) {
+        if (channel.write(source) == 0) {
+          // A blocking channel always writes something, so the channel must
+          // have been made non-blocking after it was wrapped.
+          throw new IOException(
+            "WritableByteChannel accepted no bytes; CodedOutputStream " +
+            "cannot write to a non-blocking channel.");
+        }
+      }
+    }
+  }
+
   /** Write a single byte. */
   public void writeRawByte(final byte value) throws IOException {
     if (position == limit) {
@@ -887,6 +1171,11 @@ public final class CodedOutputStream {
     writeRawByte((byte) value);
   }
 
+  /** Write the contents of a {@code ByteString}. */
+  public void writeRawBytes(final ByteString value) throws IOException {
+    value.writeTo(this);
+  }
+
   /** Write an array of bytes. */
   public void writeRawBytes(final byte[] value) throws IOException {
     writeRawBytes(value, 0, value.length);
@@ -923,6 +1212,136 @@ public final class CodedOutputStream {
     }
   }
 
+  // -----------------------------------------------------------------
+  // UTF-8 encoding
+  //
+  // These methods produce exactly the same bytes as String.getBytes("UTF-8"),
+  // including replacing unpaired surrogates with '?', but never allocate.
+
+  /**
+   * Compute the number of bytes needed to encode {@code value} as UTF-8,
+   * without actually encoding it.
+   */
+  static int computeUtf8Length(final String value) {
+    final int charCount = value.length();
+    int length = charCount;
+    for (int i = 0; i < charCount; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        // One byte; already counted.
+      } else if (c < 0x800) {
+        length += 1;
+      } else if (c < Character.MIN_SURROGATE ||
+                 c > Character.MAX_SURROGATE) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < charCount &&
+                 Character.isLowSurrogate(value.charAt(i + 1))) {
+        // A surrogate pair is two chars encoded as four bytes.
+        length += 2;
+        i++;
+      } else {
+        // Unpaired surrogate; encoded as '?'.
+      }
+    }
+    if (length < charCount) {
+      // The int overflowed.
+      throw new IllegalArgumentException(
+        "UTF-8 length does not fit in int.");
+    }
+    return length;
+  }
+
+  /**
+   * Encode {@code value} as UTF-8 into {@code bytes} starting at
+   * {@code offset}.  The caller must ensure that there is room for
+   * {@link #computeUtf8Length} bytes.
+   *
+   * @return the offset just past the last byte written.
+   */
+  private static int encodeUtf8(final String value, final byte[] bytes,
+                                int offset) {
+    final int charCount = value.length();
+    int i = 0;
+
+    // Fast path for the common all-ASCII prefix.
+    for (char c; i < charCount && (c = value.charAt(i)) < 0x80; i++) {
+      bytes[offset++] = (byte) c;
+    }
+
+    for (; i < charCount; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        bytes[offset++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[offset++] = (byte) (0xC0 | (c >>> 6));
+        bytes[offset++] = (byte) (0x80 | (c & 0x3F));
+      } else if (c < Character.MIN_SURROGATE ||
+                 c > Character.MAX_SURROGATE) {
+        bytes[offset++] = (byte) (0xE0 | (c >>> 12));
+        bytes[offset++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+        bytes[offset++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < charCount &&
+                 Character.isLowSurrogate(value.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        bytes[offset++] = (byte) (0xF0 | (codePoint >>> 18));
+        bytes[offset++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+        bytes[offset++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+        bytes[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else {
+        bytes[offset++] = (byte) '?';
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * Like {@link #encodeUtf8}, but for strings which do not fit in the space
+   * remaining in the buffer.  Each character is encoded directly into the
+   * buffer when there is room for it, and the buffer is flushed as it fills.
+   */
+  private void writeUtf8Chunked(final String value) throws IOException {
+    final int charCount = value.length();
+    for (int i = 0; i < charCount; i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        writeRawByte((byte) c);
+      } else if (c < 0x800) {
+        writeUtf8Bytes(2, 0xC0 | (c >>> 6), 0x80 | (c & 0x3F), 0, 0);
+      } else if (c < Character.MIN_SURROGATE ||
+                 c > Character.MAX_SURROGATE) {
+        writeUtf8Bytes(3, 0xE0 | (c >>> 12), 0x80 | ((c >>> 6) & 0x3F),
+                       0x80 | (c & 0x3F), 0);
+      } else if (Character.isHighSurrogate(c) && i + 1 < charCount &&
+                 Character.isLowSurrogate(value.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        writeUtf8Bytes(4, 0xF0 | (codePoint >>> 18),
+                       0x80 | ((codePoint >>> 12) & 0x3F),
+                       0x80 | ((codePoint >>> 6) & 0x3F),
+                       0x80 | (codePoint & 0x3F));
+      } else {
+        writeRawByte((byte) '?');
+      }
+    }
+  }
+
+  /** Write the first {@code count} of the given bytes of a UTF-8 sequence. */
+  private void writeUtf8Bytes(final int count, final int b0, final int b1,
+                              final int b2, final int b3) throws IOException {
+    if (limit - position < count) {
+      // Not enough room; go through writeRawByte() so that the sequence can
+      // be split across buffer flushes.
+      writeRawByte(b0);
+      writeRawByte(b1);
+      if (count > 2) writeRawByte(b2);
+      if (count > 3) writeRawByte(b3);
+      return;
+    }
+    buffer[position++] = (byte) b0;
+    buffer[position++] = (byte) b1;
+    if (count > 2) buffer[position++] = (byte) b2;
+    if (count > 3) buffer[position++] = (byte) b3;
+  }
+
   /** Encode and write a tag. */
   public void writeTag(final int fieldNumber, final int wireType)
                        throws IOException {
@@ -939,6 +1358,20 @@ public final class CodedOutputStream {
    * unsigned, so it won't be sign-extended if negative.
    */
   public void writeRawVarint32(int value) throws IOException {
+    if (limit - position >= MAX_VARINT32_SIZE) {
+      // There is room for the longest possible varint, so write straight
+      // into the buffer.
+      final byte[] buffer = this.buffer;
+      int pos = position;
+      while ((value & ~0x7F) != 0) {
+        buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[pos++] = (byte) value;
+      position = pos;
+      return;
+    }
+
     while (true) {
       if ((value & ~0x7F) == 0) {
         writeRawByte(value);
@@ -965,6 +1398,18 @@ public final class CodedOutputStream {
 
   /** Encode and write a varint. */
   public void writeRawVarint64(long value) throws IOException {
+    if (limit - position >= MAX_VARINT64_SIZE) {
+      final byte[] buffer = this.buffer;
+      int pos = position;
+      while ((value & ~0x7FL) != 0) {
+        buffer[pos++] = (byte) (((int)value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[pos++] = (byte) value;
+      position = pos;
+      return;
+    }
+
     while (true) {
       if ((value & ~0x7FL) == 0) {
         writeRawByte((int)value);
@@ -992,6 +1437,12 @@ public final class CodedOutputStream {
 
   /** Write a little-endian 32-bit integer. */
   public void writeRawLittleEndian32(final int value) throws IOException {
+    if (limit - position >= LITTLE_ENDIAN_32_SIZE) {
+      encodeLittleEndian32(value, buffer, position);
+      position += LITTLE_ENDIAN_32_SIZE;
+      return;
+    }
+
     writeRawByte((value      ) & 0xFF);
     writeRawByte((value >>  8) & 0xFF);
     writeRawByte((value >> 16) & 0xFF);
@@ -1002,6 +1453,12 @@ public final class CodedOutputStream {
 
   /** Write a little-endian 64-bit integer. */
   public void writeRawLittleEndian64(final long value) throws IOException {
+    if (limit - position >= LITTLE_ENDIAN_64_SIZE) {
+      encodeLittleEndian64(value, buffer, position);
+      position += LITTLE_ENDIAN_64_SIZE;
+      return;
+    }
+
     writeRawByte((int)(value      ) & 0xFF);
     writeRawByte((int)(value >>  8) & 0xFF);
     writeRawByte((int)(value >> 16) & 0xFF);
@@ -1014,6 +1471,31 @@ public final class CodedOutputStream {
 
   public static final int LITTLE_ENDIAN_64_SIZE = 8;
 
+  private static final int MAX_VARINT32_SIZE = 5;
+  private static final int MAX_VARINT64_SIZE = 10;
+
+  private static void encodeLittleEndian32(final int value,
+                                           final byte[] buffer,
+                                           final int pos) {
+    buffer[pos    ] = (byte) (value      );
+    buffer[pos + 1] = (byte) (value >>  8);
+    buffer[pos + 2] = (byte) (value >> 16);
+    buffer[pos + 3] = (byte) (value >> 24);
+  }
+
+  private static void encodeLittleEndian64(final long value,
+                                           final byte[] buffer,
+                                           final int pos) {
+    buffer[pos    ] = (byte) (value      );
+    buffer[pos + 1] = (byte) (value >>  8);
+    buffer[pos + 2] = (byte) (value >> 16);
+    buffer[pos + 3] = (byte) (value >> 24);
+    buffer[pos + 4] = (byte) (value >> 32);
+    buffer[pos + 5] = (byte) (value >> 40);
+    buffer[pos + 6] = (byte) (value >> 48);
+    buffer[pos + 7] = (byte) (value >> 56);
+  }
+
   /**
    * Encode a ZigZag-encoded 32-bit value.  ZigZag encodes signed integers
    * into values that can be efficiently encoded with varint.  (Otherwise,
@@ -0,0 +1,658 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The superclass of the message classes created by
+ * {@link DynamicMessageCompiler}.  Users should ignore this class; it is
+ * public only because the compiled classes are defined by their own class
+ * loader, and so are not in this package at runtime.
+ *
+ * <p>A compiled class stores each field of its type in a Java field of its
+ * own, with presence in bit fields, and implements the abstract
+ * {@code internal*} methods below with switches over the field index and
+ * over tags.  Everything else, including the builder and the reflection
+ * interface, is implemented here in terms of those methods.
+ */
+public abstract class CompiledMessage extends AbstractMessage {
+  /** The type of this message.  Compiled code passes it to its constructor. */
+  protected final TypeInfo typeInfo;
+  private UnknownFieldSet unknownFields = UnknownFieldSet.getDefaultInstance();
+  private int memoizedSize = -1;
+  private int memoizedIsInitialized = -1;
+
+  protected CompiledMessage(final TypeInfo typeInfo) {
+    this.typeInfo = typeInfo;
+  }
+
+  // -----------------------------------------------------------------
+  // Implemented by compiled code.
+
+  /** Returns a new, empty message of the same class. */
+  protected abstract CompiledMessage internalNewInstance();
+
+  /**
+   * Returns the presence bits of singular fields {@code 32 * word} through
+   * {@code 32 * word + 31}, as numbered by {@link TypeInfo}.
+   */
+  protected abstract int internalGetHasBits(int word);
+
+  /**
+   * Returns the value of the field with the given index, boxed.  Unset
+   * singular fields of reference type and empty repeated fields may be
+   * {@code null}; repeated fields are returned as their mutable lists.
+   */
+  protected abstract Object internalGetField(int index);
+
+  /**
+   * Sets the field with the given index and marks it present.  Repeated
+   * fields take an {@code ArrayList} which the message then owns.
+   */
+  protected abstract void internalSetField(int index, Object value);
+
+  /** Clears the field with the given index. */
+  protected abstract void internalClearField(int index);
+
+  /**
+   * Parses the field whose tag has just been read.  Returns {@code false} if
+   * the tag ends a group.
+   */
+  protected abstract boolean internalMergeField(
+      CodedInputStream input, ExtensionRegistryLite extensionRegistry,
+      UnknownFieldSet.Builder unknownFields, int tag) throws IOException;
+
+  /** Writes all present fields, in order of field number. */
+  protected abstract void internalWriteFields(CodedOutputStream output)
+      throws IOException;
+
+  /** Returns the serialized size of all present fields. */
+  protected abstract int internalComputeFieldsSize();
+
+  // -----------------------------------------------------------------
+  // Helpers for compiled code.
+
+  /** Appends to a repeated field's list, creating it if necessary. */
+  protected static List<Object> addElement(final List<Object> list,
+                                           final Object element) {
+    final List<Object> result = list == null ? new ArrayList<Object>() : list;
+    result.add(element);
+    return result;
+  }
+
+  /** Returns an exception for an index that is not a field of the type. */
+  protected static IllegalArgumentException invalidIndex(final int index) {
+    return new IllegalArgumentException("No field with index " + index + ".");
+  }
+
+  /**
+   * Reads a value of the enum field with the given index.  Returns
+   * {@code null}, after storing the number in {@code unknownFields}, if the
+   * enum type has no such value.
+   */
+  protected final Object readEnumValue(
+      final CodedInputStream input, final UnknownFieldSet.Builder unknownFields,
+      final int index) throws IOException {
+    final int number = typeInfo.fields.get(index).getNumber();
+    final int rawValue = input.readEnum();
+    final EnumValueDescriptor value =
+      typeInfo.schema.findEnumValue(number, rawValue);
+    if (value == null) {
+      unknownFields.mergeVarintField(number, rawValue);
+    }
+    return value;
+  }
+
+  /**
+   * Reads a value of the message or group field with the given index,
+   * merged into {@code existing} unless that is {@code null}.
+   */
+  protected final Object readMessageValue(
+      final CodedInputStream input,
+      final ExtensionRegistryLite extensionRegistry, final int index,
+      final Object existing) throws IOException {
+    final FieldDescriptor field = typeInfo.fields.get(index);
+    final Builder builder = new Builder(typeInfo.messageTypes[index]);
+    if (existing != null) {
+      builder.mergeFrom((Message) existing);
+    }
+    if (field.getType() == FieldDescriptor.Type.GROUP) {
+      input.readGroup(field.getNumber(), builder, extensionRegistry);
+    } else {
+      input.readMessage(builder, extensionRegistry);
+    }
+    return builder.buildPartial();
+  }
+
+  /**
+   * Reads the packed values of the repeated field with the given index and
+   * appends them to {@code list}.  Unknown enum values are dropped, as the
+   * generated code does for packed fields.
+   */
+  protected final List<Object> readPackedValues(final CodedInputStream input,
+                                                final int index,
+                                                final List<Object> list)
+                                                throws IOException {
+    final FieldDescriptor field = typeInfo.fields.get(index);
+    List<Object> result = list;
+    final int length = input.readRawVarint32();
+    final int limit = input.pushLimit(length);
+    while (input.getBytesUntilLimit() > 0) {
+      final Object value;
+      if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
+        value = typeInfo.schema.findEnumValue(field.getNumber(),
+                                              input.readEnum());
+        if (value == null) {
+          continue;
+        }
+      } else {
+        value = FieldSet.readPrimitiveField(input, field.getLiteType());
+      }
+      result = addElement(result, value);
+    }
+    input.popLimit(limit);
+    return result;
+  }
+
+  /** Writes the repeated field with the given index. */
+  protected final void writeRepeated(final CodedOutputStream output,
+                                     final int index, final List<?> list)
+                                     throws IOException {
+    if (list != null && !list.isEmpty()) {
+      FieldSet.writeField(typeInfo.fields.get(index), list, output);
+    }
+  }
+
+  /** Returns the serialized size of the repeated field with the given index. */
+  protected final int computeRepeatedSize(final int index,
+                                          final List<?> list) {
+    if (list == null || list.isEmpty()) {
+      return 0;
+    }
+    return FieldSet.computeFieldSize(typeInfo.fields.get(index), list);
+  }
+
+  // -----------------------------------------------------------------
+  // Implementation of Message interface.
+
+  public Descriptor getDescriptorForType() {
+    return typeInfo.descriptor;
+  }
+
+  public CompiledMessage getDefaultInstanceForType() {
+    return typeInfo.defaultInstance;
+  }
+
+  public Map<FieldDescriptor, Object> getAllFields() {
+    final TreeMap<FieldDescriptor, Object> result =
+      new TreeMap<FieldDescriptor, Object>();
+    final List<FieldDescriptor> fields = typeInfo.fields;
+    for (int i = 0; i < fields.size(); i++) {
+      final FieldDescriptor field = fields.get(i);
+      if (field.isRepeated()) {
+        final List<?> list = (List<?>) internalGetField(i);
+        if (list != null && !list.isEmpty()) {
+          result.put(field, Collections.unmodifiableList(list));
+        }
+      } else if (isSet(i)) {
+        result.put(field, internalGetField(i));
+      }
+    }
+    return result;
+  }
+
+  public boolean hasField(final FieldDescriptor field) {
+    verifyContainingType(field);
+    if (field.isRepeated()) {
+      throw new IllegalArgumentException(
+        "hasField() can only be called on non-repeated fields.");
+    }
+    return isSet(field.getIndex());
+  }
+
+  public Object getField(final FieldDescriptor field) {
+    verifyContainingType(field);
+    final int index = field.getIndex();
+    if (field.isRepeated()) {
+      return Collections.unmodifiableList(getList(index));
+    } else if (isSet(index)) {
+      return internalGetField(index);
+    } else if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+      return typeInfo.messageTypes[index].defaultInstance;
+    } else {
+      return field.getDefaultValue();
+    }
+  }
+
+  public int getRepeatedFieldCount(final FieldDescriptor field) {
+    verifyContainingType(field);
+    return getList(field.getIndex()).size();
+  }
+
+  public Object getRepeatedField(final FieldDescriptor field,
+                                 final int index) {
+    verifyContainingType(field);
+    return getList(field.getIndex()).get(index);
+  }
+
+  public UnknownFieldSet getUnknownFields() {
+    return unknownFields;
+  }
+
+  public boolean isInitialized() {
+    // The message is immutable, so this only needs to be checked once.
+    int result = memoizedIsInitialized;
+    if (result == -1) {
+      result = computeIsInitialized() ? 1 : 0;
+      memoizedIsInitialized = result;
+    }
+    return result == 1;
+  }
+
+  public void writeTo(final CodedOutputStream output) throws IOException {
+    internalWriteFields(output);
+    unknownFields.writeTo(output);
+  }
+
+  public int getSerializedSize() {
+    int size = memoizedSize;
+    if (size != -1) return size;
+
+    size = internalComputeFieldsSize() + unknownFields.getSerializedSize();
+    memoizedSize = size;
+    return size;
+  }
+
+  public Builder newBuilderForType() {
+    return new Builder(typeInfo);
+  }
+
+  public Builder toBuilder() {
+    return newBuilderForType().mergeFrom(this);
+  }
+
+  /** Returns whether the singular field with the given index is present. */
+  private boolean isSet(final int index) {
+    final int bit = typeInfo.hasBits[index];
+    return (internalGetHasBits(bit >>> 5) & (1 << bit)) != 0;
+  }
+
+  /** Returns the list of the repeated field with the given index. */
+  @SuppressWarnings("unchecked")
+  private List<Object> getList(final int index) {
+    final List<Object> list = (List<Object>) internalGetField(index);
+    return list == null ? Collections.<Object>emptyList() : list;
+  }
+
+  private boolean computeIsInitialized() {
+    final List<FieldDescriptor> fields = typeInfo.fields;
+    for (int i = 0; i < fields.size(); i++) {
+      final FieldDescriptor field = fields.get(i);
+      final boolean isMessage =
+        field.getJavaType() == FieldDescriptor.JavaType.MESSAGE;
+      if (field.isRepeated()) {
+        if (isMessage) {
+          for (final Object element : getList(i)) {
+            if (!((MessageLite) element).isInitialized()) {
+              return false;
+            }
+          }
+        }
+      } else if (!isSet(i)) {
+        if (field.isRequired()) {
+          return false;
+        }
+      } else if (isMessage &&
+                 !((MessageLite) internalGetField(i)).isInitialized()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Verifies that the field is a field of this message.  Extensions are not
+   * supported; when parsing they are kept as unknown fields.
+   */
+  private void verifyContainingType(final FieldDescriptor field) {
+    if (field.getContainingType() != typeInfo.descriptor) {
+      throw new IllegalArgumentException(
+        "FieldDescriptor does not match message type.");
+    }
+    if (field.isExtension()) {
+      throw new IllegalArgumentException(
+        "Compiled messages do not support extensions.");
+    }
+  }
+
+  // =================================================================
+
+  /**
+   * The compiled form of one message type:  what {@link CompiledMessage}
+   * needs to know about the fields of a compiled class.
+   */
+  public static final class TypeInfo {
+    final Descriptor descriptor;
+    final List<FieldDescriptor> fields;
+    final MessageSchema schema;
+    /** The presence bit of each singular field, or -1 for repeated ones. */
+    final int[] hasBits;
+    final int hasBitCount;
+    /** The types of message fields, set once all types have been compiled. */
+    final TypeInfo[] messageTypes;
+    CompiledMessage defaultInstance;
+
+    TypeInfo(final Descriptor descriptor) {
+      this.descriptor = descriptor;
+      fields = descriptor.getFields();
+      schema = descriptor.getMessageSchema();
+      hasBits = new int[fields.size()];
+      messageTypes = new TypeInfo[fields.size()];
+      int count = 0;
+      for (int i = 0; i < hasBits.length; i++) {
+        hasBits[i] = fields.get(i).isRepeated() ? -1 : count++;
+      }
+      hasBitCount = count;
+    }
+  }
+
+  // =================================================================
+
+  /**
+   * Builder for {@link CompiledMessage}s.  It fills in a new message of the
+   * compiled class, and hands it over when built.
+   */
+  public static final class Builder extends AbstractMessage.Builder<Builder> {
+    private final TypeInfo typeInfo;
+    private CompiledMessage result;
+
+    private Builder(final TypeInfo typeInfo) {
+      this.typeInfo = typeInfo;
+      result = typeInfo.defaultInstance.internalNewInstance();
+    }
+
+    // ---------------------------------------------------------------
+    // Implementation of Message.Builder interface.
+
+    public Builder clear() {
+      if (result == null) {
+        throw new IllegalStateException("Cannot call clear() after build().");
+      }
+      result = typeInfo.defaultInstance.internalNewInstance();
+      return this;
+    }
+
+    public Builder clearForReuse() {
+      result = typeInfo.defaultInstance.internalNewInstance();
+      return this;
+    }
+
+    public Builder mergeFrom(final Message other) {
+      if (other instanceof CompiledMessage &&
+          ((CompiledMessage) other).typeInfo == typeInfo) {
+        // Copy the fields directly rather than through getAllFields().
+        final CompiledMessage otherMessage = (CompiledMessage) other;
+        final List<FieldDescriptor> fields = typeInfo.fields;
+        for (int i = 0; i < fields.size(); i++) {
+          final FieldDescriptor field = fields.get(i);
+          if (field.isRepeated()) {
+            final List<Object> otherList = otherMessage.getList(i);
+            if (!otherList.isEmpty()) {
+              final List<Object> list =
+                new ArrayList<Object>(result.getList(i));
+              list.addAll(otherList);
+              result.internalSetField(i, list);
+            }
+          } else if (otherMessage.isSet(i)) {
+            Object value = otherMessage.internalGetField(i);
+            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE &&
+                result.isSet(i)) {
+              value = ((Message) result.internalGetField(i)).toBuilder()
+                  .mergeFrom((Message) value)
+                  .buildPartial();
+            }
+            result.internalSetField(i, value);
+          }
+        }
+        mergeUnknownFields(otherMessage.unknownFields);
+        return this;
+      } else {
+        return super.mergeFrom(other);
+      }
+    }
+
+    @Override
+    public Builder mergeFrom(final CodedInputStream input,
+                             final ExtensionRegistryLite extensionRegistry)
+                             throws IOException {
+      final UnknownFieldSet.Builder unknownFields =
+        UnknownFieldSet.newBuilder(result.unknownFields);
+      while (true) {
+        final int tag = input.readTag();
+        if (tag == 0 ||
+            !result.internalMergeField(input, extensionRegistry,
+                                       unknownFields, tag)) {
+          break;
+        }
+      }
+      result.unknownFields = unknownFields.build();
+      return this;
+    }
+
+    public CompiledMessage build() {
+      // If result == null, we'll throw an appropriate exception later.
+      if (result != null && !isInitialized()) {
+        throw newUninitializedMessageException(result);
+      }
+      return buildPartial();
+    }
+
+    public CompiledMessage buildPartial() {
+      if (result == null) {
+        throw new IllegalStateException(
+            "build() has already been called on this Builder.");
+      }
+      final CompiledMessage returnMe = result;
+      result = null;
+      return returnMe;
+    }
+
+    public Builder clone() {
+      return new Builder(typeInfo).mergeFrom(result);
+    }
+
+    public boolean isInitialized() {
+      return result.computeIsInitialized();
+    }
+
+    public Descriptor getDescriptorForType() {
+      return typeInfo.descriptor;
+    }
+
+    public CompiledMessage getDefaultInstanceForType() {
+      return typeInfo.defaultInstance;
+    }
+
+    public Map<FieldDescriptor, Object> getAllFields() {
+      return result.getAllFields();
+    }
+
+    public Builder newBuilderForField(final FieldDescriptor field) {
+      result.verifyContainingType(field);
+      if (field.getJavaType() != FieldDescriptor.JavaType.MESSAGE) {
+        throw new IllegalArgumentException(
+          "newBuilderForField is only valid for fields with message type.");
+      }
+      return new Builder(typeInfo.messageTypes[field.getIndex()]);
+    }
+
+    public boolean hasField(final FieldDescriptor field) {
+      return result.hasField(field);
+    }
+
+    public Object getField(final FieldDescriptor field) {
+      return result.getField(field);
+    }
+
+    public Builder setField(final FieldDescriptor field, final Object value) {
+      result.verifyContainingType(field);
+      if (field.isRepeated()) {
+        if (!(value instanceof List)) {
+          throw new IllegalArgumentException(
+            "Wrong object type used with protocol message reflection.");
+        }
+        // Copy the list so the caller can't change it behind our back.
+        final List<Object> list = new ArrayList<Object>();
+        for (final Object element : (List<?>) value) {
+          verifyValue(field, element);
+          list.add(element);
+        }
+        result.internalSetField(field.getIndex(), list);
+      } else {
+        verifyValue(field, value);
+        result.internalSetField(field.getIndex(), value);
+      }
+      return this;
+    }
+
+    public Builder clearField(final FieldDescriptor field) {
+      result.verifyContainingType(field);
+      result.internalClearField(field.getIndex());
+      return this;
+    }
+
+    public int getRepeatedFieldCount(final FieldDescriptor field) {
+      return result.getRepeatedFieldCount(field);
+    }
+
+    public Object getRepeatedField(final FieldDescriptor field,
+                                   final int index) {
+      return result.getRepeatedField(field, index);
+    }
+
+    public Builder setRepeatedField(final FieldDescriptor field,
+                                    final int index, final Object value) {
+      result.verifyContainingType(field);
+      if (!field.isRepeated()) {
+        throw new IllegalArgumentException(
+          "setRepeatedField() can only be called on repeated fields.");
+      }
+      verifyValue(field, value);
+      @SuppressWarnings("unchecked")
+      final List<Object> list =
+        (List<Object>) result.internalGetField(field.getIndex());
+      if (list == null) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: 0");
+      }
+      list.set(index, value);
+      return this;
+    }
+
+    public Builder addRepeatedField(final FieldDescriptor field,
+                                    final Object value) {
+      result.verifyContainingType(field);
+      if (!field.isRepeated()) {
+        throw new IllegalArgumentException(
+          "addRepeatedField() can only be called on repeated fields.");
+      }
+      verifyValue(field, value);
+      final int index = field.getIndex();
+      @SuppressWarnings("unchecked")
+      final List<Object> list = (List<Object>) result.internalGetField(index);
+      result.internalSetField(index, addElement(list, value));
+      return this;
+    }
+
+    public UnknownFieldSet getUnknownFields() {
+      return result.unknownFields;
+    }
+
+    public Builder setUnknownFields(final UnknownFieldSet unknownFields) {
+      result.unknownFields = unknownFields;
+      return this;
+    }
+
+    public Builder mergeUnknownFields(final UnknownFieldSet unknownFields) {
+      result.unknownFields =
+        UnknownFieldSet.newBuilder(result.unknownFields)
+                       .mergeFrom(unknownFields)
+                       .build();
+      return this;
+    }
+
+    /**
+     * Verifies that {@code value} is of the right type for {@code field},
+     * the way {@link FieldSet} does for {@link DynamicMessage}.  Enum and
+     * message values must also be of the field's own enum or message type.
+     */
+    private static void verifyValue(final FieldDescriptor field,
+                                    final Object value) {
+      if (value == null) {
+        throw new NullPointerException();
+      }
+
+      boolean isValid = false;
+      switch (field.getJavaType()) {
+        case INT:          isValid = value instanceof Integer   ; break;
+        case LONG:         isValid = value instanceof Long      ; break;
+        case FLOAT:        isValid = value instanceof Float     ; break;
+        case DOUBLE:       isValid = value instanceof Double    ; break;
+        case BOOLEAN:      isValid = value instanceof Boolean   ; break;
+        case STRING:       isValid = value instanceof String    ; break;
+        case BYTE_STRING:  isValid = value instanceof ByteString; break;
+        case ENUM:
+          isValid = value instanceof EnumValueDescriptor &&
+            ((EnumValueDescriptor) value).getType() == field.getEnumType();
+          break;
+        case MESSAGE:
+          isValid = value instanceof Message &&
+            ((Message) value).getDescriptorForType() ==
+              field.getMessageType();
+          break;
+      }
+
+      if (!isValid) {
+        throw new IllegalArgumentException(
+          "Wrong object type used with protocol message reflection.");
+      }
+    }
+  }
+}
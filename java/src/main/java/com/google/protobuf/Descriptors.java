@@ -550,6 +550,20 @@ public final class Descriptors {
     private final FieldDescriptor[] fields;
     private final FieldDescriptor[] extensions;
 
+    // Built on first use.  Two threads may race to build it, in which case
+    // either result is fine.
+    private volatile MessageSchema messageSchema;
+
+    /** Get the plan used to parse and write this type without reflection. */
+    MessageSchema getMessageSchema() {
+      MessageSchema result = messageSchema;
+      if (result == null) {
+        result = new MessageSchema(this);
+        messageSchema = result;
+      }
+      return result;
+    }
+
     private Descriptor(final DescriptorProto proto,
                        final FileDescriptor file,
                        final Descriptor parent,
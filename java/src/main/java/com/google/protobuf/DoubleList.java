@@ -0,0 +1,335 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A growable list of {@code double}s, stored in a {@code double[]} rather than
+ * as boxed {@code Double}s.  Generated code uses it for repeated double fields,
+ * through unboxed methods such as {@link #getDouble(int)} and
+ * {@link #addDouble(double)}.  The {@code java.util.List<Double>} methods are
+ * for callers of the generated {@code get...List()} accessors, and behave like
+ * those of an {@code ArrayList}, except that they throw
+ * {@code NullPointerException} for {@code null} elements.
+ *
+ * <p>A message's lists are frozen with {@link #makeImmutable()} when it is
+ * built, after which any attempt to modify them throws
+ * {@code UnsupportedOperationException}.
+ */
+public final class DoubleList extends AbstractList<Double>
+    implements RandomAccess {
+  private static final int DEFAULT_CAPACITY = 10;
+  private static final double[] EMPTY_ARRAY = new double[0];
+
+  private static final DoubleList EMPTY = new DoubleList(EMPTY_ARRAY);
+  static {
+    EMPTY.makeImmutable();
+  }
+
+  /**
+   * Returns an empty, immutable list.
+   */
+  public static DoubleList emptyList() {
+    return EMPTY;
+  }
+
+  private double[] array;
+  private int size;
+  private boolean isMutable = true;
+
+  /**
+   * Constructs an empty list.
+   */
+  public DoubleList() {
+    this(EMPTY_ARRAY);
+  }
+
+  /**
+   * Constructs an empty list which can hold {@code initialCapacity}
+   * elements before it needs to grow.
+   */
+  public DoubleList(final int initialCapacity) {
+    this(new double[initialCapacity]);
+  }
+
+  private DoubleList(final double[] array) {
+    this.array = array;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the element at {@code index}, without boxing it.
+   */
+  public double getDouble(final int index) {
+    ensureIndexInRange(index);
+    return array[index];
+  }
+
+  @Override
+  public Double get(final int index) {
+    return getDouble(index);
+  }
+
+  /**
+   * Replaces the element at {@code index}, returning the old value.
+   */
+  public double setDouble(final int index, final double element) {
+    ensureIsMutable();
+    ensureIndexInRange(index);
+    final double previous = array[index];
+    array[index] = element;
+    return previous;
+  }
+
+  @Override
+  public Double set(final int index, final Double element) {
+    return setDouble(index, element);
+  }
+
+  /**
+   * Appends {@code element} to the end of the list, without boxing it.
+   */
+  public void addDouble(final double element) {
+    ensureIsMutable();
+    if (size == array.length) {
+      grow(size + 1);
+    }
+    array[size++] = element;
+    modCount++;
+  }
+
+  @Override
+  public boolean add(final Double element) {
+    addDouble(element);
+    return true;
+  }
+
+  @Override
+  public void add(final int index, final Double element) {
+    ensureIsMutable();
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException(outOfBoundsMessage(index));
+    }
+    final double value = element;
+    if (size == array.length) {
+      grow(size + 1);
+    }
+    System.arraycopy(array, index, array, index + 1, size - index);
+    array[index] = value;
+    size++;
+    modCount++;
+  }
+
+  /**
+   * Appends all of {@code values} to the end of the list.
+   */
+  public void addAll(final double[] values) {
+    addAll(values, 0, values.length);
+  }
+
+  /**
+   * Appends {@code length} elements of {@code values}, starting at
+   * {@code offset}, to the end of the list.
+   */
+  public void addAll(final double[] values, final int offset,
+                     final int length) {
+    ensureIsMutable();
+    if (offset < 0 || length < 0 || offset > values.length - length) {
+      throw new IndexOutOfBoundsException(
+        "Range out of bounds: " + offset + ", " + length);
+    }
+    if (length == 0) {
+      return;
+    }
+    ensureCapacity(size + length);
+    System.arraycopy(values, offset, array, size, length);
+    size += length;
+    modCount++;
+  }
+
+  @Override
+  public boolean addAll(final Collection<? extends Double> collection) {
+    ensureIsMutable();
+    if (!(collection instanceof DoubleList)) {
+      return super.addAll(collection);
+    }
+    final DoubleList other = (DoubleList) collection;
+    if (other.size == 0) {
+      return false;
+    }
+    addAll(other.array, 0, other.size);
+    return true;
+  }
+
+  @Override
+  public Double remove(final int index) {
+    ensureIsMutable();
+    ensureIndexInRange(index);
+    final double value = array[index];
+    System.arraycopy(array, index + 1, array, index, size - index - 1);
+    size--;
+    modCount++;
+    return value;
+  }
+
+  @Override
+  public void clear() {
+    ensureIsMutable();
+    size = 0;
+    modCount++;
+  }
+
+  /**
+   * Makes sure the list can hold {@code minCapacity} elements without
+   * growing again.
+   */
+  public void ensureCapacity(final int minCapacity) {
+    if (minCapacity > array.length) {
+      grow(minCapacity);
+    }
+  }
+
+  /**
+   * Returns a copy of the elements as a {@code double[]}.
+   */
+  public double[] toDoubleArray() {
+    final double[] result = new double[size];
+    System.arraycopy(array, 0, result, 0, size);
+    return result;
+  }
+
+  /**
+   * Makes the list immutable.  Any attempt to modify it afterwards throws
+   * {@code UnsupportedOperationException}.
+   */
+  public void makeImmutable() {
+    isMutable = false;
+  }
+
+  /**
+   * Returns {@code false} if {@link #makeImmutable()} has been called.
+   */
+  public boolean isMutable() {
+    return isMutable;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof DoubleList)) {
+      return super.equals(o);
+    }
+    final DoubleList other = (DoubleList) o;
+    if (size != other.size) {
+      return false;
+    }
+    final double[] otherArray = other.array;
+    for (int i = 0; i < size; i++) {
+      if (Double.doubleToLongBits(array[i]) !=
+          Double.doubleToLongBits(otherArray[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    // Must agree with the List contract, i.e. with the hash codes of the
+    // boxed elements.
+    int result = 1;
+    for (int i = 0; i < size; i++) {
+      final long bits = Double.doubleToLongBits(array[i]);
+      result = 31 * result + (int) (bits ^ (bits >>> 32));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the backing array, whose first {@link #size()} elements are the
+   * contents of the list.  For {@link CodedOutputStream}'s bulk writers,
+   * which must not modify it.
+   */
+  double[] getBackingArray() {
+    return array;
+  }
+
+  /**
+   * Appends {@code count} elements with unspecified values and returns the
+   * backing array, in which they are at indices {@code size() - count} to
+   * {@code size() - 1}.  For {@link CodedInputStream}'s bulk readers, which
+   * decode values straight into the array; the caller must overwrite all of
+   * the new elements.
+   */
+  double[] appendUninitialized(final int count) {
+    ensureIsMutable();
+    ensureCapacity(size + count);
+    size += count;
+    modCount++;
+    return array;
+  }
+
+  private void grow(final int minCapacity) {
+    int newCapacity =
+        Math.max(DEFAULT_CAPACITY, array.length + (array.length >> 1));
+    if (newCapacity < minCapacity) {
+      newCapacity = minCapacity;
+    }
+    final double[] newArray = new double[newCapacity];
+    System.arraycopy(array, 0, newArray, 0, size);
+    array = newArray;
+  }
+
+  private void ensureIsMutable() {
+    if (!isMutable) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private void ensureIndexInRange(final int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(outOfBoundsMessage(index));
+    }
+  }
+
+  private String outOfBoundsMessage(final int index) {
+    return "Index: " + index + ", Size: " + size;
+  }
+}
@@ -48,6 +48,7 @@ public final class DynamicMessage extends AbstractMessage {
   private final FieldSet<FieldDescriptor> fields;
   private final UnknownFieldSet unknownFields;
   private int memoizedSize = -1;
+  private int memoizedIsInitialized = -1;
 
   /**
    * Construct a {@code DynamicMessage} using the given {@code FieldSet}.
@@ -185,21 +186,19 @@ public final class DynamicMessage extends AbstractMessage {
 
   private static boolean isInitialized(Descriptor type,
                                        FieldSet<FieldDescriptor> fields) {
-    // Check that all required fields are present.
-    for (final FieldDescriptor field : type.getFields()) {
-      if (field.isRequired()) {
-        if (!fields.hasField(field)) {
-          return false;
-        }
-      }
-    }
-
-    // Check that embedded messages are initialized.
-    return fields.isInitialized();
+    return type.getMessageSchema().isInitialized(fields);
   }
 
   public boolean isInitialized() {
-    return isInitialized(type, fields);
+    // The message is immutable, so this only needs to be checked once.
+    // Embedded messages are checked every time their parent is, so this
+    // keeps deeply nested messages from being checked over and over.
+    int result = memoizedIsInitialized;
+    if (result == -1) {
+      result = isInitialized(type, fields) ? 1 : 0;
+      memoizedIsInitialized = result;
+    }
+    return result == 1;
   }
 
   public void writeTo(CodedOutputStream output) throws IOException {
@@ -207,7 +206,7 @@ public final class DynamicMessage extends AbstractMessage {
       fields.writeMessageSetTo(output);
       unknownFields.writeAsMessageSetTo(output);
     } else {
-      fields.writeTo(output);
+      type.getMessageSchema().writeTo(fields, output);
       unknownFields.writeTo(output);
     }
   }
@@ -220,7 +219,7 @@ public final class DynamicMessage extends AbstractMessage {
       size = fields.getMessageSetSerializedSize();
       size += unknownFields.getSerializedSizeAsMessageSet();
     } else {
-      size = fields.getSerializedSize();
+      size = type.getMessageSchema().getSerializedSize(fields);
       size += unknownFields.getSerializedSize();
     }
 
@@ -272,6 +271,16 @@ public final class DynamicMessage extends AbstractMessage {
       return this;
     }
 
+    public Builder clearForReuse() {
+      if (fields == null) {
+        fields = FieldSet.newFieldSet();
+      } else {
+        fields.clear();
+      }
+      unknownFields = UnknownFieldSet.getDefaultInstance();
+      return this;
+    }
+
     public Builder mergeFrom(Message other) {
       if (other instanceof DynamicMessage) {
         // This should be somewhat faster than calling super.mergeFrom().
@@ -288,6 +297,20 @@ public final class DynamicMessage extends AbstractMessage {
       }
     }
 
+    @Override
+    public Builder mergeFrom(CodedInputStream input,
+                             ExtensionRegistryLite extensionRegistry)
+                             throws IOException {
+      // Parse with the plan cached on the descriptor rather than looking up
+      // each field through the reflection interface.
+      final UnknownFieldSet.Builder unknownFieldsBuilder =
+        UnknownFieldSet.newBuilder(unknownFields);
+      type.getMessageSchema().mergeFrom(
+        input, extensionRegistry, this, fields, unknownFieldsBuilder);
+      unknownFields = unknownFieldsBuilder.build();
+      return this;
+    }
+
     public DynamicMessage build() {
       // If fields == null, we'll throw an appropriate exception later.
       if (fields != null && !isInitialized()) {
@@ -0,0 +1,792 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.ClassFileWriter.Code;
+import com.google.protobuf.ClassFileWriter.Label;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles message types that are only known at runtime, from their
+ * {@link Descriptor}s, into Java classes.  The compiled messages implement
+ * {@link Message} like {@link DynamicMessage} does, but keep each field in
+ * a Java field of its own and parse and serialize with code generated for
+ * their type, much like the code {@code protoc} generates.  This makes them
+ * faster than {@code DynamicMessage} once compiled, at the cost of defining
+ * a class per type.
+ *
+ * <p>Each compiler defines its classes in a class loader of its own, so they
+ * can be unloaded once the compiler and all of its messages are no longer
+ * referenced.  A compiler compiles each type at most once.
+ *
+ * <p>Compiled messages do not support extensions:  extensions found while
+ * parsing are kept as unknown fields.  Types using the MessageSet wire format
+ * can't be compiled.
+ */
+public final class DynamicMessageCompiler {
+  private static final String PACKAGE = "com/google/protobuf/compiled/";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String LIST = "java/util/List";
+  private static final String BASE = "com/google/protobuf/CompiledMessage";
+  private static final String TYPE_INFO =
+    "com/google/protobuf/CompiledMessage$TypeInfo";
+  private static final String INPUT = "com/google/protobuf/CodedInputStream";
+  private static final String OUTPUT = "com/google/protobuf/CodedOutputStream";
+  private static final String REGISTRY =
+    "com/google/protobuf/ExtensionRegistryLite";
+  private static final String UNKNOWN_BUILDER =
+    "com/google/protobuf/UnknownFieldSet$Builder";
+  private static final String ENUM_VALUE =
+    "com/google/protobuf/Descriptors$EnumValueDescriptor";
+
+  private static final String OBJECT_DESC = "L" + OBJECT + ";";
+  private static final String LIST_DESC = "L" + LIST + ";";
+
+  private final Loader loader =
+    new Loader(DynamicMessageCompiler.class.getClassLoader());
+  private final Map<Descriptor, CompiledMessage.TypeInfo> types =
+    new HashMap<Descriptor, CompiledMessage.TypeInfo>();
+  private int classCount = 0;
+
+  /**
+   * Returns the default instance of the compiled class for {@code type},
+   * compiling it, and every message type its fields refer to, if this
+   * compiler hasn't done so yet.
+   *
+   * @throws IllegalArgumentException {@code type}, or a type it refers to,
+   *         uses the MessageSet wire format.
+   */
+  public synchronized Message compile(final Descriptor type) {
+    final CompiledMessage.TypeInfo existing = types.get(type);
+    if (existing != null) {
+      return existing.defaultInstance;
+    }
+
+    final Map<Descriptor, CompiledMessage.TypeInfo> newTypes =
+      new LinkedHashMap<Descriptor, CompiledMessage.TypeInfo>();
+    collectTypes(type, newTypes);
+
+    for (final CompiledMessage.TypeInfo info : newTypes.values()) {
+      final String name = PACKAGE +
+        info.descriptor.getFullName().replace('.', '_') + "_" + classCount++;
+      final byte[] classFile = generateClass(info, name);
+      final Class<?> messageClass =
+        loader.define(name.replace('/', '.'), classFile);
+      try {
+        info.defaultInstance = (CompiledMessage) messageClass
+          .getConstructor(CompiledMessage.TypeInfo.class)
+          .newInstance(info);
+      } catch (NoSuchMethodException e) {
+        throw new RuntimeException("Compiled class can't be instantiated.", e);
+      } catch (InstantiationException e) {
+        throw new RuntimeException("Compiled class can't be instantiated.", e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException("Compiled class can't be instantiated.", e);
+      } catch (InvocationTargetException e) {
+        throw new RuntimeException("Compiled class can't be instantiated.", e);
+      }
+    }
+
+    types.putAll(newTypes);
+    for (final CompiledMessage.TypeInfo info : newTypes.values()) {
+      for (int i = 0; i < info.fields.size(); i++) {
+        final FieldDescriptor field = info.fields.get(i);
+        if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+          info.messageTypes[i] = types.get(field.getMessageType());
+        }
+      }
+    }
+    return newTypes.get(type).defaultInstance;
+  }
+
+  /**
+   * Adds {@code type} and the types it refers to which haven't been compiled
+   * yet to {@code newTypes}.
+   */
+  private void collectTypes(
+      final Descriptor type,
+      final Map<Descriptor, CompiledMessage.TypeInfo> newTypes) {
+    if (types.containsKey(type) || newTypes.containsKey(type)) {
+      return;
+    }
+    if (type.getOptions().getMessageSetWireFormat()) {
+      throw new IllegalArgumentException(
+        "Can't compile " + type.getFullName() +
+        ", which uses the MessageSet wire format.");
+    }
+    newTypes.put(type, new CompiledMessage.TypeInfo(type));
+    for (final FieldDescriptor field : type.getFields()) {
+      if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+        collectTypes(field.getMessageType(), newTypes);
+      }
+    }
+  }
+
+  /** Defines the compiled classes. */
+  private static final class Loader extends ClassLoader {
+    Loader(final ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(final String name, final byte[] classFile) {
+      return defineClass(name, classFile, 0, classFile.length);
+    }
+  }
+
+  // =================================================================
+  // Code generation
+
+  private static byte[] generateClass(final CompiledMessage.TypeInfo info,
+                                      final String name) {
+    final ClassFileWriter writer = new ClassFileWriter(
+      ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL, name, BASE);
+    final List<FieldDescriptor> fields = info.fields;
+    for (int i = 0; i < fields.size(); i++) {
+      writer.addField(ClassFileWriter.ACC_PRIVATE, "f" + i,
+                      fieldDescriptor(fields.get(i)));
+    }
+    for (int word = 0; word < hasBitWords(info); word++) {
+      writer.addField(ClassFileWriter.ACC_PRIVATE, "bits" + word, "I");
+    }
+
+    generateConstructor(writer);
+    generateNewInstance(writer, name);
+    generateGetHasBits(writer, info, name);
+    generateGetField(writer, info, name);
+    generateSetField(writer, info, name);
+    generateClearField(writer, info, name);
+    generateMergeField(writer, info, name);
+    generateWriteFields(writer, info, name);
+    generateComputeFieldsSize(writer, info, name);
+    return writer.toByteArray();
+  }
+
+  private static int hasBitWords(final CompiledMessage.TypeInfo info) {
+    return (info.hasBitCount + 31) / 32;
+  }
+
+  private static void generateConstructor(final ClassFileWriter writer) {
+    final Code code = writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>",
+                                       "(L" + TYPE_INFO + ";)V", 2, 2);
+    code.local(ClassFileWriter.ALOAD, 0);
+    code.local(ClassFileWriter.ALOAD, 1);
+    code.invoke(ClassFileWriter.INVOKESPECIAL, BASE, "<init>",
+                "(L" + TYPE_INFO + ";)V");
+    code.op(ClassFileWriter.RETURN);
+    code.finish();
+  }
+
+  private static void generateNewInstance(final ClassFileWriter writer,
+                                          final String name) {
+    final Code code = writer.addMethod(
+      ClassFileWriter.ACC_PROTECTED, "internalNewInstance",
+      "()L" + BASE + ";", 3, 1);
+    code.type(ClassFileWriter.NEW, name);
+    code.op(ClassFileWriter.DUP);
+    code.local(ClassFileWriter.ALOAD, 0);
+    code.field(ClassFileWriter.GETFIELD, BASE, "typeInfo",
+               "L" + TYPE_INFO + ";");
+    code.invoke(ClassFileWriter.INVOKESPECIAL, name, "<init>",
+                "(L" + TYPE_INFO + ";)V");
+    code.op(ClassFileWriter.ARETURN);
+    code.finish();
+  }
+
+  private static void generateGetHasBits(final ClassFileWriter writer,
+                                         final CompiledMessage.TypeInfo info,
+                                         final String name) {
+    final Code code = writer.addMethod(
+      ClassFileWriter.ACC_PROTECTED, "internalGetHasBits", "(I)I", 1, 2);
+    final int words = hasBitWords(info);
+    if (words > 0) {
+      final Label[] targets = newLabels(code, words);
+      final Label noBits = code.newLabel();
+      code.local(ClassFileWriter.ILOAD, 1);
+      code.tableSwitch(0, noBits, targets);
+      for (int word = 0; word < words; word++) {
+        code.mark(targets[word]);
+        code.local(ClassFileWriter.ALOAD, 0);
+        code.field(ClassFileWriter.GETFIELD, name, "bits" + word, "I");
+        code.op(ClassFileWriter.IRETURN);
+      }
+      code.mark(noBits);
+    }
+    code.op(ClassFileWriter.ICONST_0);
+    code.op(ClassFileWriter.IRETURN);
+    code.finish();
+  }
+
+  private static void generateGetField(final ClassFileWriter writer,
+                                       final CompiledMessage.TypeInfo info,
+                                       final String name) {
+    final Code code = writer.addMethod(
+      ClassFileWriter.ACC_PROTECTED, "internalGetField",
+      "(I)" + OBJECT_DESC, 2, 2);
+    final Label invalid = code.newLabel();
+    final Label[] targets = indexSwitch(code, info, invalid);
+    for (int i = 0; i < targets.length; i++) {
+      final FieldDescriptor field = info.fields.get(i);
+      code.mark(targets[i]);
+      loadField(code, name, field, i);
+      if (!field.isRepeated() && isPrimitive(field)) {
+        box(code, field.getJavaType());
+      }
+      code.op(ClassFileWriter.ARETURN);
+    }
+    throwInvalidIndex(code, invalid);
+    code.finish();
+  }
+
+  private static void generateSetField(final ClassFileWriter writer,
+                                       final CompiledMessage.TypeInfo info,
+                                       final String name) {
+    final Code code = writer.addMethod(
+      ClassFileWriter.ACC_PROTECTED, "internalSetField",
+      "(I" + OBJECT_DESC + ")V", 4, 3);
+    final Label invalid = code.newLabel();
+    final Label[] targets = indexSwitch(code, info, invalid);
+    for (int i = 0; i < targets.length; i++) {
+      final FieldDescriptor field = info.fields.get(i);
+      code.mark(targets[i]);
+      code.local(ClassFileWriter.ALOAD, 0);
+      code.local(ClassFileWriter.ALOAD, 2);
+      if (field.isRepeated()) {
+        code.type(ClassFileWriter.CHECKCAST, LIST);
+      } else if (isPrimitive(field)) {
+        unbox(code, field.getJavaType());
+      }
+      storeField(code, name, field, i);
+      setHasBit(code, info, name, i);
+      code.op(ClassFileWriter.RETURN);
+    }
+    throwInvalidIndex(code, invalid);
+    code.finish();
+  }
+
+  private static void generateClearField(final ClassFileWriter writer,
+                                         final CompiledMessage.TypeInfo info,
+                                         final String name) {
+    final Code code = writer.addMethod(
+      ClassFileWriter.ACC_PROTECTED, "internalClearField", "(I)V", 4, 2);
+    final Label invalid = code.newLabel();
+    final Label[] targets = indexSwitch(code, info, invalid);
+    for (int i = 0; i < targets.length; i++) {
+      final FieldDescriptor field = info.fields.get(i);
+      code.mark(targets[i]);
+      code.local(ClassFileWriter.ALOAD, 0);
+      if (field.isRepeated() || !isPrimitive(field)) {
+        code.op(ClassFileWriter.ACONST_NULL);
+      } else {
+        switch (field.getJavaType()) {
+          case LONG:   code.op(ClassFileWriter.LCONST_0); break;
+          case FLOAT:  code.op(ClassFileWriter.FCONST_0); break;
+          case DOUBLE: code.op(ClassFileWriter.DCONST_0); break;
+          default:     code.op(ClassFileWriter.ICONST_0); break;
+        }
+      }
+      storeField(code, name, field, i);
+      final int bit = info.hasBits[i];
+      if (bit != -1) {
+        code.local(ClassFileWriter.ALOAD, 0);
+        code.op(ClassFileWriter.DUP);
+        code.field(ClassFileWriter.GETFIELD, name, "bits" + (bit >>> 5), "I");
+        code.pushInt(~(1 << bit));
+        code.op(ClassFileWriter.IAND);
+        code.field(ClassFileWriter.PUTFIELD, name, "bits" + (bit >>> 5), "I");
+      }
+      code.op(ClassFileWriter.RETURN);
+    }
+    throwInvalidIndex(code, invalid);
+    code.finish();
+  }
+
+  /**
+   * Generates {@code internalMergeField()}:  a {@code lookupswitch} on the
+   * tag, with a case for each field (and one for the packed form of each
+   * packable field), falling back to the unknown fields.
+   */
+  private static void generateMergeField(final ClassFileWriter writer,
+                                         final CompiledMessage.TypeInfo info,
+                                         final String name) {
+    // Locals:  0 this, 1 input, 2 extensionRegistry, 3 unknownFields, 4 tag,
+    // 5 a parsed enum value.
+    final Code code = writer.addMethod(
+      ClassFileWriter.ACC_PROTECTED, "internalMergeField",
+      "(L" + INPUT + ";L" + REGISTRY + ";L" + UNKNOWN_BUILDER + ";I)Z", 8, 6);
+
+    // Each case is {tag, field index, whether it is the packed tag}.
+    final List<int[]> cases = new ArrayList<int[]>();
+    for (int i = 0; i < info.fields.size(); i++) {
+      final FieldDescriptor field = info.fields.get(i);
+      cases.add(new int[] {
+        WireFormat.makeTag(field.getNumber(),
+                           field.getLiteType().getWireType()), i, 0 });
+      if (field.isPackable() &&
+          field.getLiteType().getWireType() !=
+            WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+        cases.add(new int[] {
+          WireFormat.makeTag(field.getNumber(),
+                             WireFormat.WIRETYPE_LENGTH_DELIMITED), i, 1 });
+      }
+    }
+    final int[][] sortedCases = cases.toArray(new int[cases.size()][]);
+    Arrays.sort(sortedCases, new Comparator<int[]>() {
+      public int compare(final int[] a, final int[] b) {
+        // lookupswitch compares keys as signed ints, as readTag() returns
+        // them.
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+
+    final Label unknown = code.newLabel();
+    if (sortedCases.length > 0) {
+      final int[] keys = new int[sortedCases.length];
+      final Label[] targets = newLabels(code, sortedCases.length);
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = sortedCases[i][0];
+      }
+      code.local(ClassFileWriter.ILOAD, 4);
+      code.lookupSwitch(unknown, keys, targets);
+      for (int i = 0; i < keys.length; i++) {
+        code.mark(targets[i]);
+        final int index = sortedCases[i][1];
+        if (sortedCases[i][2] != 0) {
+          generateMergePacked(code, name, info.fields.get(index), index);
+        } else {
+          generateMergeValue(code, info, name, info.fields.get(index), index);
+        }
+        code.op(ClassFileWriter.ICONST_1);
+        code.op(ClassFileWriter.IRETURN);
+      }
+    }
+
+    code.mark(unknown);
+    code.local(ClassFileWriter.ALOAD, 3);
+    code.local(ClassFileWriter.ILOAD, 4);
+    code.local(ClassFileWriter.ALOAD, 1);
+    code.invoke(ClassFileWriter.INVOKEVIRTUAL, UNKNOWN_BUILDER,
+                "mergeFieldFrom", "(IL" + INPUT + ";)Z");
+    code.op(ClassFileWriter.IRETURN);
+    code.finish();
+  }
+
+  /** Generates the code parsing one value of a field. */
+  private static void generateMergeValue(final Code code,
+                                         final CompiledMessage.TypeInfo info,
+                                         final String name,
+                                         final FieldDescriptor field,
+                                         final int index) {
+    final FieldDescriptor.JavaType javaType = field.getJavaType();
+    if (javaType == FieldDescriptor.JavaType.ENUM) {
+      final Label unknownValue = code.newLabel();
+      code.local(ClassFileWriter.ALOAD, 0);
+      code.local(ClassFileWriter.ALOAD, 1);
+      code.local(ClassFileWriter.ALOAD, 3);
+      code.pushInt(index);
+      code.invoke(ClassFileWriter.INVOKEVIRTUAL, BASE, "readEnumValue",
+                  "(L" + INPUT + ";L" + UNKNOWN_BUILDER + ";I)" + OBJECT_DESC);
+      code.local(ClassFileWriter.ASTORE, 5);
+      code.local(ClassFileWriter.ALOAD, 5);
+      code.jump(ClassFileWriter.IFNULL, unknownValue);
+      code.local(ClassFileWriter.ALOAD, 0);
+      if (field.isRepeated()) {
+        loadField(code, name, field, index);
+        code.local(ClassFileWriter.ALOAD, 5);
+        addElement(code);
+      } else {
+        code.local(ClassFileWriter.ALOAD, 5);
+      }
+      storeField(code, name, field, index);
+      setHasBit(code, info, name, index);
+      code.mark(unknownValue);
+      return;
+    }
+
+    code.local(ClassFileWriter.ALOAD, 0);
+    if (field.isRepeated()) {
+      loadField(code, name, field, index);
+    }
+    if (javaType == FieldDescriptor.JavaType.MESSAGE) {
+      code.local(ClassFileWriter.ALOAD, 0);
+      code.local(ClassFileWriter.ALOAD, 1);
+      code.local(ClassFileWriter.ALOAD, 2);
+      code.pushInt(index);
+      if (field.isRepeated()) {
+        code.op(ClassFileWriter.ACONST_NULL);
+      } else {
+        loadField(code, name, field, index);
+      }
+      code.invoke(ClassFileWriter.INVOKEVIRTUAL, BASE, "readMessageValue",
+                  "(L" + INPUT + ";L" + REGISTRY + ";I" + OBJECT_DESC + ")" +
+                  OBJECT_DESC);
+    } else {
+      code.local(ClassFileWriter.ALOAD, 1);
+      code.invoke(ClassFileWriter.INVOKEVIRTUAL, INPUT,
+                  "read" + typeName(field.getType()),
+                  "()" + valueDescriptor(javaType));
+      if (field.isRepeated() && isPrimitive(field)) {
+        box(code, javaType);
+      }
+    }
+    if (field.isRepeated()) {
+      addElement(code);
+    }
+    storeField(code, name, field, index);
+    setHasBit(code, info, name, index);
+  }
+
+  /** Generates the code parsing the packed values of a repeated field. */
+  private static void generateMergePacked(final Code code, final String name,
+                                          final FieldDescriptor field,
+                                          final int index) {
+    code.local(ClassFileWriter.ALOAD, 0);
+    code.local(ClassFileWriter.ALOAD, 0);
+    code.local(ClassFileWriter.ALOAD, 1);
+    code.pushInt(index);
+    loadField(code, name, field, index);
+    code.invoke(ClassFileWriter.INVOKEVIRTUAL, BASE, "readPackedValues",
+                "(L" + INPUT + ";I" + LIST_DESC + ")" + LIST_DESC);
+    storeField(code, name, field, index);
+  }
+
+  /** Generates {@code internalWriteFields()}. */
+  private static void generateWriteFields(final ClassFileWriter writer,
+                                          final CompiledMessage.TypeInfo info,
+                                          final String name) {
+    final Code code = writer.addMethod(
+      ClassFileWriter.ACC_PROTECTED, "internalWriteFields",
+      "(L" + OUTPUT + ";)V", 5, 2);
+    for (final int index : indicesByNumber(info)) {
+      final FieldDescriptor field = info.fields.get(index);
+      if (field.isRepeated()) {
+        code.local(ClassFileWriter.ALOAD, 0);
+        code.local(ClassFileWriter.ALOAD, 1);
+        code.pushInt(index);
+        loadField(code, name, field, index);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, BASE, "writeRepeated",
+                    "(L" + OUTPUT + ";I" + LIST_DESC + ")V");
+      } else {
+        final Label notSet = code.newLabel();
+        testHasBit(code, info, name, index, notSet);
+        code.local(ClassFileWriter.ALOAD, 1);
+        code.pushInt(field.getNumber());
+        loadValue(code, name, field, index);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, OUTPUT,
+                    "write" + typeName(field.getType()),
+                    "(I" + valueDescriptor(field.getJavaType()) + ")V");
+        code.mark(notSet);
+      }
+    }
+    code.op(ClassFileWriter.RETURN);
+    code.finish();
+  }
+
+  /** Generates {@code internalComputeFieldsSize()}. */
+  private static void generateComputeFieldsSize(
+      final ClassFileWriter writer, final CompiledMessage.TypeInfo info,
+      final String name) {
+    // Locals:  0 this, 1 size.
+    final Code code = writer.addMethod(
+      ClassFileWriter.ACC_PROTECTED, "internalComputeFieldsSize", "()I",
+      5, 2);
+    code.op(ClassFileWriter.ICONST_0);
+    code.local(ClassFileWriter.ISTORE, 1);
+    for (final int index : indicesByNumber(info)) {
+      final FieldDescriptor field = info.fields.get(index);
+      if (field.isRepeated()) {
+        code.local(ClassFileWriter.ILOAD, 1);
+        code.local(ClassFileWriter.ALOAD, 0);
+        code.pushInt(index);
+        loadField(code, name, field, index);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, BASE,
+                    "computeRepeatedSize", "(I" + LIST_DESC + ")I");
+        code.op(ClassFileWriter.IADD);
+        code.local(ClassFileWriter.ISTORE, 1);
+      } else {
+        final Label notSet = code.newLabel();
+        testHasBit(code, info, name, index, notSet);
+        code.local(ClassFileWriter.ILOAD, 1);
+        code.pushInt(field.getNumber());
+        loadValue(code, name, field, index);
+        code.invoke(ClassFileWriter.INVOKESTATIC, OUTPUT,
+                    "compute" + typeName(field.getType()) + "Size",
+                    "(I" + valueDescriptor(field.getJavaType()) + ")I");
+        code.op(ClassFileWriter.IADD);
+        code.local(ClassFileWriter.ISTORE, 1);
+        code.mark(notSet);
+      }
+    }
+    code.local(ClassFileWriter.ILOAD, 1);
+    code.op(ClassFileWriter.IRETURN);
+    code.finish();
+  }
+
+  // -----------------------------------------------------------------
+  // Code generation helpers
+
+  private static Label[] newLabels(final Code code, final int count) {
+    final Label[] labels = new Label[count];
+    for (int i = 0; i < count; i++) {
+      labels[i] = code.newLabel();
+    }
+    return labels;
+  }
+
+  /**
+   * Generates a {@code tableswitch} on the field index in local 1, and
+   * returns its targets.  Indices out of range go to {@code invalid}, which
+   * the caller places with {@link #throwInvalidIndex} after the cases.
+   */
+  private static Label[] indexSwitch(final Code code,
+                                     final CompiledMessage.TypeInfo info,
+                                     final Label invalid) {
+    final Label[] targets = newLabels(code, info.fields.size());
+    if (targets.length > 0) {
+      code.local(ClassFileWriter.ILOAD, 1);
+      code.tableSwitch(0, invalid, targets);
+    }
+    return targets;
+  }
+
+  private static void throwInvalidIndex(final Code code,
+                                        final Label invalid) {
+    code.mark(invalid);
+    code.local(ClassFileWriter.ILOAD, 1);
+    code.invoke(ClassFileWriter.INVOKESTATIC, BASE, "invalidIndex",
+                "(I)Ljava/lang/IllegalArgumentException;");
+    code.op(ClassFileWriter.ATHROW);
+  }
+
+  /** Returns the indices of the fields of {@code info} by field number. */
+  private static Integer[] indicesByNumber(
+      final CompiledMessage.TypeInfo info) {
+    final Integer[] indices = new Integer[info.fields.size()];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = i;
+    }
+    Arrays.sort(indices, new Comparator<Integer>() {
+      public int compare(final Integer a, final Integer b) {
+        final int numberA = info.fields.get(a).getNumber();
+        final int numberB = info.fields.get(b).getNumber();
+        return numberA < numberB ? -1 : (numberA == numberB ? 0 : 1);
+      }
+    });
+    return indices;
+  }
+
+  private static void loadField(final Code code, final String name,
+                                final FieldDescriptor field,
+                                final int index) {
+    code.local(ClassFileWriter.ALOAD, 0);
+    code.field(ClassFileWriter.GETFIELD, name, "f" + index,
+               fieldDescriptor(field));
+  }
+
+  /** Stores the value on the stack, under {@code this}, in the field. */
+  private static void storeField(final Code code, final String name,
+                                 final FieldDescriptor field,
+                                 final int index) {
+    code.field(ClassFileWriter.PUTFIELD, name, "f" + index,
+               fieldDescriptor(field));
+  }
+
+  /**
+   * Loads a singular field as the type {@code CodedOutputStream} writes it
+   * as.
+   */
+  private static void loadValue(final Code code, final String name,
+                                final FieldDescriptor field,
+                                final int index) {
+    loadField(code, name, field, index);
+    switch (field.getJavaType()) {
+      case STRING:
+        code.type(ClassFileWriter.CHECKCAST, "java/lang/String");
+        break;
+      case BYTE_STRING:
+        code.type(ClassFileWriter.CHECKCAST, "com/google/protobuf/ByteString");
+        break;
+      case ENUM:
+        code.type(ClassFileWriter.CHECKCAST, ENUM_VALUE);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, ENUM_VALUE, "getNumber",
+                    "()I");
+        break;
+      case MESSAGE:
+        code.type(ClassFileWriter.CHECKCAST, "com/google/protobuf/MessageLite");
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static void setHasBit(final Code code,
+                                final CompiledMessage.TypeInfo info,
+                                final String name, final int index) {
+    final int bit = info.hasBits[index];
+    if (bit == -1) {
+      return;
+    }
+    code.local(ClassFileWriter.ALOAD, 0);
+    code.op(ClassFileWriter.DUP);
+    code.field(ClassFileWriter.GETFIELD, name, "bits" + (bit >>> 5), "I");
+    code.pushInt(1 << bit);
+    code.op(ClassFileWriter.IOR);
+    code.field(ClassFileWriter.PUTFIELD, name, "bits" + (bit >>> 5), "I");
+  }
+
+  /** Jumps to {@code notSet} unless the singular field is present. */
+  private static void testHasBit(final Code code,
+                                 final CompiledMessage.TypeInfo info,
+                                 final String name, final int index,
+                                 final Label notSet) {
+    final int bit = info.hasBits[index];
+    code.local(ClassFileWriter.ALOAD, 0);
+    code.field(ClassFileWriter.GETFIELD, name, "bits" + (bit >>> 5), "I");
+    code.pushInt(1 << bit);
+    code.op(ClassFileWriter.IAND);
+    code.jump(ClassFileWriter.IFEQ, notSet);
+  }
+
+  private static void addElement(final Code code) {
+    code.invoke(ClassFileWriter.INVOKESTATIC, BASE, "addElement",
+                "(" + LIST_DESC + OBJECT_DESC + ")" + LIST_DESC);
+  }
+
+  private static boolean isPrimitive(final FieldDescriptor field) {
+    switch (field.getJavaType()) {
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case BOOLEAN:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /** Returns the descriptor of the Java field holding {@code field}. */
+  private static String fieldDescriptor(final FieldDescriptor field) {
+    if (field.isRepeated()) {
+      return LIST_DESC;
+    } else if (isPrimitive(field)) {
+      return valueDescriptor(field.getJavaType());
+    } else {
+      return OBJECT_DESC;
+    }
+  }
+
+  /**
+   * Returns the descriptor of the type {@code CodedInputStream} reads, and
+   * {@code CodedOutputStream} writes, values of the given type as.
+   */
+  private static String valueDescriptor(
+      final FieldDescriptor.JavaType javaType) {
+    switch (javaType) {
+      case INT:         return "I";
+      case LONG:        return "J";
+      case FLOAT:       return "F";
+      case DOUBLE:      return "D";
+      case BOOLEAN:     return "Z";
+      case STRING:      return "Ljava/lang/String;";
+      case BYTE_STRING: return "Lcom/google/protobuf/ByteString;";
+      case ENUM:        return "I";
+      case MESSAGE:     return "Lcom/google/protobuf/MessageLite;";
+    }
+    throw new AssertionError("Can't get here.");
+  }
+
+  /** Returns the box class of a primitive type. */
+  private static String boxName(final FieldDescriptor.JavaType javaType) {
+    switch (javaType) {
+      case INT:     return "java/lang/Integer";
+      case LONG:    return "java/lang/Long";
+      case FLOAT:   return "java/lang/Float";
+      case DOUBLE:  return "java/lang/Double";
+      case BOOLEAN: return "java/lang/Boolean";
+      default:      throw new AssertionError("Can't get here.");
+    }
+  }
+
+  private static void box(final Code code,
+                          final FieldDescriptor.JavaType javaType) {
+    final String boxName = boxName(javaType);
+    code.invoke(ClassFileWriter.INVOKESTATIC, boxName, "valueOf",
+                "(" + valueDescriptor(javaType) + ")L" + boxName + ";");
+  }
+
+  private static void unbox(final Code code,
+                            final FieldDescriptor.JavaType javaType) {
+    final String boxName = boxName(javaType);
+    code.type(ClassFileWriter.CHECKCAST, boxName);
+    code.invoke(ClassFileWriter.INVOKEVIRTUAL, boxName,
+                javaType.name().toLowerCase() + "Value",
+                "()" + valueDescriptor(javaType));
+  }
+
+  /**
+   * Returns the name of {@code type} as it appears in the methods of
+   * {@code CodedInputStream} and {@code CodedOutputStream}, such as
+   * {@code readSFixed32()}.
+   */
+  private static String typeName(final FieldDescriptor.Type type) {
+    switch (type) {
+      case DOUBLE:   return "Double";
+      case FLOAT:    return "Float";
+      case INT64:    return "Int64";
+      case UINT64:   return "UInt64";
+      case INT32:    return "Int32";
+      case FIXED64:  return "Fixed64";
+      case FIXED32:  return "Fixed32";
+      case BOOL:     return "Bool";
+      case STRING:   return "String";
+      case GROUP:    return "Group";
+      case MESSAGE:  return "Message";
+      case BYTES:    return "Bytes";
+      case UINT32:   return "UInt32";
+      case ENUM:     return "Enum";
+      case SFIXED32: return "SFixed32";
+      case SFIXED64: return "SFixed64";
+      case SINT32:   return "SInt32";
+      case SINT64:   return "SInt64";
+    }
+    throw new AssertionError("Can't get here.");
+  }
+}
@@ -0,0 +1,403 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The map from fields to values used by {@link FieldSet}.  Like the TreeMap
+ * it replaces, it identifies fields by number and iterates over them in
+ * order of number, which is the canonical order for serialization.
+ *
+ * <p>Fields with small numbers, which are most of the fields of most
+ * messages, are stored in a dense array indexed by field number, so getting
+ * or setting them takes constant time.  Larger numbers, which are typically
+ * those of extensions, go into an overflow region made of two parallel
+ * arrays sorted by number and are found by binary search.
+ */
+final class FieldArrayMap<K extends FieldSet.FieldDescriptorLite<K>>
+    extends AbstractMap<K, Object> {
+  /** Fields numbered below this are stored in the dense arrays. */
+  private static final int DENSE_LIMIT = 128;
+  private static final int MIN_OVERFLOW_CAPACITY = 4;
+
+  // Indexed by field number; grown on demand up to DENSE_LIMIT.  A null
+  // value means the field is not present.
+  private K[] denseKeys;
+  private Object[] denseValues;
+
+  // Sorted by field number; only the first overflowSize entries are used.
+  private K[] overflowKeys;
+  private Object[] overflowValues;
+  private int overflowSize = 0;
+
+  private int size = 0;
+
+  // Incremented whenever a field is added or removed, so that iterators can
+  // detect concurrent modification.
+  private int modCount = 0;
+
+  FieldArrayMap() {}
+
+  /** Returns the number of the given key, or -1 if it is not a field. */
+  private static int numberOf(final Object key) {
+    if (!(key instanceof FieldSet.FieldDescriptorLite)) {
+      return -1;
+    }
+    return ((FieldSet.FieldDescriptorLite<?>) key).getNumber();
+  }
+
+  /**
+   * Returns the position of the field in the overflow arrays or, if absent,
+   * {@code -(insertion point) - 1}.
+   */
+  private int overflowIndexOf(final int number) {
+    int low = 0;
+    int high = overflowSize - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int midNumber = overflowKeys[mid].getNumber();
+      if (midNumber < number) {
+        low = mid + 1;
+      } else if (midNumber > number) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public Object get(final Object key) {
+    final int number = numberOf(key);
+    if (number < 0) {
+      return null;
+    }
+    if (number < DENSE_LIMIT) {
+      return denseValues != null && number < denseValues.length ?
+          denseValues[number] : null;
+    }
+    final int index = overflowIndexOf(number);
+    return index < 0 ? null : overflowValues[index];
+  }
+
+  @Override
+  public Object put(final K key, final Object value) {
+    if (value == null) {
+      throw new NullPointerException();
+    }
+    final int number = key.getNumber();
+    if (number < DENSE_LIMIT) {
+      ensureDenseCapacity(number + 1);
+      final Object oldValue = denseValues[number];
+      if (oldValue == null) {
+        ++size;
+        ++modCount;
+      }
+      denseKeys[number] = key;
+      denseValues[number] = value;
+      return oldValue;
+    }
+
+    int index = overflowIndexOf(number);
+    if (index >= 0) {
+      final Object oldValue = overflowValues[index];
+      overflowKeys[index] = key;
+      overflowValues[index] = value;
+      return oldValue;
+    }
+    index = -(index + 1);
+    ensureOverflowCapacity(overflowSize + 1);
+    System.arraycopy(overflowKeys, index, overflowKeys, index + 1,
+                     overflowSize - index);
+    System.arraycopy(overflowValues, index, overflowValues, index + 1,
+                     overflowSize - index);
+    overflowKeys[index] = key;
+    overflowValues[index] = value;
+    ++overflowSize;
+    ++size;
+    ++modCount;
+    return null;
+  }
+
+  @Override
+  public Object remove(final Object key) {
+    final int number = numberOf(key);
+    if (number < 0) {
+      return null;
+    }
+    if (number < DENSE_LIMIT) {
+      if (denseValues == null || number >= denseValues.length) {
+        return null;
+      }
+      final Object oldValue = denseValues[number];
+      if (oldValue != null) {
+        denseKeys[number] = null;
+        denseValues[number] = null;
+        --size;
+        ++modCount;
+      }
+      return oldValue;
+    }
+    final int index = overflowIndexOf(number);
+    return index < 0 ? null : removeOverflowAt(index);
+  }
+
+  private Object removeOverflowAt(final int index) {
+    final Object oldValue = overflowValues[index];
+    --overflowSize;
+    System.arraycopy(overflowKeys, index + 1, overflowKeys, index,
+                     overflowSize - index);
+    System.arraycopy(overflowValues, index + 1, overflowValues, index,
+                     overflowSize - index);
+    overflowKeys[overflowSize] = null;
+    overflowValues[overflowSize] = null;
+    --size;
+    ++modCount;
+    return oldValue;
+  }
+
+  /** Removes all fields but keeps the arrays for reuse. */
+  @Override
+  public void clear() {
+    if (size == 0) {
+      return;
+    }
+    if (denseValues != null) {
+      Arrays.fill(denseKeys, null);
+      Arrays.fill(denseValues, null);
+    }
+    if (overflowSize > 0) {
+      Arrays.fill(overflowKeys, 0, overflowSize, null);
+      Arrays.fill(overflowValues, 0, overflowSize, null);
+      overflowSize = 0;
+    }
+    size = 0;
+    ++modCount;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void ensureDenseCapacity(final int capacity) {
+    final int oldCapacity = denseValues == null ? 0 : denseValues.length;
+    if (capacity <= oldCapacity) {
+      return;
+    }
+    // Grow geometrically, but never past DENSE_LIMIT: a message with a few
+    // widely spaced fields should not pay for all the numbers in between
+    // more than once.
+    final int newCapacity =
+        Math.min(DENSE_LIMIT, Math.max(capacity, oldCapacity * 2));
+    final K[] newKeys =
+        (K[]) new FieldSet.FieldDescriptorLite[newCapacity];
+    final Object[] newValues = new Object[newCapacity];
+    if (oldCapacity > 0) {
+      System.arraycopy(denseKeys, 0, newKeys, 0, oldCapacity);
+      System.arraycopy(denseValues, 0, newValues, 0, oldCapacity);
+    }
+    denseKeys = newKeys;
+    denseValues = newValues;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void ensureOverflowCapacity(final int capacity) {
+    final int oldCapacity = overflowValues == null ? 0 : overflowValues.length;
+    if (capacity <= oldCapacity) {
+      return;
+    }
+    final int newCapacity =
+        Math.max(MIN_OVERFLOW_CAPACITY, Math.max(capacity, oldCapacity * 2));
+    final K[] newKeys =
+        (K[]) new FieldSet.FieldDescriptorLite[newCapacity];
+    final Object[] newValues = new Object[newCapacity];
+    if (overflowSize > 0) {
+      System.arraycopy(overflowKeys, 0, newKeys, 0, overflowSize);
+      System.arraycopy(overflowValues, 0, newValues, 0, overflowSize);
+    }
+    overflowKeys = newKeys;
+    overflowValues = newValues;
+  }
+
+  @Override
+  public Set<Map.Entry<K, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<K, Object>>() {
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Iterator<Map.Entry<K, Object>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public void clear() {
+        FieldArrayMap.this.clear();
+      }
+    };
+  }
+
+  /**
+   * Iterates over the dense region and then the overflow region, which
+   * together are in order of field number.  Replacing the value of a field
+   * which is present, e.g. through {@link #put}, does not invalidate the
+   * iterator.
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<K, Object>> {
+    // Positions in the dense array are field numbers; positions at or past
+    // DENSE_LIMIT are DENSE_LIMIT plus an index into the overflow arrays.
+    private int next = 0;
+    private int last = -1;
+    private int expectedModCount = modCount;
+
+    EntryIterator() {
+      advance();
+    }
+
+    private void advance() {
+      final int denseLength = denseValues == null ? 0 : denseValues.length;
+      while (next < denseLength && denseValues[next] == null) {
+        ++next;
+      }
+      if (next >= denseLength && next < DENSE_LIMIT) {
+        next = DENSE_LIMIT;
+      }
+    }
+
+    public boolean hasNext() {
+      return next < DENSE_LIMIT || next - DENSE_LIMIT < overflowSize;
+    }
+
+    public Map.Entry<K, Object> next() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final Entry entry;
+      if (next < DENSE_LIMIT) {
+        entry = new Entry(denseKeys[next], denseValues[next]);
+      } else {
+        entry = new Entry(overflowKeys[next - DENSE_LIMIT],
+                          overflowValues[next - DENSE_LIMIT]);
+      }
+      last = next++;
+      advance();
+      return entry;
+    }
+
+    public void remove() {
+      if (last < 0) {
+        throw new IllegalStateException();
+      }
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (last < DENSE_LIMIT) {
+        FieldArrayMap.this.remove(denseKeys[last]);
+      } else {
+        // Later entries shift down into the removed slot.
+        removeOverflowAt(last - DENSE_LIMIT);
+        next = last;
+      }
+      last = -1;
+      expectedModCount = modCount;
+    }
+  }
+
+  /** A snapshot of an entry; {@link #setValue} writes through to the map. */
+  private final class Entry implements Map.Entry<K, Object> {
+    private final K key;
+    private Object value;
+
+    Entry(final K key, final Object value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    public K getKey() {
+      return key;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+
+    public Object setValue(final Object newValue) {
+      final Object oldValue = put(key, newValue);
+      value = newValue;
+      return oldValue;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Map.Entry)) {
+        return false;
+      }
+      final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+      return key.equals(entry.getKey()) && value.equals(entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+}
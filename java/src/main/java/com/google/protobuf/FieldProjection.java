@@ -0,0 +1,319 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Selects a subset of the fields of a message type, so that parsing can skip
+ * the rest.  A projection is built from dot-separated paths of field names,
+ * relative to the message type it was created for:
+ *
+ * <pre>
+ *   FieldProjection projection =
+ *     FieldProjection.newBuilder(Foo.getDescriptor())
+ *       .addPath("id")
+ *       .addPath("bar.name")
+ *       .build();
+ *   Foo.Builder builder = Foo.newBuilder();
+ *   projection.mergeFrom(input, builder);
+ *   Foo foo = builder.buildPartial();
+ * </pre>
+ *
+ * A path naming a message field selects all of its contents; a path through a
+ * message field selects only the named sub-fields, in each element if the
+ * field is repeated.  The tags of fields which are not selected are skipped
+ * without decoding their values, and they are not kept as unknown fields.
+ *
+ * <p>Parsing works through reflection, so it can be used with both generated
+ * and {@link DynamicMessage} builders.  Since unselected required fields are
+ * never set, the result should usually be built with
+ * {@link Message.Builder#buildPartial()}.
+ *
+ * <p>Projections are immutable and may be shared between threads.
+ */
+public final class FieldProjection {
+  private final Descriptor descriptor;
+
+  // Sorted by field number.  A null entry in children selects the whole
+  // field.
+  private final int[] numbers;
+  private final FieldDescriptor[] fields;
+  private final FieldProjection[] children;
+
+  private FieldProjection(final Descriptor descriptor,
+                          final int[] numbers,
+                          final FieldDescriptor[] fields,
+                          final FieldProjection[] children) {
+    this.descriptor = descriptor;
+    this.numbers = numbers;
+    this.fields = fields;
+    this.children = children;
+  }
+
+  /** Get the message type this projection selects fields of. */
+  public Descriptor getDescriptor() {
+    return descriptor;
+  }
+
+  /** Returns {@code true} if any part of the given field is selected. */
+  public boolean isSelected(final FieldDescriptor field) {
+    return field.getContainingType() == descriptor &&
+           Arrays.binarySearch(numbers, field.getNumber()) >= 0;
+  }
+
+  /**
+   * Returns the projection applied to the contents of the given message
+   * field, or {@code null} if the whole field, or none of it, is selected.
+   */
+  public FieldProjection getChild(final FieldDescriptor field) {
+    if (field.getContainingType() != descriptor) {
+      return null;
+    }
+    final int index = Arrays.binarySearch(numbers, field.getNumber());
+    return index < 0 ? null : children[index];
+  }
+
+  /**
+   * Parse the selected fields of a message from {@code input} and merge them
+   * into {@code builder}.
+   */
+  public void mergeFrom(final CodedInputStream input,
+                        final Message.Builder builder) throws IOException {
+    mergeFrom(input, ExtensionRegistryLite.getEmptyRegistry(), builder);
+  }
+
+  /**
+   * Parse the selected fields of a message from {@code input} and merge them
+   * into {@code builder}.
+   *
+   * @throws IllegalArgumentException {@code builder} is not of the type this
+   *         projection was created for.
+   */
+  public void mergeFrom(final CodedInputStream input,
+                        final ExtensionRegistryLite extensionRegistry,
+                        final Message.Builder builder) throws IOException {
+    if (builder.getDescriptorForType() != descriptor) {
+      throw new IllegalArgumentException(
+        "mergeFrom() given a builder of a different type than the " +
+        "projection.");
+    }
+    mergeFieldsFrom(input, extensionRegistry, builder);
+  }
+
+  /**
+   * Reads fields until the end of the input or an end-group tag.  Recursion
+   * is bounded by the depth of the projection; whole fields are read by
+   * AbstractMessage.Builder, which enforces the usual recursion limit.
+   */
+  private void mergeFieldsFrom(final CodedInputStream input,
+                               final ExtensionRegistryLite extensionRegistry,
+                               final Message.Builder builder)
+      throws IOException {
+    UnknownFieldSet.Builder unknownFields = null;
+    while (true) {
+      final int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+
+      if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_END_GROUP) {
+        // End of a group.  Checked before looking the number up, since a
+        // group may contain a field with its own number.
+        break;
+      }
+
+      final int index =
+        Arrays.binarySearch(numbers, WireFormat.getTagFieldNumber(tag));
+      if (index < 0) {
+        input.skipField(tag);
+      } else if (children[index] != null &&
+                 mergeChildFrom(input, extensionRegistry, builder, tag,
+                                fields[index], children[index])) {
+        // Parsed through the child projection.
+      } else {
+        if (unknownFields == null) {
+          unknownFields =
+            UnknownFieldSet.newBuilder(builder.getUnknownFields());
+        }
+        AbstractMessage.Builder.mergeFieldFrom(
+          input, unknownFields, extensionRegistry, builder, tag);
+      }
+    }
+    if (unknownFields != null) {
+      builder.setUnknownFields(unknownFields.build());
+    }
+  }
+
+  /**
+   * Parses a value of a message field whose contents are only partly
+   * selected.
+   * @return {@code false} if the tag does not have the field's wire type, in
+   *         which case nothing was read.
+   */
+  private static boolean mergeChildFrom(
+      final CodedInputStream input,
+      final ExtensionRegistryLite extensionRegistry,
+      final Message.Builder builder,
+      final int tag,
+      final FieldDescriptor field,
+      final FieldProjection child) throws IOException {
+    final boolean isGroup = field.getType() == FieldDescriptor.Type.GROUP;
+    if (WireFormat.getTagWireType(tag) != (isGroup ?
+        WireFormat.WIRETYPE_START_GROUP :
+        WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+      return false;
+    }
+
+    final Message.Builder subBuilder = builder.newBuilderForField(field);
+    if (!field.isRepeated()) {
+      subBuilder.mergeFrom((Message) builder.getField(field));
+    }
+    if (isGroup) {
+      child.mergeFieldsFrom(input, extensionRegistry, subBuilder);
+      input.checkLastTagWas(
+        WireFormat.makeTag(field.getNumber(), WireFormat.WIRETYPE_END_GROUP));
+    } else {
+      final int length = input.readRawVarint32();
+      final int oldLimit = input.pushLimit(length);
+      child.mergeFieldsFrom(input, extensionRegistry, subBuilder);
+      input.checkLastTagWas(0);
+      input.popLimit(oldLimit);
+    }
+
+    // Unselected required fields are missing, so don't check them.
+    final Message value = subBuilder.buildPartial();
+    if (field.isRepeated()) {
+      builder.addRepeatedField(field, value);
+    } else {
+      builder.setField(field, value);
+    }
+    return true;
+  }
+
+  // =================================================================
+
+  /**
+   * Constructs a new, empty builder for a projection of the given type.
+   */
+  public static Builder newBuilder(final Descriptor descriptor) {
+    return new Builder(descriptor);
+  }
+
+  /**
+   * Builder for {@link FieldProjection}s.
+   */
+  public static final class Builder {
+    private final Descriptor descriptor;
+
+    // Maps each selected field to the builder for its sub-fields, or to null
+    // if the whole field is selected.
+    private final Map<FieldDescriptor, Builder> selected =
+      new TreeMap<FieldDescriptor, Builder>();
+
+    private Builder(final Descriptor descriptor) {
+      this.descriptor = descriptor;
+    }
+
+    /**
+     * Select the field at the given path, e.g. {@code "foo"} or
+     * {@code "foo.bar.baz"}.  Every name but the last must be a singular or
+     * repeated message field.
+     *
+     * @throws IllegalArgumentException The path does not name a field.
+     */
+    public Builder addPath(final String path) {
+      Builder builder = this;
+      int start = 0;
+      while (true) {
+        final int end = path.indexOf('.', start);
+        final String name =
+          end < 0 ? path.substring(start) : path.substring(start, end);
+        final FieldDescriptor field =
+          builder.descriptor.findFieldByName(name);
+        if (field == null) {
+          throw new IllegalArgumentException(
+            "\"" + path + "\" does not name a field of " +
+            descriptor.getFullName() + ".");
+        }
+
+        if (end < 0) {
+          // The whole field wins over any of its sub-fields.
+          builder.selected.put(field, null);
+          return this;
+        }
+
+        if (field.getJavaType() != FieldDescriptor.JavaType.MESSAGE) {
+          throw new IllegalArgumentException(
+            "\"" + path + "\" goes through " + field.getFullName() +
+            ", which is not a message field.");
+        }
+        if (builder.selected.containsKey(field)) {
+          final Builder child = builder.selected.get(field);
+          if (child == null) {
+            // The whole field is already selected.
+            return this;
+          }
+          builder = child;
+        } else {
+          final Builder child = new Builder(field.getMessageType());
+          builder.selected.put(field, child);
+          builder = child;
+        }
+        start = end + 1;
+      }
+    }
+
+    /** Construct the projection. */
+    public FieldProjection build() {
+      final int size = selected.size();
+      final int[] numbers = new int[size];
+      final FieldDescriptor[] fields = new FieldDescriptor[size];
+      final FieldProjection[] children = new FieldProjection[size];
+      int i = 0;
+      for (final Map.Entry<FieldDescriptor, Builder> entry :
+           selected.entrySet()) {
+        numbers[i] = entry.getKey().getNumber();
+        fields[i] = entry.getKey();
+        children[i] = entry.getValue() == null ? null :
+          entry.getValue().build();
+        ++i;
+      }
+      return new FieldProjection(descriptor, numbers, fields, children);
+    }
+  }
+}
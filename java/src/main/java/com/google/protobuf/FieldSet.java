@@ -33,7 +33,6 @@ package com.google.protobuf;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.TreeMap;
 import java.util.List;
 import java.util.Map;
 import java.io.IOException;
@@ -71,12 +70,10 @@ final class FieldSet<FieldDescriptorType extends
 
   /** Construct a new FieldSet. */
   private FieldSet() {
-    // Use a TreeMap because fields need to be in canonical order when
-    // serializing.
-    // TODO(kenton):  Maybe use some sort of sparse array instead?  It would
-    //   even make sense to store the first 16 or so tags in a flat array
-    //   to make DynamicMessage faster.
-    fields = new TreeMap<FieldDescriptorType, Object>();
+    // FieldArrayMap keeps the fields in canonical order for serializing, and
+    // stores the ones with small numbers in a flat array to make
+    // DynamicMessage faster.
+    fields = new FieldArrayMap<FieldDescriptorType>();
   }
 
   /**
@@ -282,6 +279,28 @@ final class FieldSet<FieldDescriptorType extends
     list.add(value);
   }
 
+  /**
+   * Like {@link #setField} for a non-repeated field, or
+   * {@link #addRepeatedField} for a repeated one, but without checking the
+   * value's type.  For parsers which only produce values of the right type.
+   */
+  @SuppressWarnings("unchecked")
+  void mergeParsedValue(final FieldDescriptorType descriptor,
+                        final Object value) {
+    if (!descriptor.isRepeated()) {
+      fields.put(descriptor, value);
+      return;
+    }
+    final Object existingValue = fields.get(descriptor);
+    if (existingValue == null) {
+      final List<Object> list = new ArrayList<Object>();
+      list.add(value);
+      fields.put(descriptor, list);
+    } else {
+      ((List<Object>) existingValue).add(value);
+    }
+  }
+
   /**
    * Verifies that the given object is of the correct type to be a valid
    * value for the given field.  (For repeated fields, this checks if the
@@ -527,7 +546,7 @@ final class FieldSet<FieldDescriptorType extends
    *               {@link Message#getField(Descriptors.FieldDescriptor)} for
    *               this field.
    */
-  private static void writeElementNoTag(
+  static void writeElementNoTag(
       final CodedOutputStream output,
       final WireFormat.FieldType type,
       final Object value) throws IOException {
@@ -650,7 +669,7 @@ final class FieldSet<FieldDescriptorType extends
    *               {@link Message#getField(Descriptors.FieldDescriptor)} for
    *               this field.
    */
-  private static int computeElementSizeNoTag(
+  static int computeElementSizeNoTag(
       final WireFormat.FieldType type, final Object value) {
     switch (type) {
       // Note:  Minor violation of 80-char limit rule here because this would
@@ -0,0 +1,334 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A growable list of {@code float}s, stored in a {@code float[]} rather than as
+ * boxed {@code Float}s.  Generated code uses it for repeated float fields,
+ * through unboxed methods such as {@link #getFloat(int)} and
+ * {@link #addFloat(float)}.  The {@code java.util.List<Float>} methods are for
+ * callers of the generated {@code get...List()} accessors, and behave like
+ * those of an {@code ArrayList}, except that they throw
+ * {@code NullPointerException} for {@code null} elements.
+ *
+ * <p>A message's lists are frozen with {@link #makeImmutable()} when it is
+ * built, after which any attempt to modify them throws
+ * {@code UnsupportedOperationException}.
+ */
+public final class FloatList extends AbstractList<Float>
+    implements RandomAccess {
+  private static final int DEFAULT_CAPACITY = 10;
+  private static final float[] EMPTY_ARRAY = new float[0];
+
+  private static final FloatList EMPTY = new FloatList(EMPTY_ARRAY);
+  static {
+    EMPTY.makeImmutable();
+  }
+
+  /**
+   * Returns an empty, immutable list.
+   */
+  public static FloatList emptyList() {
+    return EMPTY;
+  }
+
+  private float[] array;
+  private int size;
+  private boolean isMutable = true;
+
+  /**
+   * Constructs an empty list.
+   */
+  public FloatList() {
+    this(EMPTY_ARRAY);
+  }
+
+  /**
+   * Constructs an empty list which can hold {@code initialCapacity}
+   * elements before it needs to grow.
+   */
+  public FloatList(final int initialCapacity) {
+    this(new float[initialCapacity]);
+  }
+
+  private FloatList(final float[] array) {
+    this.array = array;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the element at {@code index}, without boxing it.
+   */
+  public float getFloat(final int index) {
+    ensureIndexInRange(index);
+    return array[index];
+  }
+
+  @Override
+  public Float get(final int index) {
+    return getFloat(index);
+  }
+
+  /**
+   * Replaces the element at {@code index}, returning the old value.
+   */
+  public float setFloat(final int index, final float element) {
+    ensureIsMutable();
+    ensureIndexInRange(index);
+    final float previous = array[index];
+    array[index] = element;
+    return previous;
+  }
+
+  @Override
+  public Float set(final int index, final Float element) {
+    return setFloat(index, element);
+  }
+
+  /**
+   * Appends {@code element} to the end of the list, without boxing it.
+   */
+  public void addFloat(final float element) {
+    ensureIsMutable();
+    if (size == array.length) {
+      grow(size + 1);
+    }
+    array[size++] = element;
+    modCount++;
+  }
+
+  @Override
+  public boolean add(final Float element) {
+    addFloat(element);
+    return true;
+  }
+
+  @Override
+  public void add(final int index, final Float element) {
+    ensureIsMutable();
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException(outOfBoundsMessage(index));
+    }
+    final float value = element;
+    if (size == array.length) {
+      grow(size + 1);
+    }
+    System.arraycopy(array, index, array, index + 1, size - index);
+    array[index] = value;
+    size++;
+    modCount++;
+  }
+
+  /**
+   * Appends all of {@code values} to the end of the list.
+   */
+  public void addAll(final float[] values) {
+    addAll(values, 0, values.length);
+  }
+
+  /**
+   * Appends {@code length} elements of {@code values}, starting at
+   * {@code offset}, to the end of the list.
+   */
+  public void addAll(final float[] values, final int offset,
+                     final int length) {
+    ensureIsMutable();
+    if (offset < 0 || length < 0 || offset > values.length - length) {
+      throw new IndexOutOfBoundsException(
+        "Range out of bounds: " + offset + ", " + length);
+    }
+    if (length == 0) {
+      return;
+    }
+    ensureCapacity(size + length);
+    System.arraycopy(values, offset, array, size, length);
+    size += length;
+    modCount++;
+  }
+
+  @Override
+  public boolean addAll(final Collection<? extends Float> collection) {
+    ensureIsMutable();
+    if (!(collection instanceof FloatList)) {
+      return super.addAll(collection);
+    }
+    final FloatList other = (FloatList) collection;
+    if (other.size == 0) {
+      return false;
+    }
+    addAll(other.array, 0, other.size);
+    return true;
+  }
+
+  @Override
+  public Float remove(final int index) {
+    ensureIsMutable();
+    ensureIndexInRange(index);
+    final float value = array[index];
+    System.arraycopy(array, index + 1, array, index, size - index - 1);
+    size--;
+    modCount++;
+    return value;
+  }
+
+  @Override
+  public void clear() {
+    ensureIsMutable();
+    size = 0;
+    modCount++;
+  }
+
+  /**
+   * Makes sure the list can hold {@code minCapacity} elements without
+   * growing again.
+   */
+  public void ensureCapacity(final int minCapacity) {
+    if (minCapacity > array.length) {
+      grow(minCapacity);
+    }
+  }
+
+  /**
+   * Returns a copy of the elements as a {@code float[]}.
+   */
+  public float[] toFloatArray() {
+    final float[] result = new float[size];
+    System.arraycopy(array, 0, result, 0, size);
+    return result;
+  }
+
+  /**
+   * Makes the list immutable.  Any attempt to modify it afterwards throws
+   * {@code UnsupportedOperationException}.
+   */
+  public void makeImmutable() {
+    isMutable = false;
+  }
+
+  /**
+   * Returns {@code false} if {@link #makeImmutable()} has been called.
+   */
+  public boolean isMutable() {
+    return isMutable;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof FloatList)) {
+      return super.equals(o);
+    }
+    final FloatList other = (FloatList) o;
+    if (size != other.size) {
+      return false;
+    }
+    final float[] otherArray = other.array;
+    for (int i = 0; i < size; i++) {
+      if (Float.floatToIntBits(array[i]) !=
+          Float.floatToIntBits(otherArray[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    // Must agree with the List contract, i.e. with the hash codes of the
+    // boxed elements.
+    int result = 1;
+    for (int i = 0; i < size; i++) {
+      result = 31 * result + Float.floatToIntBits(array[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the backing array, whose first {@link #size()} elements are the
+   * contents of the list.  For {@link CodedOutputStream}'s bulk writers,
+   * which must not modify it.
+   */
+  float[] getBackingArray() {
+    return array;
+  }
+
+  /**
+   * Appends {@code count} elements with unspecified values and returns the
+   * backing array, in which they are at indices {@code size() - count} to
+   * {@code size() - 1}.  For {@link CodedInputStream}'s bulk readers, which
+   * decode values straight into the array; the caller must overwrite all of
+   * the new elements.
+   */
+  float[] appendUninitialized(final int count) {
+    ensureIsMutable();
+    ensureCapacity(size + count);
+    size += count;
+    modCount++;
+    return array;
+  }
+
+  private void grow(final int minCapacity) {
+    int newCapacity =
+        Math.max(DEFAULT_CAPACITY, array.length + (array.length >> 1));
+    if (newCapacity < minCapacity) {
+      newCapacity = minCapacity;
+    }
+    final float[] newArray = new float[newCapacity];
+    System.arraycopy(array, 0, newArray, 0, size);
+    array = newArray;
+  }
+
+  private void ensureIsMutable() {
+    if (!isMutable) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private void ensureIndexInRange(final int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(outOfBoundsMessage(index));
+    }
+  }
+
+  private String outOfBoundsMessage(final int index) {
+    return "Index: " + index + ", Size: " + size;
+  }
+}
@@ -57,6 +57,15 @@ public abstract class GeneratedMessage extends AbstractMessage {
 
   private UnknownFieldSet unknownFields = UnknownFieldSet.getDefaultInstance();
 
+  /**
+   * Set once the builder has handed out this message, after which it never
+   * changes.  Until then, nothing derived from its fields may be memoized.
+   */
+  private boolean immutable = false;
+
+  /** Memoized result of {@link #getAllFields()}, once immutable. */
+  private ImmutableFieldMap memoizedAllFields = null;
+
   /**
    * Get the FieldAccessorTable for this type.  We can't have the message
    * class pass this in to the constructor because of bootstrapping trouble
@@ -68,8 +77,19 @@ public abstract class GeneratedMessage extends AbstractMessage {
     return internalGetFieldAccessorTable().descriptor;
   }
 
-  /** Internal helper which returns a mutable map. */
-  private Map<FieldDescriptor, Object> getAllFieldsMutable() {
+  /**
+   * Called by generated builders on the message they return from
+   * {@code buildPartial()}.  The message must not be modified afterwards.
+   */
+  protected final void internalMarkImmutable() {
+    immutable = true;
+  }
+
+  /**
+   * Internal helper which returns a mutable map, sorted by field number.
+   * Overridden to add extensions.
+   */
+  TreeMap<FieldDescriptor, Object> getAllFieldsMutable() {
     final TreeMap<FieldDescriptor, Object> result =
       new TreeMap<FieldDescriptor, Object>();
     final Descriptor descriptor = internalGetFieldAccessorTable().descriptor;
@@ -119,7 +139,16 @@ public abstract class GeneratedMessage extends AbstractMessage {
   }
 
   public Map<FieldDescriptor, Object> getAllFields() {
-    return Collections.unmodifiableMap(getAllFieldsMutable());
+    if (!immutable) {
+      return Collections.unmodifiableMap(getAllFieldsMutable());
+    }
+    ImmutableFieldMap result = memoizedAllFields;
+    if (result == null) {
+      // Racing threads compute equal maps, so no locking is needed.
+      result = ImmutableFieldMap.copyOf(getAllFieldsMutable());
+      memoizedAllFields = result;
+    }
+    return result;
   }
 
   public boolean hasField(final FieldDescriptor field) {
@@ -144,6 +173,27 @@ public abstract class GeneratedMessage extends AbstractMessage {
     return unknownFields;
   }
 
+  /**
+   * Returns the value of the field with the given index, exactly as its
+   * generated getter would (for repeated fields, the {@code get...List()}
+   * getter).  Generated code overrides this, and the
+   * {@link FieldAccessorTable} then calls it instead of invoking the getter
+   * through Java reflection.
+   */
+  protected Object internalGetField(final int index) {
+    throw new UnsupportedOperationException(
+      "No generated accessor for field " + index + ".");
+  }
+
+  /**
+   * Calls the generated {@code has...()} method of the singular field with
+   * the given index.  See {@link #internalGetField(int)}.
+   */
+  protected boolean internalHasField(final int index) {
+    throw new UnsupportedOperationException(
+      "No generated accessor for field " + index + ".");
+  }
+
   @SuppressWarnings("unchecked")
   public abstract static class Builder <BuilderType extends Builder>
       extends AbstractMessage.Builder<BuilderType> {
@@ -259,6 +309,58 @@ public abstract class GeneratedMessage extends AbstractMessage {
       return internalGetResult().isInitialized();
     }
 
+    /**
+     * Parses using the table-driven plan of the message type (see
+     * {@link Descriptor#getMessageSchema()}), which sets the fields through
+     * the reflection interface (and so through the generated
+     * {@code internal...Field()} methods).  Code optimized for speed
+     * overrides this with a generated switch on the tag; code optimized for
+     * size has no parsing code of its own and relies on this.
+     */
+    @Override
+    public BuilderType mergeFrom(final CodedInputStream input,
+                                 final ExtensionRegistryLite extensionRegistry)
+                                 throws IOException {
+      final UnknownFieldSet.Builder unknownFields =
+        UnknownFieldSet.newBuilder(getUnknownFields());
+      getDescriptorForType().getMessageSchema().mergeFrom(
+        input, extensionRegistry, this, unknownFields);
+      setUnknownFields(unknownFields.build());
+      return (BuilderType) this;
+    }
+
+    /**
+     * Calls the generated setter of the field with the given index.  The
+     * value must already be of the setter's parameter type (boxed, for
+     * primitive fields).  Generated code overrides this and the other {@code internal...Field()} methods of the builder; see
+     * {@link GeneratedMessage#internalGetField(int)}.
+     */
+    protected void internalSetField(final int index, final Object value) {
+      throw new UnsupportedOperationException(
+        "No generated accessor for field " + index + ".");
+    }
+
+    /** Calls the generated {@code clear...()} method of a field. */
+    protected void internalClearField(final int index) {
+      throw new UnsupportedOperationException(
+        "No generated accessor for field " + index + ".");
+    }
+
+    /** Calls the generated indexed setter of a repeated field. */
+    protected void internalSetRepeatedField(final int index,
+                                            final int elementIndex,
+                                            final Object value) {
+      throw new UnsupportedOperationException(
+        "No generated accessor for field " + index + ".");
+    }
+
+    /** Calls the generated {@code add...()} method of a repeated field. */
+    protected void internalAddRepeatedField(final int index,
+                                            final Object value) {
+      throw new UnsupportedOperationException(
+        "No generated accessor for field " + index + ".");
+    }
+
     /**
      * Called by subclasses to parse an unknown field.
      * @return {@code true} unless the tag is an end-group tag.
@@ -437,6 +539,14 @@ public abstract class GeneratedMessage extends AbstractMessage {
       return new ExtensionWriter(true);
     }
 
+    /**
+     * Called by subclasses to compare and hash extensions.  The values are
+     * in the form used by the reflection interface.
+     */
+    protected Map<FieldDescriptor, Object> getExtensionFields() {
+      return extensions.getAllFields();
+    }
+
     /** Called by subclasses to compute the size of extensions. */
     protected int extensionsSerializedSize() {
       return extensions.getSerializedSize();
@@ -449,10 +559,11 @@ public abstract class GeneratedMessage extends AbstractMessage {
     // Reflection
 
     @Override
-    public Map<FieldDescriptor, Object> getAllFields() {
-      final Map<FieldDescriptor, Object> result = super.getAllFieldsMutable();
+    TreeMap<FieldDescriptor, Object> getAllFieldsMutable() {
+      final TreeMap<FieldDescriptor, Object> result =
+        super.getAllFieldsMutable();
       result.putAll(extensions.getAllFields());
-      return Collections.unmodifiableMap(result);
+      return result;
     }
 
     @Override
@@ -950,9 +1061,41 @@ public abstract class GeneratedMessage extends AbstractMessage {
     }
   }
 
+  /** Returns the wrapper class of a primitive type, or the type itself. */
+  private static Class<?> boxedTypeOf(final Class<?> type) {
+    if (type == Integer.TYPE) {
+      return Integer.class;
+    } else if (type == Long.TYPE) {
+      return Long.class;
+    } else if (type == Float.TYPE) {
+      return Float.class;
+    } else if (type == Double.TYPE) {
+      return Double.class;
+    } else if (type == Boolean.TYPE) {
+      return Boolean.class;
+    } else {
+      return type;
+    }
+  }
+
+  /** Returns true if the class itself declares the given method. */
+  private static boolean declaresMethod(
+      final Class<?> clazz, final String name, final Class<?>... params) {
+    try {
+      clazz.getDeclaredMethod(name, params);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
   /**
    * Users should ignore this class.  This class provides the implementation
-   * with access to the fields of a message object using Java reflection.
+   * with access to the fields of a message object.  If the message and
+   * builder classes override the {@code internal...Field()} methods of
+   * {@link GeneratedMessage} and {@link GeneratedMessage.Builder}, as
+   * generated code does, those are used; otherwise the generated accessors
+   * are called using Java reflection.
    */
   public static final class FieldAccessorTable {
 
@@ -973,30 +1116,47 @@ public abstract class GeneratedMessage extends AbstractMessage {
         final Class<? extends Builder> builderClass) {
       this.descriptor = descriptor;
       fields = new FieldAccessor[descriptor.getFields().size()];
+      // The generated overrides only have cases for the fields they apply
+      // to, so a message with no repeated fields, say, doesn't override
+      // internalAddRepeatedField().  Look for them per kind of field.
+      final boolean generatedSingular =
+        declaresMethod(messageClass, "internalHasField", Integer.TYPE) &&
+        declaresMethod(builderClass, "internalSetField",
+                       Integer.TYPE, Object.class);
+      final boolean generatedRepeated =
+        declaresMethod(messageClass, "internalGetField", Integer.TYPE) &&
+        declaresMethod(builderClass, "internalAddRepeatedField",
+                       Integer.TYPE, Object.class);
 
       for (int i = 0; i < fields.length; i++) {
         final FieldDescriptor field = descriptor.getFields().get(i);
         if (field.isRepeated()) {
           if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
             fields[i] = new RepeatedMessageFieldAccessor(
-              field, camelCaseNames[i], messageClass, builderClass);
+              field, camelCaseNames[i], messageClass, builderClass,
+              generatedRepeated);
           } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
             fields[i] = new RepeatedEnumFieldAccessor(
-              field, camelCaseNames[i], messageClass, builderClass);
+              field, camelCaseNames[i], messageClass, builderClass,
+              generatedRepeated);
           } else {
             fields[i] = new RepeatedFieldAccessor(
-              field, camelCaseNames[i], messageClass, builderClass);
+              field, camelCaseNames[i], messageClass, builderClass,
+              generatedRepeated);
           }
         } else {
           if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
             fields[i] = new SingularMessageFieldAccessor(
-              field, camelCaseNames[i], messageClass, builderClass);
+              field, camelCaseNames[i], messageClass, builderClass,
+              generatedSingular);
           } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
             fields[i] = new SingularEnumFieldAccessor(
-              field, camelCaseNames[i], messageClass, builderClass);
+              field, camelCaseNames[i], messageClass, builderClass,
+              generatedSingular);
           } else {
             fields[i] = new SingularFieldAccessor(
-              field, camelCaseNames[i], messageClass, builderClass);
+              field, camelCaseNames[i], messageClass, builderClass,
+              generatedSingular);
           }
         }
       }
@@ -1019,6 +1179,15 @@ public abstract class GeneratedMessage extends AbstractMessage {
       return fields[field.getIndex()];
     }
 
+    /**
+     * Returns true if the field is accessed through the generated
+     * {@code internal...Field()} overrides rather than Java reflection.
+     * For tests.
+     */
+    boolean isGenerated(final FieldDescriptor field) {
+      return getField(field).isGenerated();
+    }
+
     /**
      * Abstract interface that provides access to a single field.  This is
      * implemented differently depending on the field type and cardinality.
@@ -1034,6 +1203,7 @@ public abstract class GeneratedMessage extends AbstractMessage {
       int getRepeatedCount(GeneratedMessage message);
       void clear(Builder builder);
       Message.Builder newBuilder();
+      boolean isGenerated();
     }
 
     // ---------------------------------------------------------------
@@ -1042,13 +1212,17 @@ public abstract class GeneratedMessage extends AbstractMessage {
       SingularFieldAccessor(
           final FieldDescriptor descriptor, final String camelCaseName,
           final Class<? extends GeneratedMessage> messageClass,
-          final Class<? extends Builder> builderClass) {
+          final Class<? extends Builder> builderClass,
+          final boolean generated) {
         getMethod = getMethodOrDie(messageClass, "get" + camelCaseName);
         type = getMethod.getReturnType();
         setMethod = getMethodOrDie(builderClass, "set" + camelCaseName, type);
         hasMethod =
           getMethodOrDie(messageClass, "has" + camelCaseName);
         clearMethod = getMethodOrDie(builderClass, "clear" + camelCaseName);
+        boxedType = boxedTypeOf(type);
+        index = descriptor.getIndex();
+        this.generated = generated;
       }
 
       // Note:  We use Java reflection to call public methods rather than
@@ -1059,12 +1233,24 @@ public abstract class GeneratedMessage extends AbstractMessage {
       protected final Method setMethod;
       protected final Method hasMethod;
       protected final Method clearMethod;
+      private final Class<?> boxedType;
+      private final int index;
+      protected final boolean generated;
 
       public Object get(final GeneratedMessage message) {
+        if (generated) {
+          return message.internalGetField(index);
+        }
         return invokeOrDie(getMethod, message);
       }
       public void set(final Builder builder, final Object value) {
-        invokeOrDie(setMethod, builder, value);
+        if (generated && boxedType.isInstance(value)) {
+          builder.internalSetField(index, value);
+        } else {
+          // Reflection rejects null and mistyped values with the usual
+          // exceptions.
+          invokeOrDie(setMethod, builder, value);
+        }
       }
       public Object getRepeated(final GeneratedMessage message,
                                 final int index) {
@@ -1081,6 +1267,9 @@ public abstract class GeneratedMessage extends AbstractMessage {
           "addRepeatedField() called on a singular field.");
       }
       public boolean has(final GeneratedMessage message) {
+        if (generated) {
+          return message.internalHasField(index);
+        }
         return (Boolean) invokeOrDie(hasMethod, message);
       }
       public int getRepeatedCount(final GeneratedMessage message) {
@@ -1088,19 +1277,27 @@ public abstract class GeneratedMessage extends AbstractMessage {
           "getRepeatedFieldSize() called on a singular field.");
       }
       public void clear(final Builder builder) {
-        invokeOrDie(clearMethod, builder);
+        if (generated) {
+          builder.internalClearField(index);
+        } else {
+          invokeOrDie(clearMethod, builder);
+        }
       }
       public Message.Builder newBuilder() {
         throw new UnsupportedOperationException(
           "newBuilderForField() called on a non-Message type.");
       }
+      public boolean isGenerated() {
+        return generated;
+      }
     }
 
     private static class RepeatedFieldAccessor implements FieldAccessor {
       RepeatedFieldAccessor(
           final FieldDescriptor descriptor, final String camelCaseName,
           final Class<? extends GeneratedMessage> messageClass,
-          final Class<? extends Builder> builderClass) {
+          final Class<? extends Builder> builderClass,
+          final boolean generated) {
         getMethod = getMethodOrDie(messageClass,
                                    "get" + camelCaseName + "List");
 
@@ -1116,6 +1313,9 @@ public abstract class GeneratedMessage extends AbstractMessage {
           getMethodOrDie(messageClass, "get" + camelCaseName + "Count");
 
         clearMethod = getMethodOrDie(builderClass, "clear" + camelCaseName);
+        boxedType = boxedTypeOf(type);
+        index = descriptor.getIndex();
+        this.generated = generated;
       }
 
       protected final Class<?> type;
@@ -1125,8 +1325,14 @@ public abstract class GeneratedMessage extends AbstractMessage {
       protected final Method addRepeatedMethod;
       protected final Method getCountMethod;
       protected final Method clearMethod;
+      private final Class<?> boxedType;
+      private final int index;
+      protected final boolean generated;
 
       public Object get(final GeneratedMessage message) {
+        if (generated) {
+          return message.internalGetField(index);
+        }
         return invokeOrDie(getMethod, message);
       }
       public void set(final Builder builder, final Object value) {
@@ -1141,29 +1347,50 @@ public abstract class GeneratedMessage extends AbstractMessage {
       }
       public Object getRepeated(final GeneratedMessage message,
                                 final int index) {
+        if (generated) {
+          return ((List<?>) message.internalGetField(this.index)).get(index);
+        }
         return invokeOrDie(getRepeatedMethod, message, index);
       }
       public void setRepeated(final Builder builder,
                               final int index, final Object value) {
-        invokeOrDie(setRepeatedMethod, builder, index, value);
+        if (generated && boxedType.isInstance(value)) {
+          builder.internalSetRepeatedField(this.index, index, value);
+        } else {
+          invokeOrDie(setRepeatedMethod, builder, index, value);
+        }
       }
       public void addRepeated(final Builder builder, final Object value) {
-        invokeOrDie(addRepeatedMethod, builder, value);
+        if (generated && boxedType.isInstance(value)) {
+          builder.internalAddRepeatedField(index, value);
+        } else {
+          invokeOrDie(addRepeatedMethod, builder, value);
+        }
       }
       public boolean has(final GeneratedMessage message) {
         throw new UnsupportedOperationException(
           "hasField() called on a singular field.");
       }
       public int getRepeatedCount(final GeneratedMessage message) {
+        if (generated) {
+          return ((List<?>) message.internalGetField(index)).size();
+        }
         return (Integer) invokeOrDie(getCountMethod, message);
       }
       public void clear(final Builder builder) {
-        invokeOrDie(clearMethod, builder);
+        if (generated) {
+          builder.internalClearField(index);
+        } else {
+          invokeOrDie(clearMethod, builder);
+        }
       }
       public Message.Builder newBuilder() {
         throw new UnsupportedOperationException(
           "newBuilderForField() called on a non-Message type.");
       }
+      public boolean isGenerated() {
+        return generated;
+      }
     }
 
     // ---------------------------------------------------------------
@@ -1173,8 +1400,10 @@ public abstract class GeneratedMessage extends AbstractMessage {
       SingularEnumFieldAccessor(
           final FieldDescriptor descriptor, final String camelCaseName,
           final Class<? extends GeneratedMessage> messageClass,
-          final Class<? extends Builder> builderClass) {
-        super(descriptor, camelCaseName, messageClass, builderClass);
+          final Class<? extends Builder> builderClass,
+          final boolean generated) {
+        super(descriptor, camelCaseName, messageClass, builderClass,
+              generated);
 
         valueOfMethod = getMethodOrDie(type, "valueOf",
                                        EnumValueDescriptor.class);
@@ -1185,9 +1414,17 @@ public abstract class GeneratedMessage extends AbstractMessage {
       private Method valueOfMethod;
       private Method getValueDescriptorMethod;
 
+      private Object getValueDescriptor(final Object value) {
+        if (generated) {
+          // Generated enums implement ProtocolMessageEnum.
+          return ((ProtocolMessageEnum) value).getValueDescriptor();
+        }
+        return invokeOrDie(getValueDescriptorMethod, value);
+      }
+
       @Override
       public Object get(final GeneratedMessage message) {
-        return invokeOrDie(getValueDescriptorMethod, super.get(message));
+        return getValueDescriptor(super.get(message));
       }
       @Override
       public void set(final Builder builder, final Object value) {
@@ -1200,8 +1437,10 @@ public abstract class GeneratedMessage extends AbstractMessage {
       RepeatedEnumFieldAccessor(
           final FieldDescriptor descriptor, final String camelCaseName,
           final Class<? extends GeneratedMessage> messageClass,
-          final Class<? extends Builder> builderClass) {
-        super(descriptor, camelCaseName, messageClass, builderClass);
+          final Class<? extends Builder> builderClass,
+          final boolean generated) {
+        super(descriptor, camelCaseName, messageClass, builderClass,
+              generated);
 
         valueOfMethod = getMethodOrDie(type, "valueOf",
                                        EnumValueDescriptor.class);
@@ -1212,20 +1451,27 @@ public abstract class GeneratedMessage extends AbstractMessage {
       private final Method valueOfMethod;
       private final Method getValueDescriptorMethod;
 
+      private Object getValueDescriptor(final Object value) {
+        if (generated) {
+          // Generated enums implement ProtocolMessageEnum.
+          return ((ProtocolMessageEnum) value).getValueDescriptor();
+        }
+        return invokeOrDie(getValueDescriptorMethod, value);
+      }
+
       @Override
       @SuppressWarnings("unchecked")
       public Object get(final GeneratedMessage message) {
         final List newList = new ArrayList();
         for (final Object element : (List) super.get(message)) {
-          newList.add(invokeOrDie(getValueDescriptorMethod, element));
+          newList.add(getValueDescriptor(element));
         }
         return Collections.unmodifiableList(newList);
       }
       @Override
       public Object getRepeated(final GeneratedMessage message,
                                 final int index) {
-        return invokeOrDie(getValueDescriptorMethod,
-          super.getRepeated(message, index));
+        return getValueDescriptor(super.getRepeated(message, index));
       }
       @Override
       public void setRepeated(final Builder builder,
@@ -1246,8 +1492,10 @@ public abstract class GeneratedMessage extends AbstractMessage {
       SingularMessageFieldAccessor(
           final FieldDescriptor descriptor, final String camelCaseName,
           final Class<? extends GeneratedMessage> messageClass,
-          final Class<? extends Builder> builderClass) {
-        super(descriptor, camelCaseName, messageClass, builderClass);
+          final Class<? extends Builder> builderClass,
+          final boolean generated) {
+        super(descriptor, camelCaseName, messageClass, builderClass,
+              generated);
 
         newBuilderMethod = getMethodOrDie(type, "newBuilder");
       }
@@ -1282,8 +1530,10 @@ public abstract class GeneratedMessage extends AbstractMessage {
       RepeatedMessageFieldAccessor(
           final FieldDescriptor descriptor, final String camelCaseName,
           final Class<? extends GeneratedMessage> messageClass,
-          final Class<? extends Builder> builderClass) {
-        super(descriptor, camelCaseName, messageClass, builderClass);
+          final Class<? extends Builder> builderClass,
+          final boolean generated) {
+        super(descriptor, camelCaseName, messageClass, builderClass,
+              generated);
 
         newBuilderMethod = getMethodOrDie(type, "newBuilder");
       }
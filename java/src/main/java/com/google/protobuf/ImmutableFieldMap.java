@@ -0,0 +1,236 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * An immutable map from fields to their values, as returned by
+ * {@link Message#getAllFields()}.  The entries are kept in two parallel
+ * arrays sorted by field number, which is also the iteration order, so the
+ * map is cheap to keep around for a message that never changes.  Lookups
+ * are binary searches and the hash code is computed only once.
+ */
+final class ImmutableFieldMap extends AbstractMap<FieldDescriptor, Object> {
+  private final FieldDescriptor[] fields;
+  private final Object[] values;
+  private volatile int hashCode = 0;
+
+  private ImmutableFieldMap(final FieldDescriptor[] fields,
+                            final Object[] values) {
+    this.fields = fields;
+    this.values = values;
+  }
+
+  /**
+   * Copies a map sorted by field number, such as the one built by
+   * {@link GeneratedMessage}.  The values themselves must be immutable.
+   */
+  static ImmutableFieldMap copyOf(
+      final SortedMap<FieldDescriptor, Object> map) {
+    final FieldDescriptor[] fields = new FieldDescriptor[map.size()];
+    final Object[] values = new Object[fields.length];
+    int i = 0;
+    for (final Map.Entry<FieldDescriptor, Object> entry : map.entrySet()) {
+      fields[i] = entry.getKey();
+      values[i] = entry.getValue();
+      ++i;
+    }
+    return new ImmutableFieldMap(fields, values);
+  }
+
+  /** Returns the position of the field in the arrays, or -1. */
+  private int indexOf(final Object key) {
+    if (!(key instanceof FieldDescriptor)) {
+      return -1;
+    }
+    final FieldDescriptor field = (FieldDescriptor) key;
+    final int number = field.getNumber();
+    int low = 0;
+    int high = fields.length - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int midNumber = fields[mid].getNumber();
+      if (midNumber < number) {
+        low = mid + 1;
+      } else if (midNumber > number) {
+        high = mid - 1;
+      } else {
+        // A field of another message type may share the number.
+        return fields[mid] == field ? mid : -1;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int size() {
+    return fields.length;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return fields.length == 0;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public Object get(final Object key) {
+    final int index = indexOf(key);
+    return index < 0 ? null : values[index];
+  }
+
+  @Override
+  public Set<Map.Entry<FieldDescriptor, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<FieldDescriptor, Object>>() {
+      @Override
+      public int size() {
+        return fields.length;
+      }
+
+      @Override
+      public Iterator<Map.Entry<FieldDescriptor, Object>> iterator() {
+        return new EntryIterator();
+      }
+    };
+  }
+
+  @Override
+  public boolean equals(final Object other) {
+    if (other == this) {
+      return true;
+    }
+    if (!(other instanceof ImmutableFieldMap)) {
+      return super.equals(other);
+    }
+    final ImmutableFieldMap otherMap = (ImmutableFieldMap) other;
+    if (fields.length != otherMap.fields.length) {
+      return false;
+    }
+    final int h1 = hashCode;
+    final int h2 = otherMap.hashCode;
+    if (h1 != 0 && h2 != 0 && h1 != h2) {
+      return false;
+    }
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i] != otherMap.fields[i] ||
+          !values[i].equals(otherMap.values[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hashCode;
+    if (h == 0) {
+      // Same as AbstractMap.hashCode(): the sum of the entry hash codes.
+      for (int i = 0; i < fields.length; i++) {
+        h += fields[i].hashCode() ^ values[i].hashCode();
+      }
+      hashCode = h;
+    }
+    return h;
+  }
+
+  private final class EntryIterator
+      implements Iterator<Map.Entry<FieldDescriptor, Object>> {
+    private int next = 0;
+
+    public boolean hasNext() {
+      return next < fields.length;
+    }
+
+    public Map.Entry<FieldDescriptor, Object> next() {
+      if (next >= fields.length) {
+        throw new NoSuchElementException();
+      }
+      return new Entry(next++);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private final class Entry implements Map.Entry<FieldDescriptor, Object> {
+    private final int index;
+
+    Entry(final int index) {
+      this.index = index;
+    }
+
+    public FieldDescriptor getKey() {
+      return fields[index];
+    }
+
+    public Object getValue() {
+      return values[index];
+    }
+
+    public Object setValue(final Object value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Map.Entry)) {
+        return false;
+      }
+      final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+      return fields[index] == entry.getKey() &&
+             values[index].equals(entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return fields[index].hashCode() ^ values[index].hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return fields[index] + "=" + values[index];
+    }
+  }
+}
@@ -31,6 +31,7 @@
 package com.google.protobuf;
 
 import java.io.UnsupportedEncodingException;
+import java.util.List;
 
 /**
  * The classes contained within are used internally by the Protocol Buffer
@@ -99,6 +100,45 @@ public class Internal {
     }
   }
 
+  /**
+   * Helper called by generated code to hash a long the same way as
+   * {@link Long#hashCode()}, without boxing it.  Doubles are hashed by
+   * passing {@link Double#doubleToLongBits(double)} to this.
+   */
+  public static int hashLong(final long n) {
+    return (int) (n ^ (n >>> 32));
+  }
+
+  /**
+   * Helper called by generated code to hash a boolean the same way as
+   * {@link Boolean#hashCode()}, without boxing it.
+   */
+  public static int hashBoolean(final boolean b) {
+    return b ? 1231 : 1237;
+  }
+
+  /**
+   * Helper called by generated code to hash an enum value.  Enum values are
+   * hashed by number, so that a generated enum and the
+   * {@link Descriptors.EnumValueDescriptor} standing for it in the
+   * reflection interface have the same hash code.
+   */
+  public static int hashEnum(final EnumLite e) {
+    return e.getNumber();
+  }
+
+  /**
+   * Like {@link #hashEnum(EnumLite)}, for a list of enum values.  Combines
+   * the numbers the same way as {@link List#hashCode()}.
+   */
+  public static int hashEnumList(final List<? extends EnumLite> list) {
+    int hash = 1;
+    for (final EnumLite e : list) {
+      hash = 31 * hash + hashEnum(e);
+    }
+    return hash;
+  }
+
   /**
    * Interface for an enum value or value descriptor, to be used in FieldSet.
    * The lite library stores enum values directly in FieldSets but the full
@@ -0,0 +1,98 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+/**
+ * Holds an embedded message field in its encoded form until it is first
+ * read.  Generated code uses this for fields with the {@code lazy} option, so
+ * that parsing the containing message only has to skip over the field's
+ * bytes, and serializing it again without reading the field just writes them
+ * back out.
+ *
+ * <p>A {@code LazyField} is immutable; the value is parsed at most once and
+ * then shared by all readers.  Applications should not use this class
+ * directly.
+ */
+public final class LazyField {
+  private final MessageLite defaultInstance;
+  private final ExtensionRegistryLite extensionRegistry;
+  private final ByteString bytes;
+  private volatile MessageLite value;
+
+  public LazyField(final MessageLite defaultInstance,
+                   final ExtensionRegistryLite extensionRegistry,
+                   final ByteString bytes) {
+    this.defaultInstance = defaultInstance;
+    this.extensionRegistry = extensionRegistry;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Get the value of the field, parsing it first if this has not been done
+   * yet.  Like the rest of the containing message, the result may be missing
+   * required fields.
+   *
+   * @throws IllegalStateException The bytes were not a valid encoding of the
+   *         message type.  The containing message was parsed without looking
+   *         at them, so this could not be reported earlier.
+   */
+  public MessageLite getValue() {
+    MessageLite result = value;
+    if (result == null) {
+      try {
+        result = defaultInstance.newBuilderForType()
+            .mergeFrom(bytes, extensionRegistry).buildPartial();
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException(
+            "Lazily parsed field was not a valid " +
+            "protocol message.", e);
+      }
+      value = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns a field holding the bytes of this one followed by those of
+   * {@code other}.  Parsing those gives the same result as merging
+   * {@code other}'s value into this one's, so two fields which are both
+   * still encoded can be merged without parsing either.
+   */
+  public LazyField concat(final LazyField other) {
+    return new LazyField(defaultInstance, extensionRegistry,
+                         bytes.concat(other.bytes));
+  }
+
+  /** Get the encoded bytes of the field, without its tag or length. */
+  public ByteString toByteString() {
+    return bytes;
+  }
+}
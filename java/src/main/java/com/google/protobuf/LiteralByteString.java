@@ -0,0 +1,197 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A {@link ByteString} backed by the whole of a single array, which is
+ * known never to be modified.  This is the usual representation; see
+ * {@link BoundedByteString} for views of part of an array.
+ */
+class LiteralByteString extends ByteString {
+  protected final byte[] bytes;
+
+  LiteralByteString(final byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /** Offset of this string's first byte within {@link #bytes}. */
+  int getOffsetIntoBytes() {
+    return 0;
+  }
+
+  @Override
+  public byte byteAt(final int index) {
+    // Let the array check the bounds.
+    return bytes[index];
+  }
+
+  @Override
+  public int size() {
+    return bytes.length;
+  }
+
+  @Override
+  int getTreeDepth() {
+    return 0;
+  }
+
+  @Override
+  boolean isBalanced() {
+    return true;
+  }
+
+  @Override
+  ByteString substringInternal(final int beginIndex, final int endIndex) {
+    return new BoundedByteString(bytes, getOffsetIntoBytes() + beginIndex,
+                                 endIndex - beginIndex);
+  }
+
+  @Override
+  void copyToInternal(final byte[] target, final int sourceOffset,
+                      final int targetOffset, final int size) {
+    System.arraycopy(bytes, getOffsetIntoBytes() + sourceOffset,
+                     target, targetOffset, size);
+  }
+
+  @Override
+  public void writeTo(final OutputStream out) throws IOException {
+    out.write(bytes, getOffsetIntoBytes(), size());
+  }
+
+  @Override
+  void writeTo(final CodedOutputStream output) throws IOException {
+    output.writeRawBytes(bytes, getOffsetIntoBytes(), size());
+  }
+
+  @Override
+  public ByteBuffer asReadOnlyByteBuffer() {
+    final ByteBuffer byteBuffer =
+        ByteBuffer.wrap(bytes, getOffsetIntoBytes(), size());
+    return byteBuffer.slice().asReadOnlyBuffer();
+  }
+
+  @Override
+  void addChunksTo(final List<ByteBuffer> list) {
+    list.add(asReadOnlyByteBuffer());
+  }
+
+  @Override
+  public String toString(final String charsetName)
+      throws UnsupportedEncodingException {
+    return new String(bytes, getOffsetIntoBytes(), size(), charsetName);
+  }
+
+  // =================================================================
+  // equals() and hashCode()
+
+  @Override
+  public boolean equals(final Object o) {
+    if (o == this) {
+      return true;
+    }
+
+    if (!(o instanceof ByteString)) {
+      return false;
+    }
+
+    final ByteString other = (ByteString) o;
+    if (size() != other.size()) {
+      return false;
+    }
+
+    if (other instanceof LiteralByteString) {
+      final int thisHash = peekCachedHashCode();
+      final int otherHash = other.peekCachedHashCode();
+      if (thisHash != 0 && otherHash != 0 && thisHash != otherHash) {
+        return false;
+      }
+      return equalsRange((LiteralByteString) other, 0, size());
+    }
+
+    // A rope knows how to walk its own pieces.
+    return other.equals(this);
+  }
+
+  /**
+   * Returns whether the bytes of this string equal {@code length} bytes of
+   * {@code other} starting at {@code offset}.  The caller must check that
+   * the ranges are in bounds.
+   */
+  boolean equalsRange(final LiteralByteString other, final int offset,
+                      final int length) {
+    final byte[] thisBytes = bytes;
+    final byte[] otherBytes = other.bytes;
+    int thisIndex = getOffsetIntoBytes();
+    int otherIndex = other.getOffsetIntoBytes() + offset;
+    final int thisLimit = thisIndex + length;
+    while (thisIndex < thisLimit) {
+      if (thisBytes[thisIndex++] != otherBytes[otherIndex++]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  int partialHash(int h, final int offset, final int length) {
+    final byte[] thisBytes = bytes;
+    final int start = getOffsetIntoBytes() + offset;
+    final int limit = start + length;
+    for (int i = start; i < limit; i++) {
+      h = h * 31 + thisBytes[i];
+    }
+    return h;
+  }
+
+  // =================================================================
+  // Input stream
+
+  @Override
+  public InputStream newInput() {
+    return new ByteArrayInputStream(bytes, getOffsetIntoBytes(), size());
+  }
+
+  @Override
+  public CodedInputStream newCodedInput() {
+    // We trust CodedInputStream not to modify the bytes, or to give anyone
+    // else access to them (except as immutable ByteStrings, if aliasing is
+    // enabled).
+    return CodedInputStream.newInstance(bytes, getOffsetIntoBytes(), size());
+  }
+}
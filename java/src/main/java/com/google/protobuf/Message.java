@@ -162,6 +162,7 @@ public interface Message extends MessageLite {
     // (From MessageLite.Builder, re-declared here only for return type
     // covariance.)
     Builder clear();
+    Builder clearForReuse();
 
     /**
      * Merge {@code other} into the message being built.  {@code other} must
@@ -157,6 +157,20 @@ public interface MessageLite {
     /** Resets all fields to their default values. */
     Builder clear();
 
+    /**
+     * Resets all fields to their default values so that the builder can be
+     * used for another message, even after {@link #build()} has been called.
+     * Unlike {@link #clear()}, this may keep storage of the previous message
+     * which was never handed to a built message, such as the capacity of
+     * repeated fields.  Lists previously returned by this builder's accessors
+     * may therefore change, and must not be used afterwards.  Messages built
+     * by this builder are not affected.
+     *
+     * <p>To parse many messages without allocating a builder for each, call
+     * this followed by one of the {@code mergeFrom()} methods.
+     */
+    Builder clearForReuse();
+
     /**
      * Construct the final message.  Once this is called, the Builder is no
      * longer valid, and calling any other method will result in undefined
@@ -0,0 +1,526 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table-driven plan for parsing and serializing messages of one type.
+ * It is built once per {@link Descriptor} and cached there (see
+ * {@link Descriptor#getMessageSchema()}), so that parsing does not
+ * have to look up every field number in the {@link DescriptorPool} and
+ * work out its wire format again.
+ *
+ * <p>Fields are found by number in a dense array for small numbers and by
+ * binary search above that.  Each entry holds the field's tags, its type,
+ * and a table for decoding enum values.  Embedded messages are parsed by
+ * their own builders.  Extensions and MessageSets are left to
+ * {@link AbstractMessage.Builder#mergeFieldFrom}.
+ *
+ * <p>{@link DynamicMessage} uses the plan both to parse and to serialize,
+ * storing values directly in its {@link FieldSet}.  Generated messages
+ * optimized for code size have no parsing code of their own, and parse with
+ * the plan through the reflection interface of their builders.
+ */
+final class MessageSchema {
+  /** Fields numbered below this are found by indexing an array. */
+  private static final int DENSE_LIMIT = 128;
+
+  private final Descriptor type;
+  private final boolean messageSetWireFormat;
+  private final boolean hasExtensionRanges;
+  private final FieldDescriptor[] requiredFields;
+
+  // Indexed by field number.
+  private final FieldInfo[] denseFields;
+  // Fields numbered DENSE_LIMIT and above, sorted by number.
+  private final FieldInfo[] sparseFields;
+
+  MessageSchema(final Descriptor type) {
+    this.type = type;
+    messageSetWireFormat = type.getOptions().getMessageSetWireFormat();
+    hasExtensionRanges = type.toProto().getExtensionRangeCount() > 0;
+
+    final List<FieldDescriptor> fields = type.getFields();
+    final List<FieldDescriptor> required = new ArrayList<FieldDescriptor>();
+    for (final FieldDescriptor field : fields) {
+      if (field.isRequired()) {
+        required.add(field);
+      }
+    }
+    requiredFields = required.toArray(new FieldDescriptor[required.size()]);
+
+    int denseLength = 0;
+    int sparseCount = 0;
+    for (final FieldDescriptor field : fields) {
+      if (field.getNumber() < DENSE_LIMIT) {
+        denseLength = Math.max(denseLength, field.getNumber() + 1);
+      } else {
+        ++sparseCount;
+      }
+    }
+    denseFields = new FieldInfo[denseLength];
+    sparseFields = new FieldInfo[sparseCount];
+    int sparseIndex = 0;
+    for (final FieldDescriptor field : fields) {
+      final FieldInfo info = new FieldInfo(field);
+      if (field.getNumber() < DENSE_LIMIT) {
+        denseFields[field.getNumber()] = info;
+      } else {
+        sparseFields[sparseIndex++] = info;
+      }
+    }
+    Arrays.sort(sparseFields, new Comparator<FieldInfo>() {
+      public int compare(final FieldInfo a, final FieldInfo b) {
+        return a.number < b.number ? -1 : (a.number == b.number ? 0 : 1);
+      }
+    });
+  }
+
+  /** Returns the field with the given number, or {@code null}. */
+  private FieldInfo findField(final int number) {
+    if (number < DENSE_LIMIT) {
+      return number < denseFields.length ? denseFields[number] : null;
+    }
+    int low = 0;
+    int high = sparseFields.length - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int midNumber = sparseFields[mid].number;
+      if (midNumber < number) {
+        low = mid + 1;
+      } else if (midNumber > number) {
+        high = mid - 1;
+      } else {
+        return sparseFields[mid];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the value with number {@code rawValue} of the enum field with the
+   * given number, or {@code null} if the enum has no such value.  Used by
+   * {@link CompiledMessage}.
+   */
+  EnumValueDescriptor findEnumValue(final int fieldNumber,
+                                    final int rawValue) {
+    return findField(fieldNumber).findEnumValue(rawValue);
+  }
+
+  /**
+   * Checks that all required fields are present and that all embedded
+   * messages are initialized.
+   */
+  boolean isInitialized(final FieldSet<FieldDescriptor> fields) {
+    for (final FieldDescriptor field : requiredFields) {
+      if (fields.getField(field) == null) {
+        return false;
+      }
+    }
+    return fields.isInitialized();
+  }
+
+  // -----------------------------------------------------------------
+  // Parsing
+
+  /**
+   * Parses fields from {@code input} into {@code builder} until the end of
+   * the input or an end-group tag.  Does the same as
+   * {@link AbstractMessage.Builder#mergeFrom(CodedInputStream,
+   * ExtensionRegistryLite)}, setting the fields through the reflection
+   * interface.
+   */
+  void mergeFrom(final CodedInputStream input,
+                 final ExtensionRegistryLite extensionRegistry,
+                 final Message.Builder builder,
+                 final UnknownFieldSet.Builder unknownFields)
+                 throws IOException {
+    mergeFrom(input, extensionRegistry, builder, null, unknownFields);
+  }
+
+  /**
+   * Like above, but stores the fields directly in {@code fields}, which
+   * belong to {@code builder}.
+   */
+  void mergeFrom(final CodedInputStream input,
+                 final ExtensionRegistryLite extensionRegistry,
+                 final DynamicMessage.Builder builder,
+                 final FieldSet<FieldDescriptor> fields,
+                 final UnknownFieldSet.Builder unknownFields)
+                 throws IOException {
+    mergeFrom(input, extensionRegistry, (Message.Builder) builder, fields,
+              unknownFields);
+  }
+
+  /**
+   * Parses fields until the end of the input or an end-group tag.  If
+   * {@code fields} is {@code null}, values are set through {@code builder}.
+   */
+  private void mergeFrom(final CodedInputStream input,
+                         final ExtensionRegistryLite extensionRegistry,
+                         final Message.Builder builder,
+                         final FieldSet<FieldDescriptor> fields,
+                         final UnknownFieldSet.Builder unknownFields)
+                         throws IOException {
+    while (true) {
+      final int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+
+      if (!mergeFieldFrom(input, extensionRegistry, builder, fields,
+                          unknownFields, tag)) {
+        // end group tag
+        break;
+      }
+    }
+  }
+
+  /**
+   * Parses a single field whose tag has already been read.
+   * @return {@code true} unless the tag is an end-group tag.
+   */
+  private boolean mergeFieldFrom(final CodedInputStream input,
+                                 final ExtensionRegistryLite extensionRegistry,
+                                 final Message.Builder builder,
+                                 final FieldSet<FieldDescriptor> fields,
+                                 final UnknownFieldSet.Builder unknownFields,
+                                 final int tag) throws IOException {
+    if (messageSetWireFormat) {
+      return AbstractMessage.Builder.mergeFieldFrom(
+          input, unknownFields, extensionRegistry, builder, tag);
+    }
+
+    final int number = WireFormat.getTagFieldNumber(tag);
+    final FieldInfo info = findField(number);
+    if (info == null) {
+      if (hasExtensionRanges && type.isExtensionNumber(number)) {
+        return AbstractMessage.Builder.mergeFieldFrom(
+            input, unknownFields, extensionRegistry, builder, tag);
+      }
+      return unknownFields.mergeFieldFrom(tag, input);
+    }
+
+    if (tag == info.tag) {
+      info.mergeElementFrom(input, extensionRegistry, builder, fields,
+                            unknownFields);
+    } else if (tag == info.packedTag) {
+      info.mergePackedFrom(input, builder, fields);
+    } else {
+      // Wrong wire type.
+      return unknownFields.mergeFieldFrom(tag, input);
+    }
+    return true;
+  }
+
+  // -----------------------------------------------------------------
+  // Serialization
+
+  /** Like {@link FieldSet#writeTo}, but with the tags worked out already. */
+  void writeTo(final FieldSet<FieldDescriptor> fields,
+               final CodedOutputStream output) throws IOException {
+    final Iterator<Map.Entry<FieldDescriptor, Object>> iterator =
+        fields.iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<FieldDescriptor, Object> entry = iterator.next();
+      final FieldDescriptor field = entry.getKey();
+      final FieldInfo info = findField(field.getNumber());
+      if (info != null && info.field == field) {
+        info.writeTo(entry.getValue(), output);
+      } else {
+        // An extension.
+        FieldSet.writeField(field, entry.getValue(), output);
+      }
+    }
+  }
+
+  /** Like {@link FieldSet#getSerializedSize}, using the same plan. */
+  int getSerializedSize(final FieldSet<FieldDescriptor> fields) {
+    int size = 0;
+    final Iterator<Map.Entry<FieldDescriptor, Object>> iterator =
+        fields.iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<FieldDescriptor, Object> entry = iterator.next();
+      final FieldDescriptor field = entry.getKey();
+      final FieldInfo info = findField(field.getNumber());
+      if (info != null && info.field == field) {
+        size += info.computeSize(entry.getValue());
+      } else {
+        size += FieldSet.computeFieldSize(field, entry.getValue());
+      }
+    }
+    return size;
+  }
+
+  // =================================================================
+
+  /** Everything needed to parse and write one field. */
+  private static final class FieldInfo {
+    final FieldDescriptor field;
+    final int number;
+    final WireFormat.FieldType type;
+    final boolean repeated;
+    final boolean packed;
+
+    // The tag of a single element, and the tag of a packed run of elements
+    // (or -1 if the field can't be packed).  Parsing accepts either.
+    final int tag;
+    final int packedTag;
+    final int endGroupTag;
+    // The size of the tags written before (and, for groups, after) each
+    // element.
+    final int elementTagSize;
+
+    // For groups and embedded messages.
+    final Descriptor messageType;
+
+    // For enums: values by number, offset by enumOffset, or null if the
+    // numbers are too sparse, in which case the EnumDescriptor is searched.
+    final EnumDescriptor enumType;
+    final EnumValueDescriptor[] enumValues;
+    final int enumOffset;
+
+    FieldInfo(final FieldDescriptor field) {
+      this.field = field;
+      number = field.getNumber();
+      type = field.getLiteType();
+      repeated = field.isRepeated();
+      packed = field.isPacked();
+      tag = WireFormat.makeTag(number,
+          FieldSet.getWireFormatForFieldType(type, false));
+      packedTag = field.isPackable() ?
+          WireFormat.makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED) :
+          -1;
+      endGroupTag = WireFormat.makeTag(number, WireFormat.WIRETYPE_END_GROUP);
+      final int tagSize = CodedOutputStream.computeTagSize(number);
+      elementTagSize =
+          type == WireFormat.FieldType.GROUP ? tagSize * 2 : tagSize;
+
+      messageType = field.getJavaType() == FieldDescriptor.JavaType.MESSAGE ?
+          field.getMessageType() : null;
+
+      if (type == WireFormat.FieldType.ENUM) {
+        enumType = field.getEnumType();
+        final List<EnumValueDescriptor> values = enumType.getValues();
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (final EnumValueDescriptor value : values) {
+          min = Math.min(min, value.getNumber());
+          max = Math.max(max, value.getNumber());
+        }
+        // Use a table unless the numbers are much sparser than the values.
+        final long range = (long) max - min + 1;
+        if (range <= values.size() * 2L + 16) {
+          enumValues = new EnumValueDescriptor[(int) range];
+          // Iterate backwards so that the first of several aliases wins, as
+          // in EnumDescriptor.findValueByNumber().
+          for (int i = values.size() - 1; i >= 0; i--) {
+            final EnumValueDescriptor value = values.get(i);
+            enumValues[value.getNumber() - min] = value;
+          }
+          enumOffset = min;
+        } else {
+          enumValues = null;
+          enumOffset = 0;
+        }
+      } else {
+        enumType = null;
+        enumValues = null;
+        enumOffset = 0;
+      }
+    }
+
+    /** Returns the enum value with the given number, or {@code null}. */
+    private EnumValueDescriptor findEnumValue(final int rawValue) {
+      if (enumValues == null) {
+        return enumType.findValueByNumber(rawValue);
+      }
+      final int index = rawValue - enumOffset;
+      return index >= 0 && index < enumValues.length ?
+          enumValues[index] : null;
+    }
+
+    /**
+     * Stores a parsed value in {@code fields}, or through {@code builder} if
+     * {@code fields} is {@code null}.
+     */
+    private void store(final Message.Builder builder,
+                       final FieldSet<FieldDescriptor> fields,
+                       final Object value) {
+      if (fields != null) {
+        fields.mergeParsedValue(field, value);
+      } else if (repeated) {
+        builder.addRepeatedField(field, value);
+      } else {
+        builder.setField(field, value);
+      }
+    }
+
+    /** Parses one element, whose tag has already been read. */
+    void mergeElementFrom(final CodedInputStream input,
+                          final ExtensionRegistryLite extensionRegistry,
+                          final Message.Builder builder,
+                          final FieldSet<FieldDescriptor> fields,
+                          final UnknownFieldSet.Builder unknownFields)
+                          throws IOException {
+      final Object value;
+      switch (type) {
+        case GROUP:
+        case MESSAGE: {
+          final Message.Builder subBuilder;
+          if (fields != null) {
+            subBuilder = DynamicMessage.newBuilder(messageType);
+            if (!repeated) {
+              final Object existing = fields.getField(field);
+              if (existing != null) {
+                subBuilder.mergeFrom((Message) existing);
+              }
+            }
+          } else {
+            subBuilder = builder.newBuilderForField(field);
+            if (!repeated && builder.hasField(field)) {
+              subBuilder.mergeFrom((Message) builder.getField(field));
+            }
+          }
+          if (type == WireFormat.FieldType.GROUP) {
+            input.readGroup(number, subBuilder, extensionRegistry);
+          } else {
+            input.readMessage(subBuilder, extensionRegistry);
+          }
+          // Whether the message is initialized is checked once, when the
+          // outermost message is built, as generated code does.
+          value = subBuilder.buildPartial();
+          break;
+        }
+        case ENUM: {
+          final int rawValue = input.readEnum();
+          value = findEnumValue(rawValue);
+          // If the number isn't recognized as a valid value for this enum,
+          // drop it.
+          if (value == null) {
+            unknownFields.mergeVarintField(number, rawValue);
+            return;
+          }
+          break;
+        }
+        default:
+          value = FieldSet.readPrimitiveField(input, type);
+          break;
+      }
+
+      store(builder, fields, value);
+    }
+
+    /** Parses a packed run of elements, whose tag has already been read. */
+    void mergePackedFrom(final CodedInputStream input,
+                         final Message.Builder builder,
+                         final FieldSet<FieldDescriptor> fields)
+                         throws IOException {
+      final int length = input.readRawVarint32();
+      final int limit = input.pushLimit(length);
+      if (type == WireFormat.FieldType.ENUM) {
+        while (input.getBytesUntilLimit() > 0) {
+          final Object value = findEnumValue(input.readEnum());
+          // If the number isn't recognized as a valid value for this enum,
+          // drop it (don't even add it to unknownFields).
+          if (value != null) {
+            store(builder, fields, value);
+          }
+        }
+      } else {
+        while (input.getBytesUntilLimit() > 0) {
+          store(builder, fields, FieldSet.readPrimitiveField(input, type));
+        }
+      }
+      input.popLimit(limit);
+    }
+
+    void writeTo(final Object value, final CodedOutputStream output)
+                 throws IOException {
+      if (!repeated) {
+        writeElement(value, output);
+      } else if (packed) {
+        final List<?> list = (List<?>) value;
+        int dataSize = 0;
+        for (final Object element : list) {
+          dataSize += FieldSet.computeElementSizeNoTag(type, element);
+        }
+        output.writeRawVarint32(packedTag);
+        output.writeRawVarint32(dataSize);
+        for (final Object element : list) {
+          FieldSet.writeElementNoTag(output, type, element);
+        }
+      } else {
+        for (final Object element : (List<?>) value) {
+          writeElement(element, output);
+        }
+      }
+    }
+
+    private void writeElement(final Object value,
+                              final CodedOutputStream output)
+                              throws IOException {
+      output.writeRawVarint32(tag);
+      FieldSet.writeElementNoTag(output, type, value);
+      if (type == WireFormat.FieldType.GROUP) {
+        output.writeRawVarint32(endGroupTag);
+      }
+    }
+
+    int computeSize(final Object value) {
+      if (!repeated) {
+        return elementTagSize + FieldSet.computeElementSizeNoTag(type, value);
+      }
+      final List<?> list = (List<?>) value;
+      int dataSize = 0;
+      for (final Object element : list) {
+        dataSize += FieldSet.computeElementSizeNoTag(type, element);
+      }
+      if (packed) {
+        return CodedOutputStream.computeTagSize(number) +
+               CodedOutputStream.computeRawVarint32Size(dataSize) + dataSize;
+      }
+      return elementTagSize * list.size() + dataSize;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.io.IOException;
+
+/**
+ * Parses messages whose repeated message fields may be too large to hold in
+ * memory.  {@link #forEach} parses a message like
+ * {@link Message.Builder#mergeFrom(CodedInputStream)}, except that the
+ * elements of one repeated field are handed to a callback one at a time, as
+ * they are parsed, instead of being added to the builder.  All other fields
+ * are merged into the builder as usual, so e.g. the header fields of a file
+ * holding one huge message are available once parsing is done.
+ *
+ * <p>Elements are parsed into one builder, which is cleared with
+ * {@link MessageLite.Builder#clearForReuse()} before each of them, so that
+ * only one element is held at a time.
+ *
+ * <p>Since the whole message is never held in memory, the input's size limit
+ * (see {@link CodedInputStream#setSizeLimit(int)}) applies to each element
+ * rather than to the message: unless the message is being read within a
+ * pushed limit, the size counter is reset after every element.  A message
+ * may therefore be larger than the size limit, or even than 2GB.
+ */
+public final class MessageStreamer {
+  private MessageStreamer() {}
+
+  /**
+   * Receives the elements of the streamed field.  The builder holds one
+   * element; it is only valid until {@link #handle} returns.
+   */
+  public interface Callback<BuilderType extends Message.Builder> {
+    void handle(BuilderType element) throws IOException;
+  }
+
+  /**
+   * Like {@link #forEach(CodedInputStream, ExtensionRegistryLite,
+   * Message.Builder, FieldDescriptor, Message.Builder, Callback)}, with no
+   * extensions and a new builder for the elements.
+   */
+  public static void forEach(final CodedInputStream input,
+                             final Message.Builder builder,
+                             final FieldDescriptor field,
+                             final Callback<Message.Builder> callback)
+      throws IOException {
+    forEach(input, ExtensionRegistryLite.getEmptyRegistry(), builder, field,
+            builder.newBuilderForField(field), callback);
+  }
+
+  /**
+   * Parses a message from {@code input} and merges it into {@code builder},
+   * except for the elements of {@code field}, which are each parsed into
+   * {@code elementBuilder} and passed to {@code callback} in the order they
+   * are read.
+   *
+   * <p>If no limit has been pushed on {@code input} (see
+   * {@link CodedInputStream#getBytesUntilLimit()}), its size counter is
+   * reset after each element.
+   *
+   * @param field A repeated message or group field of {@code builder}'s
+   *        type, which may be an extension.
+   * @throws IllegalArgumentException {@code field} is not such a field.
+   */
+  public static <BuilderType extends Message.Builder> void forEach(
+      final CodedInputStream input,
+      final ExtensionRegistryLite extensionRegistry,
+      final Message.Builder builder,
+      final FieldDescriptor field,
+      final BuilderType elementBuilder,
+      final Callback<? super BuilderType> callback) throws IOException {
+    if (field.getContainingType() != builder.getDescriptorForType() ||
+        !field.isRepeated() ||
+        field.getJavaType() != FieldDescriptor.JavaType.MESSAGE) {
+      throw new IllegalArgumentException(
+          "forEach() needs a repeated message field of the message type.");
+    }
+    final boolean isGroup = field.getType() == FieldDescriptor.Type.GROUP;
+    final int fieldTag = WireFormat.makeTag(field.getNumber(), isGroup ?
+        WireFormat.WIRETYPE_START_GROUP :
+        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    final UnknownFieldSet.Builder unknownFields =
+      UnknownFieldSet.newBuilder(builder.getUnknownFields());
+    while (true) {
+      final int tag = input.readTag();
+      if (tag == 0) {
+        break;
+      }
+
+      if (tag == fieldTag) {
+        elementBuilder.clearForReuse();
+        if (isGroup) {
+          input.readGroup(field.getNumber(), elementBuilder,
+                          extensionRegistry);
+        } else {
+          input.readMessage(elementBuilder, extensionRegistry);
+        }
+        callback.handle(elementBuilder);
+        if (input.getBytesUntilLimit() == -1) {
+          // Limits are positions counted from the last reset, so the counter
+          // can only be reset when there are none.
+          input.resetSizeCounter();
+        }
+      } else if (!AbstractMessage.Builder.mergeFieldFrom(
+          input, unknownFields, extensionRegistry, builder, tag)) {
+        // end group tag
+        break;
+      }
+    }
+    builder.setUnknownFields(unknownFields.build());
+  }
+}
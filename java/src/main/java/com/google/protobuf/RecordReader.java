@@ -0,0 +1,275 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a record file written by {@link RecordWriter}.  The index at the
+ * end of the file is read when the reader is constructed, after which each
+ * block can be read on its own: {@link #readBlocks} reads a range of them,
+ * e.g. a split of the file assigned to one worker (see {@link #findBlock}),
+ * and {@link #scan} reads all of them in parallel.
+ *
+ * <p>Records are parsed into a builder which is reused for all records of a
+ * block, with {@link MessageLite.Builder#clearForReuse()}, and handed to a
+ * {@link RecordHandler}.  The handler may build the record, or just read it
+ * through the builder's accessors.
+ *
+ * <p>Blocks are read with positional reads, which don't change the
+ * channel's position and may happen concurrently, so one reader may be
+ * used by several threads at once.  The reader does not close the channel.
+ */
+public final class RecordReader {
+  /**
+   * Receives the records read by a {@code RecordReader}.  The builder holds
+   * one record; it is only valid until {@link #handle} returns.
+   */
+  public interface RecordHandler<BuilderType extends MessageLite.Builder> {
+    void handle(BuilderType record) throws IOException;
+  }
+
+  private final FileChannel channel;
+  private final byte[] sync;
+  private final long[] blockOffsets;
+  private final int[] blockLengths;
+  private final int[] blockRecordCounts;
+
+  /** Reads the header and index of the record file in {@code channel}. */
+  public RecordReader(final FileChannel channel) throws IOException {
+    this.channel = channel;
+
+    final long size = channel.size();
+    final int headerSize = RecordWriter.MAGIC.length + RecordWriter.SYNC_SIZE;
+    if (size < headerSize + RecordWriter.FOOTER_SIZE) {
+      throw notARecordFile();
+    }
+    final byte[] header = read(0, headerSize);
+    checkMagic(header);
+    sync = new byte[RecordWriter.SYNC_SIZE];
+    System.arraycopy(header, RecordWriter.MAGIC.length, sync, 0, sync.length);
+
+    final long footerOffset = size - RecordWriter.FOOTER_SIZE;
+    final CodedInputStream footer = CodedInputStream.newInstance(
+        read(footerOffset, RecordWriter.FOOTER_SIZE));
+    final long indexOffset = footer.readRawLittleEndian64();
+    checkMagic(footer.readRawBytes(RecordWriter.MAGIC.length));
+    if (indexOffset < headerSize || indexOffset > footerOffset) {
+      throw notARecordFile();
+    }
+
+    final CodedInputStream index = CodedInputStream.newInstance(
+        read(indexOffset, (int) (footerOffset - indexOffset)));
+    final int blockCount = index.readRawVarint32();
+    if (blockCount < 0) {
+      throw notARecordFile();
+    }
+    blockOffsets = new long[blockCount];
+    blockLengths = new int[blockCount];
+    blockRecordCounts = new int[blockCount];
+    for (int i = 0; i < blockCount; i++) {
+      blockOffsets[i] = index.readRawVarint64();
+      blockLengths[i] = index.readRawVarint32();
+      blockRecordCounts[i] = index.readRawVarint32();
+      if (blockOffsets[i] < headerSize || blockLengths[i] < sync.length ||
+          blockOffsets[i] + blockLengths[i] > indexOffset ||
+          blockRecordCounts[i] < 0) {
+        throw notARecordFile();
+      }
+    }
+  }
+
+  /** Get the number of blocks in the file. */
+  public int getBlockCount() {
+    return blockOffsets.length;
+  }
+
+  /** Get the offset of the given block from the start of the file. */
+  public long getBlockOffset(final int block) {
+    return blockOffsets[block];
+  }
+
+  /** Get the number of records in the given block. */
+  public int getRecordCount(final int block) {
+    return blockRecordCounts[block];
+  }
+
+  /** Get the number of records in the file. */
+  public long getRecordCount() {
+    long result = 0;
+    for (final int count : blockRecordCounts) {
+      result += count;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the first block which starts at or after {@code offset}, or
+   * {@link #getBlockCount()} if there is none.  If a file is split into byte
+   * ranges, the blocks of the range from {@code start} to {@code end} are
+   * those from {@code findBlock(start)} up to {@code findBlock(end)}, so
+   * that every block belongs to exactly one range.
+   */
+  public int findBlock(final long offset) {
+    final int result = Arrays.binarySearch(blockOffsets, offset);
+    return result >= 0 ? result : -(result + 1);
+  }
+
+  /**
+   * Reads the records of blocks {@code fromBlock} (inclusive) to
+   * {@code toBlock} (exclusive) in order, parsing each one into
+   * {@code builder} and handing it to {@code handler}.
+   */
+  public <BuilderType extends MessageLite.Builder> void readBlocks(
+      final int fromBlock, final int toBlock, final BuilderType builder,
+      final ExtensionRegistryLite extensionRegistry,
+      final RecordHandler<? super BuilderType> handler) throws IOException {
+    if (fromBlock < 0 || toBlock > getBlockCount() || fromBlock > toBlock) {
+      throw new IndexOutOfBoundsException(
+          "Invalid block range: " + fromBlock + " to " + toBlock);
+    }
+    for (int block = fromBlock; block < toBlock; block++) {
+      final byte[] bytes = read(blockOffsets[block], blockLengths[block]);
+      for (int i = 0; i < sync.length; i++) {
+        if (bytes[i] != sync[i]) {
+          throw new InvalidProtocolBufferException(
+              "Record file block does not start with the sync marker.");
+        }
+      }
+
+      final CodedInputStream input = CodedInputStream.newInstance(
+          bytes, sync.length, bytes.length - sync.length);
+      for (int i = 0; i < blockRecordCounts[block]; i++) {
+        final int oldLimit = input.pushLimit(input.readRawVarint32());
+        builder.clearForReuse();
+        builder.mergeFrom(input, extensionRegistry);
+        input.checkLastTagWas(0);
+        input.popLimit(oldLimit);
+        handler.handle(builder);
+      }
+      if (!input.isAtEnd()) {
+        throw new InvalidProtocolBufferException(
+            "Record file block has more records than its index entry.");
+      }
+    }
+  }
+
+  /**
+   * Reads all blocks of the file, with one task per block run by
+   * {@code executor}, and waits for them to finish.  Each task parses into
+   * its own clone of {@code builder}.  The handler is called by several
+   * threads at once, and the order of the records is only kept within a
+   * block.  If any task fails, the remaining ones are cancelled and the
+   * failure is thrown.
+   */
+  @SuppressWarnings("unchecked")
+  public <BuilderType extends MessageLite.Builder> void scan(
+      final ExecutorService executor, final BuilderType builder,
+      final ExtensionRegistryLite extensionRegistry,
+      final RecordHandler<? super BuilderType> handler) throws IOException {
+    final List<Future<Object>> futures =
+        new ArrayList<Future<Object>>(getBlockCount());
+    try {
+      for (int i = 0; i < getBlockCount(); i++) {
+        final int block = i;
+        final BuilderType blockBuilder = (BuilderType) builder.clone();
+        futures.add(executor.submit(new Callable<Object>() {
+          public Object call() throws IOException {
+            readBlocks(block, block + 1, blockBuilder, extensionRegistry,
+                       handler);
+            return null;
+          }
+        }));
+      }
+      for (final Future<Object> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while scanning.");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      final IOException exception = new IOException("Scan failed.");
+      exception.initCause(cause);
+      throw exception;
+    } finally {
+      for (final Future<Object> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /** Reads {@code length} bytes at {@code offset} of the file. */
+  private byte[] read(final long offset, final int length)
+      throws IOException {
+    final byte[] result = new byte[length];
+    final ByteBuffer buffer = ByteBuffer.wrap(result);
+    while (buffer.hasRemaining()) {
+      final int n = channel.read(buffer, offset + buffer.position());
+      if (n < 0) {
+        throw InvalidProtocolBufferException.truncatedMessage();
+      }
+    }
+    return result;
+  }
+
+  /** Checks that {@code bytes} starts with the magic of a record file. */
+  private static void checkMagic(final byte[] bytes)
+      throws InvalidProtocolBufferException {
+    for (int i = 0; i < RecordWriter.MAGIC.length; i++) {
+      if (bytes[i] != RecordWriter.MAGIC[i]) {
+        throw notARecordFile();
+      }
+    }
+  }
+
+  private static InvalidProtocolBufferException notARecordFile() {
+    return new InvalidProtocolBufferException(
+        "Not a record file, or the file is corrupt.");
+  }
+}
@@ -0,0 +1,175 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes messages to a record file, which can be read with
+ * {@link RecordReader}.  A record file is a sequence of length-delimited
+ * messages, as written by {@link MessageLite#writeDelimitedTo}, grouped into
+ * blocks and followed by an index of the blocks, so that it can be split up
+ * and read in parallel.
+ *
+ * <p>The layout of a record file is:
+ * <pre>
+ *   file   := header block* index footer
+ *   header := "PBRF" sync
+ *   block  := sync record*
+ *   record := varint32 length, message bytes
+ *   index  := varint32 block_count
+ *             (varint64 offset, varint32 length, varint32 record_count)*
+ *   footer := fixed64 index_offset, "PBRF"
+ * </pre>
+ * {@code sync} is a marker of {@link #SYNC_SIZE} random bytes chosen for
+ * each file.  Every block starts with it, which lets a reader check that it
+ * is at the start of a block, or find the next one without the index.
+ * Offsets are from the start of the file, and lengths include the marker.
+ *
+ * <p>A block is closed as soon as it holds at least the block size given
+ * to the constructor, so blocks are about that size, except for the last
+ * one and for blocks holding a single larger record.  Records never span
+ * blocks.
+ *
+ * <p>Nothing is written to the output after the footer, and the output is
+ * not closed by {@link #close()}.  This class is not thread-safe.
+ */
+public final class RecordWriter {
+  /** The block size used by {@link #RecordWriter(OutputStream)}. */
+  public static final int DEFAULT_BLOCK_SIZE = 1 << 20;  // 1MB
+
+  /** The size of the marker which starts each block. */
+  public static final int SYNC_SIZE = 16;
+
+  static final byte[] MAGIC = { 'P', 'B', 'R', 'F' };
+  static final int FOOTER_SIZE = 8 + 4;
+
+  private final CodedOutputStream output;
+  private final int blockSize;
+  private final byte[] sync;
+
+  // Offset of the next byte to be written.
+  private long position;
+  // Offset of the current block, or -1 if none is open.
+  private long blockOffset = -1;
+  private int blockRecordCount;
+
+  private final List<Long> blockOffsets = new ArrayList<Long>();
+  private final List<Integer> blockLengths = new ArrayList<Integer>();
+  private final List<Integer> blockRecordCounts = new ArrayList<Integer>();
+  private boolean closed;
+
+  /**
+   * Starts a record file on {@code output} with
+   * {@link #DEFAULT_BLOCK_SIZE}.
+   */
+  public RecordWriter(final OutputStream output) throws IOException {
+    this(output, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Starts a record file on {@code output}, closing blocks once they hold
+   * at least {@code blockSize} bytes.
+   */
+  public RecordWriter(final OutputStream output, final int blockSize)
+      throws IOException {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Block size must be positive.");
+    }
+    this.output = CodedOutputStream.newInstance(output);
+    this.blockSize = blockSize;
+    this.sync = new byte[SYNC_SIZE];
+    new Random().nextBytes(sync);
+
+    this.output.writeRawBytes(MAGIC);
+    this.output.writeRawBytes(sync);
+    position = MAGIC.length + SYNC_SIZE;
+  }
+
+  /** Appends {@code message} to the file as one record. */
+  public void write(final MessageLite message) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("RecordWriter was already closed.");
+    }
+    if (blockOffset < 0) {
+      blockOffset = position;
+      blockRecordCount = 0;
+      output.writeRawBytes(sync);
+      position += SYNC_SIZE;
+    }
+
+    final int size = message.getSerializedSize();
+    output.writeRawVarint32(size);
+    message.writeTo(output);
+    position += CodedOutputStream.computeRawVarint32Size(size) + size;
+    blockRecordCount++;
+
+    if (position - blockOffset >= blockSize) {
+      endBlock();
+    }
+  }
+
+  private void endBlock() {
+    if (blockOffset >= 0) {
+      blockOffsets.add(blockOffset);
+      blockLengths.add((int) (position - blockOffset));
+      blockRecordCounts.add(blockRecordCount);
+      blockOffset = -1;
+    }
+  }
+
+  /**
+   * Closes the last block, writes the index and footer, and flushes the
+   * output.  The writer can't be used afterwards.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    endBlock();
+
+    final long indexOffset = position;
+    output.writeRawVarint32(blockOffsets.size());
+    for (int i = 0; i < blockOffsets.size(); i++) {
+      output.writeRawVarint64(blockOffsets.get(i));
+      output.writeRawVarint32(blockLengths.get(i));
+      output.writeRawVarint32(blockRecordCounts.get(i));
+    }
+    output.writeRawLittleEndian64(indexOffset);
+    output.writeRawBytes(MAGIC);
+    output.flush();
+  }
+}
@@ -0,0 +1,587 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Stack;
+
+/**
+ * A {@link ByteString} which is the concatenation of two others, built by
+ * {@link ByteString#concat(ByteString)}.  Nesting these gives a binary tree
+ * (a "rope") whose leaves are {@link LiteralByteString}s, so concatenation
+ * and {@link ByteString#substring(int, int)} take time proportional to the
+ * depth of the tree rather than to the number of bytes.
+ *
+ * <p>To keep that depth logarithmic, a tree of depth {@code n} is only
+ * considered balanced if it holds at least {@code minLengthByDepth[n]}
+ * bytes, where {@code minLengthByDepth} is the Fibonacci sequence.
+ * Concatenations which would produce an unbalanced tree rebuild it instead,
+ * as described in "Ropes: an Alternative to Strings" by Boehm, Atkinson and
+ * Plass.  Short pieces are simply copied into one array, so that a string
+ * built a few bytes at a time does not end up as a tree of tiny leaves.
+ */
+final class RopeByteString extends ByteString {
+  /**
+   * Concatenations whose result is shorter than this are done by copying
+   * the bytes rather than by building a tree node.
+   */
+  static final int CONCATENATE_BY_COPY_SIZE = 128;
+
+  /**
+   * {@code minLengthByDepth[n]} is the minimum number of bytes a balanced
+   * tree of depth {@code n} contains:  the Fibonacci numbers, ending with
+   * {@code Integer.MAX_VALUE} so that every length falls in some bin.
+   */
+  private static final int[] minLengthByDepth;
+
+  static {
+    final List<Integer> numbers = new ArrayList<Integer>();
+    int f1 = 1;
+    int f2 = 1;
+    // Stops when the next number would overflow.
+    while (f2 > 0) {
+      numbers.add(f2);
+      final int temp = f1 + f2;
+      f1 = f2;
+      f2 = temp;
+    }
+    numbers.add(Integer.MAX_VALUE);
+
+    minLengthByDepth = new int[numbers.size()];
+    for (int i = 0; i < minLengthByDepth.length; i++) {
+      minLengthByDepth[i] = numbers.get(i);
+    }
+  }
+
+  private final int totalLength;
+  private final ByteString left;
+  private final ByteString right;
+  private final int leftLength;
+  private final int treeDepth;
+
+  private RopeByteString(final ByteString left, final ByteString right) {
+    this.left = left;
+    this.right = right;
+    leftLength = left.size();
+    totalLength = leftLength + right.size();
+    treeDepth = Math.max(left.getTreeDepth(), right.getTreeDepth()) + 1;
+  }
+
+  /**
+   * Concatenates two strings, copying them if the result is short and
+   * rebalancing if a plain tree node would make the tree too deep.  The
+   * caller must check that the total length fits in an {@code int}.
+   */
+  static ByteString concatenate(final ByteString left,
+                                final ByteString right) {
+    if (right.size() == 0) {
+      return left;
+    }
+    if (left.size() == 0) {
+      return right;
+    }
+
+    final int newLength = left.size() + right.size();
+    if (newLength < CONCATENATE_BY_COPY_SIZE) {
+      return concatenateBytes(left, right);
+    }
+
+    if (left instanceof RopeByteString) {
+      final RopeByteString leftRope = (RopeByteString) left;
+      if (leftRope.right.size() + right.size() < CONCATENATE_BY_COPY_SIZE) {
+        // Appending a short string to a rope ending in a short leaf:  merge
+        // the two leaves rather than growing the tree.  The depth cannot
+        // increase, since the new leaf replaces the old one.
+        final ByteString newRight = concatenateBytes(leftRope.right, right);
+        return new RopeByteString(leftRope.left, newRight);
+      }
+
+      if (leftRope.left.getTreeDepth() > leftRope.right.getTreeDepth() &&
+          leftRope.getTreeDepth() > right.getTreeDepth()) {
+        // The left rope leans left, so append to its right branch instead
+        // of adding a level above it.  That branch is shallower than the
+        // left one, so the depth cannot increase; and since this recurses
+        // down the right spine, short appends still merge with a short
+        // final leaf.  This is what keeps repeated appends balanced.
+        final ByteString newRight = concatenate(leftRope.right, right);
+        return new RopeByteString(leftRope.left, newRight);
+      }
+    }
+
+    final int newDepth = Math.max(left.getTreeDepth(),
+                                  right.getTreeDepth()) + 1;
+    if (newDepth < minLengthByDepth.length &&
+        newLength >= minLengthByDepth[newDepth]) {
+      return new RopeByteString(left, right);
+    }
+
+    return new Balancer().balance(left, right);
+  }
+
+  /** Copies two (short) strings into a single new array. */
+  private static LiteralByteString concatenateBytes(final ByteString left,
+                                                    final ByteString right) {
+    final int leftSize = left.size();
+    final int rightSize = right.size();
+    final byte[] bytes = new byte[leftSize + rightSize];
+    left.copyToInternal(bytes, 0, 0, leftSize);
+    right.copyToInternal(bytes, 0, leftSize, rightSize);
+    return new LiteralByteString(bytes);
+  }
+
+  @Override
+  public byte byteAt(final int index) {
+    if (index < 0 || index >= totalLength) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+
+    ByteString node = this;
+    int position = index;
+    while (node instanceof RopeByteString) {
+      final RopeByteString rope = (RopeByteString) node;
+      if (position < rope.leftLength) {
+        node = rope.left;
+      } else {
+        position -= rope.leftLength;
+        node = rope.right;
+      }
+    }
+    return node.byteAt(position);
+  }
+
+  @Override
+  public int size() {
+    return totalLength;
+  }
+
+  @Override
+  int getTreeDepth() {
+    return treeDepth;
+  }
+
+  @Override
+  boolean isBalanced() {
+    return treeDepth < minLengthByDepth.length &&
+           totalLength >= minLengthByDepth[treeDepth];
+  }
+
+  @Override
+  ByteString substringInternal(final int beginIndex, final int endIndex) {
+    if (endIndex <= leftLength) {
+      return left.substring(beginIndex, endIndex);
+    }
+    if (beginIndex >= leftLength) {
+      return right.substring(beginIndex - leftLength, endIndex - leftLength);
+    }
+    // Spans both branches, each of which contributes a non-empty piece.
+    // The result is no deeper than this tree.
+    return new RopeByteString(left.substring(beginIndex),
+                              right.substring(0, endIndex - leftLength));
+  }
+
+  @Override
+  void copyToInternal(final byte[] target, final int sourceOffset,
+                      final int targetOffset, final int size) {
+    if (sourceOffset + size <= leftLength) {
+      left.copyToInternal(target, sourceOffset, targetOffset, size);
+    } else if (sourceOffset >= leftLength) {
+      right.copyToInternal(target, sourceOffset - leftLength,
+                           targetOffset, size);
+    } else {
+      final int leftSize = leftLength - sourceOffset;
+      left.copyToInternal(target, sourceOffset, targetOffset, leftSize);
+      right.copyToInternal(target, 0, targetOffset + leftSize,
+                           size - leftSize);
+    }
+  }
+
+  @Override
+  public void writeTo(final OutputStream out) throws IOException {
+    left.writeTo(out);
+    right.writeTo(out);
+  }
+
+  @Override
+  void writeTo(final CodedOutputStream output) throws IOException {
+    left.writeTo(output);
+    right.writeTo(output);
+  }
+
+  @Override
+  public ByteBuffer asReadOnlyByteBuffer() {
+    return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+  }
+
+  @Override
+  void addChunksTo(final List<ByteBuffer> list) {
+    left.addChunksTo(list);
+    right.addChunksTo(list);
+  }
+
+  // =================================================================
+  // equals() and hashCode()
+
+  @Override
+  public boolean equals(final Object o) {
+    if (o == this) {
+      return true;
+    }
+
+    if (!(o instanceof ByteString)) {
+      return false;
+    }
+
+    final ByteString other = (ByteString) o;
+    if (totalLength != other.size()) {
+      return false;
+    }
+
+    final int thisHash = peekCachedHashCode();
+    final int otherHash = other.peekCachedHashCode();
+    if (thisHash != 0 && otherHash != 0 && thisHash != otherHash) {
+      return false;
+    }
+
+    return equalsFragments(other);
+  }
+
+  /**
+   * Compares the bytes of this rope with those of {@code other}, which has
+   * the same length, walking the leaves of both in step.
+   */
+  private boolean equalsFragments(final ByteString other) {
+    final Iterator<LiteralByteString> thisIter = new PieceIterator(this);
+    LiteralByteString thisString = thisIter.next();
+    int thisOffset = 0;
+
+    final Iterator<LiteralByteString> thatIter = new PieceIterator(other);
+    LiteralByteString thatString = thatIter.next();
+    int thatOffset = 0;
+
+    int pos = 0;
+    while (true) {
+      final int thisRemaining = thisString.size() - thisOffset;
+      final int thatRemaining = thatString.size() - thatOffset;
+      final int bytesToCompare = Math.min(thisRemaining, thatRemaining);
+
+      // At least one of the offsets is always zero, since each step
+      // finishes one of the two current leaves.
+      final boolean stillEqual = (thisOffset == 0)
+          ? thisString.equalsRange(thatString, thatOffset, bytesToCompare)
+          : thatString.equalsRange(thisString, thisOffset, bytesToCompare);
+      if (!stillEqual) {
+        return false;
+      }
+
+      pos += bytesToCompare;
+      if (pos >= totalLength) {
+        return true;
+      }
+
+      if (bytesToCompare == thisRemaining) {
+        thisOffset = 0;
+        thisString = thisIter.next();
+      } else {
+        thisOffset += bytesToCompare;
+      }
+      if (bytesToCompare == thatRemaining) {
+        thatOffset = 0;
+        thatString = thatIter.next();
+      } else {
+        thatOffset += bytesToCompare;
+      }
+    }
+  }
+
+  @Override
+  int partialHash(final int h, final int offset, final int length) {
+    if (offset + length <= leftLength) {
+      return left.partialHash(h, offset, length);
+    } else if (offset >= leftLength) {
+      return right.partialHash(h, offset - leftLength, length);
+    } else {
+      final int leftSize = leftLength - offset;
+      final int leftHash = left.partialHash(h, offset, leftSize);
+      return right.partialHash(leftHash, 0, length - leftSize);
+    }
+  }
+
+  // =================================================================
+  // Input stream
+
+  @Override
+  public InputStream newInput() {
+    return new RopeInputStream();
+  }
+
+  @Override
+  public CodedInputStream newCodedInput() {
+    // Like reading from a flat array, reading from a rope is not subject to
+    // the size limit; the caller already holds all of the bytes.
+    final CodedInputStream input = CodedInputStream.newInstance(newInput());
+    input.setSizeLimit(Integer.MAX_VALUE);
+    return input;
+  }
+
+  /**
+   * Rebuilds the concatenation of two strings as a balanced tree.  The
+   * leaves (and any balanced subtrees) are pushed onto a stack of partial
+   * results ordered by size, merging neighbors of similar size as they go;
+   * what remains on the stack at the end is then joined right to left.
+   */
+  private static class Balancer {
+    private final Stack<ByteString> prefixesStack = new Stack<ByteString>();
+
+    private ByteString balance(final ByteString left, final ByteString right) {
+      doBalance(left);
+      doBalance(right);
+
+      ByteString partialString = prefixesStack.pop();
+      while (!prefixesStack.isEmpty()) {
+        final ByteString newLeft = prefixesStack.pop();
+        partialString = new RopeByteString(newLeft, partialString);
+      }
+      return partialString;
+    }
+
+    private void doBalance(final ByteString root) {
+      if (root.isBalanced()) {
+        insert(root);
+      } else if (root instanceof RopeByteString) {
+        final RopeByteString rope = (RopeByteString) root;
+        doBalance(rope.left);
+        doBalance(rope.right);
+      } else {
+        throw new IllegalArgumentException(
+          "Has a new type of ByteString been created? Found " +
+          root.getClass());
+      }
+    }
+
+    /**
+     * Pushes {@code byteString} onto the stack, first merging it with the
+     * entries on top which are shorter than the bin it falls in, and then
+     * merging the result with any entries it has grown to exceed.
+     */
+    private void insert(final ByteString byteString) {
+      int depthBin = getDepthBinForLength(byteString.size());
+      int binEnd = getBinEnd(depthBin);
+
+      if (prefixesStack.isEmpty() || prefixesStack.peek().size() >= binEnd) {
+        prefixesStack.push(byteString);
+      } else {
+        final int binStart = minLengthByDepth[depthBin];
+
+        ByteString newTree = prefixesStack.pop();
+        while (!prefixesStack.isEmpty() &&
+               prefixesStack.peek().size() < binStart) {
+          final ByteString left = prefixesStack.pop();
+          newTree = new RopeByteString(left, newTree);
+        }
+
+        newTree = new RopeByteString(newTree, byteString);
+
+        while (!prefixesStack.isEmpty()) {
+          depthBin = getDepthBinForLength(newTree.size());
+          binEnd = getBinEnd(depthBin);
+          if (prefixesStack.peek().size() < binEnd) {
+            final ByteString left = prefixesStack.pop();
+            newTree = new RopeByteString(left, newTree);
+          } else {
+            break;
+          }
+        }
+        prefixesStack.push(newTree);
+      }
+    }
+
+    private int getBinEnd(final int depthBin) {
+      return depthBin + 1 < minLengthByDepth.length
+          ? minLengthByDepth[depthBin + 1] : Integer.MAX_VALUE;
+    }
+
+    private int getDepthBinForLength(final int length) {
+      int depth = Arrays.binarySearch(minLengthByDepth, length);
+      if (depth < 0) {
+        // No exact match:  use the bin starting below the insertion point.
+        final int insertionPoint = -(depth + 1);
+        depth = insertionPoint - 1;
+      }
+      return depth;
+    }
+  }
+
+  /**
+   * Iterates over the non-empty leaves of a tree from left to right,
+   * keeping the path back from the current leaf on a stack.  A
+   * {@link LiteralByteString} is treated as a tree with a single leaf.
+   */
+  private static class PieceIterator implements Iterator<LiteralByteString> {
+    private final Stack<RopeByteString> breadCrumbs =
+        new Stack<RopeByteString>();
+    private LiteralByteString next;
+
+    private PieceIterator(final ByteString root) {
+      next = getLeafByLeft(root);
+      if (next.isEmpty()) {
+        next = getNextNonEmptyLeaf();
+      }
+    }
+
+    private LiteralByteString getLeafByLeft(final ByteString root) {
+      ByteString pos = root;
+      while (pos instanceof RopeByteString) {
+        final RopeByteString rope = (RopeByteString) pos;
+        breadCrumbs.push(rope);
+        pos = rope.left;
+      }
+      return (LiteralByteString) pos;
+    }
+
+    private LiteralByteString getNextNonEmptyLeaf() {
+      while (!breadCrumbs.isEmpty()) {
+        final LiteralByteString result =
+            getLeafByLeft(breadCrumbs.pop().right);
+        if (!result.isEmpty()) {
+          return result;
+        }
+      }
+      return null;
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public LiteralByteString next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      final LiteralByteString result = next;
+      next = getNextNonEmptyLeaf();
+      return result;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /** An {@code InputStream} which reads the leaves of the rope in turn. */
+  private class RopeInputStream extends InputStream {
+    private final PieceIterator pieceIterator;
+    private LiteralByteString currentPiece;
+    private int currentPieceIndex;
+    private int currentPieceOffsetInRope;
+
+    private RopeInputStream() {
+      pieceIterator = new PieceIterator(RopeByteString.this);
+      currentPiece = pieceIterator.next();
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if (b == null) {
+        throw new NullPointerException();
+      } else if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      } else if (len == 0) {
+        return 0;
+      }
+      final int count = readSkipInternal(b, off, len);
+      return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public long skip(long length) {
+      if (length <= 0) {
+        return 0;
+      } else if (length > Integer.MAX_VALUE) {
+        length = Integer.MAX_VALUE;
+      }
+      return readSkipInternal(null, 0, (int) length);
+    }
+
+    /**
+     * Reads up to {@code length} bytes into {@code b}, or skips them if
+     * {@code b} is null.  Returns the number of bytes read or skipped.
+     */
+    private int readSkipInternal(final byte[] b, int offset,
+                                 final int length) {
+      int bytesRemaining = length;
+      while (bytesRemaining > 0) {
+        advanceIfCurrentPieceFullyRead();
+        if (currentPiece == null) {
+          break;
+        }
+        final int count = Math.min(currentPiece.size() - currentPieceIndex,
+                                   bytesRemaining);
+        if (b != null) {
+          currentPiece.copyToInternal(b, currentPieceIndex, offset, count);
+          offset += count;
+        }
+        currentPieceIndex += count;
+        bytesRemaining -= count;
+      }
+      return length - bytesRemaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+      advanceIfCurrentPieceFullyRead();
+      if (currentPiece == null) {
+        return -1;
+      }
+      return currentPiece.byteAt(currentPieceIndex++) & 0xFF;
+    }
+
+    @Override
+    public int available() {
+      return totalLength - (currentPieceOffsetInRope + currentPieceIndex);
+    }
+
+    private void advanceIfCurrentPieceFullyRead() {
+      if (currentPiece != null && currentPieceIndex == currentPiece.size()) {
+        currentPieceOffsetInRope += currentPieceIndex;
+        currentPieceIndex = 0;
+        currentPiece = pieceIterator.hasNext() ? pieceIterator.next() : null;
+      }
+    }
+  }
+}
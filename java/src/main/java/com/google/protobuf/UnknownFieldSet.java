@@ -57,7 +57,9 @@ import java.util.TreeMap;
  * @author kenton@google.com Kenton Varda
  */
 public final class UnknownFieldSet implements MessageLite {
-  private UnknownFieldSet() {}
+  private UnknownFieldSet() {
+    this(Collections.<Integer, Field>emptyMap());
+  }
 
   /** Create a new {@link Builder}. */
   public static Builder newBuilder() {
@@ -88,8 +90,36 @@ public final class UnknownFieldSet implements MessageLite {
    */
   private UnknownFieldSet(final Map<Integer, Field> fields) {
     this.fields = fields;
+    this.rawFields = null;
+  }
+
+  /**
+   * Construct an {@code UnknownFieldSet} around fields which have not been
+   * decoded yet.  See {@link CodedInputStream#enableRawUnknownFields}.
+   */
+  private UnknownFieldSet(final ByteString rawFields) {
+    this.rawFields = rawFields;
+  }
+
+  // Decoded from rawFields when first needed, if the set has them.
+  private volatile Map<Integer, Field> fields;
+  private final ByteString rawFields;
+
+  private Map<Integer, Field> getFields() {
+    Map<Integer, Field> result = fields;
+    if (result == null) {
+      try {
+        result = newBuilder().mergeFrom(rawFields).build().fields;
+      } catch (final InvalidProtocolBufferException e) {
+        // The bytes were written by CodedInputStream.skipField().
+        throw new IllegalStateException(
+          "Unknown fields were not encoded correctly (should never happen).",
+          e);
+      }
+      fields = result;
+    }
+    return result;
   }
-  private Map<Integer, Field> fields;
 
   @Override
   public boolean equals(final Object other) {
@@ -97,22 +127,22 @@ public final class UnknownFieldSet implements MessageLite {
       return true;
     }
     return (other instanceof UnknownFieldSet) &&
-           fields.equals(((UnknownFieldSet) other).fields);
+           getFields().equals(((UnknownFieldSet) other).getFields());
   }
 
   @Override
   public int hashCode() {
-    return fields.hashCode();
+    return getFields().hashCode();
   }
 
   /** Get a map of fields in the set by number. */
   public Map<Integer, Field> asMap() {
-    return fields;
+    return getFields();
   }
 
   /** Check if the given field number is present in the set. */
   public boolean hasField(final int number) {
-    return fields.containsKey(number);
+    return getFields().containsKey(number);
   }
 
   /**
@@ -120,12 +150,20 @@ public final class UnknownFieldSet implements MessageLite {
    * returns {@code null}.
    */
   public Field getField(final int number) {
-    final Field result = fields.get(number);
+    final Field result = getFields().get(number);
     return (result == null) ? Field.getDefaultInstance() : result;
   }
 
-  /** Serializes the set and writes it to {@code output}. */
+  /**
+   * Serializes the set and writes it to {@code output}.  Fields which were
+   * kept in their encoded form are written as they were parsed, in their
+   * original order.
+   */
   public void writeTo(final CodedOutputStream output) throws IOException {
+    if (rawFields != null) {
+      output.writeRawBytes(rawFields);
+      return;
+    }
     for (final Map.Entry<Integer, Field> entry : fields.entrySet()) {
       entry.getValue().writeTo(entry.getKey(), output);
     }
@@ -195,6 +233,9 @@ public final class UnknownFieldSet implements MessageLite {
 
   /** Get the number of bytes required to encode this set. */
   public int getSerializedSize() {
+    if (rawFields != null) {
+      return rawFields.size();
+    }
     int result = 0;
     for (final Map.Entry<Integer, Field> entry : fields.entrySet()) {
       result += entry.getValue().getSerializedSize(entry.getKey());
@@ -208,7 +249,7 @@ public final class UnknownFieldSet implements MessageLite {
    */
   public void writeAsMessageSetTo(final CodedOutputStream output)
       throws IOException {
-    for (final Map.Entry<Integer, Field> entry : fields.entrySet()) {
+    for (final Map.Entry<Integer, Field> entry : getFields().entrySet()) {
       entry.getValue().writeAsMessageSetExtensionTo(
         entry.getKey(), output);
     }
@@ -220,7 +261,7 @@ public final class UnknownFieldSet implements MessageLite {
    */
   public int getSerializedSizeAsMessageSet() {
     int result = 0;
-    for (final Map.Entry<Integer, Field> entry : fields.entrySet()) {
+    for (final Map.Entry<Integer, Field> entry : getFields().entrySet()) {
       result += entry.getValue().getSerializedSizeAsMessageSetExtension(
         entry.getKey());
     }
@@ -275,6 +316,12 @@ public final class UnknownFieldSet implements MessageLite {
    * be constructed independently, nor can two {@link UnknownFieldSet}s share
    * the same {@code Field} object.
    *
+   * <p>While the builder holds nothing else, fields parsed from a
+   * {@link CodedInputStream} with
+   * {@link CodedInputStream#enableRawUnknownFields raw unknown fields}
+   * enabled, and those merged from sets built that way, are kept as bytes.
+   * Anything which needs them one by one decodes them first.
+   *
    * <p>Use {@link UnknownFieldSet#newBuilder()} to construct a {@code Builder}.
    */
   public static final class Builder implements MessageLite.Builder {
@@ -289,6 +336,16 @@ public final class UnknownFieldSet implements MessageLite {
     private int lastFieldNumber;
     private Field.Builder lastField;
 
+    // Fields kept in their encoded form.  rawFields holds those which were
+    // merged from other sets, and rawOutput those skipped since then.  When
+    // either is set, fields is empty and lastField is null.  Most messages
+    // have few unknown fields, if any, so rawOutput starts small and is only
+    // created when the first one is skipped.
+    private static final int RAW_OUTPUT_BUFFER_SIZE = 64;
+    private ByteString rawFields;
+    private ByteString.Output rawOutput;
+    private CodedOutputStream rawCodedOutput;
+
     private static Builder create() {
       Builder builder = new Builder();
       builder.reinitialize();
@@ -300,6 +357,7 @@ public final class UnknownFieldSet implements MessageLite {
      * values that already exist.
      */
     private Field.Builder getFieldBuilder(final int number) {
+      decodeRawFields();
       if (lastField != null) {
         if (number == lastFieldNumber) {
           return lastField;
@@ -329,6 +387,11 @@ public final class UnknownFieldSet implements MessageLite {
      * thrown.
      */
     public UnknownFieldSet build() {
+      final ByteString raw = takeRawFields();
+      if (raw != null && !raw.isEmpty()) {
+        fields = null;
+        return new UnknownFieldSet(raw);
+      }
       getFieldBuilder(0);  // Force lastField to be built.
       final UnknownFieldSet result;
       if (fields.isEmpty()) {
@@ -347,6 +410,12 @@ public final class UnknownFieldSet implements MessageLite {
 
     @Override
     public Builder clone() {
+      final ByteString raw = takeRawFields();
+      if (raw != null) {
+        rawFields = raw;
+        return UnknownFieldSet.newBuilder().mergeFrom(
+            new UnknownFieldSet(raw));
+      }
       getFieldBuilder(0);  // Force lastField to be built.
       return UnknownFieldSet.newBuilder().mergeFrom(
           new UnknownFieldSet(fields));
@@ -360,6 +429,53 @@ public final class UnknownFieldSet implements MessageLite {
       fields = Collections.emptyMap();
       lastFieldNumber = 0;
       lastField = null;
+      rawFields = null;
+      rawOutput = null;
+      rawCodedOutput = null;
+    }
+
+    /** Whether fields may be kept in their encoded form. */
+    private boolean isRaw() {
+      return rawFields != null || rawOutput != null ||
+             (lastField == null && fields.isEmpty());
+    }
+
+    /**
+     * Returns all fields kept in their encoded form and forgets them, or
+     * {@code null} if there are none.
+     */
+    private ByteString takeRawFields() {
+      ByteString result = rawFields;
+      if (rawOutput != null) {
+        try {
+          rawCodedOutput.flush();
+        } catch (final IOException e) {
+          throw new RuntimeException(
+            "Writing to a ByteString threw an IOException (should " +
+            "never happen).", e);
+        }
+        final ByteString skipped = rawOutput.toByteString();
+        result = (result == null) ? skipped : result.concat(skipped);
+      }
+      rawFields = null;
+      rawOutput = null;
+      rawCodedOutput = null;
+      return result;
+    }
+
+    /** Decodes fields kept in their encoded form into the map. */
+    private void decodeRawFields() {
+      final ByteString raw = takeRawFields();
+      if (raw != null) {
+        try {
+          mergeFrom(raw);
+        } catch (final InvalidProtocolBufferException e) {
+          // The bytes were written by CodedInputStream.skipField().
+          throw new IllegalStateException(
+            "Unknown fields were not encoded correctly (should never " +
+            "happen).", e);
+        }
+      }
     }
 
     /** Reset the builder to an empty set. */
@@ -368,14 +484,24 @@ public final class UnknownFieldSet implements MessageLite {
       return this;
     }
 
+    /** Same as {@link #clear()}, which already works after build(). */
+    public Builder clearForReuse() {
+      return clear();
+    }
+
     /**
      * Merge the fields from {@code other} into this set.  If a field number
      * exists in both sets, {@code other}'s values for that field will be
      * appended to the values in this set.
      */
     public Builder mergeFrom(final UnknownFieldSet other) {
-      if (other != getDefaultInstance()) {
-        for (final Map.Entry<Integer, Field> entry : other.fields.entrySet()) {
+      if (other.rawFields != null && isRaw()) {
+        final ByteString raw = takeRawFields();
+        rawFields =
+          (raw == null) ? other.rawFields : raw.concat(other.rawFields);
+      } else if (other != getDefaultInstance()) {
+        for (final Map.Entry<Integer, Field> entry :
+             other.getFields().entrySet()) {
           mergeField(entry.getKey(), entry.getValue());
         }
       }
@@ -419,6 +545,7 @@ public final class UnknownFieldSet implements MessageLite {
       if (number == 0) {
         throw new IllegalArgumentException("Zero is not a valid field number.");
       }
+      decodeRawFields();
       return number == lastFieldNumber || fields.containsKey(number);
     }
 
@@ -430,6 +557,7 @@ public final class UnknownFieldSet implements MessageLite {
       if (number == 0) {
         throw new IllegalArgumentException("Zero is not a valid field number.");
       }
+      decodeRawFields();
       if (lastField != null && lastFieldNumber == number) {
         // Discard this.
         lastField = null;
@@ -472,6 +600,14 @@ public final class UnknownFieldSet implements MessageLite {
      */
     public boolean mergeFieldFrom(final int tag, final CodedInputStream input)
                                   throws IOException {
+      if (input.isRawUnknownFieldsEnabled() && isRaw()) {
+        if (rawOutput == null) {
+          rawOutput = ByteString.newOutput(RAW_OUTPUT_BUFFER_SIZE);
+          rawCodedOutput = CodedOutputStream.newInstance(
+            rawOutput, RAW_OUTPUT_BUFFER_SIZE);
+        }
+        return input.skipField(tag, rawCodedOutput);
+      }
       final int number = WireFormat.getTagFieldNumber(tag);
       switch (WireFormat.getTagWireType(tag)) {
         case WireFormat.WIRETYPE_VARINT:
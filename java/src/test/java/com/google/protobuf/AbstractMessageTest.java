@@ -419,6 +419,31 @@ public class AbstractMessageTest extends TestCase {
     checkEqualsIsConsistent(eUnknownFields, eUnknownFields2);
   }
   
+  public void testGeneratedEqualsAndHashCode() throws Exception {
+    // Generated messages compare and hash their fields directly.  Check that
+    // the result still agrees with the reflection-based implementation for
+    // copies which were built in different ways.
+    TestAllTypes a = TestUtil.getAllSet();
+    TestAllTypes parsed = TestAllTypes.parseFrom(a.toByteArray());
+    checkEqualsIsConsistent(a, parsed);
+    checkEqualsIsConsistent(parsed);
+
+    // Floating point fields compare by bit pattern, like Float.equals().
+    TestAllTypes nan = TestAllTypes.newBuilder()
+        .setOptionalFloat(Float.NaN).setOptionalDouble(Double.NaN).build();
+    checkEqualsIsConsistent(nan);
+    checkEqualsIsConsistent(nan, TestAllTypes.newBuilder(nan).build());
+    checkNotEqual(TestAllTypes.newBuilder().setOptionalDouble(0.0).build(),
+                  TestAllTypes.newBuilder().setOptionalDouble(-0.0).build());
+
+    // A field set to its default value is not equal to an unset field.
+    checkNotEqual(TestAllTypes.newBuilder().setOptionalInt32(0).build(),
+                  TestAllTypes.getDefaultInstance());
+
+    // Subsequent calls return the memoized hash code.
+    assertEquals(a.hashCode(), a.hashCode());
+  }
+
   /**
    * Asserts that the given proto has symetric equals and hashCode methods.
    */
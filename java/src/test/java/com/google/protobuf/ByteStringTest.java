@@ -0,0 +1,410 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link ByteString}, in particular that strings built by
+ * concatenation and substring behave exactly like flat ones.
+ */
+public class ByteStringTest extends TestCase {
+  private static byte[] randomBytes(final Random random, final int size) {
+    final byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] copyOfRange(final byte[] bytes, final int from,
+                                    final int to) {
+    final byte[] result = new byte[to - from];
+    System.arraycopy(bytes, from, result, 0, result.length);
+    return result;
+  }
+
+  /**
+   * Splits {@code bytes} into pieces of random size and concatenates them
+   * one at a time, giving a rope whose contents equal {@code bytes}.
+   */
+  private static ByteString makeRope(final Random random, final byte[] bytes,
+                                     final int maxPieceSize) {
+    ByteString result = ByteString.EMPTY;
+    int pos = 0;
+    while (pos < bytes.length) {
+      final int n = Math.min(bytes.length - pos,
+                             1 + random.nextInt(maxPieceSize));
+      result = result.concat(ByteString.copyFrom(bytes, pos, n));
+      pos += n;
+    }
+    return result;
+  }
+
+  /** Checks every way of reading {@code str} against {@code expected}. */
+  private static void assertContents(final byte[] expected,
+                                     final ByteString str) throws Exception {
+    assertEquals(expected.length, str.size());
+    assertEquals(expected.length == 0, str.isEmpty());
+    assertTrue(Arrays.equals(expected, str.toByteArray()));
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], str.byteAt(i));
+    }
+
+    final ByteString flat = ByteString.copyFrom(expected);
+    assertEquals(flat, str);
+    assertEquals(str, flat);
+    assertEquals(flat.hashCode(), str.hashCode());
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    str.writeTo(out);
+    assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+    int pos = 0;
+    for (ByteBuffer chunk : str.asReadOnlyByteBufferList()) {
+      assertTrue(chunk.isReadOnly());
+      assertTrue(chunk.hasRemaining());
+      while (chunk.hasRemaining()) {
+        assertEquals(expected[pos++], chunk.get());
+      }
+    }
+    assertEquals(expected.length, pos);
+
+    final ByteBuffer buffer = str.asReadOnlyByteBuffer();
+    assertEquals(expected.length, buffer.remaining());
+    final byte[] fromBuffer = new byte[buffer.remaining()];
+    buffer.get(fromBuffer);
+    assertTrue(Arrays.equals(expected, fromBuffer));
+
+    final InputStream input = str.newInput();
+    assertEquals(expected.length, input.available());
+    final byte[] fromInput = new byte[expected.length];
+    pos = 0;
+    while (pos < fromInput.length) {
+      // Mix single-byte and bulk reads.
+      if (pos % 3 == 0) {
+        fromInput[pos++] = (byte) input.read();
+      } else {
+        final int n = input.read(fromInput, pos,
+                                 Math.min(37, fromInput.length - pos));
+        assertTrue(n > 0);
+        pos += n;
+      }
+    }
+    assertTrue(Arrays.equals(expected, fromInput));
+    assertEquals(0, input.available());
+    assertEquals(-1, input.read());
+    assertEquals(-1, input.read(new byte[1], 0, 1));
+
+    final CodedInputStream coded = str.newCodedInput();
+    assertTrue(Arrays.equals(expected, coded.readRawBytes(expected.length)));
+    assertTrue(coded.isAtEnd());
+
+    final ByteString.Output output = ByteString.newOutput();
+    final CodedOutputStream codedOutput =
+        CodedOutputStream.newInstance(output);
+    codedOutput.writeRawBytes(str);
+    codedOutput.flush();
+    assertEquals(flat, output.toByteString());
+  }
+
+  public void testFlat() throws Exception {
+    final Random random = new Random(1);
+    assertContents(new byte[0], ByteString.EMPTY);
+    final byte[] bytes = randomBytes(random, 1000);
+    assertContents(bytes, ByteString.copyFrom(bytes));
+  }
+
+  public void testConcat() throws Exception {
+    final Random random = new Random(2);
+    for (int size : new int[] {1, 100, 127, 128, 129, 1000, 50000}) {
+      for (int maxPieceSize : new int[] {1, 10, 200, 5000}) {
+        final byte[] bytes = randomBytes(random, size);
+        assertContents(bytes, makeRope(random, bytes, maxPieceSize));
+      }
+    }
+  }
+
+  public void testConcatEmpty() throws Exception {
+    final ByteString str = ByteString.copyFromUtf8("foo");
+    assertSame(str, str.concat(ByteString.EMPTY));
+    assertSame(str, ByteString.EMPTY.concat(str));
+  }
+
+  public void testConcatIsBalanced() throws Exception {
+    // Appending one large piece at a time must not produce a tree whose
+    // depth is linear in the number of pieces.
+    final Random random = new Random(3);
+    final byte[] bytes = randomBytes(random, 500 * 1000);
+    ByteString str = ByteString.EMPTY;
+    for (int i = 0; i < bytes.length; i += 500) {
+      str = str.concat(ByteString.copyFrom(bytes, i, 500));
+    }
+    assertTrue(str.getTreeDepth() < 40);
+    assertContents(bytes, str);
+
+    // Prepending as well.
+    str = ByteString.EMPTY;
+    for (int i = bytes.length - 500; i >= 0; i -= 500) {
+      str = ByteString.copyFrom(bytes, i, 500).concat(str);
+    }
+    assertTrue(str.getTreeDepth() < 40);
+    assertContents(bytes, str);
+  }
+
+  public void testConcatShortPiecesAreCopied() throws Exception {
+    // Many tiny appends are merged into leaves rather than making a tree
+    // with a node per byte.
+    final byte[] bytes = new byte[1000];
+    ByteString str = ByteString.EMPTY;
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+      str = str.concat(ByteString.copyFrom(bytes, i, 1));
+    }
+    assertContents(bytes, str);
+    assertTrue(str.asReadOnlyByteBufferList().size() <=
+               bytes.length / (RopeByteString.CONCATENATE_BY_COPY_SIZE / 2));
+  }
+
+  public void testSubstring() throws Exception {
+    final Random random = new Random(4);
+    final byte[] bytes = randomBytes(random, 5000);
+    final ByteString[] strings = {
+      ByteString.copyFrom(bytes),
+      makeRope(random, bytes, 300),
+      makeRope(random, bytes, 3),
+    };
+    for (ByteString str : strings) {
+      assertSame(str, str.substring(0));
+      assertSame(ByteString.EMPTY, str.substring(10, 10));
+      for (int i = 0; i < 50; i++) {
+        final int begin = random.nextInt(bytes.length + 1);
+        final int end = begin + random.nextInt(bytes.length - begin + 1);
+        final ByteString sub = str.substring(begin, end);
+        assertContents(copyOfRange(bytes, begin, end), sub);
+
+        // A substring of a substring.
+        final int begin2 = random.nextInt(sub.size() + 1);
+        assertContents(copyOfRange(bytes, begin + begin2, end),
+                       sub.substring(begin2));
+      }
+    }
+  }
+
+  public void testSubstringOutOfBounds() throws Exception {
+    final ByteString str = ByteString.copyFromUtf8("foo");
+    try {
+      str.substring(-1);
+      fail("Should have thrown an exception.");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      str.substring(2, 1);
+      fail("Should have thrown an exception.");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      str.substring(0, 4);
+      fail("Should have thrown an exception.");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      str.substring(1).byteAt(2);
+      fail("Should have thrown an exception.");
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  public void testCopyTo() throws Exception {
+    final Random random = new Random(5);
+    final byte[] bytes = randomBytes(random, 3000);
+    final ByteString rope = makeRope(random, bytes, 400);
+    final byte[] target = new byte[1000];
+    rope.copyTo(target, 1234, 10, 900);
+    for (int i = 0; i < 900; i++) {
+      assertEquals(bytes[1234 + i], target[10 + i]);
+    }
+    try {
+      rope.copyTo(target, 2500, 0, 600);
+      fail("Should have thrown an exception.");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  public void testEquals() throws Exception {
+    final Random random = new Random(6);
+    final byte[] bytes = randomBytes(random, 2000);
+    final ByteString rope1 = makeRope(random, bytes, 100);
+    final ByteString rope2 = makeRope(random, bytes, 700);
+    assertEquals(rope1, rope2);
+
+    // Differ in the last byte, with and without cached hash codes.
+    final byte[] other = bytes.clone();
+    other[other.length - 1]++;
+    final ByteString rope3 = makeRope(random, other, 100);
+    assertFalse(rope1.equals(rope3));
+    assertFalse(rope3.equals(ByteString.copyFrom(bytes)));
+    rope1.hashCode();
+    rope3.hashCode();
+    assertFalse(rope1.equals(rope3));
+    assertFalse(rope1.equals(rope1.substring(1)));
+    assertFalse(rope1.equals(bytes));
+  }
+
+  public void testCopyFromList() throws Exception {
+    final Random random = new Random(7);
+    final byte[] bytes = randomBytes(random, 100000);
+    final List<ByteString> pieces = new ArrayList<ByteString>();
+    for (int i = 0; i < bytes.length; i += 1000) {
+      pieces.add(ByteString.copyFrom(bytes, i, 1000));
+    }
+    final ByteString str = ByteString.copyFrom(pieces);
+    assertContents(bytes, str);
+    // The pieces are shared, not copied.
+    assertEquals(pieces.size(), str.asReadOnlyByteBufferList().size());
+
+    assertSame(ByteString.EMPTY,
+               ByteString.copyFrom(new ArrayList<ByteString>()));
+    assertSame(pieces.get(0), ByteString.copyFrom(pieces.subList(0, 1)));
+  }
+
+  public void testToStringUtf8() throws Exception {
+    final String text = "Hello, \u00e9\u4e16\u754c!";
+    final byte[] bytes = text.getBytes("UTF-8");
+    final ByteString rope = ByteString.copyFrom(bytes, 0, 5).concat(
+        ByteString.copyFrom(bytes, 5, bytes.length - 5));
+    assertEquals(text, rope.toStringUtf8());
+    assertEquals(text, rope.toString("UTF-8"));
+  }
+
+  public void testParseFromRope() throws Exception {
+    final ByteString serialized = TestUtil.getAllSet().toByteString();
+    final Random random = new Random(8);
+    final ByteString rope = makeRope(random, serialized.toByteArray(), 50);
+    TestUtil.assertAllFieldsSet(
+        protobuf_unittest.UnittestProto.TestAllTypes.parseFrom(rope));
+  }
+
+  /**
+   * Writes {@code bytes} to {@code output} in randomly sized pieces, using
+   * both single-byte and bulk writes.
+   */
+  private static void writeRandomly(final Random random,
+                                    final ByteString.Output output,
+                                    final byte[] bytes) {
+    int pos = 0;
+    while (pos < bytes.length) {
+      if (random.nextInt(4) == 0) {
+        output.write(bytes[pos++]);
+      } else {
+        final int n = Math.min(bytes.length - pos, random.nextInt(3000));
+        output.write(bytes, pos, n);
+        pos += n;
+      }
+    }
+  }
+
+  public void testOutput() throws Exception {
+    final Random random = new Random(9);
+    for (int size : new int[] {0, 1, 31, 32, 33, 1000, 100000, 3000000}) {
+      for (int initialCapacity : new int[] {1, 32, 4096}) {
+        final byte[] bytes = randomBytes(random, size);
+        final ByteString.Output output =
+            ByteString.newOutput(initialCapacity);
+        writeRandomly(random, output, bytes);
+        assertEquals(size, output.size());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.writeTo(out);
+        assertTrue(Arrays.equals(bytes, out.toByteArray()));
+
+        assertContents(bytes, output.toByteString());
+      }
+    }
+  }
+
+  public void testOutputDoesNotFlatten() throws Exception {
+    final Random random = new Random(10);
+    final byte[] bytes =
+        randomBytes(random, 5 * ByteString.Output.MAX_CHUNK_SIZE);
+    final ByteString.Output output = ByteString.newOutput();
+    writeRandomly(random, output, bytes);
+    final ByteString result = output.toByteString();
+    assertContents(bytes, result);
+    final List<ByteBuffer> chunks = result.asReadOnlyByteBufferList();
+    assertTrue(chunks.size() > 5);
+    for (ByteBuffer chunk : chunks) {
+      assertTrue(chunk.remaining() <= ByteString.Output.MAX_CHUNK_SIZE);
+    }
+  }
+
+  public void testOutputContinueAfterToByteString() throws Exception {
+    final Random random = new Random(11);
+    final byte[] bytes = randomBytes(random, 10000);
+    final ByteString.Output output = ByteString.newOutput();
+    final ByteString[] snapshots = new ByteString[10];
+    for (int i = 0; i < snapshots.length; i++) {
+      output.write(bytes, i * 1000, 1000);
+      snapshots[i] = output.toByteString();
+    }
+    // Later writes must not disturb earlier results.
+    for (int i = 0; i < snapshots.length; i++) {
+      assertContents(copyOfRange(bytes, 0, (i + 1) * 1000), snapshots[i]);
+    }
+  }
+
+  public void testOutputReset() throws Exception {
+    final Random random = new Random(12);
+    final ByteString.Output output = ByteString.newOutput();
+    for (int i = 0; i < 5; i++) {
+      final byte[] bytes = randomBytes(random, random.nextInt(50000));
+      writeRandomly(random, output, bytes);
+      final ByteString result = output.toByteString();
+      output.reset();
+      assertEquals(0, output.size());
+      assertEquals(ByteString.EMPTY, output.toByteString());
+      writeRandomly(random, output, randomBytes(random, 1000));
+      assertContents(bytes, result);
+      output.reset();
+    }
+  }
+}
@@ -36,9 +36,17 @@ import protobuf_unittest.UnittestProto.TestRecursiveMessage;
 import junit.framework.TestCase;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Unit test for {@link CodedInputStream}.
@@ -109,6 +117,17 @@ public class CodedInputStreamTest extends TestCase {
       assertTrue(input.isAtEnd());
     }
 
+    // Try with plenty of data after the varint, so that it is decoded
+    // without checking for the end of the buffer.
+    byte[] paddedData = new byte[data.length + 16];
+    System.arraycopy(data, 0, paddedData, 0, data.length);
+    input = CodedInputStream.newInstance(paddedData);
+    assertEquals((int)value, input.readRawVarint32());
+    assertEquals(data.length, input.getTotalBytesRead());
+    input = CodedInputStream.newInstance(paddedData);
+    assertEquals(value, input.readRawVarint64());
+    assertEquals(data.length, input.getTotalBytesRead());
+
     // Try reading direct from an InputStream.  We want to verify that it
     // doesn't read past the end of the input, so we copy to a new, bigger
     // array first.
@@ -243,6 +262,116 @@ public class CodedInputStreamTest extends TestCase {
   }
 
   /** Test decodeZigZag32() and decodeZigZag64(). */
+  /**
+   * Writes one packed field of each type with the one-value-at-a-time
+   * methods, and checks that the bulk readers read it back, whatever the
+   * block size of the underlying stream.
+   */
+  public void testReadPackedFields() throws Exception {
+    Random random = new Random(1);
+    int count = 1000;
+    int[] ints = new int[count];
+    long[] longs = new long[count];
+    float[] floats = new float[count];
+    double[] doubles = new double[count];
+    boolean[] bools = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      // Vary the magnitude, so varints of every length appear.
+      ints[i] = random.nextInt() >> random.nextInt(32);
+      longs[i] = random.nextLong() >> random.nextInt(64);
+      floats[i] = random.nextFloat();
+      doubles[i] = random.nextGaussian();
+      bools[i] = random.nextBoolean();
+    }
+
+    ByteString.Output rawOutput = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(rawOutput);
+    ByteString.Output runOutput = ByteString.newOutput();
+    CodedOutputStream run = CodedOutputStream.newInstance(runOutput);
+    for (int type = 0; type < 9; type++) {
+      runOutput.reset();
+      for (int i = 0; i < count; i++) {
+        switch (type) {
+          case 0: run.writeFixed32NoTag(ints[i]); break;
+          case 1: run.writeFixed64NoTag(longs[i]); break;
+          case 2: run.writeFloatNoTag(floats[i]); break;
+          case 3: run.writeDoubleNoTag(doubles[i]); break;
+          case 4: run.writeInt32NoTag(ints[i]); break;
+          case 5: run.writeInt64NoTag(longs[i]); break;
+          case 6: run.writeSInt32NoTag(ints[i]); break;
+          case 7: run.writeSInt64NoTag(longs[i]); break;
+          case 8: run.writeBoolNoTag(bools[i]); break;
+        }
+      }
+      run.flush();
+      output.writeBytesNoTag(runOutput.toByteString());
+    }
+    output.flush();
+    byte[] data = rawOutput.toByteString().toByteArray();
+
+    for (int blockSize = 1; blockSize <= 8192; blockSize *= 4) {
+      CodedInputStream input = CodedInputStream.newInstance(
+        new SmallBlockInputStream(data, blockSize));
+      IntList intList = new IntList();
+      LongList longList = new LongList();
+      FloatList floatList = new FloatList();
+      DoubleList doubleList = new DoubleList();
+      BooleanList boolList = new BooleanList();
+
+      input.readPackedFixed32s(intList);
+      assertTrue(Arrays.equals(ints, intList.toIntArray()));
+      input.readPackedFixed64s(longList);
+      assertTrue(Arrays.equals(longs, longList.toLongArray()));
+      input.readPackedFloats(floatList);
+      assertTrue(Arrays.equals(floats, floatList.toFloatArray()));
+      input.readPackedDoubles(doubleList);
+      assertTrue(Arrays.equals(doubles, doubleList.toDoubleArray()));
+
+      // The lists are appended to.
+      input.readPackedVarint32s(intList);
+      assertEquals(2 * count, intList.size());
+      assertEquals(ints[count - 1], intList.getInt(2 * count - 1));
+      intList.clear();
+      longList.clear();
+
+      input.readPackedVarint64s(longList);
+      assertTrue(Arrays.equals(longs, longList.toLongArray()));
+      longList.clear();
+      input.readPackedSInt32s(intList);
+      assertTrue(Arrays.equals(ints, intList.toIntArray()));
+      input.readPackedSInt64s(longList);
+      assertTrue(Arrays.equals(longs, longList.toLongArray()));
+      input.readPackedBools(boolList);
+      assertTrue(Arrays.equals(bools, boolList.toBooleanArray()));
+      assertTrue(input.isAtEnd());
+    }
+  }
+
+  public void testReadPackedFieldsTruncated() throws Exception {
+    // The length is not a multiple of the value size.
+    byte[] data = bytes(0x06, 0x01, 0x00, 0x00, 0x00, 0x02, 0x00);
+    try {
+      CodedInputStream.newInstance(data).readPackedFixed32s(new IntList());
+      fail("Should have thrown an exception.");
+    } catch (InvalidProtocolBufferException e) {
+      // expected
+    }
+
+    // The length runs past the end of the input.
+    data = bytes(0x10, 0x01, 0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00);
+    for (int blockSize = 1; blockSize <= 16; blockSize *= 2) {
+      CodedInputStream input = CodedInputStream.newInstance(
+        new SmallBlockInputStream(data, blockSize));
+      DoubleList list = new DoubleList();
+      try {
+        input.readPackedDoubles(list);
+        fail("Should have thrown an exception.");
+      } catch (InvalidProtocolBufferException e) {
+        // expected
+      }
+    }
+  }
+
   public void testDecodeZigZag() throws Exception {
     assertEquals( 0, CodedInputStream.decodeZigZag32(0));
     assertEquals(-1, CodedInputStream.decodeZigZag32(1));
@@ -289,6 +418,84 @@ public class CodedInputStreamTest extends TestCase {
     }
   }
 
+  /**
+   * Returns a ByteBuffer holding {@code data} between its position and limit,
+   * with garbage on either side.
+   */
+  private ByteBuffer makeByteBuffer(byte[] data, boolean direct) {
+    ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(data.length + 6)
+                               : ByteBuffer.allocate(data.length + 6);
+    buffer.put(bytes(0xff, 0xff, 0xff));
+    buffer.put(data);
+    buffer.put(bytes(0xff, 0xff, 0xff));
+    buffer.position(3);
+    buffer.limit(3 + data.length);
+    // Slice it, so that heap buffers have a non-zero array offset.
+    return buffer.slice();
+  }
+
+  /** Tests reading from heap and direct ByteBuffers. */
+  public void testReadFromByteBuffer() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    byte[] rawBytes = message.toByteArray();
+
+    for (boolean direct : new boolean[] { false, true }) {
+      ByteBuffer buffer = makeByteBuffer(rawBytes, direct);
+      CodedInputStream input = CodedInputStream.newInstance(buffer);
+      TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+      builder.mergeFrom(input);
+      TestUtil.assertAllFieldsSet(builder.build());
+      assertTrue(input.isAtEnd());
+      assertEquals(rawBytes.length, input.getTotalBytesRead());
+
+      // The ByteBuffer itself must not have been consumed.
+      assertEquals(0, buffer.position());
+      assertEquals(rawBytes.length, buffer.remaining());
+    }
+  }
+
+  /** Tests limits, varints and blobs when reading from a ByteBuffer. */
+  public void testByteBufferLimitsAndBlobs() throws Exception {
+    byte[] blob = new byte[10000];
+    for (int i = 0; i < blob.length; i++) {
+      blob[i] = (byte) i;
+    }
+    ByteString.Output rawOutput = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(rawOutput);
+    output.writeRawVarint32(300);
+    output.writeBytesNoTag(ByteString.copyFrom(blob));
+    output.writeRawVarint32(2);
+    output.writeRawBytes(bytes(0x96, 0x01));
+    output.flush();
+    byte[] data = rawOutput.toByteString().toByteArray();
+
+    for (boolean direct : new boolean[] { false, true }) {
+      CodedInputStream input =
+        CodedInputStream.newInstance(makeByteBuffer(data, direct));
+      assertEquals(300, input.readRawVarint32());
+      assertEquals(ByteString.copyFrom(blob), input.readBytes());
+
+      int length = input.readRawVarint32();
+      int oldLimit = input.pushLimit(length);
+      assertEquals(2, input.getBytesUntilLimit());
+      assertEquals(150, input.readRawVarint32());
+      assertTrue(input.isAtEnd());
+      input.popLimit(oldLimit);
+      assertTrue(input.isAtEnd());
+
+      // Skipping past the end fails as it does for arrays.
+      input = CodedInputStream.newInstance(makeByteBuffer(data, direct));
+      input.readRawVarint32();
+      input.skipRawBytes(blob.length);
+      try {
+        input.skipRawBytes(data.length);
+        fail("Should have thrown an exception.");
+      } catch (InvalidProtocolBufferException e) {
+        // success.
+      }
+    }
+  }
+
   /** Tests skipField(). */
   public void testSkipWholeMessage() throws Exception {
     TestAllTypes message = TestUtil.getAllSet();
@@ -448,15 +655,122 @@ public class CodedInputStreamTest extends TestCase {
     input.readRawByte();  // No exception thrown.
     input.resetSizeCounter();
     assertEquals(0, input.getTotalBytesRead());
+    input.readRawBytes(16);  // Nothing buffered ahead counts.
+    assertEquals(16, input.getTotalBytesRead());
+    input.resetSizeCounter();
 
     try {
-      input.readRawBytes(16);  // Hits limit again.
+      input.readRawBytes(17);  // Hits limit again.
       fail("Should have thrown an exception!");
     } catch (InvalidProtocolBufferException e) {
       // success.
     }
   }
 
+  public void testReadFromFileChannel() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    File file = File.createTempFile("coded_input_stream_test", ".dat");
+    try {
+      FileOutputStream output = new FileOutputStream(file);
+      try {
+        output.write(new byte[] {1, 2, 3});
+        for (int i = 0; i < 5; i++) {
+          message.writeDelimitedTo(output);
+        }
+      } finally {
+        output.close();
+      }
+      long recordSize =
+        CodedOutputStream.computeRawVarint32Size(message.getSerializedSize()) +
+        message.getSerializedSize();
+
+      FileInputStream fileInput = new FileInputStream(file);
+      try {
+        FileChannel channel = fileInput.getChannel();
+        channel.position(3);
+
+        // Use small windows so that records and skips span several.
+        CodedInputStream input = CodedInputStream.newInstance(channel, 100);
+        // Nothing is buffered ahead past the limit, so it can be exact.
+        input.setSizeLimit((int) recordSize);
+        TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+        for (int i = 0; i < 4; i++) {
+          int oldLimit = input.pushLimit(input.readRawVarint32());
+          TestUtil.assertAllFieldsSet(
+            builder.clearForReuse().mergeFrom(input).build());
+          input.popLimit(oldLimit);
+          assertEquals((i + 1) * recordSize, input.getPosition());
+          assertEquals(recordSize, input.getTotalBytesRead());
+          input.resetSizeCounter();
+        }
+        input.skipRawBytes((int) recordSize);
+        assertEquals(5 * recordSize, input.getPosition());
+        assertTrue(input.isAtEnd());
+        assertEquals(3, channel.position());
+
+        // The size limit is enforced once set.
+        input = CodedInputStream.newInstance(channel, 100);
+        input.setSizeLimit(16);
+        try {
+          input.readRawBytes(32);
+          fail("Should have thrown an exception!");
+        } catch (InvalidProtocolBufferException e) {
+          // success.
+        }
+      } finally {
+        fileInput.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testReadFileLargerThan2GB() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    int gapSize = 1536 << 20;  // 1.5GB
+    ByteString.Output rawHeader = ByteString.newOutput();
+    CodedOutputStream header = CodedOutputStream.newInstance(rawHeader);
+    header.writeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    header.writeRawVarint32(gapSize);
+    header.flush();
+    byte[] gapHeader = rawHeader.toByteString().toByteArray();
+    File file = File.createTempFile("coded_input_stream_test", ".dat");
+    try {
+      // Two length-delimited fields whose contents are never written, so
+      // that the file is sparse on most file systems, then the message.
+      RandomAccessFile output = new RandomAccessFile(file, "rw");
+      try {
+        output.write(gapHeader);
+        output.seek(gapHeader.length + gapSize);
+        output.write(gapHeader);
+        output.seek(2L * (gapHeader.length + gapSize));
+        output.write(message.toByteArray());
+      } finally {
+        output.close();
+      }
+
+      FileInputStream fileInput = new FileInputStream(file);
+      try {
+        CodedInputStream input =
+          CodedInputStream.newInstance(fileInput.getChannel(), 4096);
+        for (int i = 0; i < 2; i++) {
+          assertTrue(input.skipField(input.readTag()));
+        }
+        assertEquals(2L * (gapHeader.length + gapSize), input.getPosition());
+        assertTrue(input.getPosition() > Integer.MAX_VALUE);
+
+        // Nested messages push limits beyond 2GB.
+        TestUtil.assertAllFieldsSet(
+          TestAllTypes.newBuilder().mergeFrom(input).build());
+        assertEquals(file.length(), input.getPosition());
+      } finally {
+        fileInput.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
   /**
    * Tests that if we read an string that contains invalid UTF-8, no exception
    * is thrown.  Instead, the invalid bytes are replaced with the Unicode
@@ -478,6 +792,125 @@ public class CodedInputStreamTest extends TestCase {
     assertEquals(0xfffd, text.charAt(0));
   }
 
+  /**
+   * Writes the given bytes as a length-delimited field, then reads it back
+   * with readString() and checks that the result matches what
+   * {@code new String(bytes, "UTF-8")} produces.
+   */
+  private void assertReadString(byte[] utf8) throws Exception {
+    String expected = new String(utf8, "UTF-8");
+    ByteString.Output rawOutput = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(rawOutput);
+    output.writeRawVarint32(utf8.length);
+    output.writeRawBytes(utf8);
+    output.writeRawByte(0x7f);
+    output.flush();
+    byte[] data = rawOutput.toByteString().toByteArray();
+
+    CodedInputStream input = CodedInputStream.newInstance(data);
+    assertEquals(expected, input.readString());
+    assertEquals(0x7f, input.readRawByte());
+    assertTrue(input.isAtEnd());
+
+    // Try different block sizes, so that sequences straddle refills.
+    for (int blockSize = 1; blockSize <= 16; blockSize *= 2) {
+      input = CodedInputStream.newInstance(
+        new SmallBlockInputStream(data, blockSize));
+      assertEquals(expected, input.readString());
+      assertEquals(0x7f, input.readRawByte());
+      assertTrue(input.isAtEnd());
+    }
+  }
+
+  /** Tests readString() against the JDK's UTF-8 decoder. */
+  public void testReadString() throws Exception {
+    assertReadString("".getBytes("UTF-8"));
+    assertReadString("hello".getBytes("UTF-8"));
+    assertReadString("caf\u00e9 \u00fcber".getBytes("UTF-8"));
+    assertReadString("\u65e5\u672c\u8a9e".getBytes("UTF-8"));
+    assertReadString("\u0080\u07ff\u0800\ud7ff\ue000\uffff".getBytes("UTF-8"));
+    assertReadString("a\ud834\udd1eb\udbff\udfff".getBytes("UTF-8"));
+
+    // Malformed: lone trailing byte, overlong encodings, encoded surrogate,
+    // code point above U+10FFFF, and sequences cut off by the end of the
+    // string.
+    assertReadString(bytes(0x80));
+    assertReadString(bytes(0x61, 0xc0, 0xaf, 0x62));
+    assertReadString(bytes(0xe0, 0x80, 0xaf));
+    assertReadString(bytes(0xed, 0xa0, 0x80));
+    assertReadString(bytes(0xf4, 0x90, 0x80, 0x80));
+    assertReadString(bytes(0x61, 0xe6, 0x97));
+    assertReadString(bytes(0xf0, 0x9d, 0x84));
+
+    // Long strings with a mix of sequence lengths, bigger than the buffer.
+    Random random = new Random(1234);
+    for (int i = 0; i < 20; i++) {
+      StringBuilder builder = new StringBuilder();
+      for (int j = 0; j < 6000; j++) {
+        switch (random.nextInt(4)) {
+          case 0: builder.append((char) random.nextInt(0x80)); break;
+          case 1: builder.append((char) (0x80 + random.nextInt(0x780))); break;
+          case 2: builder.append((char) (0xe000 + random.nextInt(0x2000)));
+                  break;
+          default: builder.append("\ud83d\ude00"); break;
+        }
+      }
+      byte[] utf8 = builder.toString().getBytes("UTF-8");
+      assertReadString(utf8);
+
+      // Corrupt a few bytes.
+      for (int j = 0; j < 3; j++) {
+        utf8[random.nextInt(utf8.length)] = (byte) random.nextInt(256);
+      }
+      assertReadString(utf8);
+    }
+  }
+
+  /** Tests that readBytes() shares the input array when aliasing. */
+  public void testReadBytesAliasing() throws Exception {
+    byte[] data = bytes(0xff, 3, 1, 2, 3, 0, 2, 4, 5);
+
+    CodedInputStream input = CodedInputStream.newInstance(data, 1, 8);
+    input.enableAliasing(true);
+    ByteString first = input.readBytes();
+    ByteString empty = input.readBytes();
+    ByteString second = input.readBytes();
+    assertTrue(input.isAtEnd());
+    assertEquals(ByteString.copyFrom(bytes(1, 2, 3)), first);
+    assertEquals(ByteString.copyFrom(bytes(1, 2, 3)).hashCode(),
+                 first.hashCode());
+    assertTrue(empty.isEmpty());
+    assertEquals(2, second.size());
+    assertEquals(5, second.byteAt(1));
+    try {
+      second.byteAt(2);
+      fail("Should have thrown an exception.");
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // success.
+    }
+
+    // The results point into the input, so (contrary to the contract)
+    // modifying the input changes them.
+    data[3] = 9;
+    assertEquals(9, first.byteAt(1));
+
+    // Reading a view of a view also works.
+    input = first.newCodedInput();
+    assertEquals(1, input.readRawByte());
+    assertEquals(9, input.readRawByte());
+
+    // Without aliasing, results are copies.
+    input = CodedInputStream.newInstance(data, 1, 8);
+    ByteString copy = input.readBytes();
+    data[3] = 2;
+    assertEquals(9, copy.byteAt(1));
+
+    // When reading from an InputStream, results are always copies.
+    input = CodedInputStream.newInstance(new ByteArrayInputStream(data, 1, 8));
+    input.enableAliasing(true);
+    assertEquals(ByteString.copyFrom(bytes(1, 2, 3)), input.readBytes());
+  }
+
   public void testReadFromSlice() throws Exception {
     byte[] bytes = bytes(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
     CodedInputStream in = CodedInputStream.newInstance(bytes, 3, 5);
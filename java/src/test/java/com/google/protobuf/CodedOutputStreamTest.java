@@ -37,8 +37,13 @@ import junit.framework.TestCase;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Unit test for {@link CodedOutputStream}.
@@ -235,6 +240,59 @@ public class CodedOutputStreamTest extends TestCase {
     assertEquals("hello", in.readString());
   }
 
+  /**
+   * Writes the given string using writeStringNoTag() and checks that the
+   * result matches what String.getBytes("UTF-8") produces.
+   */
+  private void assertWriteString(String value) throws Exception {
+    byte[] expected = value.getBytes("UTF-8");
+    assertEquals(expected.length, CodedOutputStream.computeUtf8Length(value));
+    assertEquals(
+      CodedOutputStream.computeRawVarint32Size(expected.length) +
+      expected.length,
+      CodedOutputStream.computeStringSizeNoTag(value));
+
+    // Try writing to a flat array that is exactly big enough.
+    byte[] flat = new byte[CodedOutputStream.computeStringSizeNoTag(value)];
+    CodedOutputStream output = CodedOutputStream.newInstance(flat);
+    output.writeStringNoTag(value);
+    output.checkNoSpaceLeft();
+    CodedInputStream input = CodedInputStream.newInstance(flat);
+    assertEqualBytes(expected, input.readBytes().toByteArray());
+
+    // Try different block sizes, so that the string must be split.
+    for (int blockSize = 1; blockSize <= 16; blockSize *= 2) {
+      ByteArrayOutputStream rawOutput = new ByteArrayOutputStream();
+      output = CodedOutputStream.newInstance(rawOutput, blockSize);
+      output.writeRawByte(0);  // Misalign multi-byte characters.
+      output.writeStringNoTag(value);
+      output.flush();
+      input = CodedInputStream.newInstance(rawOutput.toByteArray());
+      assertEquals(0, input.readRawByte());
+      assertEqualBytes(expected, input.readBytes().toByteArray());
+    }
+  }
+
+  /** Tests writeStringNoTag() and computeStringSizeNoTag(). */
+  public void testWriteString() throws Exception {
+    assertWriteString("");
+    assertWriteString("hello");
+    assertWriteString("caf\u00e9 \u00fcber");
+    assertWriteString("\u65e5\u672c\u8a9e");
+    assertWriteString("\u0000\u007f\u0080\u07ff\u0800\uffff");
+    // Surrogate pair (U+1D11E MUSICAL SYMBOL G CLEF).
+    assertWriteString("a\ud834\udd1eb");
+    // Unpaired surrogates are encoded as '?', like String.getBytes().
+    assertWriteString("\ud834");
+    assertWriteString("\udd1e\ud834x\ud834");
+
+    StringBuilder longString = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      longString.append((char) (i * 13));
+    }
+    assertWriteString(longString.toString());
+  }
+
   /** Test encodeZigZag32() and encodeZigZag64(). */
   public void testEncodeZigZag() throws Exception {
     assertEquals(0, CodedOutputStream.encodeZigZag32( 0));
@@ -315,6 +373,217 @@ public class CodedOutputStreamTest extends TestCase {
     }
   }
 
+  /** Tests writing a whole message into heap and direct ByteBuffers. */
+  public void testWriteToByteBuffer() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    byte[] rawBytes = message.toByteArray();
+
+    for (boolean direct : new boolean[] { false, true }) {
+      ByteBuffer buffer = direct ?
+        ByteBuffer.allocateDirect(rawBytes.length + 10) :
+        ByteBuffer.allocate(rawBytes.length + 10);
+      // Slice, so that heap buffers have a non-zero array offset.
+      buffer.position(3);
+      buffer = buffer.slice();
+      buffer.position(2);
+
+      CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+      message.writeTo(output);
+      output.flush();
+      assertEquals(2 + rawBytes.length, buffer.position());
+
+      byte[] written = new byte[rawBytes.length];
+      buffer.flip();
+      buffer.position(2);
+      buffer.get(written);
+      assertEqualBytes(rawBytes, written);
+
+      // Writing more than fits must fail.
+      buffer = direct ? ByteBuffer.allocateDirect(rawBytes.length - 1) :
+                        ByteBuffer.allocate(rawBytes.length - 1);
+      output = CodedOutputStream.newInstance(buffer);
+      try {
+        message.writeTo(output);
+        output.flush();
+        fail("Should have thrown an exception.");
+      } catch (CodedOutputStream.OutOfSpaceException e) {
+        // success.
+      }
+    }
+  }
+
+  /**
+   * A WritableByteChannel which accepts at most a few bytes per call, like a
+   * non-blocking socket whose send buffer is nearly full.
+   */
+  private static final class TrickleChannel implements WritableByteChannel {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    public int write(ByteBuffer source) {
+      int n = Math.min(3, source.remaining());
+      for (int i = 0; i < n; i++) {
+        output.write(source.get());
+      }
+      return n;
+    }
+
+    public boolean isOpen() {
+      return true;
+    }
+
+    public void close() {
+    }
+  }
+
+  /** Tests writing a whole message to a WritableByteChannel. */
+  public void testWriteToChannel() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    byte[] rawBytes = message.toByteArray();
+
+    for (int blockSize = 1; blockSize < 256; blockSize *= 2) {
+      ByteArrayOutputStream rawOutput = new ByteArrayOutputStream();
+      CodedOutputStream output = CodedOutputStream.newInstance(
+        Channels.newChannel(rawOutput), blockSize);
+      message.writeTo(output);
+      output.flush();
+      assertEqualBytes(rawBytes, rawOutput.toByteArray());
+
+      TrickleChannel channel = new TrickleChannel();
+      output = CodedOutputStream.newInstance(channel, blockSize);
+      message.writeTo(output);
+      output.flush();
+      assertEqualBytes(rawBytes, channel.output.toByteArray());
+    }
+  }
+
+  /** Tests that writing to a non-blocking channel fails instead of spinning. */
+  public void testWriteToNonBlockingChannel() throws Exception {
+    Pipe pipe = Pipe.open();
+    try {
+      pipe.sink().configureBlocking(false);
+      try {
+        CodedOutputStream.newInstance(pipe.sink(), 16);
+        fail("Should have thrown an exception.");
+      } catch (IllegalArgumentException e) {
+        // success.
+      }
+    } finally {
+      pipe.sink().close();
+      pipe.source().close();
+    }
+
+    // A channel which accepts nothing, like a non-blocking socket whose send
+    // buffer is full.
+    WritableByteChannel fullChannel = new WritableByteChannel() {
+      public int write(ByteBuffer source) {
+        return 0;
+      }
+      public boolean isOpen() {
+        return true;
+      }
+      public void close() {
+      }
+    };
+    CodedOutputStream output = CodedOutputStream.newInstance(fullChannel, 16);
+    output.writeRawVarint32(1);
+    try {
+      output.flush();
+      fail("Should have thrown an exception.");
+    } catch (IOException e) {
+      // success.
+    }
+  }
+
+  /**
+   * Checks that each bulk writer for packed fields writes the same bytes as
+   * the corresponding one-value-at-a-time method, whatever the buffer size.
+   */
+  public void testWritePackedFields() throws Exception {
+    Random random = new Random(1);
+    int count = 1000;
+    IntList ints = new IntList();
+    LongList longs = new LongList();
+    FloatList floats = new FloatList();
+    DoubleList doubles = new DoubleList();
+    BooleanList bools = new BooleanList();
+    for (int i = 0; i < count; i++) {
+      // Vary the magnitude, so varints of every length appear.
+      ints.addInt(random.nextInt() >> random.nextInt(32));
+      longs.addLong(random.nextLong() >> random.nextInt(64));
+      floats.addFloat(random.nextFloat());
+      doubles.addDouble(random.nextGaussian());
+      bools.addBoolean(random.nextBoolean());
+    }
+
+    ByteArrayOutputStream expectedOutput = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(expectedOutput);
+    for (int i = 0; i < count; i++) {
+      output.writeFixed32NoTag(ints.getInt(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeFixed64NoTag(longs.getLong(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeFloatNoTag(floats.getFloat(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeDoubleNoTag(doubles.getDouble(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeInt32NoTag(ints.getInt(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeUInt32NoTag(ints.getInt(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeSInt32NoTag(ints.getInt(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeInt64NoTag(longs.getLong(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeSInt64NoTag(longs.getLong(i));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeBoolNoTag(bools.getBoolean(i));
+    }
+    output.flush();
+    byte[] expected = expectedOutput.toByteArray();
+
+    for (int bufferSize = 1; bufferSize <= 8192; bufferSize *= 4) {
+      ByteArrayOutputStream rawOutput = new ByteArrayOutputStream();
+      output = CodedOutputStream.newInstance(rawOutput, bufferSize);
+      output.writeFixed32sNoTag(ints);
+      output.writeFixed64sNoTag(longs);
+      output.writeFloatsNoTag(floats);
+      output.writeDoublesNoTag(doubles);
+      output.writeInt32sNoTag(ints);
+      output.writeUInt32sNoTag(ints);
+      output.writeSInt32sNoTag(ints);
+      output.writeInt64sNoTag(longs);
+      output.writeSInt64sNoTag(longs);
+      output.writeBoolsNoTag(bools);
+      output.flush();
+      assertEqualBytes(expected, rawOutput.toByteArray());
+    }
+
+    // Into a flat array, which must have exactly enough room.
+    byte[] flat = new byte[expected.length];
+    output = CodedOutputStream.newInstance(flat);
+    output.writeFixed32sNoTag(ints);
+    output.writeFixed64sNoTag(longs);
+    output.writeFloatsNoTag(floats);
+    output.writeDoublesNoTag(doubles);
+    output.writeInt32sNoTag(ints);
+    output.writeUInt32sNoTag(ints);
+    output.writeSInt32sNoTag(ints);
+    output.writeInt64sNoTag(longs);
+    output.writeSInt64sNoTag(longs);
+    output.writeBoolsNoTag(bools);
+    output.checkNoSpaceLeft();
+    assertEqualBytes(expected, flat);
+  }
+
   /** Tests writing a whole message with every packed field type. Ensures the
    * wire format of packed fields is compatible with C++. */
   public void testWriteWholePackedFieldsMessage() throws Exception {
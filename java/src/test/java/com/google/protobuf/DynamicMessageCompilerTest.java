@@ -0,0 +1,296 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import protobuf_unittest.UnittestMset.TestMessageSet;
+import protobuf_unittest.UnittestProto.TestAllExtensions;
+import protobuf_unittest.UnittestProto.TestAllTypes;
+import protobuf_unittest.UnittestProto.TestEmptyMessage;
+import protobuf_unittest.UnittestProto.TestPackedTypes;
+import protobuf_unittest.UnittestProto.TestRecursiveMessage;
+import protobuf_unittest.UnittestProto.TestRequired;
+import protobuf_unittest.UnittestProto.TestRequiredForeign;
+import protobuf_unittest.UnittestProto.TestUnpackedTypes;
+
+import junit.framework.TestCase;
+import java.util.Arrays;
+
+/**
+ * Unit test for {@link DynamicMessageCompiler} and {@link CompiledMessage}.
+ */
+public class DynamicMessageCompilerTest extends TestCase {
+  TestUtil.ReflectionTester reflectionTester =
+    new TestUtil.ReflectionTester(TestAllTypes.getDescriptor(), null);
+  TestUtil.ReflectionTester packedReflectionTester =
+    new TestUtil.ReflectionTester(TestPackedTypes.getDescriptor(), null);
+
+  DynamicMessageCompiler compiler = new DynamicMessageCompiler();
+
+  private Message.Builder newBuilder(Descriptor type) {
+    return compiler.compile(type).newBuilderForType();
+  }
+
+  public void testCompileOnce() throws Exception {
+    Message message = compiler.compile(TestAllTypes.getDescriptor());
+    assertSame(message, compiler.compile(TestAllTypes.getDescriptor()));
+    assertSame(message, message.getDefaultInstanceForType());
+    // Each compiler has classes of its own.
+    Message other =
+      new DynamicMessageCompiler().compile(TestAllTypes.getDescriptor());
+    assertNotSame(message.getClass(), other.getClass());
+    assertNotSame(message.getClass().getClassLoader(),
+                  other.getClass().getClassLoader());
+  }
+
+  public void testAccessors() throws Exception {
+    Message.Builder builder = newBuilder(TestAllTypes.getDescriptor());
+    reflectionTester.setAllFieldsViaReflection(builder);
+    Message message = builder.build();
+    reflectionTester.assertAllFieldsSetViaReflection(message);
+  }
+
+  public void testDefaults() throws Exception {
+    reflectionTester.assertClearViaReflection(
+      compiler.compile(TestAllTypes.getDescriptor()));
+    reflectionTester.assertClearViaReflection(
+      newBuilder(TestAllTypes.getDescriptor()).build());
+  }
+
+  public void testClear() throws Exception {
+    Message.Builder builder = newBuilder(TestAllTypes.getDescriptor());
+    reflectionTester.setAllFieldsViaReflection(builder);
+    for (FieldDescriptor field : TestAllTypes.getDescriptor().getFields()) {
+      builder.clearField(field);
+    }
+    reflectionTester.assertClearViaReflection(builder.build());
+  }
+
+  public void testDoubleBuildError() throws Exception {
+    Message.Builder builder = newBuilder(TestAllTypes.getDescriptor());
+    builder.build();
+    try {
+      builder.build();
+      fail("Should have thrown exception.");
+    } catch (IllegalStateException e) {
+      // Success.
+    }
+  }
+
+  public void testClearForReuseAfterBuild() throws Exception {
+    Message.Builder builder = newBuilder(TestAllTypes.getDescriptor());
+    reflectionTester.setAllFieldsViaReflection(builder);
+    Message message = builder.build();
+    builder.clearForReuse().mergeFrom(message.toByteString());
+    reflectionTester.assertAllFieldsSetViaReflection(builder.build());
+    reflectionTester.assertClearViaReflection(
+      builder.clearForReuse().build());
+    reflectionTester.assertAllFieldsSetViaReflection(message);
+  }
+
+  public void testSettersRejectNull() throws Exception {
+    Message.Builder builder = newBuilder(TestAllTypes.getDescriptor());
+    reflectionTester.assertReflectionSettersRejectNull(builder);
+    reflectionTester.assertReflectionRepeatedSettersRejectNull(builder);
+  }
+
+  public void testSettersRejectWrongType() throws Exception {
+    Message.Builder builder = newBuilder(TestAllTypes.getDescriptor());
+    FieldDescriptor int32Field =
+      TestAllTypes.getDescriptor().findFieldByName("optional_int32");
+    FieldDescriptor messageField =
+      TestAllTypes.getDescriptor().findFieldByName("optional_nested_message");
+    try {
+      builder.setField(int32Field, 1L);
+      fail("Should have thrown exception.");
+    } catch (IllegalArgumentException e) {
+      // Success.
+    }
+    try {
+      builder.setField(messageField, TestRequired.getDefaultInstance());
+      fail("Should have thrown exception.");
+    } catch (IllegalArgumentException e) {
+      // Success.
+    }
+  }
+
+  public void testRepeatedSetters() throws Exception {
+    Message.Builder builder = newBuilder(TestAllTypes.getDescriptor());
+    reflectionTester.setAllFieldsViaReflection(builder);
+    reflectionTester.modifyRepeatedFieldsViaReflection(builder);
+    Message message = builder.build();
+    reflectionTester.assertRepeatedFieldsModifiedViaReflection(message);
+  }
+
+  public void testSerialization() throws Exception {
+    Message.Builder builder = newBuilder(TestAllTypes.getDescriptor());
+    reflectionTester.setAllFieldsViaReflection(builder);
+    Message message = builder.build();
+
+    ByteString rawBytes = message.toByteString();
+    TestUtil.assertAllFieldsSet(TestAllTypes.parseFrom(rawBytes));
+
+    // In fact, the serialized forms should be exactly the same, byte-for-byte.
+    assertEquals(TestUtil.getAllSet().toByteString(), rawBytes);
+    assertEquals(TestUtil.getAllSet().getSerializedSize(),
+                 message.getSerializedSize());
+  }
+
+  public void testParsing() throws Exception {
+    ByteString rawBytes = TestUtil.getAllSet().toByteString();
+    Message message =
+      newBuilder(TestAllTypes.getDescriptor()).mergeFrom(rawBytes).build();
+    reflectionTester.assertAllFieldsSetViaReflection(message);
+    assertEquals(rawBytes, message.toByteString());
+    assertEquals(
+      DynamicMessage.parseFrom(TestAllTypes.getDescriptor(), rawBytes),
+      message);
+  }
+
+  public void testMerge() throws Exception {
+    ByteString rawBytes = TestUtil.getAllSet().toByteString();
+    Message message =
+      newBuilder(TestAllTypes.getDescriptor()).mergeFrom(rawBytes).build();
+    Message merged = message.toBuilder().mergeFrom(message).build();
+    assertEquals(
+      TestAllTypes.newBuilder().mergeFrom(rawBytes).mergeFrom(rawBytes)
+        .build().toByteString(),
+      merged.toByteString());
+    // Parsing the same bytes twice merges the same way.
+    assertEquals(
+      merged.toByteString(),
+      message.toBuilder().mergeFrom(rawBytes).build().toByteString());
+  }
+
+  public void testPackedSerialization() throws Exception {
+    Message.Builder builder = newBuilder(TestPackedTypes.getDescriptor());
+    packedReflectionTester.setPackedFieldsViaReflection(builder);
+    Message message = builder.build();
+    assertEquals(TestUtil.getPackedSet().toByteString(),
+                 message.toByteString());
+  }
+
+  public void testParsesEitherPackedForm() throws Exception {
+    Message packed = newBuilder(TestPackedTypes.getDescriptor())
+      .mergeFrom(TestUtil.getUnpackedSet().toByteString()).build();
+    packedReflectionTester.assertPackedFieldsSetViaReflection(packed);
+
+    Message unpacked = newBuilder(TestUnpackedTypes.getDescriptor())
+      .mergeFrom(TestUtil.getPackedSet().toByteString()).build();
+    assertEquals(TestUtil.getUnpackedSet().toByteString(),
+                 unpacked.toByteString());
+  }
+
+  public void testUnknownEnumValue() throws Exception {
+    // optional_nested_enum is field 21; 12345 is not a valid NestedEnum.
+    ByteString.Output rawBytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(rawBytes);
+    output.writeInt32(21, 12345);
+    output.writeInt32(1, 101);
+    output.flush();
+
+    Message message = newBuilder(TestAllTypes.getDescriptor())
+      .mergeFrom(rawBytes.toByteString()).build();
+    FieldDescriptor enumField =
+        TestAllTypes.getDescriptor().findFieldByNumber(21);
+    assertFalse(message.hasField(enumField));
+    assertEquals(Arrays.asList(12345L),
+        message.getUnknownFields().getField(21).getVarintList());
+    assertEquals(101, message.getField(
+        TestAllTypes.getDescriptor().findFieldByNumber(1)));
+  }
+
+  public void testUnknownFields() throws Exception {
+    // Everything is unknown to TestEmptyMessage.
+    ByteString rawBytes = TestUtil.getAllSet().toByteString();
+    Message message = newBuilder(TestEmptyMessage.getDescriptor())
+      .mergeFrom(rawBytes).build();
+    assertEquals(TestEmptyMessage.parseFrom(rawBytes).getUnknownFields(),
+                 message.getUnknownFields());
+    assertEquals(rawBytes, message.toByteString());
+  }
+
+  public void testExtensionsKeptAsUnknownFields() throws Exception {
+    ByteString rawBytes = TestUtil.getAllExtensionsSet().toByteString();
+    Message message = newBuilder(TestAllExtensions.getDescriptor())
+      .mergeFrom(rawBytes, TestUtil.getExtensionRegistry()).build();
+    assertTrue(message.getAllFields().isEmpty());
+    assertEquals(rawBytes, message.toByteString());
+  }
+
+  public void testRecursiveMessage() throws Exception {
+    TestRecursiveMessage expected = TestRecursiveMessage.newBuilder()
+      .setI(1)
+      .setA(TestRecursiveMessage.newBuilder()
+        .setI(2)
+        .setA(TestRecursiveMessage.newBuilder().setI(3)))
+      .build();
+    Message message = newBuilder(TestRecursiveMessage.getDescriptor())
+      .mergeFrom(expected.toByteString()).build();
+    assertEquals(expected.toByteString(), message.toByteString());
+    assertEquals(expected.toString(), message.toString());
+  }
+
+  public void testRequired() throws Exception {
+    Message.Builder builder = newBuilder(TestRequiredForeign.getDescriptor());
+    assertTrue(builder.isInitialized());
+
+    FieldDescriptor messageField =
+      TestRequiredForeign.getDescriptor().findFieldByName("optional_message");
+    builder.setField(messageField,
+        newBuilder(TestRequired.getDescriptor()).buildPartial());
+    assertFalse(builder.isInitialized());
+    try {
+      builder.build();
+      fail("Should have thrown exception.");
+    } catch (UninitializedMessageException e) {
+      // Success.
+    }
+
+    builder.setField(messageField,
+        newBuilder(TestRequired.getDescriptor())
+          .mergeFrom(TestRequired.newBuilder().setA(1).setB(2).setC(3)
+                       .build().toByteString())
+          .build());
+    assertTrue(builder.isInitialized());
+    assertTrue(builder.build().isInitialized());
+  }
+
+  public void testMessageSetRejected() throws Exception {
+    try {
+      compiler.compile(TestMessageSet.getDescriptor());
+      fail("Should have thrown exception.");
+    } catch (IllegalArgumentException e) {
+      // Success.
+    }
+  }
+}
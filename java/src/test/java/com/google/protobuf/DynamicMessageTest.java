@@ -30,9 +30,13 @@
 
 package com.google.protobuf;
 
+import com.google.protobuf.Descriptors.FieldDescriptor;
 import protobuf_unittest.UnittestProto.TestAllTypes;
 import protobuf_unittest.UnittestProto.TestAllExtensions;
 import protobuf_unittest.UnittestProto.TestPackedTypes;
+import protobuf_unittest.UnittestProto.TestRequired;
+import protobuf_unittest.UnittestProto.TestRequiredForeign;
+import protobuf_unittest.UnittestProto.TestUnpackedTypes;
 
 import junit.framework.TestCase;
 import java.util.Arrays;
@@ -85,6 +89,18 @@ public class DynamicMessageTest extends TestCase {
     }
   }
 
+  public void testClearForReuseAfterBuild() throws Exception {
+    Message.Builder builder =
+      DynamicMessage.newBuilder(TestAllTypes.getDescriptor());
+    reflectionTester.setAllFieldsViaReflection(builder);
+    Message message = builder.build();
+    builder.clearForReuse().mergeFrom(message.toByteString());
+    reflectionTester.assertAllFieldsSetViaReflection(builder.build());
+    reflectionTester.assertClearViaReflection(
+      builder.clearForReuse().build());
+    reflectionTester.assertAllFieldsSetViaReflection(message);
+  }
+
   public void testDynamicMessageSettersRejectNull() throws Exception {
     Message.Builder builder =
       DynamicMessage.newBuilder(TestAllTypes.getDescriptor());
@@ -196,6 +212,73 @@ public class DynamicMessageTest extends TestCase {
     packedReflectionTester.assertPackedFieldsSetViaReflection(message2);
   }
 
+  public void testDynamicMessageExtensionParsing() throws Exception {
+    ByteString rawBytes = TestUtil.getAllExtensionsSet().toByteString();
+
+    Message message = DynamicMessage.parseFrom(
+        TestAllExtensions.getDescriptor(), rawBytes,
+        TestUtil.getExtensionRegistry());
+    extensionsReflectionTester.assertAllFieldsSetViaReflection(message);
+    assertEquals(rawBytes, message.toByteString());
+  }
+
+  public void testDynamicMessageParsesEitherPackedForm() throws Exception {
+    // Repeated primitive fields accept both the packed and the unpacked
+    // encoding, whichever one they were declared with.
+    Message packed = DynamicMessage.parseFrom(
+        TestPackedTypes.getDescriptor(),
+        TestUtil.getUnpackedSet().toByteString());
+    packedReflectionTester.assertPackedFieldsSetViaReflection(packed);
+
+    Message unpacked = DynamicMessage.parseFrom(
+        TestUnpackedTypes.getDescriptor(),
+        TestUtil.getPackedSet().toByteString());
+    assertEquals(TestUtil.getUnpackedSet().toByteString(),
+                 unpacked.toByteString());
+  }
+
+  public void testDynamicMessageUnknownEnumValue() throws Exception {
+    // optional_nested_enum is field 21; 12345 is not a valid NestedEnum.
+    ByteString.Output rawBytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(rawBytes);
+    output.writeInt32(21, 12345);
+    output.writeInt32(1, 101);
+    output.flush();
+
+    DynamicMessage message = DynamicMessage.parseFrom(
+        TestAllTypes.getDescriptor(), rawBytes.toByteString());
+    FieldDescriptor enumField =
+        TestAllTypes.getDescriptor().findFieldByNumber(21);
+    assertFalse(message.hasField(enumField));
+    assertEquals(Arrays.asList(12345L),
+        message.getUnknownFields().getField(21).getVarintList());
+    assertEquals(101, message.getField(
+        TestAllTypes.getDescriptor().findFieldByNumber(1)));
+  }
+
+  public void testDynamicMessageNestedUninitialized() throws Exception {
+    // Embedded messages are parsed partially, like generated code does, and
+    // only the outermost message is checked.
+    TestRequiredForeign message = TestRequiredForeign.newBuilder()
+        .setOptionalMessage(TestRequired.newBuilder().setA(1).buildPartial())
+        .buildPartial();
+    ByteString rawBytes = message.toByteString();
+
+    DynamicMessage partial =
+        DynamicMessage.newBuilder(TestRequiredForeign.getDescriptor())
+            .mergeFrom(rawBytes).buildPartial();
+    assertFalse(partial.isInitialized());
+    assertFalse(partial.isInitialized());
+    assertEquals(rawBytes, partial.toByteString());
+
+    try {
+      DynamicMessage.parseFrom(TestRequiredForeign.getDescriptor(), rawBytes);
+      fail("Should have thrown an exception.");
+    } catch (InvalidProtocolBufferException e) {
+      // Expected.
+    }
+  }
+
   public void testDynamicMessageCopy() throws Exception {
     TestAllTypes.Builder builder = TestAllTypes.newBuilder();
     TestUtil.setAllFields(builder);
@@ -0,0 +1,200 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Tests for {@link FieldArrayMap}, which must behave like the TreeMap that
+ * {@link FieldSet} used to keep its fields in.
+ */
+public class FieldArrayMapTest extends TestCase {
+  // Field numbers on both sides of the dense region's limit, in no
+  // particular order.
+  private static final int[] NUMBERS =
+    { 1000, 3, 128, 127, 1, 536870911, 64, 129, 2, 19999 };
+
+  private Descriptor descriptor;
+
+  @Override
+  protected void setUp() throws Exception {
+    final DescriptorProto.Builder message =
+        DescriptorProto.newBuilder().setName("Foo");
+    for (final int number : NUMBERS) {
+      message.addField(FieldDescriptorProto.newBuilder()
+          .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+          .setType(FieldDescriptorProto.Type.TYPE_INT32)
+          .setName("field" + number)
+          .setNumber(number));
+    }
+    final FileDescriptor file = FileDescriptor.buildFrom(
+        FileDescriptorProto.newBuilder()
+            .setName("foo.proto").addMessageType(message).build(),
+        new FileDescriptor[0]);
+    descriptor = file.findMessageTypeByName("Foo");
+  }
+
+  private FieldDescriptor field(final int number) {
+    return descriptor.findFieldByNumber(number);
+  }
+
+  private static List<Integer> numbersOf(final Map<FieldDescriptor, ?> map) {
+    final List<Integer> numbers = new ArrayList<Integer>();
+    for (final FieldDescriptor field : map.keySet()) {
+      numbers.add(field.getNumber());
+    }
+    return numbers;
+  }
+
+  public void testIteratesInOrderOfNumber() throws Exception {
+    final FieldArrayMap<FieldDescriptor> map =
+        new FieldArrayMap<FieldDescriptor>();
+    final TreeMap<FieldDescriptor, Object> expected =
+        new TreeMap<FieldDescriptor, Object>();
+    for (final int number : NUMBERS) {
+      assertNull(map.put(field(number), number));
+      expected.put(field(number), number);
+    }
+    assertEquals(NUMBERS.length, map.size());
+    assertEquals(numbersOf(expected), numbersOf(map));
+    assertEquals(expected, map);
+    assertEquals(map, expected);
+    assertEquals(expected.hashCode(), map.hashCode());
+
+    for (final int number : NUMBERS) {
+      assertEquals(number, map.get(field(number)));
+      assertTrue(map.containsKey(field(number)));
+    }
+    assertNull(map.get("not a field"));
+  }
+
+  public void testBehavesLikeTreeMap() throws Exception {
+    final FieldArrayMap<FieldDescriptor> map =
+        new FieldArrayMap<FieldDescriptor>();
+    final TreeMap<FieldDescriptor, Object> expected =
+        new TreeMap<FieldDescriptor, Object>();
+    final Random random = new Random(1234);
+    for (int i = 0; i < 1000; i++) {
+      final FieldDescriptor key =
+          field(NUMBERS[random.nextInt(NUMBERS.length)]);
+      switch (random.nextInt(3)) {
+        case 0:
+        case 1:
+          assertEquals(expected.put(key, i), map.put(key, i));
+          break;
+        default:
+          assertEquals(expected.remove(key), map.remove(key));
+          break;
+      }
+      assertEquals(expected.size(), map.size());
+      assertEquals(expected.get(key), map.get(key));
+    }
+    assertEquals(numbersOf(expected), numbersOf(map));
+    assertEquals(expected, map);
+  }
+
+  public void testModifyWhileIterating() throws Exception {
+    final FieldArrayMap<FieldDescriptor> map =
+        new FieldArrayMap<FieldDescriptor>();
+    for (final int number : NUMBERS) {
+      map.put(field(number), number);
+    }
+
+    // Replacing values is allowed while iterating, as FieldSet does when it
+    // makes its repeated fields immutable.
+    for (final Map.Entry<FieldDescriptor, Object> entry : map.entrySet()) {
+      map.put(entry.getKey(), -entry.getKey().getNumber());
+    }
+    for (final int number : NUMBERS) {
+      assertEquals(-number, map.get(field(number)));
+    }
+
+    // Remove every other field, from both regions, through the iterator.
+    final List<Integer> kept = new ArrayList<Integer>();
+    final Iterator<Map.Entry<FieldDescriptor, Object>> iterator =
+        map.entrySet().iterator();
+    boolean remove = true;
+    while (iterator.hasNext()) {
+      final Map.Entry<FieldDescriptor, Object> entry = iterator.next();
+      if (remove) {
+        iterator.remove();
+      } else {
+        kept.add(entry.getKey().getNumber());
+      }
+      remove = !remove;
+    }
+    assertEquals(kept, numbersOf(map));
+
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertFalse(map.entrySet().iterator().hasNext());
+    map.put(field(536870911), 1);
+    map.put(field(1), 2);
+    assertEquals(2, map.size());
+    assertEquals(2, map.get(field(1)));
+  }
+
+  public void testDynamicMessageSerializesInOrder() throws Exception {
+    // Fields set in any order must still be written in canonical order.
+    final DynamicMessage.Builder builder =
+        DynamicMessage.newBuilder(descriptor);
+    final TreeMap<Integer, Integer> sorted = new TreeMap<Integer, Integer>();
+    for (final int number : NUMBERS) {
+      builder.setField(field(number), number);
+      sorted.put(number, number);
+    }
+    final DynamicMessage message = builder.build();
+
+    final ByteString.Output bytes = ByteString.newOutput();
+    final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    for (final int number : sorted.keySet()) {
+      output.writeInt32(number, number);
+    }
+    output.flush();
+    assertEquals(bytes.toByteString(), message.toByteString());
+    assertEquals(message,
+        DynamicMessage.parseFrom(descriptor, message.toByteString()));
+  }
+}
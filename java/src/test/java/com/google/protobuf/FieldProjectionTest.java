@@ -0,0 +1,246 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import protobuf_unittest.UnittestProto.ForeignMessage;
+import protobuf_unittest.UnittestProto.TestAllTypes;
+import protobuf_unittest.UnittestProto.TestRequired;
+import protobuf_unittest.UnittestProto.TestRequiredForeign;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link FieldProjection}.
+ */
+public class FieldProjectionTest extends TestCase {
+  private static final FieldProjection PROJECTION =
+    FieldProjection.newBuilder(TestAllTypes.getDescriptor())
+      .addPath("optional_int32")
+      .addPath("optional_string")
+      .addPath("optional_nested_message.bb")
+      .addPath("repeated_foreign_message.c")
+      .addPath("repeatedgroup.a")
+      .addPath("repeated_int64")
+      .build();
+
+  private static TestAllTypes getProjectedAllSet() {
+    TestAllTypes message = TestUtil.getAllSet();
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder()
+      .setOptionalInt32(message.getOptionalInt32())
+      .setOptionalString(message.getOptionalString())
+      .setOptionalNestedMessage(message.getOptionalNestedMessage())
+      .addAllRepeatedInt64(message.getRepeatedInt64List());
+    for (ForeignMessage element : message.getRepeatedForeignMessageList()) {
+      builder.addRepeatedForeignMessage(element);
+    }
+    for (TestAllTypes.RepeatedGroup element : message.getRepeatedGroupList()) {
+      builder.addRepeatedGroup(element);
+    }
+    return builder.build();
+  }
+
+  public void testMergeFrom() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    PROJECTION.mergeFrom(TestUtil.getAllSet().toByteString().newCodedInput(),
+                         builder);
+    TestAllTypes message = builder.build();
+    assertEquals(getProjectedAllSet(), message);
+    assertEquals(0, message.getUnknownFields().asMap().size());
+  }
+
+  public void testMergeFromDynamic() throws Exception {
+    DynamicMessage.Builder builder =
+      DynamicMessage.newBuilder(TestAllTypes.getDescriptor());
+    PROJECTION.mergeFrom(TestUtil.getAllSet().toByteString().newCodedInput(),
+                         builder);
+    assertEquals(getProjectedAllSet().toByteString(),
+                 builder.build().toByteString());
+  }
+
+  public void testMergeFromPacked() throws Exception {
+    FieldProjection projection =
+      FieldProjection.newBuilder(TestAllTypes.getDescriptor())
+        .addPath("repeated_int32")
+        .build();
+    // Field 31 in packed form, after fields which should be skipped.
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    TestUtil.getPackedSet().writeTo(output);
+    output.writeTag(31, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeRawVarint32(2);
+    output.writeInt32NoTag(5);
+    output.writeInt32NoTag(6);
+    output.flush();
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    projection.mergeFrom(bytes.toByteString().newCodedInput(), builder);
+    assertEquals(2, builder.getRepeatedInt32Count());
+    assertEquals(5, builder.getRepeatedInt32(0));
+    assertEquals(6, builder.getRepeatedInt32(1));
+  }
+
+  public void testGroupContainingItsOwnNumber() throws Exception {
+    // message Outer {
+    //   optional group G = 1 { optional int32 x = 1; }
+    //   optional int32 y = 2;
+    // }
+    // The end-group tag of g has the same number as x.
+    FileDescriptor file = FileDescriptor.buildFrom(
+      FileDescriptorProto.newBuilder()
+        .setName("outer.proto")
+        .addMessageType(DescriptorProto.newBuilder()
+          .setName("Outer")
+          .addNestedType(DescriptorProto.newBuilder()
+            .setName("G")
+            .addField(FieldDescriptorProto.newBuilder()
+              .setName("x").setNumber(1)
+              .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+              .setType(FieldDescriptorProto.Type.TYPE_INT32)))
+          .addField(FieldDescriptorProto.newBuilder()
+            .setName("g").setNumber(1)
+            .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+            .setType(FieldDescriptorProto.Type.TYPE_GROUP)
+            .setTypeName(".Outer.G"))
+          .addField(FieldDescriptorProto.newBuilder()
+            .setName("y").setNumber(2)
+            .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+            .setType(FieldDescriptorProto.Type.TYPE_INT32)))
+        .build(),
+      new FileDescriptor[0]);
+    Descriptor outer = file.findMessageTypeByName("Outer");
+    Descriptor group = outer.findNestedTypeByName("G");
+
+    DynamicMessage message = DynamicMessage.newBuilder(outer)
+      .setField(outer.findFieldByName("g"),
+        DynamicMessage.newBuilder(group)
+          .setField(group.findFieldByName("x"), 5)
+          .build())
+      .setField(outer.findFieldByName("y"), 7)
+      .build();
+
+    FieldProjection projection = FieldProjection.newBuilder(outer)
+      .addPath("g.x")
+      .addPath("y")
+      .build();
+    DynamicMessage.Builder builder = DynamicMessage.newBuilder(outer);
+    projection.mergeFrom(message.toByteString().newCodedInput(), builder);
+    assertEquals(message, builder.build());
+
+    // With y not selected, it is skipped after the group ends.
+    projection = FieldProjection.newBuilder(outer).addPath("g.x").build();
+    builder = DynamicMessage.newBuilder(outer);
+    projection.mergeFrom(message.toByteString().newCodedInput(), builder);
+    DynamicMessage result = builder.build();
+    assertEquals(message.getField(outer.findFieldByName("g")),
+                 result.getField(outer.findFieldByName("g")));
+    assertFalse(result.hasField(outer.findFieldByName("y")));
+  }
+
+  public void testWholeFieldWins() throws Exception {
+    FieldProjection projection =
+      FieldProjection.newBuilder(TestAllTypes.getDescriptor())
+        .addPath("optional_foreign_message.c")
+        .addPath("optional_foreign_message")
+        .addPath("optional_foreign_message.c")
+        .build();
+    assertNull(projection.getChild(
+      TestAllTypes.getDescriptor().findFieldByName(
+        "optional_foreign_message")));
+    assertTrue(projection.isSelected(
+      TestAllTypes.getDescriptor().findFieldByName(
+        "optional_foreign_message")));
+    assertFalse(projection.isSelected(
+      TestAllTypes.getDescriptor().findFieldByName("optional_int32")));
+  }
+
+  public void testUnselectedRequiredFields() throws Exception {
+    TestRequiredForeign message = TestRequiredForeign.newBuilder()
+      .setOptionalMessage(TestRequired.newBuilder().setA(1).setB(2).setC(3))
+      .addRepeatedMessage(TestRequired.newBuilder().setA(4).setB(5).setC(6))
+      .setDummy(7)
+      .build();
+    FieldProjection projection =
+      FieldProjection.newBuilder(TestRequiredForeign.getDescriptor())
+        .addPath("optional_message.a")
+        .addPath("repeated_message.b")
+        .build();
+
+    TestRequiredForeign.Builder builder = TestRequiredForeign.newBuilder();
+    projection.mergeFrom(message.toByteString().newCodedInput(), builder);
+    assertFalse(builder.isInitialized());
+
+    TestRequiredForeign result = builder.buildPartial();
+    assertFalse(result.hasDummy());
+    assertEquals(1, result.getOptionalMessage().getA());
+    assertFalse(result.getOptionalMessage().hasB());
+    assertEquals(1, result.getRepeatedMessageCount());
+    assertFalse(result.getRepeatedMessage(0).hasA());
+    assertEquals(5, result.getRepeatedMessage(0).getB());
+  }
+
+  public void testInvalidPaths() throws Exception {
+    FieldProjection.Builder builder =
+      FieldProjection.newBuilder(TestAllTypes.getDescriptor());
+    try {
+      builder.addPath("no_such_field");
+      fail("Should have thrown an exception.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      builder.addPath("optional_int32.foo");
+      fail("Should have thrown an exception.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      builder.addPath("optional_nested_message.foo");
+      fail("Should have thrown an exception.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testWrongBuilderType() throws Exception {
+    try {
+      PROJECTION.mergeFrom(ByteString.EMPTY.newCodedInput(),
+                           ForeignMessage.newBuilder());
+      fail("Should have thrown an exception.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -30,6 +30,7 @@
 
 package com.google.protobuf;
 
+import protobuf_unittest.UnittestOptimizeFor;
 import protobuf_unittest.UnittestOptimizeFor.TestOptimizedForSize;
 import protobuf_unittest.UnittestOptimizeFor.TestOptionalOptimizedForSize;
 import protobuf_unittest.UnittestOptimizeFor.TestRequiredOptimizedForSize;
@@ -39,7 +40,9 @@ import protobuf_unittest.UnittestProto.ForeignEnum;
 import protobuf_unittest.UnittestProto.TestAllTypes;
 import protobuf_unittest.UnittestProto.TestAllExtensions;
 import protobuf_unittest.UnittestProto.TestExtremeDefaultValues;
+import protobuf_unittest.UnittestProto.TestLazyMessage;
 import protobuf_unittest.UnittestProto.TestPackedTypes;
+import protobuf_unittest.UnittestProto.TestRequired;
 import protobuf_unittest.UnittestProto.TestUnpackedTypes;
 import protobuf_unittest.MultipleFilesTestProto;
 import protobuf_unittest.MessageWithNoOuter;
@@ -50,6 +53,8 @@ import com.google.protobuf.UnittestLite.TestAllExtensionsLite;
 
 import junit.framework.TestCase;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Unit test for generated messages and generated code.  See also
@@ -274,6 +279,62 @@ public class GeneratedMessageTest extends TestCase {
     }
   }
 
+  public void testRepeatedAppendPrimitiveArrays() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+
+    builder.addRepeatedInt32(1);
+    builder.addAllRepeatedInt32(new int[] {2, 3, 4});
+    builder.addAllRepeatedInt64(new long[] {5L, 6L});
+    builder.addAllRepeatedFloat(new float[] {7.5F});
+    builder.addAllRepeatedDouble(new double[] {8.5, 9.5});
+    builder.addAllRepeatedBool(new boolean[] {true, false});
+
+    TestAllTypes message = builder.build();
+    assertEquals(Arrays.asList(1, 2, 3, 4), message.getRepeatedInt32List());
+    assertEquals(4, message.getRepeatedInt32(3));
+    assertEquals(Arrays.asList(5L, 6L), message.getRepeatedInt64List());
+    assertEquals(Arrays.asList(7.5F), message.getRepeatedFloatList());
+    assertEquals(Arrays.asList(8.5, 9.5), message.getRepeatedDoubleList());
+    assertEquals(Arrays.asList(true, false), message.getRepeatedBoolList());
+  }
+
+  public void testRepeatedPrimitiveRejectsNull() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+
+    try {
+      builder.addAllRepeatedInt32(Arrays.asList(1, null));
+      fail("Exception was not thrown");
+    } catch (NullPointerException e) {
+      // We expect this exception.
+    }
+  }
+
+  public void testRepeatedPrimitiveListsAreImmutable() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    builder.addRepeatedInt32(1);
+    try {
+      builder.getRepeatedInt32List().add(2);
+      fail("Exception was not thrown");
+    } catch (UnsupportedOperationException e) {
+      // We expect this exception.
+    }
+
+    TestAllTypes message = builder.build();
+    try {
+      message.getRepeatedInt32List().add(2);
+      fail("Exception was not thrown");
+    } catch (UnsupportedOperationException e) {
+      // We expect this exception.
+    }
+    try {
+      TestAllTypes.getDefaultInstance().getRepeatedDoubleList().add(2.0);
+      fail("Exception was not thrown");
+    } catch (UnsupportedOperationException e) {
+      // We expect this exception.
+    }
+    assertEquals(Arrays.asList(1), message.getRepeatedInt32List());
+  }
+
   public void testSettingForeignMessageUsingBuilder() throws Exception {
     TestAllTypes message = TestAllTypes.newBuilder()
         // Pass builder for foreign message instance.
@@ -316,6 +377,34 @@ public class GeneratedMessageTest extends TestCase {
     assertTrue(Float.isNaN(message.getNanFloat()));
   }
 
+  public void testHasBitsAreIndependent() throws Exception {
+    // TestRequired has more than 32 singular fields, so its presence bits
+    // span two ints; "c" is the first field in the second one.
+    TestRequired.Builder builder = TestRequired.newBuilder();
+    assertFalse(builder.isInitialized());
+    builder.setC(3);
+    assertTrue(builder.hasC());
+    assertFalse(builder.hasA());
+    assertFalse(builder.hasB());
+    assertFalse(builder.isInitialized());
+    builder.setA(1).setB(2);
+    assertTrue(builder.isInitialized());
+    builder.clearB();
+    assertTrue(builder.hasA());
+    assertFalse(builder.hasB());
+    assertTrue(builder.hasC());
+    assertFalse(builder.isInitialized());
+    builder.setB(2).clearC();
+    assertFalse(builder.hasC());
+    assertFalse(builder.isInitialized());
+
+    TestRequired message = builder.setC(3).setDummy32(32).build();
+    assertTrue(message.hasDummy32());
+    assertFalse(message.hasDummy31());
+    assertTrue(message.isInitialized());
+    assertEquals(message, TestRequired.parseFrom(message.toByteString()));
+  }
+
   public void testReflectionGetters() throws Exception {
     TestAllTypes.Builder builder = TestAllTypes.newBuilder();
     TestUtil.setAllFields(builder);
@@ -348,6 +437,121 @@ public class GeneratedMessageTest extends TestCase {
     reflectionTester.assertReflectionRepeatedSettersRejectNull(builder);
   }
 
+  public void testReflectionSettersRejectWrongType() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    Descriptors.Descriptor descriptor = TestAllTypes.getDescriptor();
+    try {
+      builder.setField(descriptor.findFieldByName("optional_int32"), 1L);
+      fail("Exception was not thrown");
+    } catch (IllegalArgumentException e) {
+      // We expect this exception.
+    }
+    try {
+      builder.addRepeatedField(
+        descriptor.findFieldByName("repeated_string"), 1);
+      fail("Exception was not thrown");
+    } catch (IllegalArgumentException e) {
+      // We expect this exception.
+    }
+    assertFalse(builder.hasOptionalInt32());
+    assertEquals(0, builder.getRepeatedStringCount());
+  }
+
+  /**
+   * Asserts whether the reflection interface of the message accesses each
+   * of its fields through the generated accessor overrides.
+   */
+  private static void assertGeneratedAccessors(boolean expected,
+                                               GeneratedMessage message) {
+    GeneratedMessage.FieldAccessorTable table =
+      message.internalGetFieldAccessorTable();
+    for (Descriptors.FieldDescriptor field :
+         message.getDescriptorForType().getFields()) {
+      assertEquals(field.getFullName(), expected, table.isGenerated(field));
+    }
+  }
+
+  public void testGeneratedAccessorsAreUsed() throws Exception {
+    // Mixed singular and repeated fields.
+    assertGeneratedAccessors(true, TestAllTypes.getDefaultInstance());
+    // Only repeated fields.
+    assertGeneratedAccessors(true, TestPackedTypes.getDefaultInstance());
+    // Only singular fields.
+    assertGeneratedAccessors(true, ForeignMessage.getDefaultInstance());
+    // Code optimized for size, which parses through the reflection
+    // interface.
+    assertGeneratedAccessors(true, TestOptimizedForSize.getDefaultInstance());
+  }
+
+  public void testReflectionOptimizedForSize() throws Exception {
+    Descriptors.Descriptor descriptor = TestOptimizedForSize.getDescriptor();
+    Descriptors.FieldDescriptor i = descriptor.findFieldByName("i");
+    Descriptors.FieldDescriptor msg = descriptor.findFieldByName("msg");
+    TestOptimizedForSize.Builder builder = TestOptimizedForSize.newBuilder();
+    builder.setField(i, 12);
+    builder.setField(msg, ForeignMessage.newBuilder().setC(34).build());
+    TestOptimizedForSize message = builder.build();
+    assertTrue(message.hasField(i));
+    assertEquals(12, message.getField(i));
+    assertEquals(34, ((ForeignMessage) message.getField(msg)).getC());
+    assertEquals(12, message.getI());
+
+    builder = message.toBuilder();
+    builder.clearField(i);
+    assertFalse(builder.hasField(i));
+    assertTrue(builder.hasField(msg));
+  }
+
+  public void testGetAllFieldsIsMemoized() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    TestUtil.setAllFields(builder);
+    TestAllTypes message = builder.build();
+    Map<Descriptors.FieldDescriptor, Object> fields = message.getAllFields();
+    assertSame(fields, message.getAllFields());
+    assertEquals(fields.hashCode(), message.getAllFields().hashCode());
+
+    // Iterated in field number order, and equal to a TreeMap of the same
+    // entries.
+    int lastNumber = 0;
+    for (Descriptors.FieldDescriptor field : fields.keySet()) {
+      assertTrue(field.getNumber() > lastNumber);
+      lastNumber = field.getNumber();
+    }
+    Map<Descriptors.FieldDescriptor, Object> copy =
+      new TreeMap<Descriptors.FieldDescriptor, Object>(fields);
+    assertEquals(copy, fields);
+    assertEquals(fields, copy);
+    assertEquals(copy.hashCode(), fields.hashCode());
+    Descriptors.FieldDescriptor optionalInt32 =
+      TestAllTypes.getDescriptor().findFieldByName("optional_int32");
+    assertEquals(101, fields.get(optionalInt32));
+    assertNull(fields.get(
+      ForeignMessage.getDescriptor().findFieldByName("c")));
+    try {
+      fields.remove(optionalInt32);
+      fail("Exception was not thrown");
+    } catch (UnsupportedOperationException e) {
+      // We expect this exception.
+    }
+  }
+
+  public void testGetAllFieldsOfBuilderIsNotMemoized() throws Exception {
+    TestRequired.Builder builder = TestRequired.newBuilder().setA(1);
+    assertEquals(1, builder.getAllFields().size());
+    try {
+      // Looks at the fields of the message being built.
+      builder.build();
+      fail("Exception was not thrown");
+    } catch (UninitializedMessageException e) {
+      // We expect this exception.
+    }
+    builder.setB(2).setC(3);
+    assertEquals(3, builder.getAllFields().size());
+    TestRequired message = builder.build();
+    assertEquals(3, message.getAllFields().size());
+    assertTrue(message.isInitialized());
+  }
+
   public void testReflectionDefaults() throws Exception {
     reflectionTester.assertClearViaReflection(
       TestAllTypes.getDefaultInstance());
@@ -384,6 +588,30 @@ public class GeneratedMessageTest extends TestCase {
     TestUtil.assertPackedFieldsSet(message);
   }
 
+  public void testParseLargePackedArrays() throws Exception {
+    TestPackedTypes.Builder builder = TestPackedTypes.newBuilder();
+    for (int i = 0; i < 10000; i++) {
+      builder.addPackedInt32(i * 37 - 5000);
+      builder.addPackedSfixed64(i * 1234567L);
+      builder.addPackedDouble(i / 3.0);
+      builder.addPackedBool(i % 3 == 0);
+    }
+    TestPackedTypes message = builder.build();
+    TestPackedTypes parsed = TestPackedTypes.parseFrom(message.toByteString());
+    assertEquals(message, parsed);
+    assertEquals(10000, parsed.getPackedInt32Count());
+    assertEquals(9999 * 37 - 5000, parsed.getPackedInt32(9999));
+    assertEquals(9999 * 1234567L, parsed.getPackedSfixed64(9999));
+    assertEquals(9999 / 3.0, parsed.getPackedDouble(9999));
+    assertTrue(parsed.getPackedBool(9999));
+
+    // Merging a second copy appends to the existing lists.
+    TestPackedTypes merged = parsed.toBuilder()
+        .mergeFrom(message.toByteString()).build();
+    assertEquals(20000, merged.getPackedDoubleCount());
+    assertEquals(merged.getPackedDouble(5), merged.getPackedDouble(10005));
+  }
+
   // =================================================================
   // Extensions.
 
@@ -605,6 +833,186 @@ public class GeneratedMessageTest extends TestCase {
     assertTrue(builder.buildPartial().isInitialized());
   }
 
+  public void testParseOptimizedForSize() throws Exception {
+    // Messages optimized for code size parse with the table-driven plan of
+    // their descriptor.
+    ExtensionRegistry registry = ExtensionRegistry.newInstance();
+    UnittestOptimizeFor.registerAllExtensions(registry);
+
+    TestOptimizedForSize message = TestOptimizedForSize.newBuilder()
+        .setI(12)
+        .setMsg(ForeignMessage.newBuilder().setC(34))
+        .setExtension(TestOptimizedForSize.testExtension, 56)
+        .setExtension(TestOptimizedForSize.testExtension2,
+            TestRequiredOptimizedForSize.newBuilder().setX(78).build())
+        .build();
+    TestOptimizedForSize parsed =
+        TestOptimizedForSize.parseFrom(message.toByteString(), registry);
+    assertEquals(message, parsed);
+    assertEquals(12, parsed.getI());
+    assertEquals(34, parsed.getMsg().getC());
+    assertEquals(56, parsed.getExtension(TestOptimizedForSize.testExtension)
+        .intValue());
+
+    // Singular embedded messages are merged; unknown fields are kept.
+    ByteString more = TestAllTypes.newBuilder()
+        .setOptionalInt64(90)
+        .setOptionalForeignMessage(ForeignMessage.newBuilder().setC(35))
+        .build().toByteString();
+    parsed = parsed.toBuilder().mergeFrom(more, registry).build();
+    assertEquals(35, parsed.getMsg().getC());
+    assertEquals(Arrays.asList(90L),
+        parsed.getUnknownFields().getField(2).getVarintList());
+
+    // Missing required fields of embedded messages are found after parsing.
+    ByteString partial = TestOptionalOptimizedForSize.newBuilder()
+        .setO(TestRequiredOptimizedForSize.newBuilder().buildPartial())
+        .buildPartial().toByteString();
+    try {
+      TestOptionalOptimizedForSize.parseFrom(partial);
+      fail("Should have thrown an exception.");
+    } catch (InvalidProtocolBufferException e) {
+      // Expected.
+    }
+  }
+
+  public void testLazyMessageField() throws Exception {
+    TestLazyMessage message = TestLazyMessage.newBuilder()
+        .setLazyMessage(TestUtil.getAllSet())
+        .setDummy(1)
+        .build();
+    ByteString data = message.toByteString();
+
+    // The field is written back out as it was read, and parsed when it is.
+    TestLazyMessage parsed = TestLazyMessage.parseFrom(data);
+    assertEquals(data, parsed.toByteString());
+    assertEquals(data.size(), parsed.getSerializedSize());
+    TestUtil.assertAllFieldsSet(parsed.getLazyMessage());
+    assertSame(parsed.getLazyMessage(), parsed.getLazyMessage());
+    assertEquals(message, parsed);
+    assertEquals(message.hashCode(), parsed.hashCode());
+
+    // Values which were never parsed merge like parsed ones.
+    TestLazyMessage first = TestLazyMessage.parseFrom(TestLazyMessage
+        .newBuilder()
+        .setLazyMessage(TestAllTypes.newBuilder().setOptionalInt32(1)
+            .setOptionalNestedMessage(
+                TestAllTypes.NestedMessage.newBuilder().setBb(2)))
+        .build().toByteString());
+    TestLazyMessage second = TestLazyMessage.parseFrom(TestLazyMessage
+        .newBuilder()
+        .setLazyMessage(TestAllTypes.newBuilder().setOptionalString("x")
+            .addRepeatedInt32(3))
+        .build().toByteString());
+    TestAllTypes merged = TestAllTypes.newBuilder()
+        .setOptionalInt32(1)
+        .setOptionalNestedMessage(
+            TestAllTypes.NestedMessage.newBuilder().setBb(2))
+        .setOptionalString("x")
+        .addRepeatedInt32(3)
+        .build();
+    assertEquals(merged,
+        first.toBuilder().mergeFrom(second).build().getLazyMessage());
+    assertEquals(merged, TestLazyMessage.parseFrom(
+        first.toByteString().concat(second.toByteString())).getLazyMessage());
+
+    // A value merged into one that was set directly is parsed first.
+    TestLazyMessage.Builder builder = TestLazyMessage.newBuilder()
+        .setLazyMessage(TestAllTypes.newBuilder().setOptionalInt32(1)
+            .setOptionalNestedMessage(
+                TestAllTypes.NestedMessage.newBuilder().setBb(2)));
+    assertEquals(merged,
+        builder.mergeFrom(second.toByteString()).getLazyMessage());
+
+    // Setting the field replaces the bytes.
+    TestLazyMessage replaced = parsed.toBuilder()
+        .setLazyMessage(TestAllTypes.newBuilder().setOptionalInt32(4))
+        .build();
+    assertEquals(4, replaced.getLazyMessage().getOptionalInt32());
+    assertFalse(replaced.getLazyMessage().hasOptionalString());
+    assertEquals(4, TestLazyMessage.parseFrom(replaced.toByteString())
+        .getLazyMessage().getOptionalInt32());
+  }
+
+  public void testLazyMessageFieldErrors() throws Exception {
+    // Missing required fields are still found while parsing.
+    ByteString partial = TestLazyMessage.newBuilder()
+        .setLazyRequired(TestRequired.newBuilder().setA(1).buildPartial())
+        .buildPartial().toByteString();
+    try {
+      TestLazyMessage.parseFrom(partial);
+      fail("Should have thrown an exception.");
+    } catch (InvalidProtocolBufferException e) {
+      // Expected.
+    }
+
+    // Malformed bytes are only found once the field is read.
+    ByteString malformed = TestLazyMessage.newBuilder()
+        .setDummy(1).build().toByteString().concat(
+            ByteString.copyFrom(new byte[] {10, 2, (byte) 0x80, (byte) 0x80}));
+    TestLazyMessage parsed = TestLazyMessage.parseFrom(malformed);
+    assertTrue(parsed.hasLazyMessage());
+    try {
+      parsed.getLazyMessage();
+      fail("Should have thrown an exception.");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+
+  public void testClearForReuse() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    TestUtil.setAllFields(builder);
+    ByteString data = builder.build().toByteString();
+
+    // The builder can be reused after build().
+    builder.clearForReuse().mergeFrom(data);
+    TestUtil.assertAllFieldsSet(builder.clone().build());
+
+    // Clearing keeps the lists, but not their contents.
+    builder.clearForReuse();
+    TestUtil.assertClear(builder.clone().build());
+    builder.addRepeatedInt32(1).addRepeatedString("a")
+        .addRepeatedForeignEnum(ForeignEnum.FOREIGN_BAR)
+        .addRepeatedNestedMessage(
+            TestAllTypes.NestedMessage.newBuilder().setBb(2));
+    TestAllTypes message = builder.build();
+    assertEquals(Arrays.asList(1), message.getRepeatedInt32List());
+    assertEquals(Arrays.asList("a"), message.getRepeatedStringList());
+    assertEquals(Arrays.asList(ForeignEnum.FOREIGN_BAR),
+                 message.getRepeatedForeignEnumList());
+    assertEquals(2, message.getRepeatedNestedMessage(0).getBb());
+
+    // Messages built before are not affected.
+    builder.clearForReuse().mergeFrom(data);
+    builder.clearForReuse().addRepeatedInt32(3);
+    assertEquals(Arrays.asList(1), message.getRepeatedInt32List());
+    assertEquals(Arrays.asList(3), builder.getRepeatedInt32List());
+  }
+
+  public void testBuilderPool() throws Exception {
+    BuilderPool<TestAllTypes.Builder> pool =
+      new BuilderPool<TestAllTypes.Builder>(
+        TestAllTypes.getDefaultInstance(), 1);
+    TestAllTypes.Builder builder = pool.borrow();
+    TestUtil.setAllFields(builder);
+    ByteString data = builder.build().toByteString();
+    pool.release(builder);
+
+    TestAllTypes.Builder reused = pool.borrow();
+    assertSame(builder, reused);
+    TestUtil.assertClear(reused.clone().build());
+    TestUtil.assertAllFieldsSet(reused.mergeFrom(data).clone().build());
+
+    // The pool is empty now; a full pool drops released builders.
+    TestAllTypes.Builder other = pool.borrow();
+    assertNotSame(reused, other);
+    pool.release(reused);
+    pool.release(other);
+    assertSame(reused, pool.borrow());
+    assertNotSame(other, pool.borrow());
+  }
+
   public void testToBuilder() throws Exception {
     TestAllTypes.Builder builder = TestAllTypes.newBuilder();
     TestUtil.setAllFields(builder);
@@ -33,6 +33,7 @@ package com.google.protobuf;
 import com.google.protobuf.UnittestLite;
 import com.google.protobuf.UnittestLite.TestAllTypesLite;
 import com.google.protobuf.UnittestLite.TestAllExtensionsLite;
+import com.google.protobuf.UnittestLite.TestLazyMessageLite;
 import com.google.protobuf.UnittestLite.TestNestedExtensionLite;
 
 import junit.framework.TestCase;
@@ -113,4 +114,22 @@ public class LiteTest extends TestCase {
     assertEquals(7, message2.getExtension(
         UnittestLite.optionalNestedMessageExtensionLite).getBb());
   }
+
+  public void testLiteLazyMessageField() throws Exception {
+    TestAllTypesLite inner = TestAllTypesLite.newBuilder()
+        .setOptionalInt32(123)
+        .addRepeatedString("hello")
+        .build();
+    ByteString data = TestLazyMessageLite.newBuilder()
+        .setLazyMessage(inner).build().toByteString();
+
+    TestLazyMessageLite parsed = TestLazyMessageLite.parseFrom(data);
+    assertEquals(data, parsed.toByteString());
+    assertEquals(123, parsed.getLazyMessage().getOptionalInt32());
+    assertEquals("hello", parsed.getLazyMessage().getRepeatedString(0));
+
+    TestLazyMessageLite merged = TestLazyMessageLite.parseFrom(data)
+        .toBuilder().mergeFrom(parsed).build();
+    assertEquals(2, merged.getLazyMessage().getRepeatedStringCount());
+  }
 }
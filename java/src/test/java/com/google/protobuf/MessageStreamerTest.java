@@ -0,0 +1,185 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import protobuf_unittest.UnittestProto.ForeignMessage;
+import protobuf_unittest.UnittestProto.TestAllTypes;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MessageStreamer}.
+ */
+public class MessageStreamerTest extends TestCase {
+  private static final FieldDescriptor NESTED_FIELD =
+    TestAllTypes.getDescriptor().findFieldByName("repeated_nested_message");
+  private static final FieldDescriptor GROUP_FIELD =
+    TestAllTypes.getDescriptor().findFieldByName("repeatedgroup");
+
+  public void testForEach() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    final List<TestAllTypes.NestedMessage> elements =
+      new ArrayList<TestAllTypes.NestedMessage>();
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    TestAllTypes.NestedMessage.Builder elementBuilder =
+      TestAllTypes.NestedMessage.newBuilder();
+    MessageStreamer.forEach(
+        message.toByteString().newCodedInput(),
+        ExtensionRegistryLite.getEmptyRegistry(), builder, NESTED_FIELD,
+        elementBuilder,
+        new MessageStreamer.Callback<TestAllTypes.NestedMessage.Builder>() {
+          public void handle(TestAllTypes.NestedMessage.Builder element) {
+            elements.add(element.build());
+          }
+        });
+
+    assertEquals(message.getRepeatedNestedMessageList(), elements);
+    assertEquals(0, builder.getRepeatedNestedMessageCount());
+
+    // Everything else was merged into the builder.
+    assertEquals(
+        message.toBuilder().clearRepeatedNestedMessage().build(),
+        builder.build());
+  }
+
+  public void testForEachGroup() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    final List<Message> elements = new ArrayList<Message>();
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    MessageStreamer.forEach(
+        message.toByteString().newCodedInput(), builder, GROUP_FIELD,
+        new MessageStreamer.Callback<Message.Builder>() {
+          public void handle(Message.Builder element) {
+            elements.add(element.build());
+          }
+        });
+
+    assertEquals(message.getRepeatedGroupList(), elements);
+    assertEquals(
+        message.toBuilder().clearRepeatedGroup().build(), builder.build());
+  }
+
+  public void testForEachKeepsUnknownFields() throws Exception {
+    TestAllTypes message = TestAllTypes.newBuilder()
+      .setOptionalInt32(1)
+      .addRepeatedNestedMessage(
+        TestAllTypes.NestedMessage.newBuilder().setBb(2))
+      .setUnknownFields(UnknownFieldSet.newBuilder()
+        .addField(12345,
+          UnknownFieldSet.Field.newBuilder().addVarint(3).build())
+        .build())
+      .build();
+    final int[] count = new int[1];
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    MessageStreamer.forEach(
+        message.toByteString().newCodedInput(), builder, NESTED_FIELD,
+        new MessageStreamer.Callback<Message.Builder>() {
+          public void handle(Message.Builder element) {
+            ++count[0];
+          }
+        });
+
+    assertEquals(1, count[0]);
+    assertEquals(1, builder.getOptionalInt32());
+    assertEquals(message.getUnknownFields(), builder.getUnknownFields());
+  }
+
+  public void testForEachResetsSizeCounter() throws Exception {
+    TestAllTypes.Builder messageBuilder =
+      TestAllTypes.newBuilder().setOptionalInt32(1);
+    for (int i = 0; i < 10000; i++) {
+      messageBuilder.addRepeatedNestedMessage(
+        TestAllTypes.NestedMessage.newBuilder().setBb(i));
+    }
+    byte[] data = messageBuilder.build().toByteArray();
+    // Bigger than CodedInputStream's buffer, but much smaller than the data.
+    int sizeLimit = 8192;
+    assertTrue(data.length > 4 * sizeLimit);
+
+    CodedInputStream input =
+      CodedInputStream.newInstance(new ByteArrayInputStream(data));
+    input.setSizeLimit(sizeLimit);
+    try {
+      TestAllTypes.newBuilder().mergeFrom(input);
+      fail("Should have thrown an exception.");
+    } catch (InvalidProtocolBufferException e) {
+      // expected
+    }
+
+    final int[] count = new int[1];
+    input = CodedInputStream.newInstance(new ByteArrayInputStream(data));
+    input.setSizeLimit(sizeLimit);
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    MessageStreamer.forEach(input, ExtensionRegistryLite.getEmptyRegistry(),
+        builder, NESTED_FIELD, TestAllTypes.NestedMessage.newBuilder(),
+        new MessageStreamer.Callback<TestAllTypes.NestedMessage.Builder>() {
+          public void handle(TestAllTypes.NestedMessage.Builder element) {
+            assertEquals(count[0]++, element.getBb());
+          }
+        });
+    assertEquals(10000, count[0]);
+    assertEquals(1, builder.getOptionalInt32());
+  }
+
+  public void testForEachRejectsOtherFields() throws Exception {
+    MessageStreamer.Callback<Message.Builder> callback =
+      new MessageStreamer.Callback<Message.Builder>() {
+        public void handle(Message.Builder element) {
+          fail();
+        }
+      };
+    CodedInputStream input = ByteString.EMPTY.newCodedInput();
+
+    try {
+      MessageStreamer.forEach(input, TestAllTypes.newBuilder(),
+          TestAllTypes.getDescriptor().findFieldByName(
+              "optional_nested_message"), callback);
+      fail("Should have thrown an exception.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      MessageStreamer.forEach(input, ForeignMessage.newBuilder(),
+          NESTED_FIELD, callback);
+      fail("Should have thrown an exception.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,175 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link IntList} and the other lists of primitives used to store
+ * repeated fields.  They are generated from the same template, so
+ * {@code IntList} gets the thorough treatment and the others only have
+ * their type-specific parts checked.
+ */
+public class PrimitiveListTest extends TestCase {
+  public void testIntList() throws Exception {
+    IntList list = new IntList();
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 100; i++) {
+      list.addInt(i);
+      expected.add(i);
+    }
+    list.add(0, -1);
+    expected.add(0, -1);
+    list.add(50, -2);
+    expected.add(50, -2);
+    assertEquals(Integer.valueOf(10), list.remove(11));
+    expected.remove(11);
+    assertEquals(5, list.setInt(6, 60));
+    expected.set(6, 60);
+    list.addAll(new int[] {7, 8, 9}, 1, 2);
+    expected.addAll(Arrays.asList(8, 9));
+
+    assertEquals(expected, list);
+    assertEquals(list, expected);
+    assertEquals(expected.hashCode(), list.hashCode());
+    assertEquals(expected.size(), list.toIntArray().length);
+    assertEquals(60, list.toIntArray()[6]);
+
+    IntList copy = new IntList(3);
+    copy.addAll(list);
+    assertEquals(list, copy);
+    copy.addInt(1);
+    assertFalse(list.equals(copy));
+
+    list.clear();
+    assertTrue(list.isEmpty());
+    assertEquals(new ArrayList<Integer>(), list);
+  }
+
+  public void testIntListBounds() throws Exception {
+    IntList list = new IntList();
+    list.addInt(1);
+    try {
+      list.getInt(1);
+      fail("Should have thrown an exception.");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      list.add(2, 1);
+      fail("Should have thrown an exception.");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      list.addAll(new int[2], 1, 2);
+      fail("Should have thrown an exception.");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      list.add(null);
+      fail("Should have thrown an exception.");
+    } catch (NullPointerException e) {
+      // expected
+    }
+  }
+
+  public void testMakeImmutable() throws Exception {
+    IntList list = new IntList();
+    list.addInt(1);
+    list.makeImmutable();
+    assertFalse(list.isMutable());
+    assertEquals(1, list.getInt(0));
+    try {
+      list.addInt(2);
+      fail("Should have thrown an exception.");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      list.setInt(0, 2);
+      fail("Should have thrown an exception.");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      list.clear();
+      fail("Should have thrown an exception.");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      IntList.emptyList().addInt(1);
+      fail("Should have thrown an exception.");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    assertEquals(Arrays.asList(1), list);
+  }
+
+  public void testOtherTypes() throws Exception {
+    LongList longs = new LongList();
+    longs.addAll(new long[] {1L << 40, -1L});
+    assertEquals(Arrays.asList(1L << 40, -1L), longs);
+    assertEquals(Arrays.asList(1L << 40, -1L).hashCode(), longs.hashCode());
+
+    // Like the boxed types, the lists compare floating point values by
+    // their bits, so NaN equals itself and 0.0 does not equal -0.0.
+    FloatList floats = new FloatList();
+    floats.addAll(new float[] {Float.NaN, -0.0F});
+    assertEquals(Arrays.asList(Float.NaN, -0.0F), floats);
+    assertEquals(Arrays.asList(Float.NaN, -0.0F).hashCode(),
+                 floats.hashCode());
+    FloatList otherFloats = new FloatList();
+    otherFloats.addAll(new float[] {Float.NaN, 0.0F});
+    assertFalse(floats.equals(otherFloats));
+
+    DoubleList doubles = new DoubleList();
+    doubles.addAll(new double[] {Double.NaN, 1.5});
+    DoubleList sameDoubles = new DoubleList();
+    sameDoubles.addAll(doubles);
+    assertEquals(doubles, sameDoubles);
+    assertEquals(Arrays.asList(Double.NaN, 1.5).hashCode(),
+                 doubles.hashCode());
+
+    BooleanList booleans = new BooleanList();
+    booleans.addAll(new boolean[] {true, false, true});
+    assertEquals(Arrays.asList(true, false, true), booleans);
+    assertEquals(Arrays.asList(true, false, true).hashCode(),
+                 booleans.hashCode());
+    assertEquals(false, booleans.getBoolean(1));
+  }
+}
@@ -0,0 +1,194 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// http://code.google.com/p/protobuf/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import protobuf_unittest.UnittestProto.TestAllTypes;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for {@link RecordWriter} and {@link RecordReader}.
+ */
+public class RecordReaderTest extends TestCase {
+  private static final int RECORD_COUNT = 500;
+
+  private File file;
+  private RandomAccessFile randomAccessFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("record_reader_test", ".dat");
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      RecordWriter writer = new RecordWriter(output, 1000);
+      for (int i = 0; i < RECORD_COUNT; i++) {
+        writer.write(newRecord(i));
+      }
+      writer.close();
+    } finally {
+      output.close();
+    }
+    randomAccessFile = new RandomAccessFile(file, "rw");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    randomAccessFile.close();
+    file.delete();
+  }
+
+  private static TestAllTypes newRecord(int i) {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder()
+        .setOptionalInt32(i)
+        .setOptionalString("record " + i);
+    for (int j = 0; j < i % 20; j++) {
+      builder.addRepeatedInt64(j);
+    }
+    return builder.build();
+  }
+
+  /** Collects the records it is given, in order. */
+  private static class Collector
+      implements RecordReader.RecordHandler<TestAllTypes.Builder> {
+    final List<TestAllTypes> records = new ArrayList<TestAllTypes>();
+
+    public void handle(TestAllTypes.Builder record) {
+      records.add(record.build());
+    }
+  }
+
+  public void testReadBlocks() throws Exception {
+    RecordReader reader = new RecordReader(randomAccessFile.getChannel());
+    assertEquals(RECORD_COUNT, reader.getRecordCount());
+    assertTrue(reader.getBlockCount() > 10);
+
+    Collector collector = new Collector();
+    reader.readBlocks(0, reader.getBlockCount(), TestAllTypes.newBuilder(),
+                      ExtensionRegistryLite.getEmptyRegistry(), collector);
+    assertEquals(RECORD_COUNT, collector.records.size());
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      assertEquals(newRecord(i), collector.records.get(i));
+    }
+  }
+
+  public void testSplits() throws Exception {
+    RecordReader reader = new RecordReader(randomAccessFile.getChannel());
+    long size = file.length();
+    Collector collector = new Collector();
+    long start = 0;
+    // Splits which don't line up with the blocks.
+    for (long end = 777; start < size; end += 777) {
+      int fromBlock = reader.findBlock(start);
+      int toBlock = reader.findBlock(end);
+      reader.readBlocks(fromBlock, toBlock, TestAllTypes.newBuilder(),
+                        ExtensionRegistryLite.getEmptyRegistry(), collector);
+      start = end;
+    }
+    assertEquals(RECORD_COUNT, collector.records.size());
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      assertEquals(newRecord(i), collector.records.get(i));
+    }
+  }
+
+  public void testScan() throws Exception {
+    RecordReader reader = new RecordReader(randomAccessFile.getChannel());
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong sum = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      reader.scan(executor, TestAllTypes.newBuilder(),
+                  ExtensionRegistryLite.getEmptyRegistry(),
+                  new RecordReader.RecordHandler<TestAllTypes.Builder>() {
+                    public void handle(TestAllTypes.Builder record) {
+                      count.incrementAndGet();
+                      sum.addAndGet(record.getOptionalInt32());
+                    }
+                  });
+
+      assertEquals(RECORD_COUNT, count.get());
+      assertEquals(RECORD_COUNT * (RECORD_COUNT - 1) / 2, sum.get());
+
+      // Failures are passed on.
+      try {
+        reader.scan(executor, TestAllTypes.newBuilder(),
+                    ExtensionRegistryLite.getEmptyRegistry(),
+                    new RecordReader.RecordHandler<TestAllTypes.Builder>() {
+                      public void handle(TestAllTypes.Builder record)
+                          throws IOException {
+                        if (record.getOptionalInt32() == 123) {
+                          throw new IOException("123");
+                        }
+                      }
+                    });
+        fail("Should have thrown an exception.");
+      } catch (IOException e) {
+        assertEquals("123", e.getMessage());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testCorruptFile() throws Exception {
+    RecordReader reader = new RecordReader(randomAccessFile.getChannel());
+    long offset = reader.getBlockOffset(1);
+    randomAccessFile.seek(offset);
+    int firstByte = randomAccessFile.read();
+    randomAccessFile.seek(offset);
+    randomAccessFile.write(~firstByte);
+    try {
+      reader.readBlocks(1, 2, TestAllTypes.newBuilder(),
+                        ExtensionRegistryLite.getEmptyRegistry(),
+                        new Collector());
+      fail("Should have thrown an exception.");
+    } catch (InvalidProtocolBufferException e) {
+      // Expected.
+    }
+
+    randomAccessFile.setLength(file.length() - 1);
+    try {
+      new RecordReader(randomAccessFile.getChannel());
+      fail("Should have thrown an exception.");
+    } catch (InvalidProtocolBufferException e) {
+      // Expected.
+    }
+  }
+}
@@ -38,6 +38,7 @@ import protobuf_unittest.UnittestProto.TestEmptyMessageWithExtensions;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
 import java.util.Arrays;
 import java.util.Map;
 
@@ -342,6 +343,87 @@ public class UnknownFieldSetTest extends TestCase {
     assertEquals(0x7FFFFFFFFFFFFFFFL, (long)field.getVarintList().get(0));
   }
 
+  public void testRawUnknownFields() throws Exception {
+    // Fields out of order, so that re-encoding them would change the bytes.
+    ByteString data =
+      TestAllTypes.newBuilder().setOptionalInt64(2).build().toByteString()
+        .concat(allFieldsData);
+    CodedInputStream input = data.newCodedInput();
+    input.enableRawUnknownFields(true);
+    TestEmptyMessage message =
+      TestEmptyMessage.newBuilder().mergeFrom(input).build();
+    assertEquals(data, message.toByteString());
+    assertEquals(data.size(), message.getSerializedSize());
+
+    // The fields are decoded when they are looked at.
+    UnknownFieldSet expected = TestEmptyMessage.parseFrom(data)
+      .getUnknownFields();
+    assertFalse(data.equals(expected.toByteString()));
+    assertEquals(expected, message.getUnknownFields());
+    assertEquals(expected.hashCode(), message.getUnknownFields().hashCode());
+    assertEquals(Arrays.asList(2L, allFields.getOptionalInt64()),
+      message.getUnknownFields().getField(2).getVarintList());
+    assertEquals(data, message.toByteString());
+
+    // Merging two sets kept as bytes concatenates them.
+    TestEmptyMessage merged = message.toBuilder().mergeFrom(message).build();
+    assertEquals(data.concat(data), merged.toByteString());
+
+    // Anything else decodes them first.
+    merged = message.toBuilder().mergeUnknownFields(
+      UnknownFieldSet.newBuilder()
+        .addField(123456,
+          UnknownFieldSet.Field.newBuilder().addVarint(654321).build())
+        .build()).build();
+    assertEquals(expected.getField(2), merged.getUnknownFields().getField(2));
+    assertEquals(Arrays.asList(654321L),
+      merged.getUnknownFields().getField(123456).getVarintList());
+  }
+
+  public void testRawUnknownFieldsFromStream() throws Exception {
+    // A length-delimited field much longer than CodedInputStream's buffer,
+    // between two short ones.
+    byte[] bytes = new byte[10000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    ByteString data = TestAllTypes.newBuilder()
+      .setOptionalInt32(1)
+      .setOptionalBytes(ByteString.copyFrom(bytes))
+      .setOptionalFixed32(2)
+      .build().toByteString();
+
+    CodedInputStream input = CodedInputStream.newInstance(
+      new ByteArrayInputStream(data.toByteArray()));
+    input.enableRawUnknownFields(true);
+    TestEmptyMessage message =
+      TestEmptyMessage.newBuilder().mergeFrom(input).build();
+    assertEquals(data, message.toByteString());
+    assertEquals(TestEmptyMessage.parseFrom(data).getUnknownFields(),
+                 message.getUnknownFields());
+  }
+
+  public void testRawUnknownFieldsWithUnknownEnumValue() throws Exception {
+    Descriptors.FieldDescriptor singularField =
+      TestAllTypes.getDescriptor().findFieldByName("optional_nested_enum");
+    ByteString data = UnknownFieldSet.newBuilder()
+      .addField(123456,
+        UnknownFieldSet.Field.newBuilder().addVarint(654321).build())
+      .build().toByteString()
+      .concat(UnknownFieldSet.newBuilder()
+        .addField(singularField.getNumber(),
+          UnknownFieldSet.Field.newBuilder().addVarint(5).build())
+        .build().toByteString());
+    CodedInputStream input = data.newCodedInput();
+    input.enableRawUnknownFields(true);
+    TestAllTypes message = TestAllTypes.newBuilder().mergeFrom(input).build();
+    assertFalse(message.hasOptionalNestedEnum());
+    assertEquals(Arrays.asList(654321L),
+      message.getUnknownFields().getField(123456).getVarintList());
+    assertEquals(Arrays.asList(5L), message.getUnknownFields()
+      .getField(singularField.getNumber()).getVarintList());
+  }
+
   public void testEqualsAndHashCode() {
     UnknownFieldSet.Field fixed32Field =
         UnknownFieldSet.Field.newBuilder()
@@ -70,9 +70,10 @@ void SetEnumVariables(const FieldDescriptor* descriptor,
 // ===================================================================
 
 EnumFieldGenerator::
-EnumFieldGenerator(const FieldDescriptor* descriptor)
+EnumFieldGenerator(const FieldDescriptor* descriptor, int has_bit_index)
   : descriptor_(descriptor) {
   SetEnumVariables(descriptor, &variables_);
+  SetHasBitVariables(has_bit_index, &variables_);
 }
 
 EnumFieldGenerator::~EnumFieldGenerator() {}
@@ -80,9 +81,10 @@ EnumFieldGenerator::~EnumFieldGenerator() {}
 void EnumFieldGenerator::
 GenerateMembers(io::Printer* printer) const {
   printer->Print(variables_,
-    "private boolean has$capitalized_name$;\n"
     "private $type$ $name$_;\n"
-    "public boolean has$capitalized_name$() { return has$capitalized_name$; }\n"
+    "public boolean has$capitalized_name$() {\n"
+    "  return $get_has_field_bit_message$;\n"
+    "}\n"
     "public $type$ get$capitalized_name$() { return $name$_; }\n");
 }
 
@@ -99,12 +101,12 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "  if (value == null) {\n"
     "    throw new NullPointerException();\n"
     "  }\n"
-    "  result.has$capitalized_name$ = true;\n"
+    "  $set_has_field_bit_builder$;\n"
     "  result.$name$_ = value;\n"
     "  return this;\n"
     "}\n"
     "public Builder clear$capitalized_name$() {\n"
-    "  result.has$capitalized_name$ = false;\n"
+    "  $clear_has_field_bit_builder$;\n"
     "  result.$name$_ = $default$;\n"
     "  return this;\n"
     "}\n");
@@ -164,6 +166,25 @@ GenerateSerializedSizeCode(io::Printer* printer) const {
     "}\n");
 }
 
+void EnumFieldGenerator::
+GenerateEqualsCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (has$capitalized_name$() &&\n"
+    "    get$capitalized_name$() != other.get$capitalized_name$()) {\n"
+    "  return false;\n"
+    "}\n");
+}
+
+void EnumFieldGenerator::
+GenerateHashCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (has$capitalized_name$()) {\n"
+    "  hash = (37 * hash) + $number$;\n"
+    "  hash = (53 * hash) + com.google.protobuf.Internal.hashEnum(\n"
+    "      get$capitalized_name$());\n"
+    "}\n");
+}
+
 string EnumFieldGenerator::GetBoxedType() const {
   return ClassName(descriptor_->enum_type());
 }
@@ -225,7 +246,7 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "  if (value == null) {\n"
     "    throw new NullPointerException();\n"
     "  }\n"
-    "  if (result.$name$_.isEmpty()) {\n"
+    "  if (result.$name$_ == java.util.Collections.EMPTY_LIST) {\n"
     "    result.$name$_ = new java.util.ArrayList<$type$>();\n"
     "  }\n"
     "  result.$name$_.add(value);\n"
@@ -233,7 +254,7 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "}\n"
     "public Builder addAll$capitalized_name$(\n"
     "    java.lang.Iterable<? extends $type$> values) {\n"
-    "  if (result.$name$_.isEmpty()) {\n"
+    "  if (result.$name$_ == java.util.Collections.EMPTY_LIST) {\n"
     "    result.$name$_ = new java.util.ArrayList<$type$>();\n"
     "  }\n"
     "  super.addAll(values, result.$name$_);\n"
@@ -254,7 +275,7 @@ void RepeatedEnumFieldGenerator::
 GenerateMergingCode(io::Printer* printer) const {
   printer->Print(variables_,
     "if (!other.$name$_.isEmpty()) {\n"
-    "  if (result.$name$_.isEmpty()) {\n"
+    "  if (result.$name$_ == java.util.Collections.EMPTY_LIST) {\n"
     "    result.$name$_ = new java.util.ArrayList<$type$>();\n"
     "  }\n"
     "  result.$name$_.addAll(other.$name$_);\n"
@@ -270,6 +291,15 @@ GenerateBuildingCode(io::Printer* printer) const {
     "}\n");
 }
 
+void RepeatedEnumFieldGenerator::
+GenerateReuseCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (old.$name$_ != java.util.Collections.EMPTY_LIST) {\n"
+    "  old.$name$_.clear();\n"
+    "  result.$name$_ = old.$name$_;\n"
+    "}\n");
+}
+
 void RepeatedEnumFieldGenerator::
 GenerateParsingCode(io::Printer* printer) const {
   // Read and store the enum
@@ -363,6 +393,25 @@ GenerateSerializedSizeCode(io::Printer* printer) const {
   printer->Print("}\n");
 }
 
+void RepeatedEnumFieldGenerator::
+GenerateEqualsCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (!get$capitalized_name$List().equals(\n"
+    "        other.get$capitalized_name$List())) {\n"
+    "  return false;\n"
+    "}\n");
+}
+
+void RepeatedEnumFieldGenerator::
+GenerateHashCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (get$capitalized_name$Count() > 0) {\n"
+    "  hash = (37 * hash) + $number$;\n"
+    "  hash = (53 * hash) + com.google.protobuf.Internal.hashEnumList(\n"
+    "      get$capitalized_name$List());\n"
+    "}\n");
+}
+
 string RepeatedEnumFieldGenerator::GetBoxedType() const {
   return ClassName(descriptor_->enum_type());
 }
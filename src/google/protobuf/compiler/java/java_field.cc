@@ -56,23 +56,45 @@ void FieldGenerator::GenerateParsingCodeFromPacked(io::Printer* printer) const {
              << "called on field generator that does not support packing.";
 }
 
+void FieldGenerator::GenerateReuseCode(io::Printer* printer) const {
+  // Nothing to keep.
+}
+
+void SetHasBitVariables(int has_bit_index, map<string, string>* variables) {
+  if (has_bit_index < 0) return;
+  (*variables)["get_has_field_bit_message"] =
+    GenerateGetBit("", has_bit_index);
+  (*variables)["set_has_field_bit_builder"] =
+    GenerateSetBit("result.", has_bit_index);
+  (*variables)["clear_has_field_bit_builder"] =
+    GenerateClearBit("result.", has_bit_index);
+}
+
 FieldGeneratorMap::FieldGeneratorMap(const Descriptor* descriptor)
   : descriptor_(descriptor),
     field_generators_(
       new scoped_ptr<FieldGenerator>[descriptor->field_count()]),
     extension_generators_(
-      new scoped_ptr<FieldGenerator>[descriptor->extension_count()]) {
+      new scoped_ptr<FieldGenerator>[descriptor->extension_count()]),
+    has_bit_indices_(new int[descriptor->field_count()]),
+    has_bit_count_(0) {
 
   // Construct all the FieldGenerators.
   for (int i = 0; i < descriptor->field_count(); i++) {
-    field_generators_[i].reset(MakeGenerator(descriptor->field(i)));
+    const FieldDescriptor* field = descriptor->field(i);
+    has_bit_indices_[i] = field->is_repeated() ? -1 : has_bit_count_++;
+    field_generators_[i].reset(MakeGenerator(field, has_bit_indices_[i]));
   }
   for (int i = 0; i < descriptor->extension_count(); i++) {
-    extension_generators_[i].reset(MakeGenerator(descriptor->extension(i)));
+    // Extensions are not stored in the message class, so they have no
+    // presence bits.
+    extension_generators_[i].reset(
+      MakeGenerator(descriptor->extension(i), -1));
   }
 }
 
-FieldGenerator* FieldGeneratorMap::MakeGenerator(const FieldDescriptor* field) {
+FieldGenerator* FieldGeneratorMap::MakeGenerator(const FieldDescriptor* field,
+                                                 int has_bit_index) {
   if (field->is_repeated()) {
     switch (GetJavaType(field)) {
       case JAVATYPE_MESSAGE:
@@ -85,11 +107,11 @@ FieldGenerator* FieldGeneratorMap::MakeGenerator(const FieldDescriptor* field) {
   } else {
     switch (GetJavaType(field)) {
       case JAVATYPE_MESSAGE:
-        return new MessageFieldGenerator(field);
+        return new MessageFieldGenerator(field, has_bit_index);
       case JAVATYPE_ENUM:
-        return new EnumFieldGenerator(field);
+        return new EnumFieldGenerator(field, has_bit_index);
       default:
-        return new PrimitiveFieldGenerator(field);
+        return new PrimitiveFieldGenerator(field, has_bit_index);
     }
   }
 }
@@ -102,6 +124,11 @@ const FieldGenerator& FieldGeneratorMap::get(
   return *field_generators_[field->index()];
 }
 
+int FieldGeneratorMap::has_bit_index(const FieldDescriptor* field) const {
+  GOOGLE_CHECK_EQ(field->containing_type(), descriptor_);
+  return has_bit_indices_[field->index()];
+}
+
 const FieldGenerator& FieldGeneratorMap::get_extension(int index) const {
   return *extension_generators_[index];
 }
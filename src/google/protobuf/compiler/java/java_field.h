@@ -35,6 +35,7 @@
 #ifndef GOOGLE_PROTOBUF_COMPILER_JAVA_FIELD_H__
 #define GOOGLE_PROTOBUF_COMPILER_JAVA_FIELD_H__
 
+#include <map>
 #include <string>
 #include <google/protobuf/stubs/common.h>
 #include <google/protobuf/descriptor.h>
@@ -65,12 +66,29 @@ class FieldGenerator {
   virtual void GenerateSerializationCode(io::Printer* printer) const = 0;
   virtual void GenerateSerializedSizeCode(io::Printer* printer) const = 0;
 
+  // Generate code for the generated equals() and hashCode() of SPEED
+  // messages.  The equals code is run with the other message in "other"
+  // after the has-bits were compared, and returns false on a mismatch.  The
+  // hash code mixes the field into "hash" the way AbstractMessage does.
+  virtual void GenerateEqualsCode(io::Printer* printer) const = 0;
+  virtual void GenerateHashCode(io::Printer* printer) const = 0;
+
+  // Generate code for the builder's clearForReuse(), which is run with the
+  // builder's previous result in "old" and a new, empty one in "result".
+  // Fields which can keep their storage, such as the capacity of a repeated
+  // field's list, move it over to the new result.  Does nothing by default.
+  virtual void GenerateReuseCode(io::Printer* printer) const;
+
   virtual string GetBoxedType() const = 0;
 
  private:
   GOOGLE_DISALLOW_EVIL_CONSTRUCTORS(FieldGenerator);
 };
 
+// Adds the variables used to test and update a singular field's presence
+// bit to the given map.  Does nothing if has_bit_index is negative.
+void SetHasBitVariables(int has_bit_index, map<string, string>* variables);
+
 // Convenience class which constructs FieldGenerators for a Descriptor.
 class FieldGeneratorMap {
  public:
@@ -80,12 +98,21 @@ class FieldGeneratorMap {
   const FieldGenerator& get(const FieldDescriptor* field) const;
   const FieldGenerator& get_extension(int index) const;
 
+  // Singular fields are assigned consecutive presence bits in declaration
+  // order.  Returns the field's bit index, or -1 if it is repeated.
+  int has_bit_index(const FieldDescriptor* field) const;
+  // The number of presence bits the message uses.
+  int has_bit_count() const { return has_bit_count_; }
+
  private:
   const Descriptor* descriptor_;
   scoped_array<scoped_ptr<FieldGenerator> > field_generators_;
   scoped_array<scoped_ptr<FieldGenerator> > extension_generators_;
+  scoped_array<int> has_bit_indices_;
+  int has_bit_count_;
 
-  static FieldGenerator* MakeGenerator(const FieldDescriptor* field);
+  static FieldGenerator* MakeGenerator(const FieldDescriptor* field,
+                                       int has_bit_index);
 
   GOOGLE_DISALLOW_EVIL_CONSTRUCTORS(FieldGeneratorMap);
 };
@@ -335,6 +335,30 @@ string DefaultValue(const FieldDescriptor* field) {
   return "";
 }
 
+string GetBitFieldName(int bit_index) {
+  return "bitField" + SimpleItoa(bit_index / 32) + "_";
+}
+
+string GetBitMask(int bit_index) {
+  char buffer[kFastToBufferSize];
+  return string("0x") + FastHex32ToBuffer(1u << (bit_index % 32), buffer);
+}
+
+string GenerateGetBit(const string& prefix, int bit_index) {
+  return "((" + prefix + GetBitFieldName(bit_index) + " & " +
+         GetBitMask(bit_index) + ") != 0)";
+}
+
+string GenerateSetBit(const string& prefix, int bit_index) {
+  return prefix + GetBitFieldName(bit_index) + " |= " +
+         GetBitMask(bit_index);
+}
+
+string GenerateClearBit(const string& prefix, int bit_index) {
+  return prefix + GetBitFieldName(bit_index) + " &= ~" +
+         GetBitMask(bit_index);
+}
+
 }  // namespace java
 }  // namespace compiler
 }  // namespace protobuf
@@ -119,6 +119,20 @@ const char* BoxedPrimitiveTypeName(JavaType type);
 
 string DefaultValue(const FieldDescriptor* field);
 
+// Presence of singular fields is recorded in bits packed into int fields of
+// the message class, 32 fields per int.  Given a field's bit index, these
+// return the name of the int holding the bit (e.g. "bitField0_") and its
+// mask (e.g. "0x00000001").
+string GetBitFieldName(int bit_index);
+string GetBitMask(int bit_index);
+
+// Java expressions which test, set, and clear the given presence bit.  The
+// prefix is prepended to the bit field name, e.g. "result." to reach the
+// message from its builder.
+string GenerateGetBit(const string& prefix, int bit_index);
+string GenerateSetBit(const string& prefix, int bit_index);
+string GenerateClearBit(const string& prefix, int bit_index);
+
 // Does this message class keep track of unknown fields?
 inline bool HasUnknownFields(const Descriptor* descriptor) {
   return descriptor->file()->options().optimize_for() !=
@@ -33,6 +33,8 @@
 //  Sanjay Ghemawat, Jeff Dean, and others.
 
 #include <algorithm>
+#include <map>
+#include <vector>
 #include <google/protobuf/stubs/hash.h>
 #include <google/protobuf/compiler/java/java_message.h>
 #include <google/protobuf/compiler/java/java_enum.h>
@@ -96,6 +98,87 @@ string UniqueFileScopeIdentifier(const Descriptor* descriptor) {
   return "static_" + StringReplace(descriptor->full_name(), ".", "_", true);
 }
 
+// Get the type that values of the field (elements, if it is repeated) have
+// when passed through the reflection interface to its generated accessors.
+string BoxedElementType(const FieldDescriptor* field) {
+  switch (GetJavaType(field)) {
+    case JAVATYPE_MESSAGE:
+      return ClassName(field->message_type());
+    case JAVATYPE_ENUM:
+      return ClassName(field->enum_type());
+    default:
+      return BoxedPrimitiveTypeName(GetJavaType(field));
+  }
+}
+
+// Variables for printing the case of the field with the given index in the
+// reflection accessors.
+map<string, string> AccessorVariables(const FieldDescriptor* field,
+                                      int index) {
+  map<string, string> variables;
+  variables["index"] = SimpleItoa(index);
+  variables["name"] = UnderscoresToCapitalizedCamelCase(field);
+  variables["type"] = BoxedElementType(field);
+  variables["list"] = field->is_repeated() ? "List" : "";
+  return variables;
+}
+
+// Which fields get a case in one of the reflection accessors.
+enum AccessorFields {
+  ALL_FIELDS,
+  SINGULAR_FIELDS,
+  REPEATED_FIELDS
+};
+
+bool HasAccessorCase(const FieldDescriptor* field, AccessorFields which) {
+  switch (which) {
+    case ALL_FIELDS     : return true;
+    case SINGULAR_FIELDS: return !field->is_repeated();
+    case REPEATED_FIELDS: return field->is_repeated();
+  }
+  return false;
+}
+
+// Prints an override of one of GeneratedMessage's internal*Field() methods.
+// It switches on the field index, with a case printed from case_template for
+// each field selected by which, and falls back to default_case.  If no field
+// is selected, nothing is printed, since the override would be equivalent to
+// the inherited method.  GeneratedMessage.FieldAccessorTable takes this into
+// account by looking for the overrides of singular and repeated fields
+// separately.
+void PrintAccessorSwitch(io::Printer* printer, const Descriptor* descriptor,
+                         AccessorFields which, const char* signature,
+                         const char* case_template, const char* default_case) {
+  bool has_cases = false;
+  for (int i = 0; i < descriptor->field_count(); i++) {
+    if (HasAccessorCase(descriptor->field(i), which)) {
+      has_cases = true;
+      break;
+    }
+  }
+  if (!has_cases) return;
+
+  printer->Print("@java.lang.Override\n");
+  printer->Print(signature);
+  printer->Print(" {\n"
+                 "  switch (index) {\n");
+  printer->Indent();
+  printer->Indent();
+  for (int i = 0; i < descriptor->field_count(); i++) {
+    const FieldDescriptor* field = descriptor->field(i);
+    if (HasAccessorCase(field, which)) {
+      printer->Print(AccessorVariables(field, i), case_template);
+    }
+  }
+  printer->Print(default_case);
+  printer->Outdent();
+  printer->Outdent();
+  printer->Print(
+    "  }\n"
+    "}\n"
+    "\n");
+}
+
 // Returns true if the message type has any required fields.  If it doesn't,
 // we can optimize out calls to its isInitialized() method.
 //
@@ -339,6 +422,12 @@ void MessageGenerator::Generate(io::Printer* printer) {
     ExtensionGenerator(descriptor_->extension(i)).Generate(printer);
   }
 
+  // Presence bits of the singular fields.
+  for (int i = 0; i < field_generators_.has_bit_count(); i += 32) {
+    printer->Print("private int $bit_field_name$;\n",
+      "bit_field_name", GetBitFieldName(i));
+  }
+
   // Fields
   for (int i = 0; i < descriptor_->field_count(); i++) {
     PrintFieldComment(printer, descriptor_->field(i));
@@ -363,6 +452,15 @@ void MessageGenerator::Generate(io::Printer* printer) {
   if (HasGeneratedMethods(descriptor_)) {
     GenerateIsInitialized(printer);
     GenerateMessageSerializationMethods(printer);
+    if (HasDescriptorMethods(descriptor_)) {
+      GenerateEqualsAndHashCode(printer);
+    }
+  }
+
+  // Code optimized for size needs these too:  its table-driven parser sets
+  // every field through the reflection interface.
+  if (HasDescriptorMethods(descriptor_)) {
+    GenerateReflectionAccessors(printer);
   }
 
   GenerateParseFromMethods(printer);
@@ -640,6 +738,9 @@ void MessageGenerator::GenerateBuilder(io::Printer* printer) {
   if (HasGeneratedMethods(descriptor_)) {
     GenerateBuilderParsingMethods(printer);
   }
+  if (HasDescriptorMethods(descriptor_)) {
+    GenerateBuilderReflectionAccessors(printer);
+  }
 
   for (int i = 0; i < descriptor_->field_count(); i++) {
     printer->Print("\n");
@@ -690,6 +791,41 @@ void MessageGenerator::GenerateCommonBuilderMethods(io::Printer* printer) {
     "}\n"
     "\n",
     "classname", ClassName(descriptor_));
+
+  // Unlike clear(), clearForReuse() works after build(), and keeps the
+  // storage of a result which was never handed out.
+  bool has_repeated_fields = false;
+  for (int i = 0; i < descriptor_->field_count(); i++) {
+    if (descriptor_->field(i)->is_repeated()) {
+      has_repeated_fields = true;
+      break;
+    }
+  }
+  printer->Print("public Builder clearForReuse() {\n");
+  printer->Indent();
+  if (has_repeated_fields) {
+    printer->Print(
+      "$classname$ old = result;\n"
+      "result = new $classname$();\n"
+      "if (old != null) {\n",
+      "classname", ClassName(descriptor_));
+    printer->Indent();
+    for (int i = 0; i < descriptor_->field_count(); i++) {
+      field_generators_.get(descriptor_->field(i))
+                       .GenerateReuseCode(printer);
+    }
+    printer->Outdent();
+    printer->Print("}\n");
+  } else {
+    printer->Print(
+      "result = new $classname$();\n",
+      "classname", ClassName(descriptor_));
+  }
+  printer->Outdent();
+  printer->Print(
+    "  return this;\n"
+    "}\n"
+    "\n");
   if (HasDescriptorMethods(descriptor_)) {
     printer->Print(
       "public com.google.protobuf.Descriptors.Descriptor\n"
@@ -741,6 +877,10 @@ void MessageGenerator::GenerateCommonBuilderMethods(io::Printer* printer) {
     field_generators_.get(descriptor_->field(i)).GenerateBuildingCode(printer);
   }
 
+  if (HasDescriptorMethods(descriptor_)) {
+    printer->Print("result.internalMarkImmutable();\n");
+  }
+
   printer->Outdent();
   printer->Print(
     "  $classname$ returnMe = result;\n"
@@ -908,16 +1048,24 @@ void MessageGenerator::GenerateIsInitialized(io::Printer* printer) {
     "public final boolean isInitialized() {\n");
   printer->Indent();
 
-  // Check that all required fields in this message are set.
-  // TODO(kenton):  We can optimize this when we switch to putting all the
-  //   "has" fields into a single bitfield.
+  // Check that all required fields in this message are set, one whole bit
+  // field at a time.
+  vector<uint32> required_masks((field_generators_.has_bit_count() + 31) / 32);
   for (int i = 0; i < descriptor_->field_count(); i++) {
     const FieldDescriptor* field = descriptor_->field(i);
 
     if (field->is_required()) {
+      int bit_index = field_generators_.has_bit_index(field);
+      required_masks[bit_index / 32] |= 1u << (bit_index % 32);
+    }
+  }
+  for (int i = 0; i < static_cast<int>(required_masks.size()); i++) {
+    if (required_masks[i] != 0) {
+      char buffer[kFastToBufferSize];
       printer->Print(
-        "if (!has$name$) return false;\n",
-        "name", UnderscoresToCapitalizedCamelCase(field));
+        "if (($bit_field_name$ & $mask$) != $mask$) return false;\n",
+        "bit_field_name", GetBitFieldName(i * 32),
+        "mask", string("0x") + FastHex32ToBuffer(required_masks[i], buffer));
     }
   }
 
@@ -967,6 +1115,124 @@ void MessageGenerator::GenerateIsInitialized(io::Printer* printer) {
 
 // ===================================================================
 
+void MessageGenerator::GenerateEqualsAndHashCode(io::Printer* printer) {
+  // Messages of other classes, e.g. DynamicMessages, are compared by
+  // AbstractMessage.equals() through the reflection interface.
+  printer->Print(
+    "@java.lang.Override\n"
+    "public boolean equals(final java.lang.Object obj) {\n"
+    "  if (obj == this) {\n"
+    "    return true;\n"
+    "  }\n"
+    "  if (!(obj instanceof $classname$)) {\n"
+    "    return super.equals(obj);\n"
+    "  }\n"
+    "  $classname$ other = ($classname$) obj;\n"
+    "\n",
+    "classname", ClassName(descriptor_));
+  printer->Indent();
+
+  // Comparing the bit fields compares the presence of all singular fields,
+  // so the fields themselves only need comparing when they are set.
+  for (int i = 0; i < field_generators_.has_bit_count(); i += 32) {
+    printer->Print(
+      "if ($bit_field_name$ != other.$bit_field_name$) return false;\n",
+      "bit_field_name", GetBitFieldName(i));
+  }
+
+  for (int i = 0; i < descriptor_->field_count(); i++) {
+    field_generators_.get(descriptor_->field(i)).GenerateEqualsCode(printer);
+  }
+
+  if (descriptor_->extension_range_count() > 0) {
+    printer->Print(
+      "if (!getExtensionFields().equals(other.getExtensionFields())) {\n"
+      "  return false;\n"
+      "}\n");
+  }
+
+  printer->Outdent();
+  printer->Print(
+    "  return getUnknownFields().equals(other.getUnknownFields());\n"
+    "}\n"
+    "\n");
+
+  // The hash code must agree with AbstractMessage.hashCode(), which hashes
+  // the fields in order of number and then the extensions.
+  scoped_array<const FieldDescriptor*> sorted_fields(
+    SortFieldsByNumber(descriptor_));
+
+  printer->Print(
+    "private int memoizedHashCode = 0;\n"
+    "@java.lang.Override\n"
+    "public int hashCode() {\n"
+    "  if (memoizedHashCode != 0) {\n"
+    "    return memoizedHashCode;\n"
+    "  }\n"
+    "  int hash = 41;\n"
+    "  hash = (19 * hash) + getDescriptorForType().hashCode();\n");
+  printer->Indent();
+
+  for (int i = 0; i < descriptor_->field_count(); i++) {
+    field_generators_.get(sorted_fields[i]).GenerateHashCode(printer);
+  }
+
+  if (descriptor_->extension_range_count() > 0) {
+    printer->Print(
+      "hash = hashFields(hash, getExtensionFields());\n");
+  }
+
+  printer->Outdent();
+  printer->Print(
+    "  hash = (29 * hash) + getUnknownFields().hashCode();\n"
+    "  memoizedHashCode = hash;\n"
+    "  return hash;\n"
+    "}\n"
+    "\n");
+}
+
+// ===================================================================
+
+void MessageGenerator::GenerateReflectionAccessors(io::Printer* printer) {
+  // GeneratedMessage.FieldAccessorTable calls these instead of the accessors
+  // themselves, which it could only reach through Java reflection.  Fields
+  // are identified by their index in the descriptor.
+  PrintAccessorSwitch(printer, descriptor_, ALL_FIELDS,
+    "protected java.lang.Object internalGetField(int index)",
+    "case $index$: return get$name$$list$();\n",
+    "default: return super.internalGetField(index);\n");
+  PrintAccessorSwitch(printer, descriptor_, SINGULAR_FIELDS,
+    "protected boolean internalHasField(int index)",
+    "case $index$: return has$name$();\n",
+    "default: return super.internalHasField(index);\n");
+}
+
+void MessageGenerator::GenerateBuilderReflectionAccessors(
+    io::Printer* printer) {
+  // The builder side of GenerateReflectionAccessors().  Values have already
+  // been checked to be of the right type, so the casts cannot fail.
+  PrintAccessorSwitch(printer, descriptor_, SINGULAR_FIELDS,
+    "protected void internalSetField(int index, java.lang.Object value)",
+    "case $index$: set$name$(($type$) value); break;\n",
+    "default: super.internalSetField(index, value);\n");
+  PrintAccessorSwitch(printer, descriptor_, ALL_FIELDS,
+    "protected void internalClearField(int index)",
+    "case $index$: clear$name$(); break;\n",
+    "default: super.internalClearField(index);\n");
+  PrintAccessorSwitch(printer, descriptor_, REPEATED_FIELDS,
+    "protected void internalSetRepeatedField(\n"
+    "    int index, int elementIndex, java.lang.Object value)",
+    "case $index$: set$name$(elementIndex, ($type$) value); break;\n",
+    "default: super.internalSetRepeatedField(index, elementIndex, value);\n");
+  PrintAccessorSwitch(printer, descriptor_, REPEATED_FIELDS,
+    "protected void internalAddRepeatedField(\n"
+    "    int index, java.lang.Object value)",
+    "case $index$: add$name$(($type$) value); break;\n",
+    "default: super.internalAddRepeatedField(index, value);\n");
+}
+
+// ===================================================================
+
 void MessageGenerator::GenerateExtensionRegistrationCode(io::Printer* printer) {
   for (int i = 0; i < descriptor_->extension_count(); i++) {
     ExtensionGenerator(descriptor_->extension(i))
@@ -83,6 +83,9 @@ class MessageGenerator {
   void GenerateCommonBuilderMethods(io::Printer* printer);
   void GenerateBuilderParsingMethods(io::Printer* printer);
   void GenerateIsInitialized(io::Printer* printer);
+  void GenerateEqualsAndHashCode(io::Printer* printer);
+  void GenerateReflectionAccessors(io::Printer* printer);
+  void GenerateBuilderReflectionAccessors(io::Printer* printer);
 
   const Descriptor* descriptor_;
   FieldGeneratorMap field_generators_;
@@ -63,29 +63,105 @@ void SetMessageVariables(const FieldDescriptor* descriptor,
     "Group" : "Message";
 }
 
+// Lazy parsing needs the length of the embedded message up front, so it
+// doesn't apply to groups.  It is done by the generated parsing code, so it
+// doesn't apply to code optimized for size either.
+bool IsLazy(const FieldDescriptor* descriptor) {
+  return descriptor->options().lazy() &&
+         GetType(descriptor) == FieldDescriptor::TYPE_MESSAGE &&
+         HasGeneratedMethods(descriptor->containing_type());
+}
+
 }  // namespace
 
 // ===================================================================
 
 MessageFieldGenerator::
-MessageFieldGenerator(const FieldDescriptor* descriptor)
-  : descriptor_(descriptor) {
+MessageFieldGenerator(const FieldDescriptor* descriptor, int has_bit_index)
+  : descriptor_(descriptor), lazy_(IsLazy(descriptor)) {
   SetMessageVariables(descriptor, &variables_);
+  SetHasBitVariables(has_bit_index, &variables_);
 }
 
 MessageFieldGenerator::~MessageFieldGenerator() {}
 
 void MessageFieldGenerator::
 GenerateMembers(io::Printer* printer) const {
+  if (lazy_) {
+    // $name$Lazy_ holds the encoded field from when it was parsed until it
+    // is next set through the builder.  The value is parsed from it on
+    // first use.
+    printer->Print(variables_,
+      "private $type$ $name$_;\n"
+      "private com.google.protobuf.LazyField $name$Lazy_;\n"
+      "public boolean has$capitalized_name$() {\n"
+      "  return $get_has_field_bit_message$;\n"
+      "}\n"
+      "public $type$ get$capitalized_name$() {\n"
+      "  if ($name$Lazy_ != null) {\n"
+      "    return ($type$) $name$Lazy_.getValue();\n"
+      "  }\n"
+      "  return $name$_;\n"
+      "}\n");
+    return;
+  }
+
   printer->Print(variables_,
-    "private boolean has$capitalized_name$;\n"
     "private $type$ $name$_;\n"
-    "public boolean has$capitalized_name$() { return has$capitalized_name$; }\n"
+    "public boolean has$capitalized_name$() {\n"
+    "  return $get_has_field_bit_message$;\n"
+    "}\n"
     "public $type$ get$capitalized_name$() { return $name$_; }\n");
 }
 
 void MessageFieldGenerator::
 GenerateBuilderMembers(io::Printer* printer) const {
+  if (lazy_) {
+    // Like below, but setting the field drops the encoded bytes, and merging
+    // reads the current value through the getter.
+    printer->Print(variables_,
+      "public boolean has$capitalized_name$() {\n"
+      "  return result.has$capitalized_name$();\n"
+      "}\n"
+      "public $type$ get$capitalized_name$() {\n"
+      "  return result.get$capitalized_name$();\n"
+      "}\n"
+      "public Builder set$capitalized_name$($type$ value) {\n"
+      "  if (value == null) {\n"
+      "    throw new NullPointerException();\n"
+      "  }\n"
+      "  $set_has_field_bit_builder$;\n"
+      "  result.$name$_ = value;\n"
+      "  result.$name$Lazy_ = null;\n"
+      "  return this;\n"
+      "}\n"
+      "public Builder set$capitalized_name$($type$.Builder builderForValue) {\n"
+      "  $set_has_field_bit_builder$;\n"
+      "  result.$name$_ = builderForValue.build();\n"
+      "  result.$name$Lazy_ = null;\n"
+      "  return this;\n"
+      "}\n"
+      "public Builder merge$capitalized_name$($type$ value) {\n"
+      "  if (result.has$capitalized_name$() &&\n"
+      "      result.get$capitalized_name$() != $type$.getDefaultInstance()) {\n"
+      "    result.$name$_ = $type$.newBuilder(result.get$capitalized_name$())\n"
+      "      .mergeFrom(value).buildPartial();\n"
+      "  } else {\n"
+      "    result.$name$_ = value;\n"
+      "  }\n"
+      "  result.$name$Lazy_ = null;\n"
+      "  $set_has_field_bit_builder$;\n"
+      "  return this;\n"
+      "}\n"
+      "public Builder clear$capitalized_name$() {\n"
+      "  $clear_has_field_bit_builder$;\n"
+      "  result.$name$_ = $type$.getDefaultInstance();\n"
+      "  result.$name$Lazy_ = null;\n"
+      "  return this;\n"
+      "}\n");
+    return;
+  }
+
   printer->Print(variables_,
     "public boolean has$capitalized_name$() {\n"
     "  return result.has$capitalized_name$();\n"
@@ -97,12 +173,12 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "  if (value == null) {\n"
     "    throw new NullPointerException();\n"
     "  }\n"
-    "  result.has$capitalized_name$ = true;\n"
+    "  $set_has_field_bit_builder$;\n"
     "  result.$name$_ = value;\n"
     "  return this;\n"
     "}\n"
     "public Builder set$capitalized_name$($type$.Builder builderForValue) {\n"
-    "  result.has$capitalized_name$ = true;\n"
+    "  $set_has_field_bit_builder$;\n"
     "  result.$name$_ = builderForValue.build();\n"
     "  return this;\n"
     "}\n"
@@ -114,11 +190,11 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "  } else {\n"
     "    result.$name$_ = value;\n"
     "  }\n"
-    "  result.has$capitalized_name$ = true;\n"
+    "  $set_has_field_bit_builder$;\n"
     "  return this;\n"
     "}\n"
     "public Builder clear$capitalized_name$() {\n"
-    "  result.has$capitalized_name$ = false;\n"
+    "  $clear_has_field_bit_builder$;\n"
     "  result.$name$_ = $type$.getDefaultInstance();\n"
     "  return this;\n"
     "}\n");
@@ -131,6 +207,24 @@ GenerateInitializationCode(io::Printer* printer) const {
 
 void MessageFieldGenerator::
 GenerateMergingCode(io::Printer* printer) const {
+  if (lazy_) {
+    // While both sides are still encoded, merging the messages is just
+    // concatenating their bytes.
+    printer->Print(variables_,
+      "if (other.has$capitalized_name$()) {\n"
+      "  if (!has$capitalized_name$() && other.$name$Lazy_ != null) {\n"
+      "    $set_has_field_bit_builder$;\n"
+      "    result.$name$Lazy_ = other.$name$Lazy_;\n"
+      "  } else if (result.$name$Lazy_ != null &&\n"
+      "             other.$name$Lazy_ != null) {\n"
+      "    result.$name$Lazy_ = result.$name$Lazy_.concat(other.$name$Lazy_);\n"
+      "  } else {\n"
+      "    merge$capitalized_name$(other.get$capitalized_name$());\n"
+      "  }\n"
+      "}\n");
+    return;
+  }
+
   printer->Print(variables_,
     "if (other.has$capitalized_name$()) {\n"
     "  merge$capitalized_name$(other.get$capitalized_name$());\n"
@@ -144,6 +238,25 @@ GenerateBuildingCode(io::Printer* printer) const {
 
 void MessageFieldGenerator::
 GenerateParsingCode(io::Printer* printer) const {
+  if (lazy_) {
+    // Keep the bytes unless the field was already set to a parsed value.
+    printer->Print(variables_,
+      "if (has$capitalized_name$() && result.$name$Lazy_ == null) {\n"
+      "  $type$.Builder subBuilder = $type$.newBuilder();\n"
+      "  subBuilder.mergeFrom(get$capitalized_name$());\n"
+      "  input.readMessage(subBuilder, extensionRegistry);\n"
+      "  set$capitalized_name$(subBuilder.buildPartial());\n"
+      "} else {\n"
+      "  com.google.protobuf.LazyField lazy =\n"
+      "    new com.google.protobuf.LazyField($type$.getDefaultInstance(),\n"
+      "      extensionRegistry, input.readBytes());\n"
+      "  result.$name$Lazy_ = has$capitalized_name$() ?\n"
+      "    result.$name$Lazy_.concat(lazy) : lazy;\n"
+      "  $set_has_field_bit_builder$;\n"
+      "}\n");
+    return;
+  }
+
   printer->Print(variables_,
     "$type$.Builder subBuilder = $type$.newBuilder();\n"
     "if (has$capitalized_name$()) {\n"
@@ -164,6 +277,19 @@ GenerateParsingCode(io::Printer* printer) const {
 
 void MessageFieldGenerator::
 GenerateSerializationCode(io::Printer* printer) const {
+  if (lazy_) {
+    // Write the bytes as they were parsed if they were kept.
+    printer->Print(variables_,
+      "if (has$capitalized_name$()) {\n"
+      "  if ($name$Lazy_ != null) {\n"
+      "    output.writeBytes($number$, $name$Lazy_.toByteString());\n"
+      "  } else {\n"
+      "    output.writeMessage($number$, get$capitalized_name$());\n"
+      "  }\n"
+      "}\n");
+    return;
+  }
+
   printer->Print(variables_,
     "if (has$capitalized_name$()) {\n"
     "  output.write$group_or_message$($number$, get$capitalized_name$());\n"
@@ -172,6 +298,20 @@ GenerateSerializationCode(io::Printer* printer) const {
 
 void MessageFieldGenerator::
 GenerateSerializedSizeCode(io::Printer* printer) const {
+  if (lazy_) {
+    printer->Print(variables_,
+      "if (has$capitalized_name$()) {\n"
+      "  if ($name$Lazy_ != null) {\n"
+      "    size += com.google.protobuf.CodedOutputStream\n"
+      "      .computeBytesSize($number$, $name$Lazy_.toByteString());\n"
+      "  } else {\n"
+      "    size += com.google.protobuf.CodedOutputStream\n"
+      "      .computeMessageSize($number$, get$capitalized_name$());\n"
+      "  }\n"
+      "}\n");
+    return;
+  }
+
   printer->Print(variables_,
     "if (has$capitalized_name$()) {\n"
     "  size += com.google.protobuf.CodedOutputStream\n"
@@ -179,6 +319,24 @@ GenerateSerializedSizeCode(io::Printer* printer) const {
     "}\n");
 }
 
+void MessageFieldGenerator::
+GenerateEqualsCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (has$capitalized_name$() &&\n"
+    "    !get$capitalized_name$().equals(other.get$capitalized_name$())) {\n"
+    "  return false;\n"
+    "}\n");
+}
+
+void MessageFieldGenerator::
+GenerateHashCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (has$capitalized_name$()) {\n"
+    "  hash = (37 * hash) + $number$;\n"
+    "  hash = (53 * hash) + get$capitalized_name$().hashCode();\n"
+    "}\n");
+}
+
 string MessageFieldGenerator::GetBoxedType() const {
   return ClassName(descriptor_->message_type());
 }
@@ -239,14 +397,14 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "  if (value == null) {\n"
     "    throw new NullPointerException();\n"
     "  }\n"
-    "  if (result.$name$_.isEmpty()) {\n"
+    "  if (result.$name$_ == java.util.Collections.EMPTY_LIST) {\n"
     "    result.$name$_ = new java.util.ArrayList<$type$>();\n"
     "  }\n"
     "  result.$name$_.add(value);\n"
     "  return this;\n"
     "}\n"
     "public Builder add$capitalized_name$($type$.Builder builderForValue) {\n"
-    "  if (result.$name$_.isEmpty()) {\n"
+    "  if (result.$name$_ == java.util.Collections.EMPTY_LIST) {\n"
     "    result.$name$_ = new java.util.ArrayList<$type$>();\n"
     "  }\n"
     "  result.$name$_.add(builderForValue.build());\n"
@@ -254,7 +412,7 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "}\n"
     "public Builder addAll$capitalized_name$(\n"
     "    java.lang.Iterable<? extends $type$> values) {\n"
-    "  if (result.$name$_.isEmpty()) {\n"
+    "  if (result.$name$_ == java.util.Collections.EMPTY_LIST) {\n"
     "    result.$name$_ = new java.util.ArrayList<$type$>();\n"
     "  }\n"
     "  super.addAll(values, result.$name$_);\n"
@@ -275,7 +433,7 @@ void RepeatedMessageFieldGenerator::
 GenerateMergingCode(io::Printer* printer) const {
   printer->Print(variables_,
     "if (!other.$name$_.isEmpty()) {\n"
-    "  if (result.$name$_.isEmpty()) {\n"
+    "  if (result.$name$_ == java.util.Collections.EMPTY_LIST) {\n"
     "    result.$name$_ = new java.util.ArrayList<$type$>();\n"
     "  }\n"
     "  result.$name$_.addAll(other.$name$_);\n"
@@ -291,6 +449,15 @@ GenerateBuildingCode(io::Printer* printer) const {
     "}\n");
 }
 
+void RepeatedMessageFieldGenerator::
+GenerateReuseCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (old.$name$_ != java.util.Collections.EMPTY_LIST) {\n"
+    "  old.$name$_.clear();\n"
+    "  result.$name$_ = old.$name$_;\n"
+    "}\n");
+}
+
 void RepeatedMessageFieldGenerator::
 GenerateParsingCode(io::Printer* printer) const {
   printer->Print(variables_,
@@ -325,6 +492,24 @@ GenerateSerializedSizeCode(io::Printer* printer) const {
     "}\n");
 }
 
+void RepeatedMessageFieldGenerator::
+GenerateEqualsCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (!get$capitalized_name$List().equals(\n"
+    "        other.get$capitalized_name$List())) {\n"
+    "  return false;\n"
+    "}\n");
+}
+
+void RepeatedMessageFieldGenerator::
+GenerateHashCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (get$capitalized_name$Count() > 0) {\n"
+    "  hash = (37 * hash) + $number$;\n"
+    "  hash = (53 * hash) + get$capitalized_name$List().hashCode();\n"
+    "}\n");
+}
+
 string RepeatedMessageFieldGenerator::GetBoxedType() const {
   return ClassName(descriptor_->message_type());
 }
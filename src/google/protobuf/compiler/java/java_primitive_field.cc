@@ -180,14 +180,138 @@ void SetPrimitiveVariables(const FieldDescriptor* descriptor,
     (*variables)["fixed_size"] = SimpleItoa(fixed_size);
   }
 }
+
+// For non-reference types, returns the prefix of the name of the list class
+// in com.google.protobuf used to store repeated fields of that type without
+// boxing (e.g. "Int" for IntList), which is also the suffix of its unboxed
+// accessors (e.g. getInt()).  Returns NULL for reference types, which are
+// stored in an ArrayList.
+const char* PrimitiveListPrefix(JavaType type) {
+  switch (type) {
+    case JAVATYPE_INT    : return "Int";
+    case JAVATYPE_LONG   : return "Long";
+    case JAVATYPE_FLOAT  : return "Float";
+    case JAVATYPE_DOUBLE : return "Double";
+    case JAVATYPE_BOOLEAN: return "Boolean";
+    case JAVATYPE_STRING : return NULL;
+    case JAVATYPE_BYTES  : return NULL;
+    case JAVATYPE_ENUM   : return NULL;
+    case JAVATYPE_MESSAGE: return NULL;
+
+    // No default because we want the compiler to complain if any new
+    // JavaTypes are added.
+  }
+
+  GOOGLE_LOG(FATAL) << "Can't get here.";
+  return NULL;
+}
+
+// For types which can be packed, returns the suffix of the CodedInputStream
+// method which reads a whole packed run of that type, e.g. "Varint32s" for
+// readPackedVarint32s().  Returns NULL for other types.
+const char* PackedReaderSuffix(FieldDescriptor::Type type) {
+  switch (type) {
+    case FieldDescriptor::TYPE_INT32   : return "Varint32s";
+    case FieldDescriptor::TYPE_UINT32  : return "Varint32s";
+    case FieldDescriptor::TYPE_SINT32  : return "SInt32s"  ;
+    case FieldDescriptor::TYPE_FIXED32 : return "Fixed32s" ;
+    case FieldDescriptor::TYPE_SFIXED32: return "Fixed32s" ;
+    case FieldDescriptor::TYPE_INT64   : return "Varint64s";
+    case FieldDescriptor::TYPE_UINT64  : return "Varint64s";
+    case FieldDescriptor::TYPE_SINT64  : return "SInt64s"  ;
+    case FieldDescriptor::TYPE_FIXED64 : return "Fixed64s" ;
+    case FieldDescriptor::TYPE_SFIXED64: return "Fixed64s" ;
+    case FieldDescriptor::TYPE_FLOAT   : return "Floats"   ;
+    case FieldDescriptor::TYPE_DOUBLE  : return "Doubles"  ;
+    case FieldDescriptor::TYPE_BOOL    : return "Bools"    ;
+    case FieldDescriptor::TYPE_ENUM    : return NULL;
+    case FieldDescriptor::TYPE_STRING  : return NULL;
+    case FieldDescriptor::TYPE_BYTES   : return NULL;
+    case FieldDescriptor::TYPE_GROUP   : return NULL;
+    case FieldDescriptor::TYPE_MESSAGE : return NULL;
+
+    // No default because we want the compiler to complain if any new
+    // types are added.
+  }
+
+  GOOGLE_LOG(FATAL) << "Can't get here.";
+  return NULL;
+}
+
+// For types which can be packed, returns the prefix of the CodedOutputStream
+// method which writes the values of a packed field of that type, e.g.
+// "Int32s" for writeInt32sNoTag().  Returns NULL for other types.
+const char* PackedWriterPrefix(FieldDescriptor::Type type) {
+  switch (type) {
+    case FieldDescriptor::TYPE_INT32   : return "Int32s"  ;
+    case FieldDescriptor::TYPE_UINT32  : return "UInt32s" ;
+    case FieldDescriptor::TYPE_SINT32  : return "SInt32s" ;
+    case FieldDescriptor::TYPE_FIXED32 : return "Fixed32s";
+    case FieldDescriptor::TYPE_SFIXED32: return "Fixed32s";
+    case FieldDescriptor::TYPE_INT64   : return "Int64s"  ;
+    case FieldDescriptor::TYPE_UINT64  : return "Int64s"  ;
+    case FieldDescriptor::TYPE_SINT64  : return "SInt64s" ;
+    case FieldDescriptor::TYPE_FIXED64 : return "Fixed64s";
+    case FieldDescriptor::TYPE_SFIXED64: return "Fixed64s";
+    case FieldDescriptor::TYPE_FLOAT   : return "Floats"  ;
+    case FieldDescriptor::TYPE_DOUBLE  : return "Doubles" ;
+    case FieldDescriptor::TYPE_BOOL    : return "Bools"   ;
+    case FieldDescriptor::TYPE_ENUM    : return NULL;
+    case FieldDescriptor::TYPE_STRING  : return NULL;
+    case FieldDescriptor::TYPE_BYTES   : return NULL;
+    case FieldDescriptor::TYPE_GROUP   : return NULL;
+    case FieldDescriptor::TYPE_MESSAGE : return NULL;
+
+    // No default because we want the compiler to complain if any new
+    // types are added.
+  }
+
+  GOOGLE_LOG(FATAL) << "Can't get here.";
+  return NULL;
+}
+
+bool UsesPrimitiveList(const FieldDescriptor* descriptor) {
+  return PrimitiveListPrefix(GetJavaType(descriptor)) != NULL;
+}
+
+void SetRepeatedPrimitiveVariables(const FieldDescriptor* descriptor,
+                                   map<string, string>* variables) {
+  SetPrimitiveVariables(descriptor, variables);
+  const char* list_prefix = PrimitiveListPrefix(GetJavaType(descriptor));
+  if (list_prefix != NULL) {
+    string list_type =
+        string("com.google.protobuf.") + list_prefix + "List";
+    (*variables)["list_type"] = list_type;
+    (*variables)["empty_list"] = list_type + ".emptyList()";
+    (*variables)["shared_empty_list"] = list_type + ".emptyList()";
+    (*variables)["new_list"] = "new " + list_type + "()";
+    (*variables)["element_get"] = string("get") + list_prefix;
+    (*variables)["element_set"] = string("set") + list_prefix;
+    (*variables)["element_add"] = string("add") + list_prefix;
+    (*variables)["packed_reader"] =
+        PackedReaderSuffix(GetType(descriptor));
+    (*variables)["packed_writer"] =
+        PackedWriterPrefix(GetType(descriptor));
+  } else {
+    string boxed_type = BoxedPrimitiveTypeName(GetJavaType(descriptor));
+    (*variables)["list_type"] = "java.util.List<" + boxed_type + ">";
+    (*variables)["empty_list"] = "java.util.Collections.emptyList()";
+    (*variables)["shared_empty_list"] = "java.util.Collections.EMPTY_LIST";
+    (*variables)["new_list"] = "new java.util.ArrayList<" + boxed_type + ">()";
+    (*variables)["element_get"] = "get";
+    (*variables)["element_set"] = "set";
+    (*variables)["element_add"] = "add";
+  }
+}
 }  // namespace
 
 // ===================================================================
 
 PrimitiveFieldGenerator::
-PrimitiveFieldGenerator(const FieldDescriptor* descriptor)
+PrimitiveFieldGenerator(const FieldDescriptor* descriptor, int has_bit_index)
   : descriptor_(descriptor) {
   SetPrimitiveVariables(descriptor, &variables_);
+  SetHasBitVariables(has_bit_index, &variables_);
 }
 
 PrimitiveFieldGenerator::~PrimitiveFieldGenerator() {}
@@ -195,18 +319,11 @@ PrimitiveFieldGenerator::~PrimitiveFieldGenerator() {}
 void PrimitiveFieldGenerator::
 GenerateMembers(io::Printer* printer) const {
   printer->Print(variables_,
-    "private boolean has$capitalized_name$;\n"
     "private $type$ $name$_ = $default$;\n"
-    "public boolean has$capitalized_name$() { return has$capitalized_name$; }\n"
+    "public boolean has$capitalized_name$() {\n"
+    "  return $get_has_field_bit_message$;\n"
+    "}\n"
     "public $type$ get$capitalized_name$() { return $name$_; }\n");
-  // Avoid double encoding for Java strings
-  // This field does not need to be volatile because ByteString is immutable.
-  // http://www.cs.umd.edu/~pugh/java/memoryModel/jsr-133-faq.html#finalRight
-  // However, it seems better to be safe than sorry.
-  if (ShouldUseStringEncodingCache()) {
-    printer->Print(variables_,
-      "private volatile com.google.protobuf.ByteString $name$EncodedCache_;\n");
-  }
 }
 
 void PrimitiveFieldGenerator::
@@ -220,12 +337,12 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "}\n"
     "public Builder set$capitalized_name$($type$ value) {\n"
     "$null_check$"
-    "  result.has$capitalized_name$ = true;\n"
+    "  $set_has_field_bit_builder$;\n"
     "  result.$name$_ = value;\n"
     "  return this;\n"
     "}\n"
     "public Builder clear$capitalized_name$() {\n"
-    "  result.has$capitalized_name$ = false;\n");
+    "  $clear_has_field_bit_builder$;\n");
   JavaType type = GetJavaType(descriptor_);
   if (type == JAVATYPE_STRING || type == JAVATYPE_BYTES) {
     // The default value is not a simple literal so we want to avoid executing
@@ -267,55 +384,114 @@ GenerateParsingCode(io::Printer* printer) const {
 
 void PrimitiveFieldGenerator::
 GenerateSerializationCode(io::Printer* printer) const {
-  if (ShouldUseStringEncodingCache()) {
-    // Pass the cached serialized version, then forget it.
-    // The cached version could be null if we didn't compute the size first,
-    // or if there are two threads attempting to serialize simultaneously.
-    // CodedOutputStream.writeStringCached handles this for us.
-    printer->Print(variables_,
-      "if (has$capitalized_name$()) {\n"
-      "  output.write$capitalized_type$Cached($number$,\n"
-      "                                       get$capitalized_name$(),\n"
-      "                                       $name$EncodedCache_);\n"
-      "  $name$EncodedCache_ = null;\n"
-      "}\n");
-  } else {
-    printer->Print(variables_,
-      "if (has$capitalized_name$()) {\n"
-      "  output.write$capitalized_type$($number$, get$capitalized_name$());\n"
-      "}\n");
-  }
+  printer->Print(variables_,
+    "if (has$capitalized_name$()) {\n"
+    "  output.write$capitalized_type$($number$, get$capitalized_name$());\n"
+    "}\n");
 }
 
 void PrimitiveFieldGenerator::
 GenerateSerializedSizeCode(io::Printer* printer) const {
-  // Avoid double encoding for strings: serialize the string here
-  if (ShouldUseStringEncodingCache()) {
-    printer->Print(variables_,
-      "if (has$capitalized_name$()) {\n"
-      "  com.google.protobuf.ByteString serialized = \n"
-      "    com.google.protobuf.ByteString.copyFromUtf8(\n"
-      "      get$capitalized_name$());\n"
-      "  $name$EncodedCache_ = serialized;\n"
-      "  size += com.google.protobuf.CodedOutputStream\n"
-      "    .computeBytesSize($number$, serialized);\n"
-      "}\n");
-  } else {
-    printer->Print(variables_,
-      "if (has$capitalized_name$()) {\n"
-      "  size += com.google.protobuf.CodedOutputStream\n"
-      "    .compute$capitalized_type$Size($number$, get$capitalized_name$());\n"
-      "}\n");
+  printer->Print(variables_,
+    "if (has$capitalized_name$()) {\n"
+    "  size += com.google.protobuf.CodedOutputStream\n"
+    "    .compute$capitalized_type$Size($number$, get$capitalized_name$());\n"
+    "}\n");
+}
+
+void PrimitiveFieldGenerator::
+GenerateEqualsCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (has$capitalized_name$()) {\n");
+  printer->Indent();
+  switch (GetJavaType(descriptor_)) {
+    case JAVATYPE_INT:
+    case JAVATYPE_LONG:
+    case JAVATYPE_BOOLEAN:
+      printer->Print(variables_,
+        "if (get$capitalized_name$() != other.get$capitalized_name$()) {\n"
+        "  return false;\n"
+        "}\n");
+      break;
+
+    // Compare bit patterns like Float.equals() and Double.equals() do, so
+    // that NaN equals itself and 0.0 does not equal -0.0.
+    case JAVATYPE_FLOAT:
+      printer->Print(variables_,
+        "if (java.lang.Float.floatToIntBits(get$capitalized_name$()) !=\n"
+        "    java.lang.Float.floatToIntBits(\n"
+        "        other.get$capitalized_name$())) {\n"
+        "  return false;\n"
+        "}\n");
+      break;
+
+    case JAVATYPE_DOUBLE:
+      printer->Print(variables_,
+        "if (java.lang.Double.doubleToLongBits(get$capitalized_name$()) !=\n"
+        "    java.lang.Double.doubleToLongBits(\n"
+        "        other.get$capitalized_name$())) {\n"
+        "  return false;\n"
+        "}\n");
+      break;
+
+    default:
+      printer->Print(variables_,
+        "if (!get$capitalized_name$().equals(other.get$capitalized_name$())) {\n"
+        "  return false;\n"
+        "}\n");
+      break;
   }
+  printer->Outdent();
+  printer->Print("}\n");
 }
 
-string PrimitiveFieldGenerator::GetBoxedType() const {
-  return BoxedPrimitiveTypeName(GetJavaType(descriptor_));
+void PrimitiveFieldGenerator::
+GenerateHashCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (has$capitalized_name$()) {\n"
+    "  hash = (37 * hash) + $number$;\n");
+  printer->Indent();
+  switch (GetJavaType(descriptor_)) {
+    case JAVATYPE_INT:
+      printer->Print(variables_,
+        "hash = (53 * hash) + get$capitalized_name$();\n");
+      break;
+
+    case JAVATYPE_LONG:
+      printer->Print(variables_,
+        "hash = (53 * hash) + com.google.protobuf.Internal.hashLong(\n"
+        "    get$capitalized_name$());\n");
+      break;
+
+    case JAVATYPE_FLOAT:
+      printer->Print(variables_,
+        "hash = (53 * hash) + java.lang.Float.floatToIntBits(\n"
+        "    get$capitalized_name$());\n");
+      break;
+
+    case JAVATYPE_DOUBLE:
+      printer->Print(variables_,
+        "hash = (53 * hash) + com.google.protobuf.Internal.hashLong(\n"
+        "    java.lang.Double.doubleToLongBits(get$capitalized_name$()));\n");
+      break;
+
+    case JAVATYPE_BOOLEAN:
+      printer->Print(variables_,
+        "hash = (53 * hash) + com.google.protobuf.Internal.hashBoolean(\n"
+        "    get$capitalized_name$());\n");
+      break;
+
+    default:
+      printer->Print(variables_,
+        "hash = (53 * hash) + get$capitalized_name$().hashCode();\n");
+      break;
+  }
+  printer->Outdent();
+  printer->Print("}\n");
 }
 
-bool PrimitiveFieldGenerator::ShouldUseStringEncodingCache() const {
-  return GetType(descriptor_) == FieldDescriptor::TYPE_STRING &&
-      descriptor_->file()->options().optimize_for() == FileOptions::SPEED;
+string PrimitiveFieldGenerator::GetBoxedType() const {
+  return BoxedPrimitiveTypeName(GetJavaType(descriptor_));
 }
 
 // ===================================================================
@@ -323,7 +499,7 @@ bool PrimitiveFieldGenerator::ShouldUseStringEncodingCache() const {
 RepeatedPrimitiveFieldGenerator::
 RepeatedPrimitiveFieldGenerator(const FieldDescriptor* descriptor)
   : descriptor_(descriptor) {
-  SetPrimitiveVariables(descriptor, &variables_);
+  SetRepeatedPrimitiveVariables(descriptor, &variables_);
 }
 
 RepeatedPrimitiveFieldGenerator::~RepeatedPrimitiveFieldGenerator() {}
@@ -331,14 +507,14 @@ RepeatedPrimitiveFieldGenerator::~RepeatedPrimitiveFieldGenerator() {}
 void RepeatedPrimitiveFieldGenerator::
 GenerateMembers(io::Printer* printer) const {
   printer->Print(variables_,
-    "private java.util.List<$boxed_type$> $name$_ =\n"
-    "  java.util.Collections.emptyList();\n"
+    "private $list_type$ $name$_ =\n"
+    "  $empty_list$;\n"
     "public java.util.List<$boxed_type$> get$capitalized_name$List() {\n"
     "  return $name$_;\n"   // note:  unmodifiable list
     "}\n"
     "public int get$capitalized_name$Count() { return $name$_.size(); }\n"
     "public $type$ get$capitalized_name$(int index) {\n"
-    "  return $name$_.get(index);\n"
+    "  return $name$_.$element_get$(index);\n"
     "}\n");
 
   if (descriptor_->options().packed() &&
@@ -366,27 +542,38 @@ GenerateBuilderMembers(io::Printer* printer) const {
     "}\n"
     "public Builder set$capitalized_name$(int index, $type$ value) {\n"
     "$null_check$"
-    "  result.$name$_.set(index, value);\n"
+    "  result.$name$_.$element_set$(index, value);\n"
     "  return this;\n"
     "}\n"
     "public Builder add$capitalized_name$($type$ value) {\n"
     "$null_check$"
-    "  if (result.$name$_.isEmpty()) {\n"
-    "    result.$name$_ = new java.util.ArrayList<$boxed_type$>();\n"
+    "  if (result.$name$_ == $shared_empty_list$) {\n"
+    "    result.$name$_ = $new_list$;\n"
     "  }\n"
-    "  result.$name$_.add(value);\n"
+    "  result.$name$_.$element_add$(value);\n"
     "  return this;\n"
     "}\n"
     "public Builder addAll$capitalized_name$(\n"
     "    java.lang.Iterable<? extends $boxed_type$> values) {\n"
-    "  if (result.$name$_.isEmpty()) {\n"
-    "    result.$name$_ = new java.util.ArrayList<$boxed_type$>();\n"
+    "  if (result.$name$_ == $shared_empty_list$) {\n"
+    "    result.$name$_ = $new_list$;\n"
     "  }\n"
     "  super.addAll(values, result.$name$_);\n"
     "  return this;\n"
-    "}\n"
+    "}\n");
+  if (UsesPrimitiveList(descriptor_)) {
+    printer->Print(variables_,
+      "public Builder addAll$capitalized_name$($type$[] values) {\n"
+      "  if (result.$name$_ == $shared_empty_list$) {\n"
+      "    result.$name$_ = $new_list$;\n"
+      "  }\n"
+      "  result.$name$_.addAll(values);\n"
+      "  return this;\n"
+      "}\n");
+  }
+  printer->Print(variables_,
     "public Builder clear$capitalized_name$() {\n"
-    "  result.$name$_ = java.util.Collections.emptyList();\n"
+    "  result.$name$_ = $empty_list$;\n"
     "  return this;\n"
     "}\n");
 }
@@ -400,8 +587,8 @@ void RepeatedPrimitiveFieldGenerator::
 GenerateMergingCode(io::Printer* printer) const {
   printer->Print(variables_,
     "if (!other.$name$_.isEmpty()) {\n"
-    "  if (result.$name$_.isEmpty()) {\n"
-    "    result.$name$_ = new java.util.ArrayList<$boxed_type$>();\n"
+    "  if (result.$name$_ == $shared_empty_list$) {\n"
+    "    result.$name$_ = $new_list$;\n"
     "  }\n"
     "  result.$name$_.addAll(other.$name$_);\n"
     "}\n");
@@ -409,10 +596,25 @@ GenerateMergingCode(io::Printer* printer) const {
 
 void RepeatedPrimitiveFieldGenerator::
 GenerateBuildingCode(io::Printer* printer) const {
+  if (UsesPrimitiveList(descriptor_)) {
+    // The empty list is immutable already; this is a no-op for it.
+    printer->Print(variables_,
+      "result.$name$_.makeImmutable();\n");
+  } else {
+    printer->Print(variables_,
+      "if (result.$name$_ != java.util.Collections.EMPTY_LIST) {\n"
+      "  result.$name$_ =\n"
+      "    java.util.Collections.unmodifiableList(result.$name$_);\n"
+      "}\n");
+  }
+}
+
+void RepeatedPrimitiveFieldGenerator::
+GenerateReuseCode(io::Printer* printer) const {
   printer->Print(variables_,
-    "if (result.$name$_ != java.util.Collections.EMPTY_LIST) {\n"
-    "  result.$name$_ =\n"
-    "    java.util.Collections.unmodifiableList(result.$name$_);\n"
+    "if (old.$name$_ != $shared_empty_list$) {\n"
+    "  old.$name$_.clear();\n"
+    "  result.$name$_ = old.$name$_;\n"
     "}\n");
 }
 
@@ -424,13 +626,13 @@ GenerateParsingCode(io::Printer* printer) const {
 
 void RepeatedPrimitiveFieldGenerator::
 GenerateParsingCodeFromPacked(io::Printer* printer) const {
+  // Only primitive types can be packed, so the field is a primitive list.
+  // CodedInputStream reads the length and decodes the whole run.
   printer->Print(variables_,
-    "int length = input.readRawVarint32();\n"
-    "int limit = input.pushLimit(length);\n"
-    "while (input.getBytesUntilLimit() > 0) {\n"
-    "  add$capitalized_name$(input.read$capitalized_type$());\n"
+    "if (result.$name$_ == $shared_empty_list$) {\n"
+    "  result.$name$_ = $new_list$;\n"
     "}\n"
-    "input.popLimit(limit);\n");
+    "input.readPacked$packed_reader$(result.$name$_);\n");
 }
 
 void RepeatedPrimitiveFieldGenerator::
@@ -441,13 +643,11 @@ GenerateSerializationCode(io::Printer* printer) const {
       "  output.writeRawVarint32($tag$);\n"
       "  output.writeRawVarint32($name$MemoizedSerializedSize);\n"
       "}\n"
-      "for ($type$ element : get$capitalized_name$List()) {\n"
-      "  output.write$capitalized_type$NoTag(element);\n"
-      "}\n");
+      "output.write$packed_writer$NoTag($name$_);\n");
   } else {
     printer->Print(variables_,
-      "for ($type$ element : get$capitalized_name$List()) {\n"
-      "  output.write$capitalized_type$($number$, element);\n"
+      "for (int i = 0; i < $name$_.size(); i++) {\n"
+      "  output.write$capitalized_type$($number$, $name$_.$element_get$(i));\n"
       "}\n");
   }
 }
@@ -461,9 +661,9 @@ GenerateSerializedSizeCode(io::Printer* printer) const {
 
   if (FixedSize(GetType(descriptor_)) == -1) {
     printer->Print(variables_,
-      "for ($type$ element : get$capitalized_name$List()) {\n"
+      "for (int i = 0; i < $name$_.size(); i++) {\n"
       "  dataSize += com.google.protobuf.CodedOutputStream\n"
-      "    .compute$capitalized_type$SizeNoTag(element);\n"
+      "    .compute$capitalized_type$SizeNoTag($name$_.$element_get$(i));\n"
       "}\n");
   } else {
     printer->Print(variables_,
@@ -495,6 +695,24 @@ GenerateSerializedSizeCode(io::Printer* printer) const {
   printer->Print("}\n");
 }
 
+void RepeatedPrimitiveFieldGenerator::
+GenerateEqualsCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (!get$capitalized_name$List().equals(\n"
+    "        other.get$capitalized_name$List())) {\n"
+    "  return false;\n"
+    "}\n");
+}
+
+void RepeatedPrimitiveFieldGenerator::
+GenerateHashCode(io::Printer* printer) const {
+  printer->Print(variables_,
+    "if (get$capitalized_name$Count() > 0) {\n"
+    "  hash = (37 * hash) + $number$;\n"
+    "  hash = (53 * hash) + get$capitalized_name$List().hashCode();\n"
+    "}\n");
+}
+
 string RepeatedPrimitiveFieldGenerator::GetBoxedType() const {
   return BoxedPrimitiveTypeName(GetJavaType(descriptor_));
 }